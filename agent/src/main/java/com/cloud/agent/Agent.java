@@ -29,9 +29,8 @@ import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.Timer;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -47,6 +46,7 @@ import org.apache.cloudstack.ca.SetupCertificateCommand;
 import org.apache.cloudstack.ca.SetupKeyStoreCommand;
 import org.apache.cloudstack.ca.SetupKeystoreAnswer;
 import org.apache.cloudstack.managed.context.ManagedContextTimerTask;
+import org.apache.cloudstack.storage.command.StorageSubSystemCommand;
 import org.apache.cloudstack.utils.security.KeyStoreUtils;
 import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.io.FileUtils;
@@ -56,23 +56,31 @@ import org.slf4j.MDC;
 import com.cloud.agent.api.AgentControlAnswer;
 import com.cloud.agent.api.AgentControlCommand;
 import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.CheckHealthCommand;
+import com.cloud.agent.api.CheckOnHostCommand;
 import com.cloud.agent.api.Command;
 import com.cloud.agent.api.CronCommand;
 import com.cloud.agent.api.MaintainAnswer;
 import com.cloud.agent.api.MaintainCommand;
+import com.cloud.agent.api.PingAnswer;
 import com.cloud.agent.api.PingCommand;
+import com.cloud.agent.api.PingRoutingCommand;
+import com.cloud.agent.api.PingTestCommand;
 import com.cloud.agent.api.ReadyCommand;
 import com.cloud.agent.api.ShutdownCommand;
 import com.cloud.agent.api.StartupAnswer;
 import com.cloud.agent.api.StartupCommand;
+import com.cloud.agent.api.storage.StorageCommand;
 import com.cloud.agent.transport.Request;
 import com.cloud.agent.transport.Response;
 import com.cloud.exception.AgentControlChannelException;
 import com.cloud.host.Host;
 import com.cloud.resource.ServerResource;
+import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.PropertiesUtil;
 import com.cloud.utils.StringUtils;
 import com.cloud.utils.backoff.BackoffAlgorithm;
+import com.cloud.utils.concurrency.LaneExecutor;
 import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.exception.NioConnectionException;
@@ -136,6 +144,7 @@ public class Agent implements HandlerFactory, IAgentControl {
     long _lastPingResponseTime = 0;
     long _pingInterval = 0;
     AtomicInteger _inProgress = new AtomicInteger();
+    HostVmStateReportTracker _vmStateReportTracker;
 
     StartupTask _startup = null;
     long _startupWaitDefault = 180000;
@@ -143,7 +152,11 @@ public class Agent implements HandlerFactory, IAgentControl {
     boolean _reconnectAllowed = true;
     //For time sentitive task, e.g. PingTask
     ThreadPoolExecutor _ugentTaskPool;
-    ExecutorService _executor;
+    // the requests of the mgt server, in lanes so that long running storage commands cannot hold up the others
+    LaneExecutor _requestLanes;
+    static final String CONTROL_LANE = "control";
+    static final String STORAGE_LANE = "storage";
+    static final String DEFAULT_LANE = "default";
 
     Thread _shutdownThread = new ShutdownThread(this);
 
@@ -156,6 +169,7 @@ public class Agent implements HandlerFactory, IAgentControl {
         _link = null;
 
         _connection = new NioClient("Agent", _shell.getNextHost(), _shell.getPort(), _shell.getWorkers(), this);
+        _vmStateReportTracker = createVmStateReportTracker(shell);
 
         Runtime.getRuntime().addShutdownHook(_shutdownThread);
 
@@ -163,9 +177,7 @@ public class Agent implements HandlerFactory, IAgentControl {
                 new ThreadPoolExecutor(shell.getPingRetries(), 2 * shell.getPingRetries(), 10, TimeUnit.MINUTES, new SynchronousQueue<Runnable>(), new NamedThreadFactory(
                         "UgentTask"));
 
-        _executor =
-                new ThreadPoolExecutor(_shell.getWorkers(), 5 * _shell.getWorkers(), 1, TimeUnit.DAYS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory(
-                        "agentRequest-Handler"));
+        _requestLanes = createRequestLanes(shell);
     }
 
     public Agent(final IAgentShell shell, final int localAgentId, final ServerResource resource) throws ConfigurationException {
@@ -192,6 +204,7 @@ public class Agent implements HandlerFactory, IAgentControl {
 
         final String host = _shell.getNextHost();
         _connection = new NioClient("Agent", host, _shell.getPort(), _shell.getWorkers(), this);
+        _vmStateReportTracker = createVmStateReportTracker(shell);
 
         // ((NioClient)_connection).setBindAddress(_shell.getPrivateIp());
 
@@ -202,14 +215,45 @@ public class Agent implements HandlerFactory, IAgentControl {
                 new ThreadPoolExecutor(shell.getPingRetries(), 2 * shell.getPingRetries(), 10, TimeUnit.MINUTES, new SynchronousQueue<Runnable>(), new NamedThreadFactory(
                         "UgentTask"));
 
-        _executor =
-                new ThreadPoolExecutor(_shell.getWorkers(), 5 * _shell.getWorkers(), 1, TimeUnit.DAYS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory(
-                        "agentRequest-Handler"));
+        _requestLanes = createRequestLanes(shell);
 
         s_logger.info("Agent [id = " + (_id != null ? _id : "new") + " : type = " + getResourceName() + " : zone = " + _shell.getZone() + " : pod = " + _shell.getPod() +
                 " : workers = " + _shell.getWorkers() + " : host = " + host + " : port = " + _shell.getPort());
     }
 
+    private static LaneExecutor createRequestLanes(final IAgentShell shell) {
+        final Properties properties = shell.getProperties() != null ? shell.getProperties() : new Properties();
+        final int queueSize = NumbersUtil.parseInt(properties.getProperty("request.queue.size"), 1000);
+        final int controlWorkers = NumbersUtil.parseInt(properties.getProperty("request.control.workers"), 2);
+        final int storageWorkers = NumbersUtil.parseInt(properties.getProperty("request.storage.workers"), shell.getWorkers());
+        return new LaneExecutor("agentRequest-Handler")
+                .addLane(CONTROL_LANE, controlWorkers, queueSize)
+                .addLane(STORAGE_LANE, storageWorkers, queueSize)
+                .addLane(DEFAULT_LANE, shell.getWorkers(), queueSize);
+    }
+
+    /**
+     * @return the lane the request is run on, by the class of its first command
+     */
+    static String getRequestLane(final Request request) {
+        final Command cmd = request.getCommand();
+        if (cmd instanceof ReadyCommand || cmd instanceof CheckHealthCommand || cmd instanceof PingTestCommand || cmd instanceof MaintainCommand
+                || cmd instanceof ShutdownCommand || cmd instanceof CronCommand || cmd instanceof CheckOnHostCommand) {
+            return CONTROL_LANE;
+        }
+        if (cmd instanceof StorageSubSystemCommand || cmd instanceof StorageCommand) {
+            return STORAGE_LANE;
+        }
+        return DEFAULT_LANE;
+    }
+
+    private static HostVmStateReportTracker createVmStateReportTracker(final IAgentShell shell) {
+        final Properties properties = shell.getProperties() != null ? shell.getProperties() : new Properties();
+        final boolean enabled = Boolean.parseBoolean(properties.getProperty("ping.vm.state.delta", "true"));
+        final int fullReportInterval = NumbersUtil.parseInt(properties.getProperty("ping.vm.state.full.report.interval"), 10);
+        return new HostVmStateReportTracker(enabled, fullReportInterval);
+    }
+
     public String getVersion() {
         return _shell.getVersion();
     }
@@ -249,7 +293,7 @@ public class Agent implements HandlerFactory, IAgentControl {
      * agent instances and its inner objects.
      */
     private void scavengeOldAgentObjects() {
-        _executor.submit(new Runnable() {
+        _requestLanes.execute(DEFAULT_LANE, new Runnable() {
             @Override
             public void run() {
                 try {
@@ -340,9 +384,9 @@ public class Agent implements HandlerFactory, IAgentControl {
             _ugentTaskPool = null;
         }
 
-        if (_executor != null) {
-            _executor.shutdown();
-            _executor = null;
+        if (_requestLanes != null) {
+            _requestLanes.shutdown();
+            _requestLanes = null;
         }
 
         if (_timer != null) {
@@ -492,6 +536,7 @@ public class Agent implements HandlerFactory, IAgentControl {
 
         setLink(null);
         cancelTasks();
+        _vmStateReportTracker.reset();
 
         _resource.disconnected();
 
@@ -680,6 +725,23 @@ public class Agent implements HandlerFactory, IAgentControl {
         }
     }
 
+    /**
+     * Fails a request right away when its lane is full, rather than letting the mgt server wait for it to time out.
+     */
+    private void rejectRequest(final Request request, final Link link, final String lane) {
+        s_logger.warn("Rejecting request " + request.getSequence() + ", too many " + lane + " requests are queued: " + _requestLanes.report());
+        final Command[] cmds = request.getCommands();
+        final Answer[] answers = new Answer[cmds.length];
+        for (int i = 0; i < cmds.length; i++) {
+            answers[i] = new Answer(cmds[i], false, "Agent is busy, too many " + lane + " requests are queued");
+        }
+        try {
+            link.send(new Response(request, answers).toBytes());
+        } catch (final ClosedChannelException e) {
+            s_logger.warn("Unable to send response to rejected request " + request.getSequence());
+        }
+    }
+
     public Answer setupAgentKeystore(final SetupKeyStoreCommand cmd) {
         final String keyStorePassword = cmd.getKeystorePassword();
         final long validityDays = cmd.getValidityDays();
@@ -799,6 +861,9 @@ public class Agent implements HandlerFactory, IAgentControl {
                 }
             }
         } else {
+            if (answer instanceof PingAnswer) {
+                _vmStateReportTracker.processAnswer((PingAnswer)answer);
+            }
             setLastPingResponseTime();
         }
     }
@@ -825,10 +890,14 @@ public class Agent implements HandlerFactory, IAgentControl {
             }
 
             final PingCommand ping = _resource.getCurrentStatus(getId());
+            if (ping instanceof PingRoutingCommand) {
+                _vmStateReportTracker.prepare((PingRoutingCommand)ping);
+            }
             final Request request = new Request(_id, -1, ping, false);
             request.setSequence(getNextSequence());
             if (s_logger.isDebugEnabled()) {
                 s_logger.debug("Sending ping: " + request.toString());
+                s_logger.debug(_requestLanes.report());
             }
 
             try {
@@ -1041,11 +1110,20 @@ public class Agent implements HandlerFactory, IAgentControl {
         }
     }
 
-    public class AgentRequestHandler extends Task {
+    public class AgentRequestHandler extends Task implements Runnable {
         public AgentRequestHandler(final Task.Type type, final Link link, final Request req) {
             super(type, link, req);
         }
 
+        @Override
+        public void run() {
+            try {
+                call();
+            } catch (final TaskExecutionException e) {
+                s_logger.warn("Unable to process request " + get(), e);
+            }
+        }
+
         @Override
         protected void doTask(final Task task) throws TaskExecutionException {
             final Request req = (Request)get();
@@ -1080,7 +1158,10 @@ public class Agent implements HandlerFactory, IAgentControl {
                     } else {
                         //put the requests from mgt server into another thread pool, as the request may take a longer time to finish. Don't block the NIO main thread pool
                         //processRequest(request, task.getLink());
-                        _executor.submit(new AgentRequestHandler(getType(), getLink(), request));
+                        final String lane = getRequestLane(request);
+                        if (!_requestLanes.execute(lane, new AgentRequestHandler(getType(), getLink(), request))) {
+                            rejectRequest(request, task.getLink(), lane);
+                        }
                     }
                 } catch (final ClassNotFoundException e) {
                     s_logger.error("Unable to find this request ");
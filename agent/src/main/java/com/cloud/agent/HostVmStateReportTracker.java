@@ -0,0 +1,113 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.agent.api.HostVmStateReportEntry;
+import com.cloud.agent.api.PingAnswer;
+import com.cloud.agent.api.PingRoutingCommand;
+
+/**
+ * Turns the full VM state report of every ping into a delta against the report last stored by the
+ * management server. A full report is sent whenever the management server has not acknowledged the
+ * previous report (e.g. an older management server, a lost ping or a reconnect), when it asks for one
+ * after a digest mismatch, and after a configurable number of deltas.
+ */
+public class HostVmStateReportTracker {
+    private static final Logger s_logger = Logger.getLogger(HostVmStateReportTracker.class);
+
+    private final boolean _enabled;
+    private final int _fullReportInterval;
+
+    private long _generation = System.currentTimeMillis();
+    private long _acknowledgedGeneration;
+    private Map<String, HostVmStateReportEntry> _lastReport;
+    private int _deltasSinceFullReport;
+
+    public HostVmStateReportTracker(final boolean enabled, final int fullReportInterval) {
+        _enabled = enabled;
+        _fullReportInterval = fullReportInterval;
+    }
+
+    public synchronized void prepare(final PingRoutingCommand ping) {
+        final Map<String, HostVmStateReportEntry> report = ping.getHostVmStateReport();
+        if (!_enabled || report == null) {
+            return;
+        }
+
+        final long baseGeneration = _generation++;
+        final long digest = PingRoutingCommand.computeHostVmStateReportDigest(report);
+        if (_lastReport != null && _acknowledgedGeneration == baseGeneration && _deltasSinceFullReport < _fullReportInterval) {
+            final Map<String, HostVmStateReportEntry> changed = new HashMap<String, HostVmStateReportEntry>();
+            for (final Map.Entry<String, HostVmStateReportEntry> entry : report.entrySet()) {
+                if (!isSameState(_lastReport.get(entry.getKey()), entry.getValue())) {
+                    changed.put(entry.getKey(), entry.getValue());
+                }
+            }
+            final List<String> removed = new ArrayList<String>();
+            for (final String vmName : _lastReport.keySet()) {
+                if (!report.containsKey(vmName)) {
+                    removed.add(vmName);
+                }
+            }
+
+            ping.setHostVmStateReport(changed);
+            ping.setRemovedVms(removed);
+            ping.setHostVmStateReportVersion(_generation, baseGeneration, digest);
+            _deltasSinceFullReport++;
+            if (s_logger.isTraceEnabled()) {
+                s_logger.trace("Sending VM state delta " + _generation + " with " + changed.size() + " changed and " + removed.size() + " removed VMs out of " + report.size());
+            }
+        } else {
+            ping.setHostVmStateReportVersion(_generation, 0, digest);
+            _deltasSinceFullReport = 0;
+        }
+        _lastReport = new HashMap<String, HostVmStateReportEntry>(report);
+    }
+
+    public synchronized void processAnswer(final PingAnswer answer) {
+        if (answer.isSendFullHostVmStateReport()) {
+            s_logger.info("Management server asked for a full VM state report");
+            _acknowledgedGeneration = 0;
+        } else {
+            _acknowledgedGeneration = answer.getHostVmStateReportGeneration();
+        }
+    }
+
+    /**
+     * Forgets what was reported, the next report will carry the full state.
+     */
+    public synchronized void reset() {
+        _lastReport = null;
+        _acknowledgedGeneration = 0;
+        _deltasSinceFullReport = 0;
+    }
+
+    private static boolean isSameState(final HostVmStateReportEntry previous, final HostVmStateReportEntry current) {
+        if (previous == null || current == null) {
+            return previous == current;
+        }
+        return previous.getState() == current.getState() && Objects.equals(previous.getHost(), current.getHost());
+    }
+}
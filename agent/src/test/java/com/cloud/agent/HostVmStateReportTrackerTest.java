@@ -0,0 +1,117 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.cloud.agent.api.HostVmStateReportEntry;
+import com.cloud.agent.api.PingAnswer;
+import com.cloud.agent.api.PingRoutingCommand;
+import com.cloud.host.Host;
+import com.cloud.vm.VirtualMachine.PowerState;
+
+public class HostVmStateReportTrackerTest {
+    private final Map<String, HostVmStateReportEntry> state = new HashMap<String, HostVmStateReportEntry>();
+
+    private PingRoutingCommand ping(final HostVmStateReportTracker tracker) {
+        final PingRoutingCommand ping = new PingRoutingCommand(Host.Type.Routing, 1L, new HashMap<String, HostVmStateReportEntry>(state));
+        tracker.prepare(ping);
+        return ping;
+    }
+
+    private PingAnswer accept(final PingRoutingCommand ping) {
+        ping.setHostVmStateReportAccepted(true);
+        return new PingAnswer(ping);
+    }
+
+    @Test
+    public void testDeltaIsSentOnceTheReportIsAcknowledged() {
+        final HostVmStateReportTracker tracker = new HostVmStateReportTracker(true, 10);
+        state.put("i-2-3-VM", new HostVmStateReportEntry(PowerState.PowerOn, "host1"));
+        state.put("i-2-4-VM", new HostVmStateReportEntry(PowerState.PowerOn, "host1"));
+
+        final PingRoutingCommand full = ping(tracker);
+        Assert.assertFalse(full.isHostVmStateReportDelta());
+        Assert.assertEquals(2, full.getHostVmStateReport().size());
+        tracker.processAnswer(accept(full));
+
+        state.put("i-2-3-VM", new HostVmStateReportEntry(PowerState.PowerOff, "host1"));
+        state.remove("i-2-4-VM");
+        final PingRoutingCommand delta = ping(tracker);
+        Assert.assertTrue(delta.isHostVmStateReportDelta());
+        Assert.assertEquals(full.getHostVmStateReportGeneration(), delta.getHostVmStateReportBaseGeneration());
+        Assert.assertEquals(Collections.singleton("i-2-3-VM"), delta.getHostVmStateReport().keySet());
+        Assert.assertEquals(Collections.singletonList("i-2-4-VM"), delta.getRemovedVms());
+        Assert.assertEquals(PingRoutingCommand.computeHostVmStateReportDigest(state), delta.getHostVmStateReportDigest());
+        tracker.processAnswer(accept(delta));
+
+        final PingRoutingCommand unchanged = ping(tracker);
+        Assert.assertTrue(unchanged.isHostVmStateReportDelta());
+        Assert.assertTrue(unchanged.getHostVmStateReport().isEmpty());
+    }
+
+    @Test
+    public void testFullReportWithoutAcknowledgement() {
+        final HostVmStateReportTracker tracker = new HostVmStateReportTracker(true, 10);
+        state.put("i-2-3-VM", new HostVmStateReportEntry(PowerState.PowerOn, "host1"));
+
+        // a management server that does not know about versioned reports never acknowledges them
+        tracker.processAnswer(new PingAnswer(ping(tracker)));
+        Assert.assertFalse(ping(tracker).isHostVmStateReportDelta());
+    }
+
+    @Test
+    public void testFullReportOnRequest() {
+        final HostVmStateReportTracker tracker = new HostVmStateReportTracker(true, 10);
+        state.put("i-2-3-VM", new HostVmStateReportEntry(PowerState.PowerOn, "host1"));
+        tracker.processAnswer(accept(ping(tracker)));
+
+        final PingRoutingCommand delta = ping(tracker);
+        Assert.assertTrue(delta.isHostVmStateReportDelta());
+        delta.requestFullHostVmStateReport();
+        tracker.processAnswer(new PingAnswer(delta));
+
+        final PingRoutingCommand full = ping(tracker);
+        Assert.assertFalse(full.isHostVmStateReportDelta());
+        Assert.assertEquals(1, full.getHostVmStateReport().size());
+    }
+
+    @Test
+    public void testPeriodicFullReport() {
+        final HostVmStateReportTracker tracker = new HostVmStateReportTracker(true, 2);
+        tracker.processAnswer(accept(ping(tracker)));
+        tracker.processAnswer(accept(ping(tracker)));
+        tracker.processAnswer(accept(ping(tracker)));
+        Assert.assertFalse(ping(tracker).isHostVmStateReportDelta());
+    }
+
+    @Test
+    public void testResetAndDisabled() {
+        final HostVmStateReportTracker tracker = new HostVmStateReportTracker(true, 10);
+        tracker.processAnswer(accept(ping(tracker)));
+        tracker.reset();
+        Assert.assertFalse(ping(tracker).isHostVmStateReportDelta());
+
+        final PingRoutingCommand legacy = ping(new HostVmStateReportTracker(false, 10));
+        Assert.assertFalse(legacy.isHostVmStateReportVersioned());
+    }
+}
@@ -0,0 +1,31 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.element;
+
+import com.cloud.network.Network;
+import com.cloud.network.rules.FirewallRule;
+
+/**
+ * A network element that keeps the rules it was given before, so it can be sent only the rules added and revoked
+ * since its last apply instead of the full set.
+ */
+public interface RuleDeltaServiceProvider extends NetworkElement {
+    /**
+     * @return true if the element merges the rules of the purpose and traffic type it is given into the ones it has
+     */
+    boolean canApplyRuleDelta(Network network, FirewallRule.Purpose purpose, FirewallRule.TrafficType trafficType);
+}
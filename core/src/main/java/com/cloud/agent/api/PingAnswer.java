@@ -21,6 +21,9 @@ package com.cloud.agent.api;
 
 public class PingAnswer extends Answer {
     private PingCommand _command = null;
+    // generation of the host VM state report the management server has stored, 0 if none
+    private long _hostVmStateReportGeneration;
+    private boolean _sendFullHostVmStateReport;
 
     protected PingAnswer() {
     }
@@ -28,9 +31,22 @@ public class PingAnswer extends Answer {
     public PingAnswer(PingCommand cmd) {
         super(cmd);
         _command = cmd;
+        if (cmd instanceof PingRoutingCommand) {
+            final PingRoutingCommand ping = (PingRoutingCommand)cmd;
+            _hostVmStateReportGeneration = ping.isHostVmStateReportAccepted() ? ping.getHostVmStateReportGeneration() : 0;
+            _sendFullHostVmStateReport = ping.isFullHostVmStateReportRequested();
+        }
     }
 
     public PingCommand getCommand() {
         return _command;
     }
+
+    public long getHostVmStateReportGeneration() {
+        return _hostVmStateReportGeneration;
+    }
+
+    public boolean isSendFullHostVmStateReport() {
+        return _sendFullHostVmStateReport;
+    }
 }
@@ -19,7 +19,11 @@
 
 package com.cloud.agent.api;
 
+import java.nio.charset.StandardCharsets;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
 
 import com.cloud.host.Host;
 
@@ -30,6 +34,17 @@ public class PingRoutingCommand extends PingCommand {
     boolean _gatewayAccessible = true;
     boolean _vnetAccessible = true;
 
+    // a generation of 0 marks an unversioned report from an agent that always sends the full state
+    long _hostVmStateReportGeneration;
+    // the generation a delta report applies to, 0 when the report carries the full state
+    long _hostVmStateReportBaseGeneration;
+    long _hostVmStateReportDigest;
+    List<String> _removedVms;
+
+    // set by the management server while processing the ping and returned in the PingAnswer
+    transient boolean _hostVmStateReportAccepted;
+    transient boolean _fullHostVmStateReportRequested;
+
     protected PingRoutingCommand() {
     }
 
@@ -42,6 +57,80 @@ public class PingRoutingCommand extends PingCommand {
         return this._hostVmStateReport;
     }
 
+    public void setHostVmStateReport(Map<String, HostVmStateReportEntry> hostVmStateReport) {
+        this._hostVmStateReport = hostVmStateReport;
+    }
+
+    public void setHostVmStateReportVersion(long generation, long baseGeneration, long digest) {
+        _hostVmStateReportGeneration = generation;
+        _hostVmStateReportBaseGeneration = baseGeneration;
+        _hostVmStateReportDigest = digest;
+    }
+
+    public long getHostVmStateReportGeneration() {
+        return _hostVmStateReportGeneration;
+    }
+
+    public long getHostVmStateReportBaseGeneration() {
+        return _hostVmStateReportBaseGeneration;
+    }
+
+    public long getHostVmStateReportDigest() {
+        return _hostVmStateReportDigest;
+    }
+
+    public boolean isHostVmStateReportVersioned() {
+        return _hostVmStateReportGeneration > 0;
+    }
+
+    /**
+     * @return true when the report only holds the VMs that changed since the base generation
+     */
+    public boolean isHostVmStateReportDelta() {
+        return isHostVmStateReportVersioned() && _hostVmStateReportBaseGeneration > 0;
+    }
+
+    public List<String> getRemovedVms() {
+        return _removedVms;
+    }
+
+    public void setRemovedVms(List<String> removedVms) {
+        _removedVms = removedVms;
+    }
+
+    public boolean isHostVmStateReportAccepted() {
+        return _hostVmStateReportAccepted;
+    }
+
+    public void setHostVmStateReportAccepted(boolean accepted) {
+        _hostVmStateReportAccepted = accepted;
+    }
+
+    public boolean isFullHostVmStateReportRequested() {
+        return _fullHostVmStateReportRequested;
+    }
+
+    public void requestFullHostVmStateReport() {
+        _hostVmStateReportAccepted = false;
+        _fullHostVmStateReportRequested = true;
+    }
+
+    /**
+     * Computes a digest of the complete VM state of a host, used by the management server to verify that
+     * the state it rebuilt from delta reports matches the state on the host.
+     */
+    public static long computeHostVmStateReportDigest(Map<String, HostVmStateReportEntry> report) {
+        final CRC32 crc = new CRC32();
+        if (report != null) {
+            for (Map.Entry<String, HostVmStateReportEntry> entry : new TreeMap<String, HostVmStateReportEntry>(report).entrySet()) {
+                final HostVmStateReportEntry value = entry.getValue();
+                final String line = entry.getKey() + ":" + (value != null ? value.getState() + ":" + value.getHost() : "") + "\n";
+                crc.update(line.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return crc.getValue();
+    }
+
     public boolean isGatewayAccessible() {
         return _gatewayAccessible;
     }
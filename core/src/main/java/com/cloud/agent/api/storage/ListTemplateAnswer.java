@@ -19,6 +19,7 @@
 
 package com.cloud.agent.api.storage;
 
+import java.util.List;
 import java.util.Map;
 
 import com.cloud.agent.api.Answer;
@@ -27,6 +28,11 @@ import com.cloud.storage.template.TemplateProp;
 public class ListTemplateAnswer extends Answer {
     private String secUrl;
     private Map<String, TemplateProp> templateInfos;
+    private String syncEpoch;
+    private long syncSequence = -1;
+    // true if templateInfos only has the templates changed since the sync point of the command
+    private boolean delta;
+    private List<String> removedTemplates;
 
     public ListTemplateAnswer() {
         super();
@@ -53,4 +59,30 @@ public class ListTemplateAnswer extends Answer {
     public String getSecUrl() {
         return secUrl;
     }
+
+    public void setSyncPoint(String syncEpoch, long syncSequence) {
+        this.syncEpoch = syncEpoch;
+        this.syncSequence = syncSequence;
+    }
+
+    public String getSyncEpoch() {
+        return syncEpoch;
+    }
+
+    public long getSyncSequence() {
+        return syncSequence;
+    }
+
+    public void setDelta(List<String> removedTemplates) {
+        this.delta = true;
+        this.removedTemplates = removedTemplates;
+    }
+
+    public boolean isDelta() {
+        return delta;
+    }
+
+    public List<String> getRemovedTemplates() {
+        return removedTemplates;
+    }
 }
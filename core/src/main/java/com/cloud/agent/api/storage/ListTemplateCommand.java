@@ -23,6 +23,9 @@ import com.cloud.agent.api.to.DataStoreTO;
 
 public class ListTemplateCommand extends StorageCommand {
     private DataStoreTO store;
+    // the manifest sequence of the last sync, to only list the changes since
+    private String syncEpoch;
+    private long syncSequence = -1;
 
     public ListTemplateCommand() {
     }
@@ -45,4 +48,17 @@ public class ListTemplateCommand extends StorageCommand {
         return store;
     }
 
+    public void setSyncPoint(String syncEpoch, long syncSequence) {
+        this.syncEpoch = syncEpoch;
+        this.syncSequence = syncSequence;
+    }
+
+    public String getSyncEpoch() {
+        return syncEpoch;
+    }
+
+    public long getSyncSequence() {
+        return syncSequence;
+    }
+
 }
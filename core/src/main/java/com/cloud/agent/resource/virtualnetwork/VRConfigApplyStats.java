@@ -0,0 +1,85 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.agent.resource.virtualnetwork;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per router counters of the configuration applied through {@link VirtualRoutingResource}.
+ * One "apply" is one round of file copies and script executions against the router,
+ * which may carry the configuration of several coalesced commands.
+ */
+public class VRConfigApplyStats {
+    private final AtomicLong applies = new AtomicLong();
+    private final AtomicLong failedApplies = new AtomicLong();
+    private final AtomicLong commands = new AtomicLong();
+    private final AtomicLong configItems = new AtomicLong();
+    private final AtomicLong totalApplyMillis = new AtomicLong();
+    private final AtomicLong maxApplyMillis = new AtomicLong();
+
+    public void record(final int commandCount, final int configItemCount, final long elapsedMillis, final boolean success) {
+        applies.incrementAndGet();
+        if (!success) {
+            failedApplies.incrementAndGet();
+        }
+        commands.addAndGet(commandCount);
+        configItems.addAndGet(configItemCount);
+        totalApplyMillis.addAndGet(elapsedMillis);
+        long max = maxApplyMillis.get();
+        while (elapsedMillis > max && !maxApplyMillis.compareAndSet(max, elapsedMillis)) {
+            max = maxApplyMillis.get();
+        }
+    }
+
+    public long getApplies() {
+        return applies.get();
+    }
+
+    public long getFailedApplies() {
+        return failedApplies.get();
+    }
+
+    public long getCommands() {
+        return commands.get();
+    }
+
+    public long getConfigItems() {
+        return configItems.get();
+    }
+
+    public long getTotalApplyMillis() {
+        return totalApplyMillis.get();
+    }
+
+    public long getMaxApplyMillis() {
+        return maxApplyMillis.get();
+    }
+
+    public long getAverageApplyMillis() {
+        final long count = applies.get();
+        return count == 0 ? 0 : totalApplyMillis.get() / count;
+    }
+
+    @Override
+    public String toString() {
+        return "VRConfigApplyStats[applies=" + getApplies() + ", failed=" + getFailedApplies() + ", commands=" + getCommands() + ", configItems=" + getConfigItems()
+                + ", avgMs=" + getAverageApplyMillis() + ", maxMs=" + getMaxApplyMillis() + "]";
+    }
+}
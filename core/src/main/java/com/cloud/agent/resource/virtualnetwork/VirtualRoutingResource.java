@@ -27,11 +27,12 @@ import org.apache.cloudstack.diagnostics.DiagnosticsAnswer;
 import org.apache.cloudstack.diagnostics.DiagnosticsCommand;
 import org.joda.time.Duration;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -76,13 +77,18 @@ public class VirtualRoutingResource {
     private static final Logger s_logger = Logger.getLogger(VirtualRoutingResource.class);
     private VirtualRouterDeployer _vrDeployer;
     private Map<String, Queue<NetworkElementCommand>> _vrAggregateCommandsSet;
-    protected Map<String, Lock> _vrLockMap = new HashMap<String, Lock>();
+    protected Map<String, Lock> _vrLockMap = new ConcurrentHashMap<String, Lock>();
+    private final Map<String, Queue<PendingConfig>> _vrPendingConfigs = new ConcurrentHashMap<>();
+    private final Map<String, VRConfigApplyStats> _vrConfigStats = new ConcurrentHashMap<>();
 
     private String _name;
     private int _sleep;
     private int _retry;
     private int _port;
     private Duration _eachTimeout;
+    private boolean _coalesceConfig;
+    private int _coalesceWindow;
+    private int _coalesceMaxCommands;
     private Map<String, Object> _params;
 
     private String _cfgVersion = "1.0";
@@ -91,16 +97,29 @@ public class VirtualRoutingResource {
         _vrDeployer = deployer;
     }
 
+    /**
+     * A configuration command waiting for the router lock. Whichever thread gets the lock
+     * first applies all pending commands of the router in one go and hands out the answers.
+     */
+    private static class PendingConfig {
+        private final NetworkElementCommand cmd;
+        private List<ConfigItem> cfg;
+        private Answer answer;
+
+        PendingConfig(final NetworkElementCommand cmd) {
+            this.cmd = cmd;
+        }
+    }
+
     public Answer executeRequest(final NetworkElementCommand cmd) {
         boolean aggregated = false;
         String routerName = cmd.getAccessDetail(NetworkElementCommand.ROUTER_NAME);
-        Lock lock;
-        if (_vrLockMap.containsKey(routerName)) {
-            lock = _vrLockMap.get(routerName);
-        } else {
-            lock = new ReentrantLock();
-            _vrLockMap.put(routerName, lock);
+        Lock lock = getRouterLock(routerName);
+
+        if (_coalesceConfig && isCoalescable(cmd)) {
+            return executeCoalesced(routerName, lock, cmd);
         }
+
         lock.lock();
 
         try {
@@ -155,6 +174,158 @@ public class VirtualRoutingResource {
         }
     }
 
+    private Lock getRouterLock(final String routerName) {
+        if (routerName == null) {
+            return new ReentrantLock();
+        }
+        return _vrLockMap.computeIfAbsent(routerName, k -> new ReentrantLock());
+    }
+
+    private boolean isCoalescable(final NetworkElementCommand cmd) {
+        return cmd.getAccessDetail(NetworkElementCommand.ROUTER_NAME) != null && !cmd.isQuery() && !(cmd instanceof SetupKeyStoreCommand)
+                && !(cmd instanceof SetupCertificateCommand) && !(cmd instanceof AggregationControlCommand);
+    }
+
+    /**
+     * Queues the command for the router and waits for the router lock. The lock holder drains the queue,
+     * so commands which piled up behind a running apply are pushed to the router as one aggregated
+     * configuration file instead of one file copy and script execution each.
+     */
+    private Answer executeCoalesced(final String routerName, final Lock lock, final NetworkElementCommand cmd) {
+        final PendingConfig pending = new PendingConfig(cmd);
+        final Queue<PendingConfig> queue = _vrPendingConfigs.computeIfAbsent(routerName, k -> new ConcurrentLinkedQueue<>());
+        queue.add(pending);
+
+        lock.lock();
+        try {
+            if (pending.answer == null && _coalesceWindow > 0) {
+                try {
+                    Thread.sleep(_coalesceWindow);
+                } catch (final InterruptedException e) {
+                    s_logger.debug("Interrupted while waiting for more commands to coalesce for " + routerName);
+                    Thread.currentThread().interrupt();
+                }
+            }
+            while (pending.answer == null) {
+                final List<PendingConfig> batch = new ArrayList<>();
+                PendingConfig next;
+                while (batch.size() < _coalesceMaxCommands && (next = queue.poll()) != null) {
+                    batch.add(next);
+                }
+                if (batch.isEmpty()) {
+                    // Should not happen, but never leave the caller without an answer
+                    pending.answer = new Answer(cmd, false, "Command was lost while coalescing configuration for " + routerName);
+                    break;
+                }
+                applyCoalescedConfig(routerName, batch);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return pending.answer;
+    }
+
+    private void applyCoalescedConfig(final String routerName, final List<PendingConfig> batch) {
+        final List<PendingConfig> ready = new ArrayList<>();
+        final List<NetworkElementCommand> toCleanup = new ArrayList<>();
+        try {
+            for (final PendingConfig pending : batch) {
+                final NetworkElementCommand cmd = pending.cmd;
+                try {
+                    final ExecutionResult rc = _vrDeployer.prepareCommand(cmd);
+                    if (!rc.isSuccess()) {
+                        s_logger.error("Failed to prepare VR command due to " + rc.getDetails());
+                        pending.answer = new Answer(cmd, false, rc.getDetails());
+                        toCleanup.add(cmd);
+                        continue;
+                    }
+
+                    assert cmd.getRouterAccessIp() != null : "Why there is no access IP for VR?";
+
+                    if (_vrAggregateCommandsSet.containsKey(routerName)) {
+                        // Clean up would be done after command has been executed
+                        _vrAggregateCommandsSet.get(routerName).add(cmd);
+                        pending.answer = new Answer(cmd);
+                        continue;
+                    }
+
+                    toCleanup.add(cmd);
+                    pending.cfg = generateCommandCfg(cmd);
+                    if (pending.cfg == null) {
+                        pending.answer = Answer.createUnsupportedCommandAnswer(cmd);
+                    } else if (pending.cfg.isEmpty()) {
+                        pending.answer = new Answer(cmd, true, "Nothing to do");
+                    } else {
+                        ready.add(pending);
+                    }
+                } catch (final IllegalArgumentException e) {
+                    pending.answer = new Answer(cmd, false, e.getMessage());
+                }
+            }
+
+            if (ready.size() == 1) {
+                final PendingConfig pending = ready.get(0);
+                pending.answer = applyConfig(pending.cmd, pending.cfg);
+            } else if (ready.size() > 1) {
+                applyConfigBatch(routerName, ready);
+            }
+        } finally {
+            for (final PendingConfig pending : batch) {
+                if (pending.answer == null) {
+                    pending.answer = new Answer(pending.cmd, false, "Failed to apply coalesced configuration on " + routerName);
+                }
+            }
+            for (final NetworkElementCommand cmd : toCleanup) {
+                final ExecutionResult rc = _vrDeployer.cleanupCommand(cmd);
+                if (!rc.isSuccess()) {
+                    s_logger.error("Failed to cleanup VR command due to " + rc.getDetails());
+                }
+            }
+        }
+    }
+
+    private void applyConfigBatch(final String routerName, final List<PendingConfig> ready) {
+        final List<ConfigItem> cfg = new ArrayList<>();
+        int answerCounts = 0;
+        for (final PendingConfig pending : ready) {
+            cfg.addAll(pending.cfg);
+            answerCounts += pending.cmd.getAnswersCount();
+        }
+
+        final long startTimestamp = System.currentTimeMillis();
+        final ExecutionResult result = applyAggregatedConfig(ready.get(0).cmd.getRouterAccessIp(), cfg, answerCounts);
+        final long elapsed = System.currentTimeMillis() - startTimestamp;
+        final VRConfigApplyStats stats = getOrCreateConfigApplyStats(routerName);
+        stats.record(ready.size(), cfg.size(), elapsed, result.isSuccess());
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Coalesced " + ready.size() + " commands with " + cfg.size() + " config items for " + routerName + ", took " + elapsed + "ms, " + stats);
+        }
+
+        for (final PendingConfig pending : ready) {
+            final String detail = result.isSuccess() ? "Applied as part of a coalesced configuration of " + ready.size() + " commands" : result.getDetails();
+            if (pending.cfg.size() == 1) {
+                pending.answer = new Answer(pending.cmd, result.isSuccess(), detail);
+            } else {
+                final String[] details = new String[pending.cfg.size()];
+                for (int i = 0; i < details.length; i++) {
+                    details[i] = pending.cfg.get(i).getInfo() + (result.isSuccess() ? " - success: " : " - failed: ") + detail;
+                }
+                pending.answer = new GroupAnswer(pending.cmd, result.isSuccess(), details.length, details);
+            }
+        }
+    }
+
+    private VRConfigApplyStats getOrCreateConfigApplyStats(final String routerName) {
+        return _vrConfigStats.computeIfAbsent(routerName == null ? "unknown" : routerName, k -> new VRConfigApplyStats());
+    }
+
+    /**
+     * @return the configuration apply counters of the router, or null when nothing has been applied to it yet
+     */
+    public VRConfigApplyStats getConfigApplyStats(final String routerName) {
+        return _vrConfigStats.get(routerName);
+    }
+
     private Answer execute(final SetupKeyStoreCommand cmd) {
         final String args = String.format("/usr/local/cloud/systemvm/conf/agent.properties " +
                         "/usr/local/cloud/systemvm/conf/%s " +
@@ -229,6 +400,7 @@ public class VirtualRoutingResource {
         List<ExecutionResult> results = new ArrayList<ExecutionResult>();
         List<String> details = new ArrayList<String>();
         boolean finalResult = false;
+        long applyStartTimestamp = System.currentTimeMillis();
         for (ConfigItem configItem : cfg) {
             long startTimestamp = System.currentTimeMillis();
             ExecutionResult result = applyConfigToVR(cmd.getRouterAccessIp(), configItem, VRScripts.VR_SCRIPT_EXEC_TIMEOUT);
@@ -243,6 +415,7 @@ public class VirtualRoutingResource {
             details.add(configItem.getInfo() + (result.isSuccess() ? " - success: " : " - failed: ") + result.getDetails());
             finalResult = result.isSuccess();
         }
+        getOrCreateConfigApplyStats(cmd.getAccessDetail(NetworkElementCommand.ROUTER_NAME)).record(1, cfg.size(), System.currentTimeMillis() - applyStartTimestamp, finalResult);
 
         // Not sure why this matters, but log it anyway
         if (cmd.getAnswersCount() != results.size()) {
@@ -346,11 +519,20 @@ public class VirtualRoutingResource {
             s_logger.debug("The router.aggregation.command.each.timeout in seconds is set to " + _eachTimeout.getStandardSeconds());
         }
 
+        value = (String)params.get("router.config.coalesce");
+        _coalesceConfig = Boolean.parseBoolean(value);
+
+        value = (String)params.get("router.config.coalesce.window");
+        _coalesceWindow = NumbersUtil.parseInt(value, 0);
+
+        value = (String)params.get("router.config.coalesce.max.commands");
+        _coalesceMaxCommands = Math.max(1, NumbersUtil.parseInt(value, 50));
+
         if (_vrDeployer == null) {
             throw new ConfigurationException("Unable to find the resource for VirtualRouterDeployer!");
         }
 
-        _vrAggregateCommandsSet = new HashMap<>();
+        _vrAggregateCommandsSet = new ConcurrentHashMap<>();
         return true;
     }
 
@@ -426,9 +608,7 @@ public class VirtualRoutingResource {
             Queue<NetworkElementCommand> queue = _vrAggregateCommandsSet.get(routerName);
             int answerCounts = 0;
             try {
-                StringBuilder sb = new StringBuilder();
-                sb.append("#Apache CloudStack Virtual Router Config File\n");
-                sb.append("<version>\n" + _cfgVersion + "\n</version>\n");
+                List<ConfigItem> aggregatedCfg = new ArrayList<>();
                 for (NetworkElementCommand command : queue) {
                     answerCounts += command.getAnswersCount();
                     List<ConfigItem> cfg = generateCommandCfg(command);
@@ -436,28 +616,10 @@ public class VirtualRoutingResource {
                         s_logger.warn("Unknown commands for VirtualRoutingResource, but continue: " + cmd.toString());
                         continue;
                     }
-
-                    for (ConfigItem c : cfg) {
-                        sb.append(c.getAggregateCommand());
-                    }
-                }
-
-                // TODO replace with applyConfig with a stop on fail
-                String cfgFileName = "VR-"+ UUID.randomUUID().toString() + ".cfg";
-                FileConfigItem fileConfigItem = new FileConfigItem(VRScripts.CONFIG_CACHE_LOCATION, cfgFileName, sb.toString());
-                ScriptConfigItem scriptConfigItem = new ScriptConfigItem(VRScripts.VR_CFG, "-c " + VRScripts.CONFIG_CACHE_LOCATION + cfgFileName);
-                // 120s is the minimal timeout
-                Duration timeout = _eachTimeout.withDurationAdded(_eachTimeout.getStandardSeconds(), answerCounts);
-                if (s_logger.isDebugEnabled()){
-                    s_logger.debug("Aggregate action timeout in seconds is " + timeout.getStandardSeconds());
-                }
-
-                ExecutionResult result = applyConfigToVR(cmd.getRouterAccessIp(), fileConfigItem, timeout);
-                if (!result.isSuccess()) {
-                    return new Answer(cmd, false, result.getDetails());
+                    aggregatedCfg.addAll(cfg);
                 }
 
-                result = applyConfigToVR(cmd.getRouterAccessIp(), scriptConfigItem, timeout);
+                ExecutionResult result = applyAggregatedConfig(cmd.getRouterAccessIp(), aggregatedCfg, answerCounts);
                 if (!result.isSuccess()) {
                     return new Answer(cmd, false, result.getDetails());
                 }
@@ -470,4 +632,35 @@ public class VirtualRoutingResource {
         }
         return new Answer(cmd, false, "Fail to recognize aggregation action " + action.toString());
     }
+
+    /**
+     * Ships the config items to the router as a single aggregated config file which is then
+     * processed in order by {@link VRScripts#VR_CFG}, costing one file copy and one script execution.
+     */
+    private ExecutionResult applyAggregatedConfig(final String routerAccessIp, final List<ConfigItem> cfg, final int answerCounts) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("#Apache CloudStack Virtual Router Config File\n");
+        sb.append("<version>\n" + _cfgVersion + "\n</version>\n");
+        for (ConfigItem c : cfg) {
+            sb.append(c.getAggregateCommand());
+        }
+
+        // TODO replace with applyConfig with a stop on fail
+        String cfgFileName = "VR-"+ UUID.randomUUID().toString() + ".cfg";
+        FileConfigItem fileConfigItem = new FileConfigItem(VRScripts.CONFIG_CACHE_LOCATION, cfgFileName, sb.toString());
+        ScriptConfigItem scriptConfigItem = new ScriptConfigItem(VRScripts.VR_CFG, "-c " + VRScripts.CONFIG_CACHE_LOCATION + cfgFileName);
+        // 120s is the minimal timeout
+        Duration timeout = _eachTimeout.withDurationAdded(_eachTimeout.getStandardSeconds(), answerCounts);
+        if (s_logger.isDebugEnabled()){
+            s_logger.debug("Aggregate action timeout in seconds is " + timeout.getStandardSeconds());
+        }
+
+        ExecutionResult result = applyConfigToVR(routerAccessIp, fileConfigItem, timeout);
+        if (result == null || !result.isSuccess()) {
+            return result == null ? new ExecutionResult(false, "null execution result") : result;
+        }
+
+        result = applyConfigToVR(routerAccessIp, scriptConfigItem, timeout);
+        return result == null ? new ExecutionResult(false, "null execution result") : result;
+    }
 }
@@ -19,13 +19,21 @@
 
 package com.cloud.storage.template;
 
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.apache.cloudstack.utils.imagestore.ImageStoreUtil;
 import org.apache.commons.httpclient.Credentials;
@@ -45,10 +53,12 @@ import org.apache.log4j.Logger;
 
 import org.apache.cloudstack.managed.context.ManagedContextRunnable;
 import org.apache.cloudstack.storage.command.DownloadCommand.ResourceType;
+import org.apache.cloudstack.utils.security.ChecksumValue;
 
 import com.cloud.storage.StorageLayer;
 import com.cloud.utils.Pair;
 import com.cloud.utils.UriUtils;
+import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.net.Proxy;
 
 /**
@@ -60,6 +70,8 @@ public class HttpTemplateDownloader extends ManagedContextRunnable implements Te
     private static final MultiThreadedHttpConnectionManager s_httpClientManager = new MultiThreadedHttpConnectionManager();
 
     private static final int CHUNK_SIZE = 1024 * 1024; //1M
+    private static final int DEFAULT_RANGE_CHUNK_SIZE = 8 * 1024 * 1024;
+    private static final int RANGE_ATTEMPTS = 3;
     private String downloadUrl;
     private String toFile;
     public TemplateDownloader.Status status;
@@ -79,6 +91,12 @@ public class HttpTemplateDownloader extends ManagedContextRunnable implements Te
     private ResourceType resourceType = ResourceType.TEMPLATE;
     private final HttpMethodRetryHandler myretryhandler;
 
+    private int parallelRanges = 1;
+    private int rangeChunkSize = DEFAULT_RANGE_CHUNK_SIZE;
+    private final Set<GetMethod> rangeRequests = ConcurrentHashMap.newKeySet();
+    private String checksumAlgorithm;
+    private TemplateStreamInfo streamInfo;
+
     public HttpTemplateDownloader(StorageLayer storageLayer, String downloadUrl, String toDir, DownloadCompleteCallback callback, long maxTemplateSizeInBytes,
             String user, String password, Proxy proxy, ResourceType resourceType) {
         _storage = storageLayer;
@@ -188,6 +206,7 @@ public class HttpTemplateDownloader extends ManagedContextRunnable implements Te
         try {
 
             long localFileSize = checkLocalFileSizeForResume(resume, file);
+            prepareStreamInfo(file, localFileSize);
 
             Date start = new Date();
 
@@ -199,6 +218,23 @@ public class HttpTemplateDownloader extends ManagedContextRunnable implements Te
 
             checkAndSetDownloadSize();
 
+            final long rangeEnd = getRangeDownloadEnd(localFileSize);
+            if (rangeEnd > 0) {
+                // the ranges are requested by their own connections
+                request.abort();
+                try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+                    s_logger.info("Starting download from " + downloadUrl + " to " + toFile + " in " + parallelRanges + " parallel ranges, remoteSize=" + remoteSize
+                            + " , max size=" + maxTemplateSizeInBytes);
+
+                    if (copyRanges(file, out, localFileSize, rangeEnd)) return 0;
+
+                    Date finish = new Date();
+                    checkDowloadCompletion();
+                    downloadTime += finish.getTime() - start.getTime();
+                }
+                return totalBytes;
+            }
+
             try (InputStream in = request.getResponseBodyAsStream();
                  RandomAccessFile out = new RandomAccessFile(file, "rw");
             ) {
@@ -255,12 +291,186 @@ public class HttpTemplateDownloader extends ManagedContextRunnable implements Te
 
     private long writeBlock(int bytes, RandomAccessFile out, byte[] block, long offset) throws IOException {
         out.write(block, 0, bytes);
+        streamInfo.update(block, 0, bytes);
         offset += bytes;
         out.seek(offset);
         totalBytes += bytes;
         return offset;
     }
 
+    /**
+     * Starts the checksum of the download over, unless it already covers the part of the file that is resumed.
+     */
+    private void prepareStreamInfo(File file, long localFileSize) throws IOException {
+        if (streamInfo != null && streamInfo.getBytes() == localFileSize) {
+            return;
+        }
+        streamInfo = new TemplateStreamInfo(checksumAlgorithm);
+        if (localFileSize > 0) {
+            try (InputStream in = new FileInputStream(file)) {
+                streamInfo.update(in, localFileSize);
+            }
+        }
+    }
+
+    /**
+     * @return the end of the file if the rest of it can be fetched in parallel ranges, 0 otherwise
+     */
+    private long getRangeDownloadEnd(long localFileSize) {
+        if (parallelRanges <= 1) {
+            return 0;
+        }
+        Header contentLengthHeader = request.getResponseHeader("Content-Length");
+        Header acceptRangesHeader = request.getResponseHeader("Accept-Ranges");
+        boolean acceptsRanges = localFileSize > 0 || (acceptRangesHeader != null && "bytes".equalsIgnoreCase(acceptRangesHeader.getValue()));
+        if (contentLengthHeader == null || !acceptsRanges) {
+            return 0;
+        }
+        long length = Long.parseLong(contentLengthHeader.getValue());
+        if (length < (long)parallelRanges * rangeChunkSize) {
+            return 0;
+        }
+        return localFileSize + length;
+    }
+
+    /**
+     * Fetches the file from start to end in chunks requested by parallel connections. The chunks are written
+     * in order, at most two per connection are held in memory waiting for the chunks before them.
+     */
+    private boolean copyRanges(final File file, final RandomAccessFile out, final long start, final long end) throws IOException {
+        final long chunks = (end - start + rangeChunkSize - 1) / rangeChunkSize;
+        final long window = 2L * parallelRanges;
+        final Map<Long, byte[]> fetched = new HashMap<Long, byte[]>();
+        final long[] next = {0, 0}; // next chunk to fetch, next chunk to write
+        final IOException[] failure = {null};
+
+        final MultiThreadedHttpConnectionManager manager = new MultiThreadedHttpConnectionManager();
+        manager.getParams().setDefaultMaxConnectionsPerHost(parallelRanges);
+        manager.getParams().setMaxTotalConnections(parallelRanges);
+        final HttpClient rangeClient = new HttpClient(client.getParams(), manager);
+        rangeClient.setHostConfiguration(client.getHostConfiguration());
+        rangeClient.setState(client.getState());
+        final ExecutorService fetchers = Executors.newFixedThreadPool(parallelRanges, new NamedThreadFactory("TemplateRangeDownload"));
+
+        status = Status.IN_PROGRESS;
+        try {
+            for (int i = 0; i < parallelRanges; i++) {
+                fetchers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        while (true) {
+                            long index;
+                            synchronized (fetched) {
+                                while (next[0] < chunks && next[0] >= next[1] + window && failure[0] == null && status != Status.ABORTED) {
+                                    try {
+                                        fetched.wait();
+                                    } catch (InterruptedException e) {
+                                        return;
+                                    }
+                                }
+                                if (next[0] >= chunks || failure[0] != null || status == Status.ABORTED) {
+                                    return;
+                                }
+                                index = next[0]++;
+                            }
+                            final long from = start + index * rangeChunkSize;
+                            final long to = Math.min(end, from + rangeChunkSize) - 1;
+                            try {
+                                final byte[] data = fetchRange(rangeClient, from, to);
+                                synchronized (fetched) {
+                                    fetched.put(index, data);
+                                    fetched.notifyAll();
+                                }
+                            } catch (IOException e) {
+                                synchronized (fetched) {
+                                    if (failure[0] == null) {
+                                        failure[0] = e;
+                                    }
+                                    fetched.notifyAll();
+                                }
+                                return;
+                            }
+                        }
+                    }
+                });
+            }
+
+            long offset = start;
+            VerifyFormat verifyFormat = new VerifyFormat(file);
+            out.seek(start);
+            for (long index = 0; index < chunks && status != Status.ABORTED; index++) {
+                byte[] data;
+                synchronized (fetched) {
+                    data = fetched.remove(index);
+                    while (data == null && failure[0] == null && status != Status.ABORTED) {
+                        try {
+                            fetched.wait(1000);
+                        } catch (InterruptedException e) {
+                            throw new IOException("Interrupted while downloading " + downloadUrl);
+                        }
+                        data = fetched.remove(index);
+                    }
+                    if (data == null && failure[0] != null) {
+                        throw failure[0];
+                    }
+                }
+                if (data == null) {
+                    break;
+                }
+                offset = writeBlock(data.length, out, data, offset);
+                synchronized (fetched) {
+                    next[1]++;
+                    fetched.notifyAll();
+                }
+                if (!verifyFormat.isVerifiedFormat() && (offset >= 1048576 || offset >= end)) {
+                    verifyFormat.invoke();
+                    if (verifyFormat.isInvalid()) return true;
+                }
+            }
+            out.getFD().sync();
+            return false;
+        } finally {
+            synchronized (fetched) {
+                if (failure[0] == null && next[1] < chunks) {
+                    failure[0] = new IOException("Download stopped");
+                }
+                fetched.notifyAll();
+            }
+            fetchers.shutdownNow();
+            for (GetMethod rangeRequest : rangeRequests) {
+                rangeRequest.abort();
+            }
+            manager.shutdown();
+        }
+    }
+
+    private byte[] fetchRange(HttpClient rangeClient, long from, long to) throws IOException {
+        final byte[] data = new byte[(int)(to - from + 1)];
+        IOException lastFailure = null;
+        for (int attempt = 0; attempt < RANGE_ATTEMPTS && status != Status.ABORTED; attempt++) {
+            GetMethod rangeRequest = createRequest(downloadUrl);
+            rangeRequest.addRequestHeader("Range", "bytes=" + from + "-" + to);
+            rangeRequests.add(rangeRequest);
+            try {
+                int responseCode = rangeClient.executeMethod(rangeRequest);
+                if (responseCode != HttpStatus.SC_PARTIAL_CONTENT) {
+                    throw new IOException("HTTP Server returned " + responseCode + " for range " + from + "-" + to + " (expected 206 Partial Content)");
+                }
+                try (DataInputStream in = new DataInputStream(rangeRequest.getResponseBodyAsStream())) {
+                    in.readFully(data);
+                }
+                return data;
+            } catch (IOException e) {
+                lastFailure = e;
+                s_logger.debug("Failed to fetch range " + from + "-" + to + " of " + downloadUrl + " (attempt " + (attempt + 1) + "): " + e.getMessage());
+            } finally {
+                rangeRequests.remove(rangeRequest);
+                rangeRequest.releaseConnection();
+            }
+        }
+        throw lastFailure != null ? lastFailure : new IOException("Download of " + downloadUrl + " was aborted");
+    }
+
     private void checkDowloadCompletion() {
         String downloaded = "(incomplete download)";
         if (totalBytes >= remoteSize) {
@@ -391,6 +601,9 @@ public class HttpTemplateDownloader extends ManagedContextRunnable implements Te
                 if (request != null) {
                     request.abort();
                 }
+                for (GetMethod rangeRequest : rangeRequests) {
+                    rangeRequest.abort();
+                }
                 status = TemplateDownloader.Status.ABORTED;
                 return true;
             case UNKNOWN:
@@ -494,6 +707,44 @@ public class HttpTemplateDownloader extends ManagedContextRunnable implements Te
         return resourceType;
     }
 
+    /**
+     * Fetches files that are large enough in this many parallel range requests, if the server supports them.
+     */
+    public void setParallelRanges(int parallelRanges) {
+        this.parallelRanges = Math.max(1, parallelRanges);
+    }
+
+    void setRangeChunkSize(int rangeChunkSize) {
+        this.rangeChunkSize = rangeChunkSize;
+    }
+
+    /**
+     * Computes the checksum with this algorithm while the file is downloaded.
+     */
+    public void setChecksumAlgorithm(String checksumAlgorithm) {
+        this.checksumAlgorithm = checksumAlgorithm;
+    }
+
+    /**
+     * @return the checksum computed while downloading, or null if it was not computed with this algorithm or does not cover the whole file
+     */
+    public ChecksumValue getStreamedChecksum(String algorithm) {
+        if (streamInfo == null || algorithm == null || !algorithm.equals(streamInfo.getAlgorithm()) || streamInfo.getBytes() != new File(toFile).length()) {
+            return null;
+        }
+        return streamInfo.getChecksum();
+    }
+
+    /**
+     * @return what was learned about the file while downloading it, or null if the file does not match it
+     */
+    public TemplateStreamInfo getStreamInfo() {
+        if (streamInfo == null || streamInfo.getBytes() != new File(toFile).length()) {
+            return null;
+        }
+        return streamInfo;
+    }
+
     private class VerifyFormat {
         private boolean invalidFormat;
         private File file;
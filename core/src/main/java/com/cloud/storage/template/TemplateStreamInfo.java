@@ -0,0 +1,183 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.storage.template;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.cloudstack.utils.security.ChecksumValue;
+import org.apache.cloudstack.utils.security.DigestHelper;
+import org.apache.log4j.Logger;
+
+import com.cloud.storage.Storage.ImageFormat;
+import com.cloud.utils.NumbersUtil;
+
+/**
+ * Follows the bytes of a template in the order they are written to disk, computing its checksum and keeping
+ * the header and footer of the image, so that neither needs another pass over the file once it is written.
+ */
+public class TemplateStreamInfo {
+    private static final Logger s_logger = Logger.getLogger(TemplateStreamInfo.class);
+
+    private static final int HEADER_SIZE = 512;
+    private static final int FOOTER_SIZE = 512;
+    private static final byte[] QCOW2_MAGIC = {'Q', 'F', 'I', (byte)0xfb};
+    private static final int QCOW2_VIRTUAL_SIZE_OFFSET = 24;
+    private static final byte[] VHD_COOKIE = {'c', 'o', 'n', 'e', 'c', 't', 'i', 'x'};
+    private static final int VHD_CURRENT_SIZE_OFFSET = 48;
+
+    private final String algorithm;
+    private final MessageDigest digest;
+    private final byte[] header = new byte[HEADER_SIZE];
+    private final byte[] footer = new byte[FOOTER_SIZE];
+    private int footerPosition;
+    private long bytes;
+
+    /**
+     * @param algorithm the checksum algorithm, null to not compute a checksum
+     */
+    public TemplateStreamInfo(final String algorithm) {
+        MessageDigest md = null;
+        if (algorithm != null) {
+            try {
+                md = MessageDigest.getInstance(algorithm);
+            } catch (final NoSuchAlgorithmException e) {
+                s_logger.warn("Checksum algorithm " + algorithm + " is not supported, the checksum is not computed while downloading");
+            }
+        }
+        this.algorithm = algorithm;
+        this.digest = md;
+    }
+
+    public void update(final byte[] b, final int off, final int len) {
+        update(ByteBuffer.wrap(b, off, len));
+    }
+
+    /**
+     * Follows the remaining bytes of the buffer, without changing its position.
+     */
+    public void update(final ByteBuffer buffer) {
+        final int len = buffer.remaining();
+        if (digest != null) {
+            digest.update(buffer.duplicate());
+        }
+        if (bytes < HEADER_SIZE) {
+            buffer.duplicate().get(header, (int)bytes, (int)Math.min(len, HEADER_SIZE - bytes));
+        }
+        // keep the last FOOTER_SIZE bytes in a ring
+        final ByteBuffer tail = buffer.duplicate();
+        tail.position(tail.position() + Math.max(0, len - FOOTER_SIZE));
+        while (tail.hasRemaining()) {
+            footer[footerPosition] = tail.get();
+            footerPosition = (footerPosition + 1) % FOOTER_SIZE;
+        }
+        bytes += len;
+    }
+
+    /**
+     * Reads the first length bytes of the stream, e.g. the part of the file downloaded before a resume.
+     */
+    public void update(final InputStream in, final long length) throws IOException {
+        final byte[] buffer = new byte[64 * 1024];
+        long remaining = length;
+        while (remaining > 0) {
+            final int read = in.read(buffer, 0, (int)Math.min(buffer.length, remaining));
+            if (read < 0) {
+                throw new IOException("Unexpected end of file after " + (length - remaining) + " of " + length + " bytes");
+            }
+            update(buffer, 0, read);
+            remaining -= read;
+        }
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * @return the checksum of the bytes seen so far, or null if no checksum is computed
+     */
+    public ChecksumValue getChecksum() {
+        if (digest == null) {
+            return null;
+        }
+        try {
+            return DigestHelper.checksumOf((MessageDigest)digest.clone());
+        } catch (final CloneNotSupportedException e) {
+            s_logger.warn("Unable to get the checksum of " + algorithm + " digest: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @return the virtual size from the qcow2 header, or -1 if the stream does not start with one
+     */
+    public long getQcow2VirtualSize() {
+        if (bytes < QCOW2_VIRTUAL_SIZE_OFFSET + 8 || !startsWith(header, 0, QCOW2_MAGIC)) {
+            return -1;
+        }
+        return NumbersUtil.bytesToLong(header, QCOW2_VIRTUAL_SIZE_OFFSET);
+    }
+
+    /**
+     * @return the current size from the VHD footer, or -1 if the stream does not end with one
+     */
+    public long getVhdVirtualSize() {
+        if (bytes < FOOTER_SIZE) {
+            return -1;
+        }
+        final byte[] last = new byte[FOOTER_SIZE];
+        for (int i = 0; i < FOOTER_SIZE; i++) {
+            last[i] = footer[(footerPosition + i) % FOOTER_SIZE];
+        }
+        if (!startsWith(last, 0, VHD_COOKIE)) {
+            return -1;
+        }
+        return NumbersUtil.bytesToLong(last, VHD_CURRENT_SIZE_OFFSET);
+    }
+
+    /**
+     * @return the virtual size of an image of the given format, or -1 if it is not known from the stream
+     */
+    public long getVirtualSize(final ImageFormat format) {
+        if (format == ImageFormat.QCOW2) {
+            return getQcow2VirtualSize();
+        } else if (format == ImageFormat.VHD) {
+            return getVhdVirtualSize();
+        }
+        return -1;
+    }
+
+    private static boolean startsWith(final byte[] b, final int offset, final byte[] prefix) {
+        for (int i = 0; i < prefix.length; i++) {
+            if (b[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
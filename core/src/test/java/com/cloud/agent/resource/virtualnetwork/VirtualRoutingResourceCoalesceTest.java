@@ -0,0 +1,221 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.agent.resource.virtualnetwork;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.naming.ConfigurationException;
+
+import org.joda.time.Duration;
+import org.junit.After;
+import org.junit.Test;
+
+import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.routing.NetworkElementCommand;
+import com.cloud.agent.api.routing.SavePasswordCommand;
+import com.cloud.utils.ExecutionResult;
+
+public class VirtualRoutingResourceCoalesceTest {
+    private static final String ROUTERIP = "169.254.3.4";
+    private static final String ROUTERNAME = "r-4-VM";
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    /**
+     * Stands in for the ssh channel to the router, recording every file copy and script execution.
+     */
+    private static class RecordingDeployer implements VirtualRouterDeployer {
+        final List<String> scripts = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> files = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch release;
+        boolean fail;
+
+        RecordingDeployer(final int blockedCalls) {
+            release = new CountDownLatch(blockedCalls);
+        }
+
+        @Override
+        public ExecutionResult executeInVR(final String routerIp, final String script, final String args) {
+            return executeInVR(routerIp, script, args, Duration.standardSeconds(60L));
+        }
+
+        @Override
+        public ExecutionResult executeInVR(final String routerIp, final String script, final String args, final Duration timeout) {
+            assertEquals(ROUTERIP, routerIp);
+            scripts.add(script);
+            return new ExecutionResult(!fail, fail ? "failed" : null);
+        }
+
+        @Override
+        public ExecutionResult createFileInVR(final String routerIp, final String path, final String filename, final String content) {
+            assertEquals(ROUTERIP, routerIp);
+            files.add(content);
+            if (release.getCount() > 0) {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return new ExecutionResult(true, null);
+        }
+
+        @Override
+        public ExecutionResult prepareCommand(final NetworkElementCommand cmd) {
+            cmd.setRouterAccessIp(ROUTERIP);
+            return new ExecutionResult(true, null);
+        }
+
+        @Override
+        public ExecutionResult cleanupCommand(final NetworkElementCommand cmd) {
+            return new ExecutionResult(true, null);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private VirtualRoutingResource createResource(final VirtualRouterDeployer deployer, final String coalesce) throws ConfigurationException {
+        final VirtualRoutingResource resource = new VirtualRoutingResource(deployer);
+        final Map<String, Object> params = new HashMap<>();
+        params.put("router.config.coalesce", coalesce);
+        resource.configure("VRResource", params);
+        return resource;
+    }
+
+    private SavePasswordCommand generateSavePasswordCommand(final String vmIp) {
+        final SavePasswordCommand cmd = new SavePasswordCommand("123pass", vmIp, "i-4-VM", true);
+        cmd.setAccessDetail(NetworkElementCommand.ROUTER_NAME, ROUTERNAME);
+        return cmd;
+    }
+
+    private List<Future<Answer>> submitWhileFirstApplyBlocks(final VirtualRoutingResource resource, final RecordingDeployer deployer, final int count) throws Exception {
+        final List<Future<Answer>> answers = new ArrayList<>();
+        answers.add(executor.submit(() -> resource.executeRequest(generateSavePasswordCommand("10.1.10.1"))));
+        while (deployer.files.isEmpty()) {
+            Thread.sleep(10);
+        }
+        for (int i = 0; i < count; i++) {
+            final String vmIp = "10.1.10." + (i + 2);
+            answers.add(executor.submit(() -> resource.executeRequest(generateSavePasswordCommand(vmIp))));
+        }
+        final ReentrantLock lock = (ReentrantLock)resource._vrLockMap.get(ROUTERNAME);
+        while (lock.getQueueLength() < count) {
+            Thread.sleep(10);
+        }
+        deployer.release.countDown();
+        return answers;
+    }
+
+    @Test
+    public void testSingleCommandIsAppliedDirectly() throws Exception {
+        final RecordingDeployer deployer = new RecordingDeployer(0);
+        final VirtualRoutingResource resource = createResource(deployer, "true");
+
+        final Answer answer = resource.executeRequest(generateSavePasswordCommand("10.1.10.4"));
+
+        assertTrue(answer.getResult());
+        assertEquals(1, deployer.files.size());
+        assertEquals(Collections.singletonList(VRScripts.UPDATE_CONFIG), deployer.scripts);
+        assertEquals(1, resource.getConfigApplyStats(ROUTERNAME).getApplies());
+    }
+
+    @Test
+    public void testQueuedCommandsAreCoalesced() throws Exception {
+        final RecordingDeployer deployer = new RecordingDeployer(1);
+        final VirtualRoutingResource resource = createResource(deployer, "true");
+
+        final List<Future<Answer>> answers = submitWhileFirstApplyBlocks(resource, deployer, 3);
+        for (final Future<Answer> answer : answers) {
+            assertTrue(answer.get(10, TimeUnit.SECONDS).getResult());
+        }
+
+        // the first command is applied on its own, the three queued behind it in one aggregated file
+        assertEquals(2, deployer.files.size());
+        assertEquals(VRScripts.UPDATE_CONFIG, deployer.scripts.get(0));
+        assertEquals(VRScripts.VR_CFG, deployer.scripts.get(1));
+        final String aggregated = deployer.files.get(1);
+        assertTrue(aggregated.contains("10.1.10.2"));
+        assertTrue(aggregated.contains("10.1.10.3"));
+        assertTrue(aggregated.contains("10.1.10.4"));
+
+        final VRConfigApplyStats stats = resource.getConfigApplyStats(ROUTERNAME);
+        assertEquals(2, stats.getApplies());
+        assertEquals(4, stats.getCommands());
+        assertEquals(0, stats.getFailedApplies());
+    }
+
+    @Test
+    public void testCoalescedFailureIsReportedToEveryCommand() throws Exception {
+        final RecordingDeployer deployer = new RecordingDeployer(1);
+        final VirtualRoutingResource resource = createResource(deployer, "true");
+        deployer.fail = true;
+
+        final List<Future<Answer>> answers = submitWhileFirstApplyBlocks(resource, deployer, 2);
+        for (final Future<Answer> answer : answers) {
+            assertFalse(answer.get(10, TimeUnit.SECONDS).getResult());
+        }
+        assertEquals(2, resource.getConfigApplyStats(ROUTERNAME).getFailedApplies());
+    }
+
+    @Test
+    public void testCoalescingDisabled() throws Exception {
+        final RecordingDeployer deployer = new RecordingDeployer(0);
+        final VirtualRoutingResource resource = createResource(deployer, "false");
+
+        for (int i = 1; i <= 3; i++) {
+            assertTrue(resource.executeRequest(generateSavePasswordCommand("10.1.10." + i)).getResult());
+        }
+
+        assertEquals(3, deployer.files.size());
+        assertFalse(deployer.scripts.contains(VRScripts.VR_CFG));
+        assertEquals(3, resource.getConfigApplyStats(ROUTERNAME).getCommands());
+    }
+
+    @Test
+    public void testCoalescingIsOffByDefault() throws Exception {
+        final RecordingDeployer deployer = new RecordingDeployer(1);
+        final VirtualRoutingResource resource = createResource(deployer, null);
+
+        final List<Future<Answer>> answers = submitWhileFirstApplyBlocks(resource, deployer, 2);
+        for (final Future<Answer> answer : answers) {
+            assertTrue(answer.get(10, TimeUnit.SECONDS).getResult());
+        }
+
+        assertEquals(3, deployer.files.size());
+        assertFalse(deployer.scripts.contains(VRScripts.VR_CFG));
+    }
+}
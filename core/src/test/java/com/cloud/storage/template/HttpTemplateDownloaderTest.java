@@ -0,0 +1,237 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.storage.template;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.cloudstack.utils.security.ChecksumValue;
+import org.apache.cloudstack.utils.security.DigestHelper;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloud.storage.Storage.ImageFormat;
+import com.cloud.utils.NumbersUtil;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class HttpTemplateDownloaderTest {
+    private static final long VIRTUAL_SIZE = 20L * 1024 * 1024 * 1024;
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private String baseUrl;
+    private byte[] template;
+    private final AtomicInteger fullRequests = new AtomicInteger();
+    private final AtomicInteger rangeRequests = new AtomicInteger();
+    private File downloadDir;
+
+    /**
+     * Serves the template and ranges of it.
+     */
+    private class TemplateHandler implements HttpHandler {
+        @Override
+        public void handle(final HttpExchange exchange) throws IOException {
+            final String range = exchange.getRequestHeaders().getFirst("Range");
+            exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+            int from = 0;
+            int to = template.length - 1;
+            if (range != null) {
+                final String[] bounds = range.substring("bytes=".length()).split("-");
+                from = Integer.parseInt(bounds[0]);
+                if (bounds.length > 1 && !bounds[1].isEmpty()) {
+                    to = Math.min(to, Integer.parseInt(bounds[1]));
+                }
+                rangeRequests.incrementAndGet();
+                exchange.getResponseHeaders().add("Content-Range", "bytes " + from + "-" + to + "/" + template.length);
+                exchange.sendResponseHeaders(206, to - from + 1);
+            } else {
+                fullRequests.incrementAndGet();
+                exchange.sendResponseHeaders(200, template.length);
+            }
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(template, from, to - from + 1);
+            } catch (final IOException e) {
+                // the client aborted the request
+            }
+        }
+    }
+
+    private static InetAddress findNonLoopbackAddress() throws IOException {
+        for (final NetworkInterface nic : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            if (!nic.isUp() || nic.isLoopback()) {
+                continue;
+            }
+            for (final InetAddress address : Collections.list(nic.getInetAddresses())) {
+                if (address instanceof Inet4Address && !address.isLinkLocalAddress()) {
+                    return address;
+                }
+            }
+        }
+        return null;
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        // template urls on loopback addresses are refused, and the format of the download is verified with file(1)
+        final InetAddress address = findNonLoopbackAddress();
+        Assume.assumeNotNull(address);
+        Assume.assumeTrue(new File("/usr/bin/file").exists());
+
+        template = new byte[3 * 1024 * 1024 + 123];
+        new Random(42).nextBytes(template);
+        System.arraycopy(new byte[] {'Q', 'F', 'I', (byte)0xfb, 0, 0, 0, 3}, 0, template, 0, 8);
+        for (int i = 0; i < 8; i++) {
+            template[24 + i] = (byte)(VIRTUAL_SIZE >>> (56 - 8 * i));
+        }
+
+        server = HttpServer.create(new InetSocketAddress(address, 0), 0);
+        server.createContext("/", new TemplateHandler());
+        serverExecutor = Executors.newFixedThreadPool(8);
+        server.setExecutor(serverExecutor);
+        server.start();
+        baseUrl = "http://" + address.getHostAddress() + ":" + server.getAddress().getPort() + "/template.qcow2";
+
+        downloadDir = new File(System.getProperty("java.io.tmpdir"), "httpdownload" + System.nanoTime());
+        Assert.assertTrue(downloadDir.mkdirs());
+    }
+
+    @After
+    public void tearDown() {
+        if (server != null) {
+            server.stop(0);
+            serverExecutor.shutdownNow();
+        }
+        if (downloadDir != null) {
+            final File[] files = downloadDir.listFiles();
+            if (files != null) {
+                for (final File file : files) {
+                    file.delete();
+                }
+            }
+            downloadDir.delete();
+        }
+    }
+
+    private HttpTemplateDownloader createDownloader() {
+        final HttpTemplateDownloader td = new HttpTemplateDownloader(null, baseUrl, downloadDir.getAbsolutePath(), null, TemplateDownloader.DEFAULT_MAX_TEMPLATE_SIZE_IN_BYTES,
+                null, null, null, null);
+        td.setChecksumAlgorithm("SHA-256");
+        return td;
+    }
+
+    private ChecksumValue expectedChecksum() throws Exception {
+        final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(template);
+        return DigestHelper.checksumOf(digest);
+    }
+
+    private void assertDownloaded(final HttpTemplateDownloader td) throws Exception {
+        Assert.assertEquals(TemplateDownloader.Status.DOWNLOAD_FINISHED, td.getStatus());
+        final File file = new File(td.getDownloadLocalPath());
+        Assert.assertEquals(template.length, file.length());
+        Assert.assertEquals(expectedChecksum(), td.getStreamedChecksum("SHA-256"));
+        Assert.assertNull(td.getStreamedChecksum("MD5"));
+        Assert.assertEquals(VIRTUAL_SIZE, td.getStreamInfo().getVirtualSize(ImageFormat.QCOW2));
+        try (FileInputStream in = new FileInputStream(file)) {
+            Assert.assertEquals(expectedChecksum(), DigestHelper.digest("SHA-256", in));
+        }
+    }
+
+    @Test
+    public void testSequentialDownloadComputesChecksum() throws Exception {
+        final HttpTemplateDownloader td = createDownloader();
+        Assert.assertEquals(template.length, td.download(false, null));
+        assertDownloaded(td);
+        Assert.assertEquals(1, fullRequests.get());
+        Assert.assertEquals(0, rangeRequests.get());
+    }
+
+    @Test
+    public void testParallelRangeDownload() throws Exception {
+        final HttpTemplateDownloader td = createDownloader();
+        td.setParallelRanges(4);
+        td.setRangeChunkSize(256 * 1024);
+        Assert.assertEquals(template.length, td.download(false, null));
+        assertDownloaded(td);
+        // 3MB and 123 bytes in 256KB chunks
+        Assert.assertEquals(13, rangeRequests.get());
+    }
+
+    @Test
+    public void testSmallFileIsNotSplit() throws Exception {
+        final HttpTemplateDownloader td = createDownloader();
+        td.setParallelRanges(4);
+        td.setRangeChunkSize(1024 * 1024);
+        Assert.assertEquals(template.length, td.download(false, null));
+        assertDownloaded(td);
+        Assert.assertEquals(0, rangeRequests.get());
+    }
+
+    @Test
+    public void testResumedDownloadChecksumCoversWholeFile() throws Exception {
+        final HttpTemplateDownloader td = createDownloader();
+        // a partial file left by an earlier attempt
+        final int partial = 1024 * 1024 + 7;
+        try (FileOutputStream out = new FileOutputStream(td.getDownloadLocalPath())) {
+            out.write(template, 0, partial);
+        }
+        td.setParallelRanges(2);
+        td.setRangeChunkSize(256 * 1024);
+        td.download(true, null);
+        assertDownloaded(td);
+    }
+
+    @Test
+    public void testVhdFooter() {
+        final TemplateStreamInfo info = new TemplateStreamInfo(null);
+        final byte[] data = new byte[4096];
+        final byte[] footer = new byte[512];
+        System.arraycopy("conectix".getBytes(), 0, footer, 0, 8);
+        for (int i = 0; i < 8; i++) {
+            footer[48 + i] = (byte)(VIRTUAL_SIZE >>> (56 - 8 * i));
+        }
+        info.update(data, 0, 1000);
+        info.update(data, 1000, data.length - 1000);
+        info.update(footer, 0, 100);
+        info.update(footer, 100, 412);
+        Assert.assertEquals(VIRTUAL_SIZE, info.getVhdVirtualSize());
+        Assert.assertEquals(VIRTUAL_SIZE, NumbersUtil.bytesToLong(footer, 48));
+        Assert.assertEquals(-1, info.getQcow2VirtualSize());
+        Assert.assertNull(info.getChecksum());
+    }
+}
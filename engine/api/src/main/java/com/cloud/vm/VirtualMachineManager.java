@@ -58,6 +58,9 @@ public interface VirtualMachineManager extends Manager {
     ConfigKey<Boolean> VmConfigDriveOnPrimaryPool = new ConfigKey<>("Advanced", Boolean.class, "vm.configdrive.primarypool.enabled", "false",
             "If config drive need to be created and hosted on primary storage pool. Currently only supported for KVM.", true);
 
+    ConfigKey<Boolean> VmConfigDriveUseIsoTool = new ConfigKey<>("Advanced", Boolean.class, "vm.configdrive.iso.tool.enabled", "false",
+            "If config drive ISOs are built with genisoimage or mkisofs instead of in the management server.", true);
+
     interface Topics {
         String VM_POWER_STATE = "vm.powerstate";
     }
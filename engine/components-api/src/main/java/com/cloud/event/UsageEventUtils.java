@@ -20,6 +20,7 @@ package com.cloud.event;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import javax.annotation.PostConstruct;
@@ -108,6 +109,22 @@ public class UsageEventUtils {
         publishUsageEvent(usageType, accountId, zoneId, entityType, entityUUID);
     }
 
+    /**
+     * Saves the usage events in one batch, and publishes them on the event bus.
+     *
+     * @param entityUUIDs the uuids of the entities of the events, in the same order
+     */
+    public static void publishUsageEvents(List<UsageEventVO> events, String entityType, List<String> entityUUIDs) {
+        if (events.isEmpty()) {
+            return;
+        }
+        s_usageEventDao.persistBatch(events);
+        for (int i = 0; i < events.size(); i++) {
+            UsageEventVO event = events.get(i);
+            publishUsageEvent(event.getType(), event.getAccountId(), event.getZoneId(), entityType, entityUUIDs.get(i));
+        }
+    }
+
     public static void publishUsageEvent(String usageType, long accountId, long zoneId, long resourceId, String resourceName, Long offeringId, Long templateId,
         String resourceType, String entityType, String entityUUID, boolean displayResource) {
         if(displayResource){
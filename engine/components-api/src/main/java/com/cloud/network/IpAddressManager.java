@@ -48,6 +48,10 @@ public interface IpAddressManager {
     ConfigKey<Boolean> RulesContinueOnError = new ConfigKey<Boolean>("Advanced", Boolean.class, "network.rule.delete.ignoreerror", "true",
             "When true, ip address delete (ipassoc) failures are  ignored", true);
 
+    ConfigKey<Boolean> RulesApplyIncremental = new ConfigKey<Boolean>("Advanced", Boolean.class, "network.rule.apply.incremental", "true",
+            "When true, network elements that keep their rules, like the virtual router, are only sent the firewall and port forwarding rules added or revoked since their last apply",
+            true);
+
     /**
      * Assigns a new public ip address.
      *
@@ -64,6 +68,19 @@ public interface IpAddressManager {
     PublicIp assignPublicIpAddress(long dcId, Long podId, Account owner, VlanType type, Long networkId, String requestedIp, boolean isSystem, boolean forSystemVms)
             throws InsufficientAddressCapacityException;
 
+    /**
+     * Assigns a number of public ip addresses at once, locking them with a single scan and saving their usage events in
+     * one batch. Either all of them are assigned or none.
+     *
+     * @param vpcId the vpc the addresses are for, or null
+     * @param count the number of addresses
+     * @param displayIp whether the addresses are displayed to the end user, or null for the default
+     * @return the addresses, in the allocated state
+     * @throws InsufficientAddressCapacityException if fewer than count addresses are free
+     */
+    List<PublicIp> assignPublicIpAddresses(long dcId, Long podId, Account owner, VlanType type, Long networkId, Long vpcId, int count, boolean isSystem, Boolean displayIp)
+            throws InsufficientAddressCapacityException;
+
     /**
      * Do all of the work of releasing public ip addresses. Note that if this method fails, there can be side effects.
      *
@@ -76,6 +76,30 @@ public interface StorageManager extends StorageService {
             false,
             ConfigKey.Scope.Global,
             null);
+    ConfigKey<Integer> StorageCleanupWorkers = new ConfigKey<>(Integer.class,
+            "storage.cleanup.workers",
+            "Advanced",
+            "4",
+            "The number of threads the storage cleanup uses to clean up storage pools and image stores in parallel.",
+            false,
+            ConfigKey.Scope.Global,
+            null);
+    ConfigKey<Integer> StorageCleanupStoreConcurrency = new ConfigKey<>(Integer.class,
+            "storage.cleanup.store.concurrency",
+            "Advanced",
+            "2",
+            "The number of batches the storage cleanup deletes at a time on the same storage pool or image store.",
+            true,
+            ConfigKey.Scope.Global,
+            null);
+    ConfigKey<Integer> StorageCleanupBatchSize = new ConfigKey<>(Integer.class,
+            "storage.cleanup.batch.size",
+            "Advanced",
+            "100",
+            "The number of objects the storage cleanup deletes in a batch, sent in one request to a host or removed in one statement.",
+            true,
+            ConfigKey.Scope.Global,
+            null);
     ConfigKey<Integer> KvmStorageOfflineMigrationWait = new ConfigKey<>(Integer.class,
             "kvm.storage.offline.migration.wait",
             "Storage",
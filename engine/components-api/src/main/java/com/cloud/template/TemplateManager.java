@@ -100,6 +100,15 @@ public interface TemplateManager {
      */
     void evictTemplateFromStoragePool(VMTemplateStoragePoolVO templatePoolVO);
 
+    /**
+     * Deletes templates in the specified storage pool, sending the deletions to the pool together.
+     *
+     * @param pool
+     * @param templatePoolVOs
+     * @return the number of templates deleted
+     */
+    int evictTemplatesFromStoragePool(StoragePool pool, List<VMTemplateStoragePoolVO> templatePoolVOs);
+
     boolean templateIsDeleteable(VMTemplateHostVO templateHostRef);
 
     boolean templateIsDeleteable(long templateId);
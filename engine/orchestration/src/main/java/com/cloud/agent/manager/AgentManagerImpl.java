@@ -77,6 +77,8 @@ import com.cloud.agent.transport.Request;
 import com.cloud.agent.transport.Response;
 import com.cloud.alert.AlertManager;
 import com.cloud.configuration.ManagementServiceConfiguration;
+import com.cloud.dc.ClusterDetailsDao;
+import com.cloud.dc.ClusterDetailsVO;
 import com.cloud.dc.ClusterVO;
 import com.cloud.dc.DataCenterVO;
 import com.cloud.dc.HostPodVO;
@@ -101,6 +103,7 @@ import com.cloud.resource.ResourceState;
 import com.cloud.resource.ServerResource;
 import com.cloud.utils.Pair;
 import com.cloud.utils.component.ManagerBase;
+import com.cloud.utils.concurrency.LaneExecutor;
 import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.db.DB;
 import com.cloud.utils.db.EntityManager;
@@ -118,6 +121,7 @@ import com.cloud.utils.nio.Link;
 import com.cloud.utils.nio.NioServer;
 import com.cloud.utils.nio.Task;
 import com.cloud.utils.time.InaccurateClock;
+import com.cloud.vm.dao.VMInstanceDao;
 import com.google.common.base.Strings;
 
 /**
@@ -156,6 +160,10 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
     protected ConfigurationDao _configDao = null;
     @Inject
     protected ClusterDao _clusterDao = null;
+    @Inject
+    protected ClusterDetailsDao _clusterDetailsDao;
+    @Inject
+    protected VMInstanceDao _vmInstanceDao;
 
     @Inject
     protected HighAvailabilityManager _haMgr = null;
@@ -173,7 +181,14 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
     protected long _nodeId = -1;
 
     protected ExecutorService _executor;
+    // handles the requests of agents, pings on a lane of their own so that they are not held up by slow requests
+    protected LaneExecutor _requestLanes;
+    protected static final String CONTROL_LANE = "control";
+    protected static final String DEFAULT_LANE = "default";
+    private static final int HOST_LOOKUP_BATCH_SIZE = 500;
+    private volatile long _lastRequestLanesFullWarning;
     protected ThreadPoolExecutor _connectExecutor;
+    protected DirectAgentConnectScheduler _directAgentConnectScheduler;
     protected ScheduledExecutorService _directAgentExecutor;
     protected ScheduledExecutorService _cronJobExecutor;
     protected ScheduledExecutorService _monitorExecutor;
@@ -181,7 +196,7 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
     private int _directAgentThreadCap;
 
     protected StateMachine2<Status, Status.Event, Host> _statusStateMachine = Status.getStateMachine();
-    private final ConcurrentHashMap<Long, Long> _pingMap = new ConcurrentHashMap<Long, Long>(10007);
+    private final PingDeadlineQueue _pingDeadlines = new PingDeadlineQueue();
 
     @Inject
     ResourceManager _resourceMgr;
@@ -199,6 +214,18 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
             "Default size for DirectAgentPool", false);
     protected final ConfigKey<Float> DirectAgentThreadCap = new ConfigKey<Float>("Advanced", Float.class, "direct.agent.thread.cap", "1",
             "Percentage (as a value between 0 and 1) of direct.agent.pool.size to be used as upper thread cap for a single direct agent to process requests", false);
+    protected final ConfigKey<Integer> AgentConnectPoolSize = new ConfigKey<Integer>("Advanced", Integer.class, "agent.connect.pool.size", "100",
+            "The number of threads handling the startup of connecting agents", false);
+    protected final ConfigKey<Integer> DirectAgentConnectClusterLimit = new ConfigKey<Integer>("Advanced", Integer.class, "direct.agent.connect.cluster.limit", "4",
+            "The number of hosts of a cluster connected at the same time when loading direct agents, 0 for no limit", false);
+    protected final ConfigKey<Integer> DirectAgentConnectEndpointLimit = new ConfigKey<Integer>("Advanced", Integer.class, "direct.agent.connect.endpoint.limit", "8",
+            "The number of hosts behind the same management endpoint (e.g. a vCenter) connected at the same time when loading direct agents, 0 for no limit", false);
+    protected final ConfigKey<Integer> AgentControlRequestWorkers = new ConfigKey<Integer>("Advanced", Integer.class, "agent.control.request.workers", "5",
+            "The number of threads handling the pings, startups and shutdowns of agents", false);
+    protected final ConfigKey<Integer> AgentRequestWorkers = new ConfigKey<Integer>("Advanced", Integer.class, "agent.request.workers", "10",
+            "The number of threads handling the requests of agents other than pings, startups and shutdowns", false);
+    protected final ConfigKey<Integer> AgentRequestQueueSize = new ConfigKey<Integer>("Advanced", Integer.class, "agent.request.queue.size", "1000",
+            "The number of agent requests of a kind waiting to be handled at most, further requests are handled by the thread receiving them", false);
     protected final ConfigKey<Boolean> CheckTxnBeforeSending = new ConfigKey<Boolean>("Developer", Boolean.class, "check.txn.before.sending.agent.commands", "false",
             "This parameter allows developers to enable a check to see if a transaction wraps commands that are sent to the resource.  This is not to be enabled on production systems.", true);
 
@@ -221,10 +248,16 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
 
         _executor = new ThreadPoolExecutor(threads, threads, 60l, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("AgentTaskPool"));
 
-        _connectExecutor = new ThreadPoolExecutor(100, 500, 60l, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("AgentConnectTaskPool"));
+        final int connectThreads = AgentConnectPoolSize.value();
+        _connectExecutor = new ThreadPoolExecutor(connectThreads, connectThreads, 60l, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("AgentConnectTaskPool"));
         // allow core threads to time out even when there are no items in the queue
         _connectExecutor.allowCoreThreadTimeOut(true);
 
+        _requestLanes = new LaneExecutor("AgentRequest").addLane(CONTROL_LANE, AgentControlRequestWorkers.value(), AgentRequestQueueSize.value())
+                .addLane(DEFAULT_LANE, AgentRequestWorkers.value(), AgentRequestQueueSize.value());
+
+        _directAgentConnectScheduler = new DirectAgentConnectScheduler(threads, DirectAgentConnectClusterLimit.value(), DirectAgentConnectEndpointLimit.value());
+
         _connection = new NioServer("AgentManager", Port.value(), Workers.value() + 10, this, caService);
         s_logger.info("Listening on " + Port.value() + " with " + Workers.value() + " workers");
 
@@ -617,11 +650,57 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
 
     public void startDirectlyConnectedHosts() {
         final List<HostVO> hosts = _resourceMgr.findDirectlyConnectedHosts();
+        scheduleDirectlyConnectedHosts(hosts);
+    }
+
+    /**
+     * Queues the hosts on the direct agent connect scheduler, hosts with active VMs first.
+     */
+    protected void scheduleDirectlyConnectedHosts(final List<HostVO> hosts) {
+        final Map<Long, String> endpoints = new HashMap<Long, String>();
         for (final HostVO host : hosts) {
-            loadDirectlyConnectedHost(host, false);
+            final Long clusterId = host.getClusterId();
+            if (clusterId != null && !endpoints.containsKey(clusterId)) {
+                endpoints.put(clusterId, getClusterEndpoint(clusterId));
+            }
+            final Long activeVms = _vmInstanceDao.countActiveByHostId(host.getId());
+            final int priority = activeVms != null ? (int)Math.min(activeVms, Integer.MAX_VALUE) : 0;
+
+            final boolean queued = _directAgentConnectScheduler.submit(host.getId(), clusterId, clusterId != null ? endpoints.get(clusterId) : null, priority, new ManagedContextRunnable() {
+                @Override
+                protected void runInContext() {
+                    if (!loadDirectlyConnectedHost(host, false)) {
+                        throw new CloudRuntimeException("Unable to load the resource of host " + host.getId() + "(" + host.getName() + ")");
+                    }
+                }
+            });
+            if (!queued && s_logger.isDebugEnabled()) {
+                s_logger.debug("Directly connected host " + host.getId() + "(" + host.getName() + ") is already being loaded");
+            }
+        }
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Direct agent connect queue: " + _directAgentConnectScheduler.getQueuedCount() + " queued, " + _directAgentConnectScheduler.getRunningCount()
+                    + " connecting, " + _directAgentConnectScheduler.getCompletedCount() + " done, " + _directAgentConnectScheduler.getFailedCount() + " failed");
         }
     }
 
+    /**
+     * @return the host name of the endpoint managing the cluster, e.g. the vCenter of a VMware cluster, or null if the cluster has none
+     */
+    protected String getClusterEndpoint(final long clusterId) {
+        final ClusterDetailsVO url = _clusterDetailsDao.findDetail(clusterId, "url");
+        if (url == null || url.getValue() == null) {
+            return null;
+        }
+        String endpoint = url.getValue();
+        final int schemeEnd = endpoint.indexOf("://");
+        if (schemeEnd >= 0) {
+            endpoint = endpoint.substring(schemeEnd + 3);
+        }
+        final int pathStart = endpoint.indexOf('/');
+        return pathStart >= 0 ? endpoint.substring(0, pathStart) : endpoint;
+    }
+
     private ServerResource loadResourcesWithoutHypervisor(final HostVO host) {
         final String resourceName = host.getResource();
         ServerResource resource = null;
@@ -726,9 +805,41 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
 
             return h == null ? false : true;
         } else {
-            _executor.execute(new SimulateStartTask(host.getId(), resource, host.getDetails()));
+            // called from the direct agent connect scheduler, which already bounds the number of hosts started at once
+            // and counts the hosts failing to start
+            return createDirectlyConnectedAgent(host, resource);
+        }
+    }
+
+    /**
+     * @return false if the agent could not be created, true if it was or if another thread takes care of it
+     */
+    private boolean createDirectlyConnectedAgent(final HostVO host, final ServerResource resource) {
+        final long id = host.getId();
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Simulating start for resource " + resource.getName() + " id " + id);
+        }
+
+        if (!tapLoadingAgents(id, TapAgentsAction.Add)) {
+            s_logger.debug("Agent creation already getting processed in another thread for host " + id + ", ignore this");
             return true;
         }
+        try {
+            if (findAttache(id) != null) {
+                s_logger.debug("Agent already created in another thread for host " + id + ", ignore this");
+                return true;
+            }
+            s_logger.debug("Creating agent for host " + id);
+            final Host h = _resourceMgr.createHostAndAgent(id, resource, host.getDetails(), false, null, false);
+            if (h == null) {
+                s_logger.warn("Unable to create agent for host " + id + " name " + resource.getName());
+                return false;
+            }
+            s_logger.debug("Completed creating agent for host " + id);
+            return true;
+        } finally {
+            tapLoadingAgents(id, TapAgentsAction.Del);
+        }
     }
 
     protected AgentAttache createAttacheForDirectConnect(final Host host, final ServerResource resource) throws ConnectionException {
@@ -770,6 +881,8 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
         }
 
         _connectExecutor.shutdownNow();
+        _requestLanes.shutdownNow();
+        _directAgentConnectScheduler.shutdown();
         _monitorExecutor.shutdownNow();
         return true;
     }
@@ -1125,46 +1238,6 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
         return attache;
     }
 
-    protected class SimulateStartTask extends ManagedContextRunnable {
-        ServerResource resource;
-        Map<String, String> details;
-        long id;
-
-        public SimulateStartTask(final long id, final ServerResource resource, final Map<String, String> details) {
-            this.id = id;
-            this.resource = resource;
-            this.details = details;
-        }
-
-        @Override
-        protected void runInContext() {
-            try {
-                if (s_logger.isDebugEnabled()) {
-                    s_logger.debug("Simulating start for resource " + resource.getName() + " id " + id);
-                }
-
-                if (tapLoadingAgents(id, TapAgentsAction.Add)) {
-                    try {
-                        final AgentAttache agentattache = findAttache(id);
-                        if (agentattache == null) {
-                            s_logger.debug("Creating agent for host " + id);
-                            _resourceMgr.createHostAndAgent(id, resource, details, false, null, false);
-                            s_logger.debug("Completed creating agent for host " + id);
-                        } else {
-                            s_logger.debug("Agent already created in another thread for host " + id + ", ignore this");
-                        }
-                    } finally {
-                        tapLoadingAgents(id, TapAgentsAction.Del);
-                    }
-                } else {
-                    s_logger.debug("Agent creation already getting processed in another thread for host " + id + ", ignore this");
-                }
-            } catch (final Exception e) {
-                s_logger.warn("Unable to simulate start on resource " + id + " name " + resource.getName(), e);
-            }
-        }
-    }
-
     protected class HandleAgentConnectTask extends ManagedContextRunnable {
         Link _link;
         Command[] _cmds;
@@ -1355,6 +1428,35 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
             }
         }
 
+        /**
+         * Hands the request to the lane of its kind, or processes it right away if that lane is full
+         * so that the agent is slowed down rather than its request lost.
+         */
+        protected void dispatchRequest(final Link link, final Request request) {
+            final String lane = getRequestLane(request);
+            final boolean queued = _requestLanes.execute(lane, new ManagedContextRunnable() {
+                @Override
+                protected void runInContext() {
+                    final TransactionLegacy txn = TransactionLegacy.open(TransactionLegacy.CLOUD_DB);
+                    try {
+                        processRequest(link, request);
+                    } catch (final Exception e) {
+                        s_logger.warn("Unable to process the request " + request, e);
+                    } finally {
+                        txn.close();
+                    }
+                }
+            });
+            if (!queued) {
+                final long now = System.currentTimeMillis();
+                if (now - _lastRequestLanesFullWarning > 60000) {
+                    _lastRequestLanesFullWarning = now;
+                    s_logger.warn("The " + lane + " lane of agent requests is full, handling requests in the receiving threads: " + _requestLanes.report());
+                }
+                processRequest(link, request);
+            }
+        }
+
         @Override
         protected void doTask(final Task task) throws TaskExecutionException {
             final TransactionLegacy txn = TransactionLegacy.open(TransactionLegacy.CLOUD_DB);
@@ -1367,7 +1469,7 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
                         if (event instanceof Response) {
                             processResponse(task.getLink(), (Response)event);
                         } else {
-                            processRequest(task.getLink(), event);
+                            dispatchRequest(task.getLink(), event);
                         }
                     } catch (final UnsupportedVersionException e) {
                         s_logger.warn(e.getMessage());
@@ -1398,6 +1500,17 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
     protected AgentManagerImpl() {
     }
 
+    /**
+     * Pings, startups and shutdowns keep the agents connected, they are handled apart from the other requests.
+     */
+    protected static String getRequestLane(final Request request) {
+        final Command cmd = request.getCommand();
+        if (cmd instanceof PingCommand || cmd instanceof StartupCommand || cmd instanceof ShutdownCommand) {
+            return CONTROL_LANE;
+        }
+        return DEFAULT_LANE;
+    }
+
     public boolean tapLoadingAgents(final Long hostId, final TapAgentsAction action) {
         synchronized (_loadingAgents) {
             if (action == TapAgentsAction.Add) {
@@ -1560,12 +1673,12 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
     }
 
     public Long getAgentPingTime(final long agentId) {
-        return _pingMap.get(agentId);
+        return _pingDeadlines.getLastPing(agentId);
     }
 
     public void pingBy(final long agentId) {
         // Update PingMap with the latest time if agent entry exists in the PingMap
-        if (_pingMap.replace(agentId, InaccurateClock.getTimeInSeconds()) == null) {
+        if (!_pingDeadlines.ping(agentId, InaccurateClock.getTimeInSeconds())) {
             s_logger.info("PingMap for agent: " + agentId + " will not be updated because agent is no longer in the PingMap");
         }
     }
@@ -1574,33 +1687,30 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
         @Override
         protected void runInContext() {
             s_logger.trace("Agent Monitor is started.");
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug(_requestLanes.report());
+            }
 
+            final long startedAt = System.currentTimeMillis();
+            int behind = 0;
             try {
                 final List<Long> behindAgents = findAgentsBehindOnPing();
-                for (final Long agentId : behindAgents) {
-                    final QueryBuilder<HostVO> sc = QueryBuilder.create(HostVO.class);
-                    sc.and(sc.entity().getId(), Op.EQ, agentId);
-                    final HostVO h = sc.find();
-                    if (h != null) {
-                        final ResourceState resourceState = h.getResourceState();
-                        if (resourceState == ResourceState.Disabled || resourceState == ResourceState.Maintenance || resourceState == ResourceState.ErrorInMaintenance) {
-                            /*
-                             * Host is in non-operation state, so no investigation and direct put agent to Disconnected
-                             */
-                            s_logger.debug("Ping timeout but agent " + agentId + " is in resource state of " + resourceState + ", so no investigation");
-                            disconnectWithoutInvestigation(agentId, Event.ShutdownRequested);
-                        } else {
-                            final HostVO host = _hostDao.findById(agentId);
-                            if (host != null
-                                    && (host.getType() == Host.Type.ConsoleProxy || host.getType() == Host.Type.SecondaryStorageVM || host.getType() == Host.Type.SecondaryStorageCmdExecutor)) {
-
-                                s_logger.warn("Disconnect agent for CPVM/SSVM due to physical connection close. host: " + host.getId());
-                                disconnectWithoutInvestigation(agentId, Event.ShutdownRequested);
-                            } else {
-                                s_logger.debug("Ping timeout for agent " + agentId + ", do invstigation");
-                                disconnectWithInvestigation(agentId, Event.PingTimeout);
-                            }
-                        }
+                behind = behindAgents.size();
+                for (final HostVO host : listHosts(behindAgents)) {
+                    final long agentId = host.getId();
+                    final ResourceState resourceState = host.getResourceState();
+                    if (resourceState == ResourceState.Disabled || resourceState == ResourceState.Maintenance || resourceState == ResourceState.ErrorInMaintenance) {
+                        /*
+                         * Host is in non-operation state, so no investigation and direct put agent to Disconnected
+                         */
+                        s_logger.debug("Ping timeout but agent " + agentId + " is in resource state of " + resourceState + ", so no investigation");
+                        disconnectWithoutInvestigation(agentId, Event.ShutdownRequested);
+                    } else if (host.getType() == Host.Type.ConsoleProxy || host.getType() == Host.Type.SecondaryStorageVM || host.getType() == Host.Type.SecondaryStorageCmdExecutor) {
+                        s_logger.warn("Disconnect agent for CPVM/SSVM due to physical connection close. host: " + host.getId());
+                        disconnectWithoutInvestigation(agentId, Event.ShutdownRequested);
+                    } else {
+                        s_logger.debug("Ping timeout for agent " + agentId + ", do invstigation");
+                        disconnectWithInvestigation(agentId, Event.PingTimeout);
                     }
                 }
 
@@ -1608,10 +1718,18 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
                 sc.and(sc.entity().getResourceState(), Op.IN, ResourceState.PrepareForMaintenance, ResourceState.ErrorInMaintenance);
                 final List<HostVO> hosts = sc.list();
 
+                final Map<Long, DataCenterVO> zones = new HashMap<Long, DataCenterVO>();
+                final Map<Long, HostPodVO> pods = new HashMap<Long, HostPodVO>();
                 for (final HostVO host : hosts) {
                     if (_resourceMgr.checkAndMaintain(host.getId())) {
-                        final DataCenterVO dcVO = _dcDao.findById(host.getDataCenterId());
-                        final HostPodVO podVO = _podDao.findById(host.getPodId());
+                        if (!zones.containsKey(host.getDataCenterId())) {
+                            zones.put(host.getDataCenterId(), _dcDao.findById(host.getDataCenterId()));
+                        }
+                        if (!pods.containsKey(host.getPodId())) {
+                            pods.put(host.getPodId(), _podDao.findById(host.getPodId()));
+                        }
+                        final DataCenterVO dcVO = zones.get(host.getDataCenterId());
+                        final HostPodVO podVO = pods.get(host.getPodId());
                         final String hostDesc = "name: " + host.getName() + " (id:" + host.getId() + "), availability zone: " + dcVO.getName() + ", pod: " + podVO.getName();
                         _alertMgr.sendAlert(AlertManager.AlertType.ALERT_TYPE_HOST, host.getDataCenterId(), host.getPodId(), "Migration Complete for host " + hostDesc,
                                 "Host [" + hostDesc + "] is ready for maintenance");
@@ -1621,17 +1739,18 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
                 s_logger.error("Caught the following exception: ", th);
             }
 
+            final long duration = System.currentTimeMillis() - startedAt;
+            if (duration > mgmtServiceConf.getPingInterval() * 1000L) {
+                s_logger.warn("Agent Monitor took " + duration + "ms, longer than the ping interval, for " + _pingDeadlines.size() + " agents of which " + behind + " behind on ping");
+            } else if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Agent Monitor took " + duration + "ms for " + _pingDeadlines.size() + " agents of which " + behind + " behind on ping");
+            }
             s_logger.trace("Agent Monitor is leaving the building!");
         }
 
         protected List<Long> findAgentsBehindOnPing() {
-            final List<Long> agentsBehind = new ArrayList<Long>();
-            final long cutoffTime = InaccurateClock.getTimeInSeconds() - mgmtServiceConf.getTimeout();
-            for (final Map.Entry<Long, Long> entry : _pingMap.entrySet()) {
-                if (entry.getValue() < cutoffTime) {
-                    agentsBehind.add(entry.getKey());
-                }
-            }
+            // agents still behind are found again with the next run
+            final List<Long> agentsBehind = _pingDeadlines.expire(InaccurateClock.getTimeInSeconds(), mgmtServiceConf.getTimeout(), mgmtServiceConf.getPingInterval());
 
             if (agentsBehind.size() > 0) {
                 s_logger.info("Found the following agents behind on ping: " + agentsBehind);
@@ -1639,6 +1758,20 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
 
             return agentsBehind;
         }
+
+        /**
+         * Looks up the hosts of the agents in batches rather than one by one.
+         */
+        protected List<HostVO> listHosts(final List<Long> agentIds) {
+            final List<HostVO> hosts = new ArrayList<HostVO>(agentIds.size());
+            for (int from = 0; from < agentIds.size(); from += HOST_LOOKUP_BATCH_SIZE) {
+                final List<Long> batch = agentIds.subList(from, Math.min(agentIds.size(), from + HOST_LOOKUP_BATCH_SIZE));
+                final QueryBuilder<HostVO> sc = QueryBuilder.create(HostVO.class);
+                sc.and(sc.entity().getId(), Op.IN, batch.toArray());
+                hosts.addAll(sc.list());
+            }
+            return hosts;
+        }
     }
 
     protected class BehindOnPingListener implements Listener {
@@ -1679,12 +1812,12 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
             }
 
             // NOTE: We don't use pingBy here because we're initiating.
-            _pingMap.put(host.getId(), InaccurateClock.getTimeInSeconds());
+            _pingDeadlines.add(host.getId(), InaccurateClock.getTimeInSeconds(), mgmtServiceConf.getTimeout());
         }
 
         @Override
         public boolean processDisconnect(final long agentId, final Status state) {
-            _pingMap.remove(agentId);
+            _pingDeadlines.remove(agentId);
             return true;
         }
 
@@ -1716,7 +1849,8 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
     @Override
     public ConfigKey<?>[] getConfigKeys() {
         return new ConfigKey<?>[] { CheckTxnBeforeSending, Workers, Port, Wait, AlertWait, DirectAgentLoadSize, DirectAgentPoolSize,
-            DirectAgentThreadCap };
+            DirectAgentThreadCap, AgentConnectPoolSize, DirectAgentConnectClusterLimit, DirectAgentConnectEndpointLimit,
+            AgentControlRequestWorkers, AgentRequestWorkers, AgentRequestQueueSize };
     }
 
     protected class SetHostParamsListener implements Listener {
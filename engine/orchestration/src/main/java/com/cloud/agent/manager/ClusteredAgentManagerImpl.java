@@ -204,6 +204,7 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
             hosts.addAll(appliances);
             if (hosts.size() > 0) {
                 s_logger.debug("Found " + hosts.size() + " unmanaged direct hosts, processing connect for them...");
+                final List<HostVO> hostsToLoad = new ArrayList<HostVO>(hosts.size());
                 for (final HostVO host : hosts) {
                     try {
                         final AgentAttache agentattache = findAttache(host.getId());
@@ -220,13 +221,14 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
                         }
 
                         if (s_logger.isDebugEnabled()) {
-                            s_logger.debug("Loading directly connected host " + host.getId() + "(" + host.getName() + ")");
+                            s_logger.debug("Queueing load of directly connected host " + host.getId() + "(" + host.getName() + ")");
                         }
-                        loadDirectlyConnectedHost(host, false);
+                        hostsToLoad.add(host);
                     } catch (final Throwable e) {
                         s_logger.warn(" can not load directly connected host " + host.getId() + "(" + host.getName() + ") due to ", e);
                     }
                 }
+                scheduleDirectlyConnectedHosts(hostsToLoad);
             }
         }
         if (s_logger.isTraceEnabled()) {
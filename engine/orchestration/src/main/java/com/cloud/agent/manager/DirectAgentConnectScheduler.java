@@ -0,0 +1,213 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.manager;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.concurrency.NamedThreadFactory;
+
+/**
+ * Loads directly connected hosts with a bounded number of connects in flight. Queued hosts are started
+ * by priority, and a host is only started while its cluster and its management endpoint (e.g. the vCenter
+ * of a VMware cluster) are below their concurrency caps, so a management server restart does not open
+ * thousands of sessions against the same endpoint at once.
+ */
+public class DirectAgentConnectScheduler {
+    private static final Logger s_logger = Logger.getLogger(DirectAgentConnectScheduler.class);
+
+    private static final class ConnectTask implements Comparable<ConnectTask> {
+        final long hostId;
+        final Long clusterId;
+        final String endpoint;
+        final int priority;
+        final long sequence;
+        final Runnable work;
+
+        ConnectTask(final long hostId, final Long clusterId, final String endpoint, final int priority, final long sequence, final Runnable work) {
+            this.hostId = hostId;
+            this.clusterId = clusterId;
+            this.endpoint = endpoint;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.work = work;
+        }
+
+        @Override
+        public int compareTo(final ConnectTask other) {
+            if (priority != other.priority) {
+                return priority > other.priority ? -1 : 1;
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private final int _parallelism;
+    private final int _clusterLimit;
+    private final int _endpointLimit;
+    private final ThreadPoolExecutor _executor;
+
+    private final TreeSet<ConnectTask> _queue = new TreeSet<ConnectTask>();
+    private final Set<Long> _pendingHosts = new HashSet<Long>();
+    private final Map<Long, Integer> _runningPerCluster = new HashMap<Long, Integer>();
+    private final Map<String, Integer> _runningPerEndpoint = new HashMap<String, Integer>();
+    private int _running;
+    private long _sequence;
+
+    private final AtomicLong _submitted = new AtomicLong();
+    private final AtomicLong _completed = new AtomicLong();
+    private final AtomicLong _failed = new AtomicLong();
+    private final AtomicLong _totalConnectMillis = new AtomicLong();
+
+    /**
+     * @param parallelism the number of hosts connected at the same time
+     * @param clusterLimit the number of hosts of one cluster connected at the same time, 0 for no limit
+     * @param endpointLimit the number of hosts behind one management endpoint connected at the same time, 0 for no limit
+     */
+    public DirectAgentConnectScheduler(final int parallelism, final int clusterLimit, final int endpointLimit) {
+        _parallelism = Math.max(1, parallelism);
+        _clusterLimit = clusterLimit;
+        _endpointLimit = endpointLimit;
+        _executor = new ThreadPoolExecutor(_parallelism, _parallelism, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("DirectAgentConnect"));
+        _executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queues the connect of a host, unless the host is already queued or being connected.
+     *
+     * @param priority hosts with a higher priority are connected first
+     * @return false if the host was already queued
+     */
+    public boolean submit(final long hostId, final Long clusterId, final String endpoint, final int priority, final Runnable work) {
+        synchronized (this) {
+            if (!_pendingHosts.add(hostId)) {
+                return false;
+            }
+            _queue.add(new ConnectTask(hostId, clusterId, endpoint, priority, _sequence++, work));
+            _submitted.incrementAndGet();
+            dispatch();
+        }
+        return true;
+    }
+
+    private synchronized void dispatch() {
+        final Iterator<ConnectTask> it = _queue.iterator();
+        while (_running < _parallelism && it.hasNext()) {
+            final ConnectTask task = it.next();
+            if (isAtLimit(_runningPerCluster, task.clusterId, _clusterLimit) || isAtLimit(_runningPerEndpoint, task.endpoint, _endpointLimit)) {
+                continue;
+            }
+            it.remove();
+            _running++;
+            adjust(_runningPerCluster, task.clusterId, 1);
+            adjust(_runningPerEndpoint, task.endpoint, 1);
+            _executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    runTask(task);
+                }
+            });
+        }
+    }
+
+    private void runTask(final ConnectTask task) {
+        final long start = System.currentTimeMillis();
+        try {
+            task.work.run();
+        } catch (final Throwable e) {
+            _failed.incrementAndGet();
+            s_logger.warn("Unable to connect directly connected host " + task.hostId, e);
+        } finally {
+            _totalConnectMillis.addAndGet(System.currentTimeMillis() - start);
+            final long completed = _completed.incrementAndGet();
+            synchronized (this) {
+                _running--;
+                adjust(_runningPerCluster, task.clusterId, -1);
+                adjust(_runningPerEndpoint, task.endpoint, -1);
+                _pendingHosts.remove(task.hostId);
+                if (s_logger.isDebugEnabled() && (_queue.isEmpty() || completed % _parallelism == 0)) {
+                    s_logger.debug("Direct agent connect progress: " + completed + " of " + _submitted.get() + " hosts done, " + _running + " connecting, " + _queue.size()
+                            + " queued, average connect time " + getAverageConnectMillis() + "ms");
+                }
+                dispatch();
+            }
+        }
+    }
+
+    private static <K> boolean isAtLimit(final Map<K, Integer> running, final K key, final int limit) {
+        if (key == null || limit <= 0) {
+            return false;
+        }
+        final Integer count = running.get(key);
+        return count != null && count >= limit;
+    }
+
+    private static <K> void adjust(final Map<K, Integer> running, final K key, final int delta) {
+        if (key == null) {
+            return;
+        }
+        final Integer count = running.get(key);
+        final int value = (count == null ? 0 : count) + delta;
+        if (value <= 0) {
+            running.remove(key);
+        } else {
+            running.put(key, value);
+        }
+    }
+
+    public synchronized int getQueuedCount() {
+        return _queue.size();
+    }
+
+    public synchronized int getRunningCount() {
+        return _running;
+    }
+
+    public long getSubmittedCount() {
+        return _submitted.get();
+    }
+
+    public long getCompletedCount() {
+        return _completed.get();
+    }
+
+    public long getFailedCount() {
+        return _failed.get();
+    }
+
+    public long getAverageConnectMillis() {
+        final long completed = _completed.get();
+        return completed == 0 ? 0 : _totalConnectMillis.get() / completed;
+    }
+
+    public void shutdown() {
+        synchronized (this) {
+            _queue.clear();
+        }
+        _executor.shutdownNow();
+    }
+}
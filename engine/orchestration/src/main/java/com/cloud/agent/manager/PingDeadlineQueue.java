@@ -0,0 +1,132 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.manager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the time of the last ping of the connected agents, with the times they have to be checked again
+ * ordered by deadline. A ping only updates the time, the deadline is moved when it is reached, so finding
+ * the agents behind on ping takes time in the number of deadlines reached instead of the number of agents.
+ */
+public class PingDeadlineQueue {
+    private final ConcurrentHashMap<Long, Agent> _agents = new ConcurrentHashMap<Long, Agent>(10007);
+    // guarded by itself
+    private final PriorityQueue<Deadline> _deadlines = new PriorityQueue<Deadline>();
+
+    private static class Agent {
+        final long id;
+        volatile long lastPing;
+        // the deadline of the agent in the queue, others are left over from before and ignored
+        Deadline deadline;
+
+        Agent(final long id, final long lastPing) {
+            this.id = id;
+            this.lastPing = lastPing;
+        }
+    }
+
+    private static class Deadline implements Comparable<Deadline> {
+        final Agent agent;
+        final long at;
+
+        Deadline(final Agent agent, final long at) {
+            this.agent = agent;
+            this.at = at;
+        }
+
+        @Override
+        public int compareTo(final Deadline other) {
+            return Long.compare(at, other.at);
+        }
+    }
+
+    /**
+     * Starts tracking an agent that connected, as if it pinged now.
+     *
+     * @param timeout the seconds the agent may go without a ping
+     */
+    public void add(final long agentId, final long now, final long timeout) {
+        final Agent agent = new Agent(agentId, now);
+        synchronized (_deadlines) {
+            _agents.put(agentId, agent);
+            schedule(agent, now + timeout);
+        }
+    }
+
+    /**
+     * @return false if the agent is not tracked
+     */
+    public boolean ping(final long agentId, final long now) {
+        final Agent agent = _agents.get(agentId);
+        if (agent == null) {
+            return false;
+        }
+        agent.lastPing = now;
+        return true;
+    }
+
+    public void remove(final long agentId) {
+        _agents.remove(agentId);
+    }
+
+    /**
+     * @return the time of the last ping of the agent, null if it is not tracked
+     */
+    public Long getLastPing(final long agentId) {
+        final Agent agent = _agents.get(agentId);
+        return agent == null ? null : agent.lastPing;
+    }
+
+    public int size() {
+        return _agents.size();
+    }
+
+    /**
+     * Finds the agents whose last ping is more than the timeout ago. They are found again after the recheck interval
+     * if they are still tracked and did not ping by then.
+     */
+    public List<Long> expire(final long now, final long timeout, final long recheck) {
+        final List<Long> expired = new ArrayList<Long>();
+        synchronized (_deadlines) {
+            Deadline deadline;
+            while ((deadline = _deadlines.peek()) != null && deadline.at < now) {
+                _deadlines.poll();
+                final Agent agent = deadline.agent;
+                if (agent.deadline != deadline || _agents.get(agent.id) != agent) {
+                    continue;
+                }
+                final long pingDeadline = agent.lastPing + timeout;
+                if (pingDeadline >= now) {
+                    schedule(agent, pingDeadline);
+                } else {
+                    expired.add(agent.id);
+                    schedule(agent, now + Math.max(1, recheck));
+                }
+            }
+        }
+        return expired;
+    }
+
+    private void schedule(final Agent agent, final long at) {
+        agent.deadline = new Deadline(agent, at);
+        _deadlines.add(agent.deadline);
+    }
+}
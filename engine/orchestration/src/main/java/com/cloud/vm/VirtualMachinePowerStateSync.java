@@ -19,6 +19,7 @@ package com.cloud.vm;
 import java.util.Map;
 
 import com.cloud.agent.api.HostVmStateReportEntry;
+import com.cloud.agent.api.PingRoutingCommand;
 
 public interface VirtualMachinePowerStateSync {
 
@@ -29,5 +30,13 @@ public interface VirtualMachinePowerStateSync {
     // to adapt legacy ping report
     void processHostVmStatePingReport(long hostId, Map<String, HostVmStateReportEntry> report);
 
+    /**
+     * Rebuilds the full VM state of the host from a versioned ping report and remembers it for the next delta.
+     *
+     * @return the full VM state report, or null when the delta does not apply to the stored state, in which
+     * case the agent is asked for a full report
+     */
+    Map<String, HostVmStateReportEntry> resolveHostVmStatePingReport(long hostId, PingRoutingCommand ping);
+
     Map<Long, VirtualMachine.PowerState> convertVmStateReport(Map<String, HostVmStateReportEntry> states);
 }
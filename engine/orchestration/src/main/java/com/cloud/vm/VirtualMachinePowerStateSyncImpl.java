@@ -20,6 +20,7 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.inject.Inject;
 
@@ -29,6 +30,7 @@ import org.apache.cloudstack.framework.messagebus.MessageBus;
 import org.apache.cloudstack.framework.messagebus.PublishScope;
 
 import com.cloud.agent.api.HostVmStateReportEntry;
+import com.cloud.agent.api.PingRoutingCommand;
 import com.cloud.utils.DateUtil;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.vm.dao.VMInstanceDao;
@@ -41,12 +43,26 @@ public class VirtualMachinePowerStateSyncImpl implements VirtualMachinePowerStat
     @Inject VirtualMachineManager _vmMgr;
     @Inject ManagementServiceConfiguration mgmtServiceConf;
 
+    // the last full VM state of every host that sends versioned ping reports
+    private final Map<Long, HostVmStateReport> _hostVmStateReports = new ConcurrentHashMap<Long, HostVmStateReport>();
+
+    private static final class HostVmStateReport {
+        final long generation;
+        final Map<String, HostVmStateReportEntry> entries;
+
+        HostVmStateReport(long generation, Map<String, HostVmStateReportEntry> entries) {
+            this.generation = generation;
+            this.entries = entries;
+        }
+    }
+
     public VirtualMachinePowerStateSyncImpl() {
     }
 
     @Override
     public void resetHostSyncState(long hostId) {
         s_logger.info("Reset VM power state sync for host: " + hostId);
+        _hostVmStateReports.remove(hostId);
         _instanceDao.resetHostPowerStateTracking(hostId);
     }
 
@@ -67,6 +83,47 @@ public class VirtualMachinePowerStateSyncImpl implements VirtualMachinePowerStat
         processReport(hostId, translatedInfo);
     }
 
+    @Override
+    public Map<String, HostVmStateReportEntry> resolveHostVmStatePingReport(long hostId, PingRoutingCommand ping) {
+        final Map<String, HostVmStateReportEntry> report = ping.getHostVmStateReport();
+        if (!ping.isHostVmStateReportVersioned()) {
+            return report;
+        }
+
+        if (!ping.isHostVmStateReportDelta()) {
+            _hostVmStateReports.put(hostId, new HostVmStateReport(ping.getHostVmStateReportGeneration(), new HashMap<String, HostVmStateReportEntry>(report)));
+            ping.setHostVmStateReportAccepted(true);
+            return report;
+        }
+
+        final HostVmStateReport last = _hostVmStateReports.get(hostId);
+        if (last == null || last.generation != ping.getHostVmStateReportBaseGeneration()) {
+            s_logger.info("VM state delta of host " + hostId + " is based on report " + ping.getHostVmStateReportBaseGeneration() + " but the last known report is "
+                    + (last != null ? last.generation : "none") + ", asking for a full report");
+            _hostVmStateReports.remove(hostId);
+            ping.requestFullHostVmStateReport();
+            return null;
+        }
+
+        final Map<String, HostVmStateReportEntry> merged = new HashMap<String, HostVmStateReportEntry>(last.entries);
+        merged.putAll(report);
+        if (ping.getRemovedVms() != null) {
+            for (String vmName : ping.getRemovedVms()) {
+                merged.remove(vmName);
+            }
+        }
+        if (PingRoutingCommand.computeHostVmStateReportDigest(merged) != ping.getHostVmStateReportDigest()) {
+            s_logger.warn("VM state of host " + hostId + " does not match the digest of report " + ping.getHostVmStateReportGeneration() + ", asking for a full report");
+            _hostVmStateReports.remove(hostId);
+            ping.requestFullHostVmStateReport();
+            return null;
+        }
+
+        _hostVmStateReports.put(hostId, new HostVmStateReport(ping.getHostVmStateReportGeneration(), merged));
+        ping.setHostVmStateReportAccepted(true);
+        return merged;
+    }
+
     private void processReport(long hostId, Map<Long, VirtualMachine.PowerState> translatedInfo) {
 
         if (s_logger.isDebugEnabled())
@@ -0,0 +1,388 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.engine.orchestration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.cloudstack.context.CallContext;
+import org.apache.cloudstack.framework.jobs.AsyncJob;
+import org.apache.cloudstack.framework.jobs.AsyncJobExecutionContext;
+import org.apache.cloudstack.framework.jobs.impl.AsyncJobVO;
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
+import org.apache.log4j.Logger;
+
+import com.cloud.exception.InsufficientCapacityException;
+import com.cloud.exception.ResourceUnavailableException;
+import com.cloud.network.Network;
+
+/**
+ * Runs the stages of implementing networks, each as soon as the stages it depends on are done, so that stages that
+ * do not depend on each other, like the elements of a network or the networks of a VM, run at the same time. The
+ * first stage to fail stops stages from starting, and its exception is thrown once the running ones are done.
+ * Each stage is recorded with its time in the journal of the job running the plan.
+ *
+ * Stages run on threads of the executor in the call context and for the job of the calling thread, so that a
+ * virtual router started by a stage is started within the job of the VM, as it is without a plan. Each thread gets a
+ * job context of its own for that job. The calling thread runs stages too while it waits, so a plan is done even when
+ * no thread of the executor is free. A plan run by a stage of another plan runs its stages one at a time on the
+ * calling thread.
+ *
+ * Locks of the lock table are owned by the thread that took them, so stages taking a lock the calling thread holds,
+ * like the network lock taken again by the elements implementing the network, must run without an executor.
+ */
+public class NetworkImplementationPlan {
+    private static final Logger s_logger = Logger.getLogger(NetworkImplementationPlan.class);
+
+    private static final ThreadLocal<Boolean> s_inStage = new ThreadLocal<Boolean>();
+
+    public interface Task {
+        void run() throws ResourceUnavailableException, InsufficientCapacityException;
+    }
+
+    public static class Stage {
+        private final String name;
+        private final Task task;
+        private final List<Stage> dependsOn;
+        private boolean started;
+        private boolean done;
+        private long millis;
+        private Throwable failure;
+        // the context parameters the stage set on a thread of the executor
+        private Map<Object, Object> contextParameters;
+
+        Stage(String name, Task task, List<Stage> dependsOn) {
+            this.name = name;
+            this.task = task;
+            this.dependsOn = dependsOn;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return how long the stage ran, in milliseconds
+         */
+        public long getMillis() {
+            return millis;
+        }
+
+        public boolean isDone() {
+            return done;
+        }
+
+        public Throwable getFailure() {
+            return failure;
+        }
+    }
+
+    private final String name;
+    private final List<Stage> stages = new ArrayList<Stage>();
+    private int running;
+    // tasks submitted to the executor that did not start yet
+    private int helpers;
+    private Throwable failure;
+    private AsyncJobExecutionContext jobContext;
+
+    /**
+     * @param name what the plan implements, for the log and the journal
+     */
+    public NetworkImplementationPlan(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Adds a stage, to be run once the given stages are done.
+     */
+    public Stage add(String name, Task task, Stage... dependsOn) {
+        Stage stage = new Stage(name, task, Arrays.asList(dependsOn));
+        stages.add(stage);
+        return stage;
+    }
+
+    public List<Stage> getStages() {
+        return stages;
+    }
+
+    /**
+     * Runs the stages on the executor, or one at a time on the calling thread if there is no executor.
+     */
+    public void execute(Executor executor) throws ResourceUnavailableException, InsufficientCapacityException {
+        jobContext = AsyncJobExecutionContext.getCurrent();
+        long start = System.currentTimeMillis();
+        if (executor == null || stages.size() < 2 || s_inStage.get() != null) {
+            // plans run by these stages run on this thread too
+            boolean outer = s_inStage.get() == null;
+            s_inStage.set(Boolean.TRUE);
+            try {
+                // stages are added after the stages they depend on
+                for (Stage stage : stages) {
+                    if (failure != null) {
+                        break;
+                    }
+                    stage.started = true;
+                    run(stage);
+                }
+            } finally {
+                if (outer) {
+                    s_inStage.remove();
+                }
+            }
+        } else {
+            executeConcurrently(executor);
+        }
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug(getSummary() + " in " + (System.currentTimeMillis() - start) + "ms");
+        }
+
+        if (failure instanceof ResourceUnavailableException) {
+            throw (ResourceUnavailableException)failure;
+        } else if (failure instanceof InsufficientCapacityException) {
+            throw (InsufficientCapacityException)failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException)failure;
+        } else if (failure instanceof Error) {
+            throw (Error)failure;
+        }
+    }
+
+    private void executeConcurrently(final Executor executor) {
+        final CallContext caller = CallContext.current();
+        final Map<Object, Object> callerParameters = caller == null ? null : new HashMap<Object, Object>(caller.getContextParameters());
+        final AsyncJobExecutionContext callerJobContext = jobContext;
+        boolean interrupted = false;
+        while (true) {
+            schedule(executor, caller, callerParameters, callerJobContext);
+            Stage stage;
+            synchronized (this) {
+                while (true) {
+                    stage = interrupted ? null : claim();
+                    if (stage != null || running == 0) {
+                        break;
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                        if (failure == null) {
+                            failure = new ResourceUnavailableException("Interrupted implementing " + name, Network.class, 0);
+                        }
+                    }
+                }
+            }
+            if (stage == null) {
+                break;
+            }
+            // no thread of the executor took the stage yet, the calling thread runs it in its own contexts
+            s_inStage.set(Boolean.TRUE);
+            try {
+                run(stage);
+            } finally {
+                s_inStage.remove();
+                finished();
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (caller != null) {
+            for (Stage stage : stages) {
+                caller.putContextParameters(stage.contextParameters);
+            }
+        }
+    }
+
+    /**
+     * Submits a task to the executor for each stage that is ready and not taken by a task yet.
+     */
+    private void schedule(final Executor executor, final CallContext caller, final Map<Object, Object> callerParameters,
+            final AsyncJobExecutionContext callerJobContext) {
+        int count;
+        synchronized (this) {
+            count = 0;
+            if (failure == null) {
+                for (Stage stage : stages) {
+                    if (!stage.started && isReady(stage)) {
+                        count++;
+                    }
+                }
+            }
+            count = Math.max(0, count - helpers);
+            helpers += count;
+        }
+        for (int i = 0; i < count; i++) {
+            try {
+                executor.execute(new ManagedContextRunnable() {
+                    @Override
+                    protected void runInContext() {
+                        synchronized (NetworkImplementationPlan.this) {
+                            helpers--;
+                        }
+                        Stage stage;
+                        while ((stage = claimStage()) != null) {
+                            try {
+                                runInCallerContext(stage, caller, callerParameters, callerJobContext);
+                            } finally {
+                                finished();
+                            }
+                            schedule(executor, caller, callerParameters, callerJobContext);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // the calling thread runs the stage
+                synchronized (this) {
+                    helpers--;
+                }
+            }
+        }
+    }
+
+    private synchronized Stage claimStage() {
+        return claim();
+    }
+
+    private Stage claim() {
+        if (failure != null) {
+            return null;
+        }
+        for (Stage stage : stages) {
+            if (!stage.started && isReady(stage)) {
+                stage.started = true;
+                running++;
+                return stage;
+            }
+        }
+        return null;
+    }
+
+    private synchronized void finished() {
+        running--;
+        notifyAll();
+    }
+
+    private void runInCallerContext(Stage stage, CallContext caller, Map<Object, Object> callerParameters, AsyncJobExecutionContext callerJobContext) {
+        s_inStage.set(Boolean.TRUE);
+        CallContext context = null;
+        if (caller != null) {
+            context = CallContext.register(caller.getCallingUser(), caller.getCallingAccount(), caller.getContextId());
+            context.putContextParameters(callerParameters);
+            context.setProject(caller.getProject());
+            context.setStartEventId(caller.getStartEventId());
+            context.setEventType(caller.getEventType());
+            context.setEventDescription(caller.getEventDescription());
+            context.setEventDetails(caller.getEventDetails());
+            context.setEventDisplayEnabled(caller.isEventDisplayEnabled());
+        }
+        if (callerJobContext != null) {
+            // the job of the caller, in a context not shared with the other threads
+            AsyncJobExecutionContext.setCurrentExecutionContext(new AsyncJobExecutionContext(callerJobContext.getJob()));
+        } else if (caller != null) {
+            AsyncJobExecutionContext.registerPseudoExecutionContext(caller.getCallingAccountId(), caller.getCallingUserId());
+        }
+        try {
+            run(stage);
+        } finally {
+            if (context != null) {
+                // what the stage set, to be set on the caller once the plan is done
+                Map<Object, Object> parameters = new HashMap<Object, Object>();
+                for (Map.Entry<Object, Object> parameter : context.getContextParameters().entrySet()) {
+                    Object value = callerParameters.get(parameter.getKey());
+                    if (value == null || !value.equals(parameter.getValue())) {
+                        parameters.put(parameter.getKey(), parameter.getValue());
+                    }
+                }
+                synchronized (this) {
+                    stage.contextParameters = parameters;
+                }
+            }
+            if (callerJobContext != null || caller != null) {
+                AsyncJobExecutionContext.unregister();
+            }
+            if (caller != null) {
+                CallContext.unregister();
+            }
+            s_inStage.remove();
+        }
+    }
+
+    private boolean isReady(Stage stage) {
+        for (Stage dependency : stage.dependsOn) {
+            if (!dependency.done) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void run(Stage stage) {
+        long start = System.currentTimeMillis();
+        Throwable failed = null;
+        try {
+            stage.task.run();
+        } catch (Exception e) {
+            failed = e;
+        } catch (Error e) {
+            failed = e;
+        }
+        synchronized (this) {
+            stage.millis = System.currentTimeMillis() - start;
+            stage.failure = failed;
+            stage.done = failed == null;
+            if (failed != null && failure == null) {
+                failure = failed;
+            }
+        }
+        journal(stage);
+    }
+
+    private void journal(Stage stage) {
+        String text = name + ": " + stage.name + (stage.failure == null ? " done in " : " failed after ") + stage.millis + "ms";
+        if (stage.failure != null) {
+            s_logger.warn(text + ": " + stage.failure.getMessage());
+        }
+        if (jobContext == null || jobContext.getJob() == null || AsyncJobVO.JOB_DISPATCHER_PSEUDO.equals(jobContext.getJob().getDispatcher())) {
+            return;
+        }
+        try {
+            jobContext.logJobJournal(stage.failure == null ? AsyncJob.JournalType.SUCCESS : AsyncJob.JournalType.FAILURE, text, null);
+        } catch (Exception e) {
+            s_logger.debug("Unable to record " + stage.name + " of " + name + " in the job journal: " + e.getMessage());
+        }
+    }
+
+    public synchronized String getSummary() {
+        StringBuilder summary = new StringBuilder(name).append(':');
+        for (Stage stage : stages) {
+            summary.append(' ').append(stage.name).append(' ');
+            if (stage.done) {
+                summary.append(stage.millis).append("ms");
+            } else if (stage.failure != null) {
+                summary.append("failed");
+            } else {
+                summary.append("skipped");
+            }
+        }
+        return summary.toString();
+    }
+}
@@ -31,7 +31,9 @@ import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
@@ -136,6 +138,7 @@ import com.cloud.network.dao.PhysicalNetworkVO;
 import com.cloud.network.dao.RemoteAccessVpnDao;
 import com.cloud.network.dao.RemoteAccessVpnVO;
 import com.cloud.network.element.AggregatedCommandExecutor;
+import com.cloud.network.element.ConnectivityProvider;
 import com.cloud.network.element.DhcpServiceProvider;
 import com.cloud.network.element.DnsServiceProvider;
 import com.cloud.network.element.IpDeployer;
@@ -369,6 +372,8 @@ public class NetworkOrchestrator extends ManagerBase implements NetworkOrchestra
 
     protected StateMachine2<Network.State, Network.Event, Network> _stateMachine;
     ScheduledExecutorService _executor;
+    // runs the stages of network implementation plans, null to run them one at a time
+    ThreadPoolExecutor _implementExecutor;
 
     SearchBuilder<IPAddressVO> AssignIpAddressSearch;
     SearchBuilder<IPAddressVO> AssignIpAddressFromPodVlanSearch;
@@ -593,6 +598,12 @@ public class NetworkOrchestrator extends ManagerBase implements NetworkOrchestra
         AssignIpAddressFromPodVlanSearch.done();
 
         _executor = Executors.newScheduledThreadPool(1, new NamedThreadFactory("Network-Scavenger"));
+        final int implementWorkers = NetworkImplementWorkers.value();
+        if (implementWorkers > 1) {
+            _implementExecutor = new ThreadPoolExecutor(implementWorkers, implementWorkers, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new NamedThreadFactory("Network-Implement"));
+            _implementExecutor.allowCoreThreadTimeOut(true);
+        }
 
         _agentMgr.registerForHostEvents(this, true, false, true);
 
@@ -614,6 +625,9 @@ public class NetworkOrchestrator extends ManagerBase implements NetworkOrchestra
 
     @Override
     public boolean stop() {
+        if (_implementExecutor != null) {
+            _implementExecutor.shutdown();
+        }
         return true;
     }
 
@@ -1267,9 +1281,15 @@ public class NetworkOrchestrator extends ManagerBase implements NetworkOrchestra
         }
     }
 
-    private void implementNetworkElements(final DeployDestination dest, final ReservationContext context, final Network network, final NetworkOffering offering, final List<Provider> providersToImplement)
+    protected void implementNetworkElements(final DeployDestination dest, final ReservationContext context, final Network network, final NetworkOffering offering, final List<Provider> providersToImplement)
             throws ConcurrentOperationException, ResourceUnavailableException, InsufficientCapacityException {
-        for (NetworkElement element : networkElements) {
+        // connectivity providers run after the elements before them and before the elements after them, inline devices
+        // are chained. The elements run in turn on this thread though, as it holds the network lock which elements like
+        // the virtual router take again, and the lock table only lets the thread holding a lock take it again
+        final NetworkImplementationPlan plan = new NetworkImplementationPlan("Implement " + network);
+        final List<NetworkImplementationPlan.Stage> sinceBarrier = new ArrayList<NetworkImplementationPlan.Stage>();
+        NetworkImplementationPlan.Stage barrier = null;
+        for (final NetworkElement element : networkElements) {
             if (providersToImplement.contains(element.getProvider())) {
                 if (!_networkModel.isProviderEnabledInPhysicalNetwork(_networkModel.getPhysicalNetworkId(network), element.getProvider().getName())) {
                     // The physicalNetworkId will not get translated into a uuid by the reponse serializer,
@@ -1280,17 +1300,34 @@ public class NetworkOrchestrator extends ManagerBase implements NetworkOrchestra
                             + network.getPhysicalNetworkId());
                 }
 
-                if (s_logger.isDebugEnabled()) {
-                    s_logger.debug("Asking " + element.getName() + " to implemenet " + network);
-                }
+                final NetworkImplementationPlan.Task task = new NetworkImplementationPlan.Task() {
+                    @Override
+                    public void run() throws ResourceUnavailableException, InsufficientCapacityException {
+                        if (s_logger.isDebugEnabled()) {
+                            s_logger.debug("Asking " + element.getName() + " to implemenet " + network);
+                        }
 
-                if (!element.implement(network, offering, dest, context)) {
-                    CloudRuntimeException ex = new CloudRuntimeException("Failed to implement provider " + element.getProvider().getName() + " for network with specified id");
-                    ex.addProxyObject(network.getUuid(), "networkId");
-                    throw ex;
+                        if (!element.implement(network, offering, dest, context)) {
+                            CloudRuntimeException ex = new CloudRuntimeException("Failed to implement provider " + element.getProvider().getName() + " for network with specified id");
+                            ex.addProxyObject(network.getUuid(), "networkId");
+                            throw ex;
+                        }
+                    }
+                };
+                if (offering.isInline() || element instanceof ConnectivityProvider) {
+                    if (barrier != null) {
+                        sinceBarrier.add(barrier);
+                    }
+                    barrier = plan.add(element.getName(), task, sinceBarrier.toArray(new NetworkImplementationPlan.Stage[sinceBarrier.size()]));
+                    sinceBarrier.clear();
+                } else if (barrier != null) {
+                    sinceBarrier.add(plan.add(element.getName(), task, barrier));
+                } else {
+                    sinceBarrier.add(plan.add(element.getName(), task));
                 }
             }
         }
+        plan.execute(null);
     }
 
     // This method re-programs the rules/ips for existing network
@@ -1638,14 +1675,48 @@ public class NetworkOrchestrator extends ManagerBase implements NetworkOrchestra
             }
         });
 
+        // the networks of the nics are implemented at the same time, after the network of the default nic, and the tiers
+        // of a vpc in turn as they share the routers of the vpc
+        final Map<Long, Pair<NetworkGuru, NetworkVO>> implemented = Collections.synchronizedMap(new HashMap<Long, Pair<NetworkGuru, NetworkVO>>());
+        final NetworkImplementationPlan plan = new NetworkImplementationPlan("Implement the networks of " + vmProfile);
+        final Map<Long, NetworkImplementationPlan.Stage> lastOfVpc = new HashMap<Long, NetworkImplementationPlan.Stage>();
+        final Set<Long> networkIds = new HashSet<Long>();
+        NetworkImplementationPlan.Stage defaultNetwork = null;
         for (final NicVO nic : nics) {
-            final Pair<NetworkGuru, NetworkVO> implemented = implementNetwork(nic.getNetworkId(), dest, context, vmProfile.getVirtualMachine().getType() == Type.DomainRouter);
-            if (implemented == null || implemented.first() == null) {
-                s_logger.warn("Failed to implement network id=" + nic.getNetworkId() + " as a part of preparing nic id=" + nic.getId());
-                throw new CloudRuntimeException("Failed to implement network id=" + nic.getNetworkId() + " as a part preparing nic id=" + nic.getId());
+            if (!networkIds.add(nic.getNetworkId())) {
+                continue;
+            }
+            final List<NetworkImplementationPlan.Stage> dependsOn = new ArrayList<NetworkImplementationPlan.Stage>();
+            if (defaultNetwork != null) {
+                dependsOn.add(defaultNetwork);
+            }
+            final NetworkVO network = _networksDao.findById(nic.getNetworkId());
+            final Long vpcId = network == null ? null : network.getVpcId();
+            if (vpcId != null && lastOfVpc.containsKey(vpcId)) {
+                dependsOn.add(lastOfVpc.get(vpcId));
             }
+            final NetworkImplementationPlan.Stage stage = plan.add("network " + nic.getNetworkId(), new NetworkImplementationPlan.Task() {
+                @Override
+                public void run() throws ResourceUnavailableException, InsufficientCapacityException {
+                    final Pair<NetworkGuru, NetworkVO> result = implementNetwork(nic.getNetworkId(), dest, context, vmProfile.getVirtualMachine().getType() == Type.DomainRouter);
+                    if (result == null || result.first() == null) {
+                        s_logger.warn("Failed to implement network id=" + nic.getNetworkId() + " as a part of preparing nic id=" + nic.getId());
+                        throw new CloudRuntimeException("Failed to implement network id=" + nic.getNetworkId() + " as a part preparing nic id=" + nic.getId());
+                    }
+                    implemented.put(nic.getNetworkId(), result);
+                }
+            }, dependsOn.toArray(new NetworkImplementationPlan.Stage[dependsOn.size()]));
+            if (nic.isDefaultNic() && defaultNetwork == null) {
+                defaultNetwork = stage;
+            }
+            if (vpcId != null) {
+                lastOfVpc.put(vpcId, stage);
+            }
+        }
+        plan.execute(_implementExecutor);
 
-            final NetworkVO network = implemented.second();
+        for (final NicVO nic : nics) {
+            final NetworkVO network = implemented.get(nic.getNetworkId()).second();
             final NicProfile profile = prepareNic(vmProfile, dest, context, nic.getId(), network);
             vmProfile.addNic(profile);
         }
@@ -3950,10 +4021,13 @@ public class NetworkOrchestrator extends ManagerBase implements NetworkOrchestra
             "Time (in seconds) to wait before shutting down a network that's not in used", false, Scope.Global, null);
     public static final ConfigKey<Integer> NetworkGcInterval = new ConfigKey<Integer>(Integer.class, "network.gc.interval", "Advanced", "600",
             "Seconds to wait before checking for networks to shutdown", true, Scope.Global, null);
+    public static final ConfigKey<Integer> NetworkImplementWorkers = new ConfigKey<Integer>(Integer.class, "network.implement.workers", "Advanced", "8",
+            "Number of threads implementing the elements of a network and the networks of a VM at the same time, 1 to implement them one at a time", false,
+            Scope.Global, null);
 
     @Override
     public ConfigKey<?>[] getConfigKeys() {
-        return new ConfigKey<?>[] {NetworkGcWait, NetworkGcInterval, NetworkLockTimeout,
+        return new ConfigKey<?>[] {NetworkGcWait, NetworkGcInterval, NetworkImplementWorkers, NetworkLockTimeout,
                 GuestDomainSuffix, NetworkThrottlingRate, MinVRVersion,
                 PromiscuousMode, MacAddressChanges, ForgedTransmits, RollingRestartEnabled};
     }
@@ -25,6 +25,10 @@ import com.cloud.exception.ConnectionException;
 import com.cloud.host.HostVO;
 import com.cloud.host.Status;
 import com.cloud.host.dao.HostDao;
+import com.cloud.hypervisor.Hypervisor.HypervisorType;
+import com.cloud.resource.Discoverer;
+import com.cloud.resource.ResourceManager;
+import com.cloud.resource.ServerResource;
 import com.cloud.utils.Pair;
 import org.junit.Assert;
 import org.junit.Before;
@@ -83,4 +87,23 @@ public class AgentManagerImplTest {
         }
         Mockito.verify(mgr, Mockito.times(1)).handleDisconnectWithoutInvestigation(Mockito.any(attache.getClass()), Mockito.eq(Status.Event.AgentDisconnected), Mockito.eq(true), Mockito.eq(true));
     }
-}
\ No newline at end of file
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testLoadDirectlyConnectedHostFailsWhenTheAgentIsNotCreated() {
+        ResourceManager resourceMgr = Mockito.mock(ResourceManager.class);
+        Discoverer discoverer = Mockito.mock(Discoverer.class);
+        ServerResource resource = Mockito.mock(ServerResource.class);
+        Mockito.when(resourceMgr.getMatchingDiscover(Mockito.any(HypervisorType.class))).thenReturn(discoverer);
+        Mockito.when(discoverer.reloadResource(host)).thenReturn(resource);
+        Mockito.when(resourceMgr.createHostAndAgent(Mockito.anyLong(), Mockito.eq(resource), Mockito.anyMap(), Mockito.eq(false), Mockito.anyList(),
+                Mockito.eq(false))).thenReturn(null);
+        mgr._resourceMgr = resourceMgr;
+
+        Assert.assertFalse(mgr.loadDirectlyConnectedHost(host, false));
+
+        Mockito.when(resourceMgr.createHostAndAgent(Mockito.anyLong(), Mockito.eq(resource), Mockito.anyMap(), Mockito.eq(false), Mockito.anyList(),
+                Mockito.eq(false))).thenReturn(host);
+        Assert.assertTrue(mgr.loadDirectlyConnectedHost(host, false));
+    }
+}
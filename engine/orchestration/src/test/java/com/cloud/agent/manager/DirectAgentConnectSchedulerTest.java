@@ -0,0 +1,178 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.manager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DirectAgentConnectSchedulerTest {
+    private DirectAgentConnectScheduler scheduler;
+
+    @After
+    public void tearDown() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+    }
+
+    /**
+     * Simulates the connect of a host, keeping track of how many hosts of the same cluster and endpoint are
+     * connected at the same time.
+     */
+    private static class SimulatedConnect implements Runnable {
+        private final String cluster;
+        private final String endpoint;
+        private final Map<String, AtomicInteger> running;
+        private final Map<String, Integer> peaks;
+        private final CountDownLatch done;
+
+        SimulatedConnect(final String cluster, final String endpoint, final Map<String, AtomicInteger> running, final Map<String, Integer> peaks, final CountDownLatch done) {
+            this.cluster = cluster;
+            this.endpoint = endpoint;
+            this.running = running;
+            this.peaks = peaks;
+            this.done = done;
+        }
+
+        private void enter(final String key) {
+            running.putIfAbsent(key, new AtomicInteger());
+            final int count = running.get(key).incrementAndGet();
+            peaks.merge(key, count, Math::max);
+        }
+
+        @Override
+        public void run() {
+            enter(cluster);
+            enter(endpoint);
+            enter("all");
+            try {
+                Thread.sleep(5);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                running.get(cluster).decrementAndGet();
+                running.get(endpoint).decrementAndGet();
+                running.get("all").decrementAndGet();
+                done.countDown();
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrencyCaps() throws InterruptedException {
+        scheduler = new DirectAgentConnectScheduler(8, 2, 3);
+        final Map<String, AtomicInteger> running = new ConcurrentHashMap<String, AtomicInteger>();
+        final Map<String, Integer> peaks = new ConcurrentHashMap<String, Integer>();
+        final int hosts = 120;
+        final CountDownLatch done = new CountDownLatch(hosts);
+
+        // 12 clusters spread over 3 vCenters
+        for (long hostId = 0; hostId < hosts; hostId++) {
+            final long clusterId = hostId % 12;
+            final String endpoint = "vcenter" + clusterId % 3;
+            Assert.assertTrue(scheduler.submit(hostId, clusterId, endpoint, 0, new SimulatedConnect("cluster" + clusterId, endpoint, running, peaks, done)));
+        }
+
+        Assert.assertTrue(done.await(30, TimeUnit.SECONDS));
+        Assert.assertTrue(peaks.get("all") <= 8);
+        for (final Map.Entry<String, Integer> peak : peaks.entrySet()) {
+            if (peak.getKey().startsWith("cluster")) {
+                Assert.assertTrue(peak.getKey() + " peaked at " + peak.getValue(), peak.getValue() <= 2);
+            } else if (peak.getKey().startsWith("vcenter")) {
+                Assert.assertTrue(peak.getKey() + " peaked at " + peak.getValue(), peak.getValue() <= 3);
+            }
+        }
+
+        while (scheduler.getRunningCount() > 0) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(hosts, scheduler.getSubmittedCount());
+        Assert.assertEquals(hosts, scheduler.getCompletedCount());
+        Assert.assertEquals(0, scheduler.getFailedCount());
+        Assert.assertEquals(0, scheduler.getQueuedCount());
+    }
+
+    @Test
+    public void testHostsWithHigherPriorityAreConnectedFirst() throws InterruptedException {
+        scheduler = new DirectAgentConnectScheduler(1, 0, 0);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(4);
+        final List<Long> order = Collections.synchronizedList(new ArrayList<Long>());
+
+        scheduler.submit(1L, null, null, 0, () -> {
+            try {
+                blocked.await(10, TimeUnit.SECONDS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            done.countDown();
+        });
+        final long[][] queued = {{2L, 0}, {3L, 10}, {4L, 5}};
+        for (final long[] host : queued) {
+            scheduler.submit(host[0], null, null, (int)host[1], () -> {
+                order.add(host[0]);
+                done.countDown();
+            });
+        }
+        Assert.assertEquals(3, scheduler.getQueuedCount());
+        blocked.countDown();
+
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(Arrays.asList(3L, 4L, 2L), order);
+    }
+
+    @Test
+    public void testDuplicateAndFailingHosts() throws InterruptedException {
+        scheduler = new DirectAgentConnectScheduler(1, 0, 0);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+
+        Assert.assertTrue(scheduler.submit(1L, 1L, null, 0, () -> {
+            try {
+                blocked.await(10, TimeUnit.SECONDS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            done.countDown();
+            throw new RuntimeException("unable to connect");
+        }));
+        // a host that is still connecting is not queued a second time
+        Assert.assertFalse(scheduler.submit(1L, 1L, null, 0, () -> { }));
+        blocked.countDown();
+
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        while (scheduler.getCompletedCount() < 1) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(1, scheduler.getFailedCount());
+        while (scheduler.getRunningCount() > 0) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(scheduler.submit(1L, 1L, null, 0, () -> { }));
+    }
+}
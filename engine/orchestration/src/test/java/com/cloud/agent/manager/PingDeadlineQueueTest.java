@@ -0,0 +1,70 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.manager;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PingDeadlineQueueTest {
+    private static final long TIMEOUT = 60;
+    private static final long RECHECK = 10;
+
+    @Test
+    public void testAgentsBehindOnPingAreFound() {
+        PingDeadlineQueue queue = new PingDeadlineQueue();
+        queue.add(1, 1000, TIMEOUT);
+        queue.add(2, 1000, TIMEOUT);
+        queue.add(3, 1010, TIMEOUT);
+
+        Assert.assertTrue(queue.expire(1060, TIMEOUT, RECHECK).isEmpty());
+        Assert.assertTrue(queue.ping(2, 1050));
+        Assert.assertEquals(Collections.singletonList(1L), queue.expire(1061, TIMEOUT, RECHECK));
+        Assert.assertEquals(Collections.singletonList(3L), queue.expire(1071, TIMEOUT, RECHECK));
+        Assert.assertEquals(Long.valueOf(1050), queue.getLastPing(2));
+    }
+
+    @Test
+    public void testAgentsStillBehindAreFoundAgain() {
+        PingDeadlineQueue queue = new PingDeadlineQueue();
+        queue.add(1, 1000, TIMEOUT);
+        Assert.assertEquals(Arrays.asList(1L), queue.expire(1061, TIMEOUT, RECHECK));
+        Assert.assertTrue(queue.expire(1065, TIMEOUT, RECHECK).isEmpty());
+        Assert.assertEquals(Arrays.asList(1L), queue.expire(1072, TIMEOUT, RECHECK));
+
+        queue.ping(1, 1075);
+        Assert.assertTrue(queue.expire(1090, TIMEOUT, RECHECK).isEmpty());
+    }
+
+    @Test
+    public void testRemovedAndReconnectedAgents() {
+        PingDeadlineQueue queue = new PingDeadlineQueue();
+        queue.add(1, 1000, TIMEOUT);
+        queue.add(2, 1000, TIMEOUT);
+        queue.remove(1);
+        Assert.assertFalse(queue.ping(1, 1010));
+        Assert.assertNull(queue.getLastPing(1));
+
+        // the agent reconnects, only its new deadline counts
+        queue.add(2, 1030, TIMEOUT);
+        Assert.assertTrue(queue.expire(1080, TIMEOUT, RECHECK).isEmpty());
+        Assert.assertEquals(Arrays.asList(2L), queue.expire(1091, TIMEOUT, RECHECK));
+        Assert.assertEquals(1, queue.size());
+    }
+}
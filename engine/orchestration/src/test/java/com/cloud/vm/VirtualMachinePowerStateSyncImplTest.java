@@ -0,0 +1,117 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.vm;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.cloud.agent.api.HostVmStateReportEntry;
+import com.cloud.agent.api.PingRoutingCommand;
+import com.cloud.host.Host;
+import com.cloud.vm.VirtualMachine.PowerState;
+import com.cloud.vm.dao.VMInstanceDao;
+
+public class VirtualMachinePowerStateSyncImplTest {
+    private static final long HOSTID = 1L;
+
+    private VirtualMachinePowerStateSyncImpl syncMgr;
+
+    @Before
+    public void setUp() {
+        syncMgr = new VirtualMachinePowerStateSyncImpl();
+        syncMgr._instanceDao = Mockito.mock(VMInstanceDao.class);
+    }
+
+    private PingRoutingCommand ping(final Map<String, HostVmStateReportEntry> report, final long generation, final long baseGeneration, final long digest) {
+        final PingRoutingCommand ping = new PingRoutingCommand(Host.Type.Routing, HOSTID, report);
+        ping.setHostVmStateReportVersion(generation, baseGeneration, digest);
+        return ping;
+    }
+
+    private Map<String, HostVmStateReportEntry> fullState() {
+        final Map<String, HostVmStateReportEntry> state = new HashMap<String, HostVmStateReportEntry>();
+        state.put("i-2-3-VM", new HostVmStateReportEntry(PowerState.PowerOn, "host1"));
+        state.put("i-2-4-VM", new HostVmStateReportEntry(PowerState.PowerOn, "host1"));
+        return state;
+    }
+
+    @Test
+    public void testUnversionedReportIsPassedThrough() {
+        final Map<String, HostVmStateReportEntry> report = fullState();
+        final PingRoutingCommand ping = new PingRoutingCommand(Host.Type.Routing, HOSTID, report);
+        Assert.assertSame(report, syncMgr.resolveHostVmStatePingReport(HOSTID, ping));
+        Assert.assertFalse(ping.isHostVmStateReportAccepted());
+    }
+
+    @Test
+    public void testDeltaIsMergedIntoLastFullReport() {
+        final Map<String, HostVmStateReportEntry> state = fullState();
+        final PingRoutingCommand full = ping(state, 5, 0, PingRoutingCommand.computeHostVmStateReportDigest(state));
+        Assert.assertEquals(2, syncMgr.resolveHostVmStatePingReport(HOSTID, full).size());
+        Assert.assertTrue(full.isHostVmStateReportAccepted());
+
+        final Map<String, HostVmStateReportEntry> changed = new HashMap<String, HostVmStateReportEntry>();
+        changed.put("i-2-3-VM", new HostVmStateReportEntry(PowerState.PowerOff, "host1"));
+        state.putAll(changed);
+        state.remove("i-2-4-VM");
+        final PingRoutingCommand delta = ping(changed, 6, 5, PingRoutingCommand.computeHostVmStateReportDigest(state));
+        delta.setRemovedVms(Collections.singletonList("i-2-4-VM"));
+
+        final Map<String, HostVmStateReportEntry> report = syncMgr.resolveHostVmStatePingReport(HOSTID, delta);
+        Assert.assertEquals(1, report.size());
+        Assert.assertEquals(PowerState.PowerOff, report.get("i-2-3-VM").getState());
+        Assert.assertTrue(delta.isHostVmStateReportAccepted());
+    }
+
+    @Test
+    public void testDeltaOnUnknownBaseRequestsFullReport() {
+        final PingRoutingCommand delta = ping(new HashMap<String, HostVmStateReportEntry>(), 6, 5, 0);
+        Assert.assertNull(syncMgr.resolveHostVmStatePingReport(HOSTID, delta));
+        Assert.assertTrue(delta.isFullHostVmStateReportRequested());
+        Assert.assertFalse(delta.isHostVmStateReportAccepted());
+    }
+
+    @Test
+    public void testDigestMismatchRequestsFullReport() {
+        final Map<String, HostVmStateReportEntry> state = fullState();
+        syncMgr.resolveHostVmStatePingReport(HOSTID, ping(state, 5, 0, PingRoutingCommand.computeHostVmStateReportDigest(state)));
+
+        final PingRoutingCommand delta = ping(new HashMap<String, HostVmStateReportEntry>(), 6, 5, 42);
+        Assert.assertNull(syncMgr.resolveHostVmStatePingReport(HOSTID, delta));
+        Assert.assertTrue(delta.isFullHostVmStateReportRequested());
+
+        // the stored state was dropped, the next delta needs a full report first
+        final PingRoutingCommand next = ping(new HashMap<String, HostVmStateReportEntry>(), 7, 6, PingRoutingCommand.computeHostVmStateReportDigest(state));
+        Assert.assertNull(syncMgr.resolveHostVmStatePingReport(HOSTID, next));
+    }
+
+    @Test
+    public void testResetDropsStoredReport() {
+        final Map<String, HostVmStateReportEntry> state = fullState();
+        final long digest = PingRoutingCommand.computeHostVmStateReportDigest(state);
+        syncMgr.resolveHostVmStatePingReport(HOSTID, ping(state, 5, 0, digest));
+        syncMgr.resetHostSyncState(HOSTID);
+
+        Assert.assertNull(syncMgr.resolveHostVmStatePingReport(HOSTID, ping(new HashMap<String, HostVmStateReportEntry>(), 6, 5, digest)));
+    }
+}
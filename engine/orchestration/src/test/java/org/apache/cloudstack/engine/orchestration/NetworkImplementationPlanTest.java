@@ -0,0 +1,267 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.engine.orchestration;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.cloudstack.context.CallContext;
+import org.apache.cloudstack.framework.jobs.AsyncJob;
+import org.apache.cloudstack.framework.jobs.AsyncJobExecutionContext;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.cloud.exception.InsufficientCapacityException;
+import com.cloud.exception.ResourceUnavailableException;
+import com.cloud.network.Network;
+import com.cloud.user.Account;
+import com.cloud.user.User;
+
+public class NetworkImplementationPlanTest {
+    private ExecutorService executor;
+    private final List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private NetworkImplementationPlan.Task record(final String name) {
+        return new NetworkImplementationPlan.Task() {
+            @Override
+            public void run() {
+                ran.add(name);
+            }
+        };
+    }
+
+    @Test
+    public void testIndependentStagesRunAtTheSameTime() throws Exception {
+        final CountDownLatch bothRunning = new CountDownLatch(2);
+        NetworkImplementationPlan.Task waitForOther = new NetworkImplementationPlan.Task() {
+            @Override
+            public void run() throws ResourceUnavailableException {
+                bothRunning.countDown();
+                try {
+                    if (!bothRunning.await(10, TimeUnit.SECONDS)) {
+                        throw new ResourceUnavailableException("the other stage did not run", Network.class, 1);
+                    }
+                } catch (InterruptedException e) {
+                    throw new ResourceUnavailableException("interrupted", Network.class, 1);
+                }
+                ran.add("element");
+            }
+        };
+        NetworkImplementationPlan plan = new NetworkImplementationPlan("Implement network 1");
+        NetworkImplementationPlan.Stage connectivity = plan.add("connectivity", record("connectivity"));
+        NetworkImplementationPlan.Stage router = plan.add("router", waitForOther, connectivity);
+        NetworkImplementationPlan.Stage loadBalancer = plan.add("load balancer", waitForOther, connectivity);
+        plan.add("last", record("last"), router, loadBalancer);
+        plan.execute(executor);
+
+        Assert.assertEquals(4, ran.size());
+        Assert.assertEquals("connectivity", ran.get(0));
+        Assert.assertEquals("last", ran.get(3));
+        for (NetworkImplementationPlan.Stage stage : plan.getStages()) {
+            Assert.assertTrue(stage.isDone());
+        }
+    }
+
+    @Test
+    public void testFailureStopsTheStagesDependingOnIt() throws Exception {
+        NetworkImplementationPlan plan = new NetworkImplementationPlan("Implement network 1");
+        NetworkImplementationPlan.Stage failing = plan.add("router", new NetworkImplementationPlan.Task() {
+            @Override
+            public void run() throws ResourceUnavailableException {
+                throw new ResourceUnavailableException("router is down", Network.class, 1);
+            }
+        });
+        NetworkImplementationPlan.Stage after = plan.add("after router", record("after router"), failing);
+        try {
+            plan.execute(executor);
+            Assert.fail("the failure is not passed on");
+        } catch (ResourceUnavailableException e) {
+            Assert.assertEquals("router is down", e.getMessage());
+        }
+        Assert.assertFalse(failing.isDone());
+        Assert.assertNotNull(failing.getFailure());
+        Assert.assertFalse(after.isDone());
+        Assert.assertTrue(ran.isEmpty());
+        Assert.assertTrue(plan.getSummary().contains("after router skipped"));
+    }
+
+    @Test
+    public void testWithoutExecutorStagesRunInTurn() throws Exception {
+        NetworkImplementationPlan plan = new NetworkImplementationPlan("Implement network 1");
+        plan.add("first", record("first"));
+        plan.add("second", record("second"));
+        plan.add("third", record("third"));
+        plan.execute(null);
+        Assert.assertEquals(3, ran.size());
+        Assert.assertEquals("first", ran.get(0));
+        Assert.assertEquals("third", ran.get(2));
+    }
+
+    @Test
+    public void testPlanOfAStageRunsOnItsThread() throws Exception {
+        final NetworkImplementationPlan inner = new NetworkImplementationPlan("Implement the networks of the router");
+        inner.add("public", record("public"));
+        inner.add("guest", record("guest"));
+        final List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+        NetworkImplementationPlan plan = new NetworkImplementationPlan("Implement network 1");
+        plan.add("router", new NetworkImplementationPlan.Task() {
+            @Override
+            public void run() throws ResourceUnavailableException, InsufficientCapacityException {
+                threads.add(Thread.currentThread());
+                inner.execute(executor);
+                threads.add(Thread.currentThread());
+            }
+        });
+        plan.add("dns", record("dns"));
+        plan.execute(executor);
+        Assert.assertEquals(3, ran.size());
+        Assert.assertSame(threads.get(0), threads.get(1));
+    }
+
+    @Test
+    public void testPlanIsDoneWhenNoThreadOfTheExecutorIsFree() throws Exception {
+        // the only thread of the executor waits, like a stage waiting for the job of a router
+        final ExecutorService saturated = Executors.newFixedThreadPool(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        try {
+            saturated.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            final NetworkImplementationPlan plan = new NetworkImplementationPlan("Implement the networks of the router");
+            NetworkImplementationPlan.Stage publicNetwork = plan.add("public", record("public"));
+            plan.add("guest", record("guest"));
+            plan.add("after public", record("after public"), publicNetwork);
+            final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+            Thread routerJob = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        plan.execute(saturated);
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    }
+                }
+            });
+            routerJob.start();
+            routerJob.join(10000);
+
+            Assert.assertFalse("the plan waits for the executor", routerJob.isAlive());
+            Assert.assertNull(failure.get());
+            Assert.assertEquals(3, ran.size());
+        } finally {
+            release.countDown();
+            saturated.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testStagesRunInTheContextsOfTheCaller() throws Exception {
+        final AsyncJobExecutionContext jobContext = new AsyncJobExecutionContext(Mockito.mock(AsyncJob.class));
+        CallContext caller = CallContext.register(Mockito.mock(User.class), Mockito.mock(Account.class), "context-id");
+        AsyncJobExecutionContext.setCurrentExecutionContext(jobContext);
+        try {
+            caller.putContextParameter("network", "network-uuid");
+            caller.setEventDetails("Implementing network 1");
+            final CountDownLatch bothRunning = new CountDownLatch(2);
+            final List<String> seen = Collections.synchronizedList(new ArrayList<String>());
+            NetworkImplementationPlan plan = new NetworkImplementationPlan("Implement network 1");
+            for (final String element : new String[] {"router", "dns"}) {
+                plan.add(element, new NetworkImplementationPlan.Task() {
+                    @Override
+                    public void run() throws ResourceUnavailableException {
+                        bothRunning.countDown();
+                        try {
+                            bothRunning.await(10, TimeUnit.SECONDS);
+                        } catch (InterruptedException e) {
+                            throw new ResourceUnavailableException("interrupted", Network.class, 1);
+                        }
+                        CallContext context = CallContext.current();
+                        seen.add(context.getContextId() + " " + context.getContextParameter("network") + " " + context.getEventDetails() + " "
+                                + (AsyncJobExecutionContext.getCurrent().getJob() == jobContext.getJob()));
+                        context.putContextParameter(element, element + "-uuid");
+                    }
+                });
+            }
+            plan.execute(executor);
+
+            Assert.assertEquals(2, seen.size());
+            for (String stage : seen) {
+                Assert.assertEquals("context-id network-uuid Implementing network 1 true", stage);
+            }
+            Assert.assertEquals("router-uuid", caller.getContextParameter("router"));
+            Assert.assertEquals("dns-uuid", caller.getContextParameter("dns"));
+            Assert.assertSame(caller, CallContext.current());
+            Assert.assertSame(jobContext, AsyncJobExecutionContext.getCurrent());
+        } finally {
+            AsyncJobExecutionContext.unregister();
+            CallContext.unregister();
+        }
+    }
+
+    @Test
+    public void testPlanWithoutExecutorInAStageRunsOnItsThread() throws Exception {
+        final NetworkImplementationPlan elements = new NetworkImplementationPlan("Implement network 1");
+        final NetworkImplementationPlan routerNetworks = new NetworkImplementationPlan("Implement the networks of the router");
+        final List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+        for (final String network : new String[] {"public", "guest"}) {
+            routerNetworks.add(network, new NetworkImplementationPlan.Task() {
+                @Override
+                public void run() {
+                    threads.add(Thread.currentThread());
+                }
+            });
+        }
+        elements.add("router", new NetworkImplementationPlan.Task() {
+            @Override
+            public void run() throws ResourceUnavailableException, InsufficientCapacityException {
+                routerNetworks.execute(executor);
+            }
+        });
+        elements.add("dns", record("dns"));
+        elements.execute(null);
+        Assert.assertEquals(2, threads.size());
+        Assert.assertSame(Thread.currentThread(), threads.get(0));
+        Assert.assertSame(Thread.currentThread(), threads.get(1));
+    }
+}
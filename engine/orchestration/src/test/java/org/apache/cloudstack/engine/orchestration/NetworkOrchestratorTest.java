@@ -24,9 +24,14 @@ import static org.mockito.Mockito.when;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.log4j.Logger;
 import org.junit.Assert;
@@ -36,14 +41,18 @@ import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 import org.mockito.Matchers;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import com.cloud.dc.Vlan;
 import com.cloud.dc.VlanVO;
 import com.cloud.dc.dao.VlanDao;
+import com.cloud.deploy.DeployDestination;
 import com.cloud.exception.InsufficientAddressCapacityException;
 import com.cloud.exception.InvalidParameterValueException;
 import com.cloud.network.Network;
 import com.cloud.network.Network.GuestType;
+import com.cloud.network.Network.Provider;
 import com.cloud.network.Network.Service;
 import com.cloud.network.NetworkModel;
 import com.cloud.network.IpAddress.State;
@@ -54,12 +63,15 @@ import com.cloud.network.dao.NetworkDao;
 import com.cloud.network.dao.NetworkServiceMapDao;
 import com.cloud.network.dao.NetworkVO;
 import com.cloud.network.element.DhcpServiceProvider;
+import com.cloud.network.element.NetworkElement;
 import com.cloud.network.guru.NetworkGuru;
+import com.cloud.offering.NetworkOffering;
 import com.cloud.offerings.NetworkOfferingVO;
 import com.cloud.utils.net.Ip;
 import com.cloud.vm.Nic;
 import com.cloud.vm.NicProfile;
 import com.cloud.vm.NicVO;
+import com.cloud.vm.ReservationContext;
 import com.cloud.vm.VirtualMachine;
 import com.cloud.vm.VirtualMachine.Type;
 import com.cloud.vm.VirtualMachineProfile;
@@ -463,4 +475,44 @@ public class NetworkOrchestratorTest extends TestCase {
         testOrchastrator.validateLockedRequestedIp(ipVoSpy, lockedIp);
     }
 
+    @Test
+    public void testElementsRunOnTheThreadHoldingTheNetworkLock() throws Exception {
+        // the lock table lets only the thread holding the network lock take it again
+        final ReentrantLock networkLock = new ReentrantLock();
+        final List<String> implemented = Collections.synchronizedList(new ArrayList<String>());
+        final List<NetworkElement> elements = new ArrayList<NetworkElement>();
+        for (final Provider provider : new Provider[] {Provider.VirtualRouter, Provider.ConfigDrive}) {
+            NetworkElement element = mock(NetworkElement.class);
+            when(element.getName()).thenReturn(provider.getName());
+            when(element.getProvider()).thenReturn(provider);
+            when(element.implement(Matchers.any(Network.class), Matchers.any(NetworkOffering.class), Matchers.any(DeployDestination.class),
+                    Matchers.any(ReservationContext.class))).thenAnswer(new Answer<Boolean>() {
+                @Override
+                public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                    if (!networkLock.tryLock(1, TimeUnit.SECONDS)) {
+                        return false;
+                    }
+                    networkLock.unlock();
+                    implemented.add(provider.getName());
+                    return true;
+                }
+            });
+            elements.add(element);
+        }
+        testOrchastrator.setNetworkElements(elements);
+        testOrchastrator._implementExecutor = new ThreadPoolExecutor(2, 2, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        NetworkVO network = mock(NetworkVO.class);
+        when(testOrchastrator._networkModel.getPhysicalNetworkId(network)).thenReturn(1L);
+        when(testOrchastrator._networkModel.isProviderEnabledInPhysicalNetwork(Matchers.anyLong(), Matchers.anyString())).thenReturn(true);
+
+        networkLock.lock();
+        try {
+            testOrchastrator.implementNetworkElements(mock(DeployDestination.class), mock(ReservationContext.class), network, networkOffering,
+                    Arrays.asList(Provider.VirtualRouter, Provider.ConfigDrive));
+        } finally {
+            networkLock.unlock();
+            testOrchastrator._implementExecutor.shutdownNow();
+        }
+        Assert.assertEquals(Arrays.asList("VirtualRouter", "ConfigDrive"), implemented);
+    }
 }
@@ -16,7 +16,9 @@
 // under the License.
 package com.cloud.configuration.dao;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import com.cloud.configuration.Resource.ResourceOwnerType;
@@ -41,6 +43,11 @@ public interface ResourceCountDao extends GenericDao<ResourceCountVO, Long> {
 
     boolean updateById(long id, boolean increment, long delta);
 
+    /**
+     * Adds the delta to the count of the row in a single relative update, without reading the row first.
+     */
+    boolean addToCount(long id, long delta);
+
     void createResourceCounts(long ownerId, ResourceOwnerType ownerType);
 
     List<ResourceCountVO> listByOwnerId(long ownerId, ResourceOwnerType ownerType);
@@ -49,6 +56,11 @@ public interface ResourceCountDao extends GenericDao<ResourceCountVO, Long> {
 
     List<ResourceCountVO> listResourceCountByOwnerType(ResourceOwnerType ownerType);
 
+    /**
+     * @return the resource count rows of the type that belong to the given owners
+     */
+    List<ResourceCountVO> listByTypeAndOwners(ResourceType type, ResourceOwnerType ownerType, Collection<Long> ownerIds);
+
     Set<Long> listAllRowsToUpdate(long ownerId, ResourceOwnerType ownerType, ResourceType type);
 
     Set<Long> listRowsToUpdateForDomain(long domainId, ResourceType type);
@@ -68,4 +80,15 @@ public interface ResourceCountDao extends GenericDao<ResourceCountVO, Long> {
      * Side note: This method is not using the "resource_count" table. It is executing the actual count instead.
      */
     long countMemoryAllocatedToAccount(long accountId);
+
+    /**
+     * Counts the resources of the type used by every account of the domain with the given path and of its
+     * subdomains, in grouped queries instead of one query per account.
+     *
+     * Side note: This method is not using the "resource_count" table. It is executing the actual count instead.
+     *
+     * @return the count per account id, where accounts without resources are missing, or null if the type
+     * cannot be counted this way and has to be counted per account
+     */
+    Map<Long, Long> countResourcesPerAccount(ResourceType type, String domainPath);
 }
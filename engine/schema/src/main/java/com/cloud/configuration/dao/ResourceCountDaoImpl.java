@@ -20,8 +20,11 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.annotation.PostConstruct;
@@ -49,7 +52,13 @@ import com.cloud.utils.exception.CloudRuntimeException;
 
 @Component
 public class ResourceCountDaoImpl extends GenericDaoBase<ResourceCountVO, Long> implements ResourceCountDao {
+    private static final String ADD_TO_COUNT_SQL = "UPDATE resource_count SET `count` = `count` + ? WHERE id = ?";
+
+    private static final int OWNER_IDS_PER_QUERY = 1000;
+
     private final SearchBuilder<ResourceCountVO> TypeSearch;
+    private final SearchBuilder<ResourceCountVO> TypeAccountsSearch;
+    private final SearchBuilder<ResourceCountVO> TypeDomainsSearch;
 
     private final SearchBuilder<ResourceCountVO> AccountSearch;
     private final SearchBuilder<ResourceCountVO> DomainSearch;
@@ -66,6 +75,16 @@ public class ResourceCountDaoImpl extends GenericDaoBase<ResourceCountVO, Long>
         TypeSearch.and("domainId", TypeSearch.entity().getDomainId(), SearchCriteria.Op.EQ);
         TypeSearch.done();
 
+        TypeAccountsSearch = createSearchBuilder();
+        TypeAccountsSearch.and("type", TypeAccountsSearch.entity().getType(), SearchCriteria.Op.EQ);
+        TypeAccountsSearch.and("accountIds", TypeAccountsSearch.entity().getAccountId(), SearchCriteria.Op.IN);
+        TypeAccountsSearch.done();
+
+        TypeDomainsSearch = createSearchBuilder();
+        TypeDomainsSearch.and("type", TypeDomainsSearch.entity().getType(), SearchCriteria.Op.EQ);
+        TypeDomainsSearch.and("domainIds", TypeDomainsSearch.entity().getDomainId(), SearchCriteria.Op.IN);
+        TypeDomainsSearch.done();
+
         AccountSearch = createSearchBuilder();
         DomainSearch = createSearchBuilder();
     }
@@ -129,6 +148,41 @@ public class ResourceCountDaoImpl extends GenericDaoBase<ResourceCountVO, Long>
         return update(resourceCountVO.getId(), resourceCountVO);
     }
 
+    @Override
+    public boolean addToCount(long id, long delta) {
+        TransactionLegacy tx = TransactionLegacy.currentTxn();
+        try {
+            PreparedStatement pstmt = tx.prepareAutoCloseStatement(ADD_TO_COUNT_SQL);
+            pstmt.setLong(1, delta);
+            pstmt.setLong(2, id);
+            return pstmt.executeUpdate() > 0;
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("Unable to update resource count row " + id, e);
+        }
+    }
+
+    @Override
+    public List<ResourceCountVO> listByTypeAndOwners(ResourceType type, ResourceOwnerType ownerType, Collection<Long> ownerIds) {
+        List<ResourceCountVO> rows = new ArrayList<ResourceCountVO>();
+        List<Long> ids = new ArrayList<Long>(ownerIds);
+        for (int from = 0; from < ids.size(); from += OWNER_IDS_PER_QUERY) {
+            Object[] chunk = ids.subList(from, Math.min(from + OWNER_IDS_PER_QUERY, ids.size())).toArray();
+            SearchCriteria<ResourceCountVO> sc;
+            if (ownerType == ResourceOwnerType.Account) {
+                sc = TypeAccountsSearch.create();
+                sc.setParameters("accountIds", chunk);
+            } else if (ownerType == ResourceOwnerType.Domain) {
+                sc = TypeDomainsSearch.create();
+                sc.setParameters("domainIds", chunk);
+            } else {
+                break;
+            }
+            sc.setParameters("type", type);
+            rows.addAll(listIncludingRemovedBy(sc));
+        }
+        return rows;
+    }
+
     @Override
     public Set<Long> listRowsToUpdateForDomain(long domainId, ResourceType type) {
         Set<Long> rowIds = new HashSet<Long>();
@@ -265,6 +319,88 @@ public class ResourceCountDaoImpl extends GenericDaoBase<ResourceCountVO, Long>
         return executeSqlCountComputingResourcesForAccount(accountId, sqlCountCpuNumberAllocatedToAccount);
     }
 
+    private static final String ACCOUNTS_OF_DOMAIN_TREE_JOIN = " join account a on a.id = %s.account_id join domain d on d.id = a.domain_id and d.path like ? ";
+
+    private String baseSqlCountComputingResourcePerAccount = "Select vm.account_id as account_id, "
+            + " SUM((CASE "
+            + "        WHEN so.%s is not null THEN so.%s "
+            + "        ELSE CONVERT(vmd.value, UNSIGNED INTEGER) "
+            + "    END)) as total "
+            + " from vm_instance vm "
+            + " join service_offering so on so.id = vm.service_offering_id "
+            + " left join user_vm_details vmd on vmd.vm_id = vm.id and vmd.name = '%s' "
+            + String.format(ACCOUNTS_OF_DOMAIN_TREE_JOIN, "vm")
+            + " where vm.type = 'User' and vm.state not in ('Destroyed', 'Error', 'Expunging') and vm.display_vm = true group by vm.account_id";
+
+    private static final String SQL_COUNT_VMS_PER_ACCOUNT = "Select vm.account_id as account_id, count(*) as total from vm_instance vm "
+            + String.format(ACCOUNTS_OF_DOMAIN_TREE_JOIN, "vm")
+            + " where vm.type = ? and vm.state not in ('Destroyed', 'Error', 'Expunging') and vm.removed is null %s group by vm.account_id";
+
+    private static final String SQL_COUNT_VOLUMES_PER_ACCOUNT = "Select v.account_id as account_id, count(*) as total from volumes v "
+            + String.format(ACCOUNTS_OF_DOMAIN_TREE_JOIN, "v")
+            + " where v.state <> 'Destroy' and v.display_volume = true and v.removed is null group by v.account_id";
+
+    private static final String SQL_COUNT_SNAPSHOTS_PER_ACCOUNT = "Select s.account_id as account_id, count(*) as total from snapshots s "
+            + String.format(ACCOUNTS_OF_DOMAIN_TREE_JOIN, "s")
+            + " where s.status not in ('Error', 'Destroyed') and s.removed is null group by s.account_id";
+
+    private static final String SQL_COUNT_TEMPLATES_PER_ACCOUNT = "Select t.account_id as account_id, count(*) as total from vm_template t "
+            + String.format(ACCOUNTS_OF_DOMAIN_TREE_JOIN, "t")
+            + " where t.state = 'Active' and t.removed is null group by t.account_id";
+
+    private static final String SQL_COUNT_VPCS_PER_ACCOUNT = "Select vpc.account_id as account_id, count(*) as total from vpc "
+            + String.format(ACCOUNTS_OF_DOMAIN_TREE_JOIN, "vpc")
+            + " where vpc.removed is null group by vpc.account_id";
+
+    @Override
+    public Map<Long, Long> countResourcesPerAccount(ResourceType type, String domainPath) {
+        switch (type) {
+        case user_vm:
+            return executeSqlCountPerAccount(String.format(SQL_COUNT_VMS_PER_ACCOUNT, "and vm.display_vm = true"), domainPath, "User");
+        case cpu:
+            return executeSqlCountPerAccount(String.format(baseSqlCountComputingResourcePerAccount, ResourceType.cpu, ResourceType.cpu, "cpuNumber"), domainPath);
+        case memory:
+            return executeSqlCountPerAccount(String.format(baseSqlCountComputingResourcePerAccount, "ram_size", "ram_size", "memory"), domainPath);
+        case volume:
+            // the volumes of virtual routers are not counted, as in the per account calculation
+            Map<Long, Long> volumes = executeSqlCountPerAccount(SQL_COUNT_VOLUMES_PER_ACCOUNT, domainPath);
+            Map<Long, Long> routers = executeSqlCountPerAccount(String.format(SQL_COUNT_VMS_PER_ACCOUNT, ""), domainPath, "DomainRouter");
+            for (Map.Entry<Long, Long> router : routers.entrySet()) {
+                Long count = volumes.get(router.getKey());
+                volumes.put(router.getKey(), (count == null ? 0 : count) - router.getValue());
+            }
+            return volumes;
+        case snapshot:
+            return executeSqlCountPerAccount(SQL_COUNT_SNAPSHOTS_PER_ACCOUNT, domainPath);
+        case template:
+            return executeSqlCountPerAccount(SQL_COUNT_TEMPLATES_PER_ACCOUNT, domainPath);
+        case vpc:
+            return executeSqlCountPerAccount(SQL_COUNT_VPCS_PER_ACCOUNT, domainPath);
+        default:
+            return null;
+        }
+    }
+
+    private Map<Long, Long> executeSqlCountPerAccount(String sql, String domainPath, String... parameters) {
+        Map<Long, Long> counts = new HashMap<Long, Long>();
+        TransactionLegacy tx = TransactionLegacy.currentTxn();
+        try {
+            PreparedStatement pstmt = tx.prepareAutoCloseStatement(sql);
+            pstmt.setString(1, domainPath + "%");
+            for (int i = 0; i < parameters.length; i++) {
+                pstmt.setString(i + 2, parameters[i]);
+            }
+
+            ResultSet rs = pstmt.executeQuery();
+            while (rs.next()) {
+                counts.put(rs.getLong("account_id"), rs.getLong("total"));
+            }
+            return counts;
+        } catch (SQLException e) {
+            throw new CloudRuntimeException(e);
+        }
+    }
+
     private long executeSqlCountComputingResourcesForAccount(long accountId, String sqlCountComputingResourcesAllocatedToAccount) {
         TransactionLegacy tx = TransactionLegacy.currentTxn();
         try {
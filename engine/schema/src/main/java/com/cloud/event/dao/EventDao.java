@@ -35,4 +35,9 @@ public interface EventDao extends GenericDao<EventVO, Long> {
 
     public void archiveEvents(List<EventVO> events);
 
+    /**
+     * Inserts the events in one JDBC batch, with the create dates they have. The ids of the events are not set.
+     */
+    void persistBatch(List<EventVO> events);
+
 }
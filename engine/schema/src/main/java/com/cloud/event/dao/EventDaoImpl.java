@@ -16,8 +16,11 @@
 // under the License.
 package com.cloud.event.dao;
 
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
 import java.util.Date;
 import java.util.List;
+import java.util.TimeZone;
 
 
 import org.apache.log4j.Logger;
@@ -25,12 +28,14 @@ import org.springframework.stereotype.Component;
 
 import com.cloud.event.Event.State;
 import com.cloud.event.EventVO;
+import com.cloud.utils.DateUtil;
 import com.cloud.utils.db.Filter;
 import com.cloud.utils.db.GenericDaoBase;
 import com.cloud.utils.db.SearchBuilder;
 import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.SearchCriteria.Op;
 import com.cloud.utils.db.TransactionLegacy;
+import com.cloud.utils.exception.CloudRuntimeException;
 
 @Component
 public class EventDaoImpl extends GenericDaoBase<EventVO, Long> implements EventDao {
@@ -38,6 +43,9 @@ public class EventDaoImpl extends GenericDaoBase<EventVO, Long> implements Event
     protected final SearchBuilder<EventVO> CompletedEventSearch;
     protected final SearchBuilder<EventVO> ToArchiveOrDeleteEventSearch;
 
+    private static final String INSERT_EVENT = "INSERT INTO event (uuid, type, state, description, user_id, account_id, domain_id, level, start_id, created, display)"
+            + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
     public EventDaoImpl() {
         CompletedEventSearch = createSearchBuilder();
         CompletedEventSearch.and("state", CompletedEventSearch.entity().getState(), SearchCriteria.Op.EQ);
@@ -114,4 +122,35 @@ public class EventDaoImpl extends GenericDaoBase<EventVO, Long> implements Event
             txn.close();
         }
     }
+
+    @Override
+    public void persistBatch(List<EventVO> events) {
+        if (events == null || events.isEmpty()) {
+            return;
+        }
+        TransactionLegacy txn = TransactionLegacy.currentTxn();
+        try {
+            txn.start();
+            PreparedStatement pstmt = txn.prepareAutoCloseStatement(INSERT_EVENT);
+            for (EventVO event : events) {
+                pstmt.setString(1, event.getUuid());
+                pstmt.setString(2, event.getType());
+                pstmt.setString(3, event.getState().toString());
+                pstmt.setString(4, event.getDescription());
+                pstmt.setLong(5, event.getUserId());
+                pstmt.setLong(6, event.getAccountId());
+                pstmt.setLong(7, event.getDomainId());
+                pstmt.setString(8, event.getLevel());
+                pstmt.setLong(9, event.getStartId());
+                pstmt.setString(10, DateUtil.getDateDisplayString(TimeZone.getTimeZone("GMT"), event.getCreateDate() != null ? event.getCreateDate() : new Date()));
+                pstmt.setBoolean(11, event.isDisplay());
+                pstmt.addBatch();
+            }
+            pstmt.executeBatch();
+            txn.commit();
+        } catch (SQLException e) {
+            txn.rollback();
+            throw new CloudRuntimeException("Unable to persist " + events.size() + " events", e);
+        }
+    }
 }
@@ -35,4 +35,9 @@ public interface UsageEventDao extends GenericDao<UsageEventVO, Long> {
 
     void saveDetails(long eventId, Map<String, String> details);
 
+    /**
+     * Inserts the events in one JDBC batch, created now. The ids of the events are not set.
+     */
+    void persistBatch(List<UsageEventVO> events);
+
 }
\ No newline at end of file
@@ -56,6 +56,8 @@ public class UsageEventDaoImpl extends GenericDaoBase<UsageEventVO, Long> implem
             + "SELECT id, usage_event_id, name, value FROM cloud.usage_event_details vmevtDetails WHERE vmevtDetails.usage_event_id > ? and vmevtDetails.usage_event_id <= ? ";
     private static final String COPY_ALL_EVENT_DETAILS = "INSERT INTO cloud_usage.usage_event_details (id, usage_event_id, name, value) "
             + "SELECT id, usage_event_id, name, value FROM cloud.usage_event_details vmevtDetails WHERE vmevtDetails.usage_event_id <= ?";
+    private static final String INSERT_EVENT = "INSERT INTO cloud.usage_event (type, account_id, created, zone_id, resource_id, resource_name, offering_id, template_id, size, resource_type, virtual_size, processed) "
+            + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, 0)";
     private static final String MAX_EVENT = "select max(id) from cloud.usage_event where created <= ?";
     @Inject
     protected UsageEventDetailsDao usageEventDetailsDao;
@@ -228,4 +230,37 @@ public class UsageEventDaoImpl extends GenericDaoBase<UsageEventVO, Long> implem
         usageEventDetailsDao.persist(eventId, details);
     }
 
+    @Override
+    public void persistBatch(List<UsageEventVO> events) {
+        if (events == null || events.isEmpty()) {
+            return;
+        }
+        TransactionLegacy txn = TransactionLegacy.currentTxn();
+        try {
+            txn.start();
+            PreparedStatement pstmt = txn.prepareAutoCloseStatement(INSERT_EVENT);
+            String created = DateUtil.getDateDisplayString(TimeZone.getTimeZone("GMT"), new Date());
+            for (UsageEventVO event : events) {
+                pstmt.setString(1, event.getType());
+                pstmt.setLong(2, event.getAccountId());
+                pstmt.setString(3, created);
+                pstmt.setLong(4, event.getZoneId());
+                pstmt.setLong(5, event.getResourceId());
+                pstmt.setString(6, event.getResourceName());
+                pstmt.setObject(7, event.getOfferingId());
+                pstmt.setObject(8, event.getTemplateId());
+                pstmt.setObject(9, event.getSize());
+                pstmt.setString(10, event.getResourceType());
+                pstmt.setObject(11, event.getVirtualSize());
+                pstmt.addBatch();
+            }
+            pstmt.executeBatch();
+            txn.commit();
+        } catch (Exception ex) {
+            txn.rollback();
+            s_logger.error("error saving " + events.size() + " usage events", ex);
+            throw new CloudRuntimeException(ex.getMessage());
+        }
+    }
+
 }
@@ -21,6 +21,7 @@ import static com.cloud.network.NetworkModel.CONFIGDATA_CONTENT;
 import static com.cloud.network.NetworkModel.CONFIGDATA_DIR;
 import static com.cloud.network.NetworkModel.CONFIGDATA_FILE;
 import static com.cloud.network.NetworkModel.PASSWORD_FILE;
+import static com.cloud.network.NetworkModel.USERDATA_DIR;
 import static com.cloud.network.NetworkModel.USERDATA_FILE;
 
 import java.io.File;
@@ -48,6 +49,12 @@ public class ConfigDriveBuilder {
 
     public static final Logger LOG = Logger.getLogger(ConfigDriveBuilder.class);
 
+    private static final long MAX_ISO_SIZE = 64L * 1024L * 1024L;
+    private static final String OPENSTACK_FOLDER = StringUtils.strip(ConfigDrive.openStackConfigDriveName, "/") + "/";
+    private static final String CLOUDSTACK_FOLDER = StringUtils.strip(ConfigDrive.cloudStackConfigDriveName, "/") + "/";
+
+    private static final ConfigDriveIsoCache isoCache = new ConfigDriveIsoCache(64L * 1024L * 1024L);
+
     /**
      * Writes a content {@link String} to a file that is going to be created in a folder. We will not append to the file if it already exists. Therefore, its content will be overwritten.
      * Moreover, the charset used is {@link com.cloud.utils.StringUtils#getPreferredCharset()}.
@@ -87,15 +94,96 @@ public class ConfigDriveBuilder {
         return Files.write(destPath, decoded).toFile();
     }
 
+    public static ConfigDriveIsoCache getIsoCache() {
+        return isoCache;
+    }
+
     /**
-     *  This method will build the metadata files required by OpenStack driver. Then, an ISO is going to be generated and returned as a String in base 64.
-     *  If vmData is null, we throw a {@link CloudRuntimeException}. Moreover, {@link IOException} are captured and re-thrown as {@link CloudRuntimeException}.
+     *  This method will build the ISO with the metadata files required by OpenStack driver in memory, and return it as a String in base 64.
+     *  An ISO built before with the same content is returned from the {@link ConfigDriveIsoCache}, unless it holds the password of the VM, which is never cached.
+     *  If vmData is null, or the ISO is bigger than 64MB, we throw a {@link CloudRuntimeException}.
      */
     public static String buildConfigDrive(List<String[]> vmData, String isoFileName, String driveLabel) {
         if (vmData == null) {
             throw new CloudRuntimeException("No VM metadata provided");
         }
 
+        long startedAt = System.currentTimeMillis();
+        ConfigDriveIsoWriter iso = createConfigDriveIso(vmData, driveLabel);
+        String digest = iso.getDigest();
+        boolean cacheable = !hasPassword(vmData);
+        String isoData = cacheable ? isoCache.get(digest) : null;
+        if (isoData != null) {
+            LOG.debug("Reusing config drive ISO " + isoFileName + " with the same content, " + isoCache.getSummary());
+            return isoData;
+        }
+        if (iso.getSize() > MAX_ISO_SIZE) {
+            throw new CloudRuntimeException("Config drive file exceeds maximum allowed size of 64MB");
+        }
+        isoData = new String(Base64.encodeBase64(iso.toByteArray()), StandardCharsets.US_ASCII);
+        if (cacheable) {
+            isoCache.put(digest, isoData);
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(String.format("Built config drive ISO %s of %d bytes with %d files in %dms, %s", isoFileName, iso.getSize(), iso.getFileCount(),
+                    System.currentTimeMillis() - startedAt, isoCache.getSummary()));
+        }
+        return isoData;
+    }
+
+    /**
+     *  Lays out the files of the config drive in an {@link ConfigDriveIsoWriter}, the same files as {@link #buildConfigDriveWithIsoTool(List, String, String)} writes to disk.
+     *  The OpenStack user_data shares the content of the CloudStack user_data.txt, in place of the hard link.
+     */
+    static ConfigDriveIsoWriter createConfigDriveIso(List<String[]> vmData, String driveLabel) {
+        ConfigDriveIsoWriter iso = new ConfigDriveIsoWriter(driveLabel);
+        iso.addFile(OPENSTACK_FOLDER + "vendor_data.json", "{}".getBytes(com.cloud.utils.StringUtils.getPreferredCharset()));
+        iso.addFile(OPENSTACK_FOLDER + "network_data.json", "{}".getBytes(com.cloud.utils.StringUtils.getPreferredCharset()));
+
+        JsonObject metaData = new JsonObject();
+        for (String[] item : vmData) {
+            String dataType = item[CONFIGDATA_DIR];
+            String fileName = item[CONFIGDATA_FILE];
+            String content = item[CONFIGDATA_CONTENT];
+            LOG.debug(String.format("[createConfigDriveIsoForVM] dataType=%s, filename=%s, content=%s", dataType, fileName, (PASSWORD_FILE.equals(fileName) ? "********" : content)));
+
+            if (StringUtils.isBlank(dataType)) {
+                continue;
+            }
+            String typeFolder = CLOUDSTACK_FOLDER + dataType;
+            iso.addDirectory(typeFolder);
+            if (StringUtils.isNotBlank(content)) {
+                // User Data is passed as a base64 encoded string
+                byte[] bytes = fileName.equals(USERDATA_FILE) ? Base64.decodeBase64(content) : content.getBytes(com.cloud.utils.StringUtils.getPreferredCharset());
+                iso.addFile(typeFolder + "/" + fileName + ".txt", bytes);
+                if (USERDATA_DIR.equals(dataType) && USERDATA_FILE.equals(fileName)) {
+                    iso.addFile(OPENSTACK_FOLDER + "user_data", bytes);
+                }
+            }
+            buildOpenStackMetaData(metaData, dataType, fileName, content);
+        }
+        iso.addFile(OPENSTACK_FOLDER + "meta_data.json", metaData.toString().getBytes(com.cloud.utils.StringUtils.getPreferredCharset()));
+        return iso;
+    }
+
+    private static boolean hasPassword(List<String[]> vmData) {
+        for (String[] item : vmData) {
+            if (PASSWORD_FILE.equals(item[CONFIGDATA_FILE]) && StringUtils.isNotBlank(item[CONFIGDATA_CONTENT])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     *  This method will build the metadata files required by OpenStack driver in a temporary folder. Then, an ISO is going to be generated with genisoimage or mkisofs and returned as a String in base 64.
+     *  If vmData is null, we throw a {@link CloudRuntimeException}. Moreover, {@link IOException} are captured and re-thrown as {@link CloudRuntimeException}.
+     */
+    public static String buildConfigDriveWithIsoTool(List<String[]> vmData, String isoFileName, String driveLabel) {
+        if (vmData == null) {
+            throw new CloudRuntimeException("No VM metadata provided");
+        }
+
         Path tempDir = null;
         String tempDirName = null;
         try {
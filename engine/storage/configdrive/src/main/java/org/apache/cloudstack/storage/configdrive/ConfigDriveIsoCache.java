@@ -0,0 +1,98 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+
+package org.apache.cloudstack.storage.configdrive;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the latest config drive ISOs by the digest of their content, so that starting, rebooting or updating VMs
+ * whose metadata did not change reuses the image built before. The cache is bounded by the size of the images it
+ * holds, the least recently used are evicted first.
+ */
+public class ConfigDriveIsoCache {
+
+    private final long maxSize;
+    // by digest, in the order of use
+    private final LinkedHashMap<String, String> images = new LinkedHashMap<String, String>(16, 0.75f, true);
+    private long size;
+    private long hits;
+    private long misses;
+
+    /**
+     * @param maxSize the number of characters of the base 64 encoded images kept at most
+     */
+    public ConfigDriveIsoCache(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return the base 64 encoded image with the digest, null if it is not cached
+     */
+    public synchronized String get(String digest) {
+        String image = images.get(digest);
+        if (image == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return image;
+    }
+
+    /**
+     * Caches an image, unless it is larger than the cache.
+     */
+    public synchronized void put(String digest, String image) {
+        if (image.length() > maxSize) {
+            return;
+        }
+        String replaced = images.put(digest, image);
+        size += image.length() - (replaced == null ? 0 : replaced.length());
+        Iterator<Map.Entry<String, String>> eldest = images.entrySet().iterator();
+        while (size > maxSize && eldest.hasNext()) {
+            size -= eldest.next().getValue().length();
+            eldest.remove();
+        }
+    }
+
+    public synchronized void clear() {
+        images.clear();
+        size = 0;
+    }
+
+    public synchronized int getCount() {
+        return images.size();
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized String getSummary() {
+        return images.size() + " config drive ISOs cached in " + size + " characters, " + hits + " hits, " + misses + " misses";
+    }
+}
@@ -0,0 +1,645 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+
+package org.apache.cloudstack.storage.configdrive;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang.StringUtils;
+
+import com.cloud.utils.exception.CloudRuntimeException;
+
+/**
+ * Writes an ISO 9660 image with Rock Ridge and Joliet names from files held in memory, without temporary files or
+ * external tools.
+ * The image is laid out before it is written, so it can be streamed to any {@link OutputStream}, like a file on the
+ * storage, without being held in memory as a whole.
+ *
+ * Files are stored by their content: files with the same content share one extent, like the hard link between the
+ * CloudStack and the OpenStack user data of the config drive. The names of the primary volume descriptor are kept as
+ * given, like genisoimage does with -allow-lowercase -allow-multidot -l. The primary directories carry a minimal Rock
+ * Ridge extension like genisoimage -r writes, the names as given and read only POSIX modes owned by root, which is
+ * what Linux guests read. Windows guests read the Joliet names.
+ */
+public class ConfigDriveIsoWriter {
+
+    public static final int SECTOR_SIZE = 2048;
+
+    private static final int SYSTEM_AREA_SECTORS = 16;
+    // primary, Joliet and terminator
+    private static final int DESCRIPTOR_SECTORS = 3;
+    // so that Joliet names fit in 64 characters with the version of files
+    private static final int MAX_NAME_LENGTH = 62;
+    private static final byte[] STANDARD_ID = "CD001".getBytes(StandardCharsets.US_ASCII);
+    // UCS-2 level 3
+    private static final byte[] JOLIET_ESCAPE = {0x25, 0x2F, 0x45};
+    // the SUSP indicator and the Rock Ridge identification on the first record of the root directory
+    private static final byte[] SUSP_INDICATOR = {'S', 'P', 7, 1, (byte)0xBE, (byte)0xEF, 0};
+    private static final String RRIP_ID = "RRIP_1991A";
+    private static final String RRIP_DESCRIPTOR = "THE ROCK RIDGE INTERCHANGE PROTOCOL PROVIDES SUPPORT FOR POSIX FILE SYSTEM SEMANTICS";
+    private static final String RRIP_SOURCE = "PLEASE CONTACT DISC PUBLISHER FOR SPECIFICATION SOURCE.";
+    // r-xr-xr-x directories and r--r--r-- files
+    private static final int DIRECTORY_MODE = 040555;
+    private static final int FILE_MODE = 0100444;
+
+    private final String volumeLabel;
+    private final long createdMillis;
+    private final Node root = new Node(null, "", true);
+    private final Map<String, Extent> extents = new LinkedHashMap<String, Extent>();
+
+    private Layout layout;
+
+    public ConfigDriveIsoWriter(String volumeLabel) {
+        this(volumeLabel, System.currentTimeMillis());
+    }
+
+    /**
+     * @param createdMillis the time recorded for the volume and its files, so the same content can give the same image
+     */
+    public ConfigDriveIsoWriter(String volumeLabel, long createdMillis) {
+        this.volumeLabel = StringUtils.defaultString(volumeLabel);
+        this.createdMillis = createdMillis;
+    }
+
+    /**
+     * Adds a directory and its parents, with a path relative to the root of the image like "cloudstack/userdata".
+     */
+    public ConfigDriveIsoWriter addDirectory(String path) {
+        getDirectory(split(path));
+        return this;
+    }
+
+    /**
+     * Adds a file and its parent directories, the content of an existing file is replaced.
+     */
+    public ConfigDriveIsoWriter addFile(String path, byte[] content) {
+        if (content == null) {
+            content = new byte[0];
+        }
+        List<String> names = split(path);
+        if (names.isEmpty()) {
+            throw new CloudRuntimeException("No name for the config drive file " + path);
+        }
+        String name = names.remove(names.size() - 1);
+        Node directory = getDirectory(names);
+        Node file = directory.children.get(name);
+        if (file == null) {
+            file = new Node(directory, name, false);
+            directory.children.put(name, file);
+        } else if (file.isDirectory()) {
+            throw new CloudRuntimeException("Config drive file " + path + " is a directory");
+        }
+        String digest = DigestUtils.sha256Hex(content);
+        Extent extent = extents.get(digest);
+        if (extent == null) {
+            extent = new Extent(content, digest);
+            extents.put(digest, extent);
+        }
+        file.extent = extent;
+        layout = null;
+        return this;
+    }
+
+    public String getVolumeLabel() {
+        return volumeLabel;
+    }
+
+    /**
+     * @return the number of files, files sharing their content counted each
+     */
+    public int getFileCount() {
+        return countFiles(root);
+    }
+
+    /**
+     * @return the number of distinct file contents, each stored once
+     */
+    public int getExtentCount() {
+        return extents.size();
+    }
+
+    /**
+     * @return the size of the image in bytes
+     */
+    public long getSize() {
+        return (long)getLayout().sectors * SECTOR_SIZE;
+    }
+
+    /**
+     * Digests the label, the tree and the content of the files, but not the time, so that images with the same
+     * digest only differ in their time.
+     */
+    public String getDigest() {
+        MessageDigest digest = DigestUtils.getSha256Digest();
+        digest.update(volumeLabel.getBytes(StandardCharsets.UTF_8));
+        digest(root, "", digest);
+        return Hex.encodeHexString(digest.digest());
+    }
+
+    public byte[] toByteArray() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int)getSize());
+        try {
+            writeTo(out);
+        } catch (IOException e) {
+            throw new CloudRuntimeException("Failed to write config drive ISO in memory", e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes the image sector by sector, the stream is neither flushed nor closed.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        Layout current = getLayout();
+        out.write(new byte[SYSTEM_AREA_SECTORS * SECTOR_SIZE]);
+        out.write(volumeDescriptor(current, false));
+        out.write(volumeDescriptor(current, true));
+        out.write(terminator());
+        for (Tree tree : current.trees) {
+            out.write(pathTable(tree, false));
+            out.write(pathTable(tree, true));
+        }
+        for (Tree tree : current.trees) {
+            for (Node directory : tree.directories) {
+                out.write(directory(tree, directory));
+            }
+        }
+        for (Extent extent : extents.values()) {
+            out.write(extent.content);
+            int padding = extent.sectors() * SECTOR_SIZE - extent.content.length;
+            if (padding > 0) {
+                out.write(new byte[padding]);
+            }
+        }
+    }
+
+    private static List<String> split(String path) {
+        List<String> names = new ArrayList<String>();
+        for (String name : StringUtils.split(StringUtils.defaultString(path), '/')) {
+            if (name.length() > MAX_NAME_LENGTH) {
+                throw new CloudRuntimeException("Config drive name " + name + " is longer than " + MAX_NAME_LENGTH + " characters");
+            }
+            names.add(name);
+        }
+        return names;
+    }
+
+    private Node getDirectory(List<String> names) {
+        Node directory = root;
+        for (String name : names) {
+            Node child = directory.children.get(name);
+            if (child == null) {
+                child = new Node(directory, name, true);
+                directory.children.put(name, child);
+                layout = null;
+            } else if (!child.isDirectory()) {
+                throw new CloudRuntimeException("Config drive directory " + name + " is a file");
+            }
+            directory = child;
+        }
+        return directory;
+    }
+
+    private static int countFiles(Node directory) {
+        int count = 0;
+        for (Node child : directory.children.values()) {
+            count += child.isDirectory() ? countFiles(child) : 1;
+        }
+        return count;
+    }
+
+    private static void digest(Node directory, String path, MessageDigest digest) {
+        for (Node child : directory.children.values()) {
+            String childPath = path + "/" + child.name;
+            digest.update(childPath.getBytes(StandardCharsets.UTF_8));
+            if (child.isDirectory()) {
+                digest.update((byte)'/');
+                digest(child, childPath, digest);
+            } else {
+                digest.update((byte)':');
+                digest.update(child.extent.digest.getBytes(StandardCharsets.US_ASCII));
+            }
+        }
+    }
+
+    private Layout getLayout() {
+        if (layout == null) {
+            layout = new Layout();
+        }
+        return layout;
+    }
+
+    private byte[] volumeDescriptor(Layout current, boolean joliet) {
+        Tree tree = current.trees[joliet ? 1 : 0];
+        byte[] sector = new byte[SECTOR_SIZE];
+        sector[0] = (byte)(joliet ? 2 : 1);
+        System.arraycopy(STANDARD_ID, 0, sector, 1, STANDARD_ID.length);
+        sector[6] = 1;
+        text(sector, 8, 32, "LINUX", joliet);
+        text(sector, 40, 32, volumeLabel, joliet);
+        bothEndian32(sector, 80, current.sectors);
+        if (joliet) {
+            System.arraycopy(JOLIET_ESCAPE, 0, sector, 88, JOLIET_ESCAPE.length);
+        }
+        bothEndian16(sector, 120, 1);
+        bothEndian16(sector, 124, 1);
+        bothEndian16(sector, 128, SECTOR_SIZE);
+        bothEndian32(sector, 132, tree.pathTableSize);
+        littleEndian32(sector, 140, tree.pathTableSector);
+        bigEndian32(sector, 148, tree.pathTableSector + sectors(tree.pathTableSize));
+        byte[] rootRecord = record(tree, root, new byte[] {0}, new byte[0]);
+        System.arraycopy(rootRecord, 0, sector, 156, rootRecord.length);
+        text(sector, 190, 128, "", joliet);
+        text(sector, 318, 128, "", joliet);
+        text(sector, 446, 128, "", joliet);
+        text(sector, 574, 128, "CLOUDSTACK CONFIG DRIVE", joliet);
+        text(sector, 702, 37, "", joliet);
+        text(sector, 739, 37, "", joliet);
+        text(sector, 776, 37, "", joliet);
+        descriptorDate(sector, 813, createdMillis);
+        descriptorDate(sector, 830, createdMillis);
+        descriptorDate(sector, 847, 0);
+        descriptorDate(sector, 864, 0);
+        sector[881] = 1;
+        return sector;
+    }
+
+    private static byte[] terminator() {
+        byte[] sector = new byte[SECTOR_SIZE];
+        sector[0] = (byte)255;
+        System.arraycopy(STANDARD_ID, 0, sector, 1, STANDARD_ID.length);
+        sector[6] = 1;
+        return sector;
+    }
+
+    /**
+     * The directories by level and parent, each named by its identifier and pointing to the number of its parent.
+     */
+    private byte[] pathTable(Tree tree, boolean bigEndian) {
+        byte[] table = new byte[sectors(tree.pathTableSize) * SECTOR_SIZE];
+        int offset = 0;
+        for (Node directory : tree.directories) {
+            byte[] identifier = directory == root ? new byte[] {0} : tree.identifier(directory);
+            table[offset] = (byte)identifier.length;
+            int parent = directory.parent == null ? 1 : tree.numbers.get(directory.parent);
+            if (bigEndian) {
+                bigEndian32(table, offset + 2, tree.sectors.get(directory));
+                table[offset + 6] = (byte)(parent >> 8);
+                table[offset + 7] = (byte)parent;
+            } else {
+                littleEndian32(table, offset + 2, tree.sectors.get(directory));
+                table[offset + 6] = (byte)parent;
+                table[offset + 7] = (byte)(parent >> 8);
+            }
+            System.arraycopy(identifier, 0, table, offset + 8, identifier.length);
+            offset += pathTableRecordLength(identifier);
+        }
+        return table;
+    }
+
+    private byte[] directory(Tree tree, Node directory) {
+        byte[] extent = new byte[tree.sizes.get(directory)];
+        int offset = 0;
+        for (byte[] record : records(tree, directory)) {
+            if (offset % SECTOR_SIZE + record.length > SECTOR_SIZE) {
+                // records do not cross sectors
+                offset += SECTOR_SIZE - offset % SECTOR_SIZE;
+            }
+            System.arraycopy(record, 0, extent, offset, record.length);
+            offset += record.length;
+        }
+        return extent;
+    }
+
+    private List<byte[]> records(Tree tree, Node directory) {
+        List<byte[]> records = new ArrayList<byte[]>();
+        Node parent = directory.parent == null ? directory : directory.parent;
+        records.add(record(tree, directory, new byte[] {0}, tree.joliet ? new byte[0] : rockRidge(directory, null, directory == root)));
+        records.add(record(tree, parent, new byte[] {1}, tree.joliet ? new byte[0] : rockRidge(parent, null, false)));
+        for (Node child : tree.sorted(directory)) {
+            records.add(record(tree, child, tree.identifier(child), tree.joliet ? new byte[0] : rockRidge(child, child.name, false)));
+        }
+        return records;
+    }
+
+    private byte[] record(Tree tree, Node node, byte[] identifier, byte[] systemUse) {
+        int length = recordLength(identifier);
+        byte[] record = new byte[length + systemUse.length + systemUse.length % 2];
+        System.arraycopy(systemUse, 0, record, length, systemUse.length);
+        record[0] = (byte)record.length;
+        if (node.isDirectory()) {
+            bothEndian32(record, 2, tree.sectors.get(node));
+            bothEndian32(record, 10, tree.sizes.get(node));
+            record[25] = 2;
+        } else {
+            bothEndian32(record, 2, node.extent.content.length == 0 ? 0 : node.extent.sector);
+            bothEndian32(record, 10, node.extent.content.length);
+        }
+        recordDate(record, 18, createdMillis);
+        bothEndian16(record, 28, 1);
+        record[32] = (byte)identifier.length;
+        System.arraycopy(identifier, 0, record, 33, identifier.length);
+        return record;
+    }
+
+    /**
+     * The Rock Ridge entries of a record: the POSIX attributes, the name unless it is the record of the directory or
+     * its parent, and the SUSP indicator with the Rock Ridge identification on the first record of the root.
+     */
+    private static byte[] rockRidge(Node node, String name, boolean first) {
+        ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        if (first) {
+            entries.write(SUSP_INDICATOR, 0, SUSP_INDICATOR.length);
+        }
+
+        byte[] attributes = new byte[36];
+        attributes[0] = 'P';
+        attributes[1] = 'X';
+        attributes[2] = (byte)attributes.length;
+        attributes[3] = 1;
+        bothEndian32(attributes, 4, node.isDirectory() ? DIRECTORY_MODE : FILE_MODE);
+        bothEndian32(attributes, 12, node.isDirectory() ? 2 + countDirectories(node) : 1);
+        // owned by uid and gid 0
+        entries.write(attributes, 0, attributes.length);
+
+        if (name != null) {
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            entries.write('N');
+            entries.write('M');
+            entries.write(5 + bytes.length);
+            entries.write(1);
+            entries.write(0);
+            entries.write(bytes, 0, bytes.length);
+        }
+
+        if (first) {
+            byte[] id = RRIP_ID.getBytes(StandardCharsets.US_ASCII);
+            byte[] descriptor = RRIP_DESCRIPTOR.getBytes(StandardCharsets.US_ASCII);
+            byte[] source = RRIP_SOURCE.getBytes(StandardCharsets.US_ASCII);
+            entries.write('E');
+            entries.write('R');
+            entries.write(8 + id.length + descriptor.length + source.length);
+            entries.write(1);
+            entries.write(id.length);
+            entries.write(descriptor.length);
+            entries.write(source.length);
+            entries.write(1);
+            entries.write(id, 0, id.length);
+            entries.write(descriptor, 0, descriptor.length);
+            entries.write(source, 0, source.length);
+        }
+        return entries.toByteArray();
+    }
+
+    private static int countDirectories(Node directory) {
+        int count = 0;
+        for (Node child : directory.children.values()) {
+            if (child.isDirectory()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static int recordLength(byte[] identifier) {
+        int length = 33 + identifier.length;
+        return length + length % 2;
+    }
+
+    private static int pathTableRecordLength(byte[] identifier) {
+        return 8 + identifier.length + identifier.length % 2;
+    }
+
+    private static int sectors(long bytes) {
+        return (int)((bytes + SECTOR_SIZE - 1) / SECTOR_SIZE);
+    }
+
+    private static void text(byte[] sector, int offset, int length, String value, boolean joliet) {
+        byte[] bytes = value.getBytes(joliet ? StandardCharsets.UTF_16BE : StandardCharsets.US_ASCII);
+        int width = joliet ? 2 : 1;
+        // padded with spaces, in UCS-2 for Joliet, a field of odd length ends with a zero byte
+        for (int i = 0; i + width <= length; i += width) {
+            if (joliet) {
+                sector[offset + i + 1] = ' ';
+            } else {
+                sector[offset + i] = ' ';
+            }
+        }
+        System.arraycopy(bytes, 0, sector, offset, Math.min(bytes.length, length / width * width));
+    }
+
+    private static Calendar utc(long millis) {
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        calendar.setTimeInMillis(millis);
+        return calendar;
+    }
+
+    private static void recordDate(byte[] record, int offset, long millis) {
+        Calendar calendar = utc(millis);
+        record[offset] = (byte)(calendar.get(Calendar.YEAR) - 1900);
+        record[offset + 1] = (byte)(calendar.get(Calendar.MONTH) + 1);
+        record[offset + 2] = (byte)calendar.get(Calendar.DAY_OF_MONTH);
+        record[offset + 3] = (byte)calendar.get(Calendar.HOUR_OF_DAY);
+        record[offset + 4] = (byte)calendar.get(Calendar.MINUTE);
+        record[offset + 5] = (byte)calendar.get(Calendar.SECOND);
+    }
+
+    /**
+     * Writes the time in the digits of a volume descriptor, 0 for a time that is not set.
+     */
+    private static void descriptorDate(byte[] sector, int offset, long millis) {
+        String digits = "0000000000000000";
+        if (millis != 0) {
+            Calendar calendar = utc(millis);
+            digits = String.format("%04d%02d%02d%02d%02d%02d%02d", calendar.get(Calendar.YEAR), calendar.get(Calendar.MONTH) + 1, calendar.get(Calendar.DAY_OF_MONTH),
+                    calendar.get(Calendar.HOUR_OF_DAY), calendar.get(Calendar.MINUTE), calendar.get(Calendar.SECOND), calendar.get(Calendar.MILLISECOND) / 10);
+        }
+        System.arraycopy(digits.getBytes(StandardCharsets.US_ASCII), 0, sector, offset, 16);
+    }
+
+    private static void littleEndian32(byte[] bytes, int offset, long value) {
+        for (int i = 0; i < 4; i++) {
+            bytes[offset + i] = (byte)(value >> (8 * i));
+        }
+    }
+
+    private static void bigEndian32(byte[] bytes, int offset, long value) {
+        for (int i = 0; i < 4; i++) {
+            bytes[offset + 3 - i] = (byte)(value >> (8 * i));
+        }
+    }
+
+    private static void bothEndian32(byte[] bytes, int offset, long value) {
+        littleEndian32(bytes, offset, value);
+        bigEndian32(bytes, offset + 4, value);
+    }
+
+    private static void bothEndian16(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte)value;
+        bytes[offset + 1] = (byte)(value >> 8);
+        bytes[offset + 2] = (byte)(value >> 8);
+        bytes[offset + 3] = (byte)value;
+    }
+
+    private static class Node {
+        final Node parent;
+        final String name;
+        // sorted by name, null for a file
+        final Map<String, Node> children;
+        Extent extent;
+
+        Node(Node parent, String name, boolean directory) {
+            this.parent = parent;
+            this.name = name;
+            children = directory ? new TreeMap<String, Node>() : null;
+        }
+
+        boolean isDirectory() {
+            return children != null;
+        }
+    }
+
+    private static class Extent {
+        final byte[] content;
+        final String digest;
+        int sector;
+
+        Extent(byte[] content, String digest) {
+            this.content = content;
+            this.digest = digest;
+        }
+
+        int sectors() {
+            return ConfigDriveIsoWriter.sectors(content.length);
+        }
+    }
+
+    /**
+     * The directories of the primary or the Joliet volume descriptor, which only differ in how names are written.
+     */
+    private class Tree {
+        final boolean joliet;
+        // by level, then parent, then name, the order of the path table
+        final List<Node> directories = new ArrayList<Node>();
+        final Map<Node, Integer> numbers = new IdentityHashMap<Node, Integer>();
+        final Map<Node, Integer> sectors = new IdentityHashMap<Node, Integer>();
+        final Map<Node, Integer> sizes = new IdentityHashMap<Node, Integer>();
+        int pathTableSize;
+        int pathTableSector;
+
+        Tree(boolean joliet) {
+            this.joliet = joliet;
+            directories.add(root);
+            for (int i = 0; i < directories.size(); i++) {
+                Node directory = directories.get(i);
+                numbers.put(directory, i + 1);
+                pathTableSize += pathTableRecordLength(directory == root ? new byte[] {0} : identifier(directory));
+                for (Node child : sorted(directory)) {
+                    if (child.isDirectory()) {
+                        directories.add(child);
+                    }
+                }
+            }
+        }
+
+        /**
+         * The name as written, with the version of files, in UCS-2 for Joliet.
+         */
+        byte[] identifier(Node node) {
+            String identifier = node.name;
+            if (!node.isDirectory()) {
+                identifier += (joliet || node.name.contains(".") ? "" : ".") + ";1";
+            }
+            return identifier.getBytes(joliet ? StandardCharsets.UTF_16BE : StandardCharsets.ISO_8859_1);
+        }
+
+        List<Node> sorted(Node directory) {
+            List<Node> children = new ArrayList<Node>(directory.children.values());
+            Collections.sort(children, new Comparator<Node>() {
+                @Override
+                public int compare(Node first, Node second) {
+                    byte[] a = identifier(first);
+                    byte[] b = identifier(second);
+                    for (int i = 0; i < Math.min(a.length, b.length); i++) {
+                        if (a[i] != b[i]) {
+                            return (a[i] & 0xff) - (b[i] & 0xff);
+                        }
+                    }
+                    return a.length - b.length;
+                }
+            });
+            return children;
+        }
+
+        int directorySize(Node directory) {
+            int offset = 0;
+            for (byte[] record : records(this, directory)) {
+                if (offset % SECTOR_SIZE + record.length > SECTOR_SIZE) {
+                    offset += SECTOR_SIZE - offset % SECTOR_SIZE;
+                }
+                offset += record.length;
+            }
+            return sectors(offset) * SECTOR_SIZE;
+        }
+    }
+
+    private class Layout {
+        final Tree[] trees = {new Tree(false), new Tree(true)};
+        int sectors = SYSTEM_AREA_SECTORS + DESCRIPTOR_SECTORS;
+
+        Layout() {
+            for (Tree tree : trees) {
+                tree.pathTableSector = sectors;
+                // the little endian and the big endian tables
+                sectors += 2 * ConfigDriveIsoWriter.sectors(tree.pathTableSize);
+            }
+            for (Tree tree : trees) {
+                // the size of a directory does not depend on where the directories are
+                for (Node directory : tree.directories) {
+                    tree.sectors.put(directory, 0);
+                    tree.sizes.put(directory, 0);
+                }
+                for (Node directory : tree.directories) {
+                    int size = tree.directorySize(directory);
+                    tree.sectors.put(directory, sectors);
+                    tree.sizes.put(directory, size);
+                    sectors += size / SECTOR_SIZE;
+                }
+            }
+            for (Extent extent : extents.values()) {
+                extent.sector = sectors;
+                sectors += extent.sectors();
+            }
+        }
+    }
+}
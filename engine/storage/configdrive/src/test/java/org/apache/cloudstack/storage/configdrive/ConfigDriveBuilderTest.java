@@ -124,10 +124,51 @@ public class ConfigDriveBuilderTest {
         ConfigDriveBuilder.buildConfigDrive(null, "teste", "C:");
     }
 
+    @Test
+    public void createConfigDriveIsoTest() {
+        List<String[]> vmData = new ArrayList<>();
+        vmData.add(new String[] {"userdata", "user_data", "c29tZSB1c2VyIGRhdGE="});
+        vmData.add(new String[] {"metadata", "vm-id", "vm-uuid"});
+        vmData.add(new String[] {"password", "vm_password", ""});
+
+        ConfigDriveIsoWriter iso = ConfigDriveBuilder.createConfigDriveIso(vmData, "config-2");
+
+        // vendor_data.json, network_data.json, meta_data.json, user_data, user_data.txt and vm-id.txt
+        Assert.assertEquals(6, iso.getFileCount());
+        // the empty json files and the user data share their content
+        Assert.assertEquals(4, iso.getExtentCount());
+        Assert.assertEquals("config-2", iso.getVolumeLabel());
+    }
+
+    @Test
+    public void buildConfigDriveTestReusesIsoWithSameContent() {
+        ConfigDriveBuilder.getIsoCache().clear();
+        List<String[]> vmData = new ArrayList<>();
+        vmData.add(new String[] {"metadata", "vm-id", "vm-uuid"});
+
+        String isoData = ConfigDriveBuilder.buildConfigDrive(vmData, "i-2-10-VM.iso", "config-2");
+
+        Assert.assertTrue(isoData.length() > 0);
+        Assert.assertSame(isoData, ConfigDriveBuilder.buildConfigDrive(vmData, "i-2-10-VM.iso", "config-2"));
+        Assert.assertEquals(1, ConfigDriveBuilder.getIsoCache().getCount());
+    }
+
+    @Test
+    public void buildConfigDriveTestPasswordIsNotCached() {
+        ConfigDriveBuilder.getIsoCache().clear();
+        List<String[]> vmData = new ArrayList<>();
+        vmData.add(new String[] {"metadata", "vm-id", "vm-uuid"});
+        vmData.add(new String[] {"password", "vm_password", "secret"});
+
+        ConfigDriveBuilder.buildConfigDrive(vmData, "i-2-10-VM.iso", "config-2");
+
+        Assert.assertEquals(0, ConfigDriveBuilder.getIsoCache().getCount());
+    }
+
     @SuppressWarnings("unchecked")
     @PrepareForTest({ConfigDriveBuilder.class})
     @Test(expected = CloudRuntimeException.class)
-    public void buildConfigDriveTestIoException() throws Exception {
+    public void buildConfigDriveWithIsoToolTestIoException() throws Exception {
         PowerMockito.mockStatic(ConfigDriveBuilder.class);
 
         Method method = ReflectionUtils.getMethods(ConfigDriveBuilder.class, ReflectionUtils.withName("writeVendorAndNetworkEmptyJsonFile")).iterator().next();
@@ -135,15 +176,15 @@ public class ConfigDriveBuilderTest {
 
         //This is odd, but it was necessary to allow us to check if we catch the IOexception and re-throw as a CloudRuntimeException
         //We are mocking the class being tested; therefore, we needed to force the execution of the real method we want to test.
-        PowerMockito.when(ConfigDriveBuilder.class, new ArrayList<>(), "teste", "C:").thenCallRealMethod();
+        PowerMockito.when(ConfigDriveBuilder.class, "buildConfigDriveWithIsoTool", new ArrayList<>(), "teste", "C:").thenCallRealMethod();
 
-        ConfigDriveBuilder.buildConfigDrive(new ArrayList<>(), "teste", "C:");
+        ConfigDriveBuilder.buildConfigDriveWithIsoTool(new ArrayList<>(), "teste", "C:");
     }
 
     @Test
     @SuppressWarnings("unchecked")
     @PrepareForTest({ConfigDriveBuilder.class})
-    public void buildConfigDriveTest() throws Exception {
+    public void buildConfigDriveWithIsoToolTest() throws Exception {
         PowerMockito.mockStatic(ConfigDriveBuilder.class);
 
         Method writeVendorAndNetworkEmptyJsonFileMethod = ReflectionUtils.getMethods(ConfigDriveBuilder.class, ReflectionUtils.withName("writeVendorAndNetworkEmptyJsonFile")).iterator().next();
@@ -159,9 +200,9 @@ public class ConfigDriveBuilderTest {
         PowerMockito.doReturn("mockIsoDataBase64").when(ConfigDriveBuilder.class, generateAndRetrieveIsoAsBase64IsoMethod).withArguments(Mockito.anyString(), Mockito.anyString(), Mockito.anyString());
 
         //force execution of real method
-        PowerMockito.when(ConfigDriveBuilder.class, new ArrayList<>(), "teste", "C:").thenCallRealMethod();
+        PowerMockito.when(ConfigDriveBuilder.class, "buildConfigDriveWithIsoTool", new ArrayList<>(), "teste", "C:").thenCallRealMethod();
 
-        String returnedIsoData = ConfigDriveBuilder.buildConfigDrive(new ArrayList<>(), "teste", "C:");
+        String returnedIsoData = ConfigDriveBuilder.buildConfigDriveWithIsoTool(new ArrayList<>(), "teste", "C:");
 
         Assert.assertEquals("mockIsoDataBase64", returnedIsoData);
 
@@ -0,0 +1,55 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+
+package org.apache.cloudstack.storage.configdrive;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ConfigDriveIsoCacheTest {
+
+    @Test
+    public void testLeastRecentlyUsedAreEvicted() {
+        ConfigDriveIsoCache cache = new ConfigDriveIsoCache(10);
+        cache.put("a", "aaaa");
+        cache.put("b", "bbbb");
+        Assert.assertEquals("aaaa", cache.get("a"));
+        cache.put("c", "cccc");
+
+        Assert.assertEquals(2, cache.getCount());
+        Assert.assertEquals(8, cache.getSize());
+        Assert.assertNull(cache.get("b"));
+        Assert.assertEquals("cccc", cache.get("c"));
+        Assert.assertEquals(2, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testReplacedAndOversizedImages() {
+        ConfigDriveIsoCache cache = new ConfigDriveIsoCache(10);
+        cache.put("a", "aaaa");
+        cache.put("a", "aaaaaa");
+        Assert.assertEquals(6, cache.getSize());
+        cache.put("b", "bbbbbbbbbbb");
+        Assert.assertNull(cache.get("b"));
+        Assert.assertEquals("aaaaaa", cache.get("a"));
+
+        cache.clear();
+        Assert.assertEquals(0, cache.getCount());
+        Assert.assertEquals(0, cache.getSize());
+    }
+}
@@ -0,0 +1,247 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+
+package org.apache.cloudstack.storage.configdrive;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.cloud.network.NetworkModel;
+
+public class ConfigDriveIsoWriterTest {
+    private static final Logger s_logger = Logger.getLogger(ConfigDriveIsoWriterTest.class);
+
+    /**
+     * Finds a file or directory by following the records of the primary or the Joliet directories, like a guest reads the image.
+     *
+     * @return the sector and the length of the extent, null if there is no such name
+     */
+    private static int[] find(byte[] image, boolean joliet, String path) {
+        ByteBuffer descriptor = ByteBuffer.wrap(image, (joliet ? 17 : 16) * ConfigDriveIsoWriter.SECTOR_SIZE, ConfigDriveIsoWriter.SECTOR_SIZE).slice().order(ByteOrder.LITTLE_ENDIAN);
+        int[] extent = {descriptor.getInt(156 + 2), descriptor.getInt(156 + 10)};
+        for (String name : path.split("/")) {
+            int[] found = null;
+            ByteBuffer directory = ByteBuffer.wrap(image, extent[0] * ConfigDriveIsoWriter.SECTOR_SIZE, extent[1]).slice().order(ByteOrder.LITTLE_ENDIAN);
+            int offset = 0;
+            while (offset < extent[1]) {
+                int length = directory.get(offset) & 0xff;
+                if (length == 0) {
+                    offset = (offset / ConfigDriveIsoWriter.SECTOR_SIZE + 1) * ConfigDriveIsoWriter.SECTOR_SIZE;
+                    continue;
+                }
+                byte[] identifier = Arrays.copyOfRange(image, extent[0] * ConfigDriveIsoWriter.SECTOR_SIZE + offset + 33,
+                        extent[0] * ConfigDriveIsoWriter.SECTOR_SIZE + offset + 33 + (directory.get(offset + 32) & 0xff));
+                String recorded = new String(identifier, joliet ? StandardCharsets.UTF_16BE : StandardCharsets.ISO_8859_1).replaceAll("\\.?;1$", "");
+                if (recorded.equals(name)) {
+                    found = new int[] {directory.getInt(offset + 2), directory.getInt(offset + 10)};
+                }
+                offset += length;
+            }
+            if (found == null) {
+                return null;
+            }
+            extent = found;
+        }
+        return extent;
+    }
+
+    /**
+     * @return the system use area of the record of the name in the primary directory, of its first record for an empty name
+     */
+    private static byte[] systemUse(byte[] image, String directoryPath, String name) {
+        int[] extent = directoryPath.isEmpty() ? new int[] {
+            ByteBuffer.wrap(image, 16 * ConfigDriveIsoWriter.SECTOR_SIZE + 156 + 2, 4).order(ByteOrder.LITTLE_ENDIAN).getInt(),
+            ByteBuffer.wrap(image, 16 * ConfigDriveIsoWriter.SECTOR_SIZE + 156 + 10, 4).order(ByteOrder.LITTLE_ENDIAN).getInt()} : find(image, false, directoryPath);
+        int start = extent[0] * ConfigDriveIsoWriter.SECTOR_SIZE;
+        int offset = 0;
+        while (offset < extent[1]) {
+            int length = image[start + offset] & 0xff;
+            if (length == 0) {
+                offset = (offset / ConfigDriveIsoWriter.SECTOR_SIZE + 1) * ConfigDriveIsoWriter.SECTOR_SIZE;
+                continue;
+            }
+            int identifierLength = image[start + offset + 32] & 0xff;
+            String recorded = new String(image, start + offset + 33, identifierLength, StandardCharsets.ISO_8859_1).replaceAll("\\.?;1$", "");
+            if (name.isEmpty() || recorded.equals(name)) {
+                int systemUse = 33 + identifierLength + (identifierLength + 1) % 2;
+                return Arrays.copyOfRange(image, start + offset + systemUse, start + offset + length);
+            }
+            offset += length;
+        }
+        return null;
+    }
+
+    /**
+     * @return the content of the first Rock Ridge entry with the signature, without its header
+     */
+    private static byte[] entry(byte[] systemUse, String signature) {
+        int offset = 0;
+        while (offset + 4 <= systemUse.length && systemUse[offset + 2] != 0) {
+            int length = systemUse[offset + 2] & 0xff;
+            if (new String(systemUse, offset, 2, StandardCharsets.US_ASCII).equals(signature)) {
+                return Arrays.copyOfRange(systemUse, offset + 4, offset + length);
+            }
+            offset += length;
+        }
+        return null;
+    }
+
+    private static int mode(byte[] systemUse) {
+        return ByteBuffer.wrap(entry(systemUse, "PX"), 0, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
+    }
+
+    private static String read(byte[] image, boolean joliet, String path) {
+        int[] extent = find(image, joliet, path);
+        Assert.assertNotNull(path + " is not in the image", extent);
+        return new String(image, extent[0] * ConfigDriveIsoWriter.SECTOR_SIZE, extent[1], StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testFilesAreReadBackFromBothTrees() {
+        ConfigDriveIsoWriter writer = new ConfigDriveIsoWriter("config-2");
+        writer.addFile("openstack/latest/meta_data.json", "{\"uuid\":\"vm-uuid\"}".getBytes(StandardCharsets.UTF_8));
+        writer.addFile("openstack/latest/user_data", "#cloud-config".getBytes(StandardCharsets.UTF_8));
+        writer.addFile("cloudstack/userdata/user_data.txt", "#cloud-config".getBytes(StandardCharsets.UTF_8));
+        writer.addDirectory("cloudstack/password");
+        byte[] image = writer.toByteArray();
+
+        Assert.assertEquals(writer.getSize(), image.length);
+        Assert.assertEquals(0, image.length % ConfigDriveIsoWriter.SECTOR_SIZE);
+        Assert.assertEquals("CD001", new String(image, 16 * ConfigDriveIsoWriter.SECTOR_SIZE + 1, 5, StandardCharsets.US_ASCII));
+        Assert.assertEquals("config-2", new String(image, 16 * ConfigDriveIsoWriter.SECTOR_SIZE + 40, 32, StandardCharsets.US_ASCII).trim());
+        Assert.assertEquals("config-2", new String(image, 17 * ConfigDriveIsoWriter.SECTOR_SIZE + 40, 32, StandardCharsets.UTF_16BE).trim());
+        Assert.assertEquals(image.length / ConfigDriveIsoWriter.SECTOR_SIZE, ByteBuffer.wrap(image, 16 * ConfigDriveIsoWriter.SECTOR_SIZE + 80, 4).order(ByteOrder.LITTLE_ENDIAN).getInt());
+        Assert.assertEquals((byte)255, image[18 * ConfigDriveIsoWriter.SECTOR_SIZE]);
+
+        for (boolean joliet : new boolean[] {false, true}) {
+            Assert.assertEquals("{\"uuid\":\"vm-uuid\"}", read(image, joliet, "openstack/latest/meta_data.json"));
+            Assert.assertEquals("#cloud-config", read(image, joliet, "openstack/latest/user_data"));
+            Assert.assertEquals("#cloud-config", read(image, joliet, "cloudstack/userdata/user_data.txt"));
+            Assert.assertNotNull(find(image, joliet, "cloudstack/password"));
+            Assert.assertNull(find(image, joliet, "cloudstack/metadata"));
+        }
+    }
+
+    @Test
+    public void testPrimaryDirectoriesHaveRockRidgeNamesAndModes() {
+        ConfigDriveIsoWriter writer = new ConfigDriveIsoWriter("config-2");
+        writer.addFile("openstack/latest/meta_data.json", "{}".getBytes(StandardCharsets.UTF_8));
+        writer.addFile("cloudstack/userdata/user_data.txt", "#cloud-config".getBytes(StandardCharsets.UTF_8));
+        writer.addFile("cloudstack/userdata/UserData", "#cloud-config".getBytes(StandardCharsets.UTF_8));
+        byte[] image = writer.toByteArray();
+
+        byte[] rootRecord = systemUse(image, "", "");
+        Assert.assertEquals("SP", new String(rootRecord, 0, 2, StandardCharsets.US_ASCII));
+        Assert.assertEquals("RRIP_1991A", new String(entry(rootRecord, "ER"), 4, 10, StandardCharsets.US_ASCII));
+        Assert.assertEquals(040555, mode(rootRecord));
+
+        Assert.assertEquals(040555, mode(systemUse(image, "", "openstack")));
+        Assert.assertEquals("openstack", new String(entry(systemUse(image, "", "openstack"), "NM"), 1, 9, StandardCharsets.UTF_8));
+        byte[] file = systemUse(image, "openstack/latest", "meta_data.json");
+        Assert.assertEquals(0100444, mode(file));
+        Assert.assertEquals("meta_data.json", new String(entry(file, "NM"), 1, 14, StandardCharsets.UTF_8));
+        Assert.assertEquals("UserData", new String(entry(systemUse(image, "cloudstack/userdata", "UserData"), "NM"), 1, 8, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testSameContentIsStoredOnce() {
+        ConfigDriveIsoWriter writer = new ConfigDriveIsoWriter("config-2");
+        writer.addFile("openstack/latest/user_data", "#cloud-config".getBytes(StandardCharsets.UTF_8));
+        writer.addFile("cloudstack/userdata/user_data.txt", "#cloud-config".getBytes(StandardCharsets.UTF_8));
+        writer.addFile("openstack/latest/vendor_data.json", "{}".getBytes(StandardCharsets.UTF_8));
+        writer.addFile("openstack/latest/network_data.json", "{}".getBytes(StandardCharsets.UTF_8));
+        byte[] image = writer.toByteArray();
+
+        Assert.assertEquals(4, writer.getFileCount());
+        Assert.assertEquals(2, writer.getExtentCount());
+        Assert.assertEquals(find(image, true, "openstack/latest/user_data")[0], find(image, true, "cloudstack/userdata/user_data.txt")[0]);
+    }
+
+    @Test
+    public void testManyFilesSpanDirectorySectors() {
+        ConfigDriveIsoWriter writer = new ConfigDriveIsoWriter("config-2");
+        for (int i = 0; i < 200; i++) {
+            writer.addFile("cloudstack/metadata/file-with-a-rather-long-name-" + i + ".txt", ("content " + i).getBytes(StandardCharsets.UTF_8));
+        }
+        byte[] image = writer.toByteArray();
+        for (boolean joliet : new boolean[] {false, true}) {
+            Assert.assertTrue(find(image, joliet, "cloudstack/metadata")[1] > ConfigDriveIsoWriter.SECTOR_SIZE);
+            Assert.assertEquals("content 0", read(image, joliet, "cloudstack/metadata/file-with-a-rather-long-name-0.txt"));
+            Assert.assertEquals("content 199", read(image, joliet, "cloudstack/metadata/file-with-a-rather-long-name-199.txt"));
+        }
+    }
+
+    @Test
+    public void testDigestDependsOnContentOnly() {
+        ConfigDriveIsoWriter first = new ConfigDriveIsoWriter("config-2", 1000L);
+        first.addFile("openstack/latest/meta_data.json", "{}".getBytes(StandardCharsets.UTF_8));
+        ConfigDriveIsoWriter second = new ConfigDriveIsoWriter("config-2", 2000L);
+        second.addFile("openstack/latest/meta_data.json", "{}".getBytes(StandardCharsets.UTF_8));
+        Assert.assertEquals(first.getDigest(), second.getDigest());
+
+        second.addFile("openstack/latest/meta_data.json", "{\"uuid\":\"vm-uuid\"}".getBytes(StandardCharsets.UTF_8));
+        Assert.assertNotEquals(first.getDigest(), second.getDigest());
+
+        ConfigDriveIsoWriter third = new ConfigDriveIsoWriter("CONFIG-2", 1000L);
+        third.addFile("openstack/latest/meta_data.json", "{}".getBytes(StandardCharsets.UTF_8));
+        Assert.assertNotEquals(first.getDigest(), third.getDigest());
+
+        Assert.assertArrayEquals(first.toByteArray(), new ConfigDriveIsoWriter("config-2", 1000L).addFile("openstack/latest/meta_data.json", "{}".getBytes(StandardCharsets.UTF_8)).toByteArray());
+    }
+
+    /**
+     * Measures how long a typical config drive takes to build, and how large it is. genisoimage pads its images to at
+     * least 300KB, and runs in a process of its own with its files in a temporary folder.
+     */
+    @Test
+    public void testBuildTimeAndSize() throws Exception {
+        List<String[]> vmData = new ArrayList<String[]>();
+        vmData.add(new String[] {NetworkModel.USERDATA_DIR, NetworkModel.USERDATA_FILE, "I2Nsb3VkLWNvbmZpZwpwYWNrYWdlczoKICAtIG5naW54Cg=="});
+        vmData.add(new String[] {NetworkModel.METATDATA_DIR, NetworkModel.SERVICE_OFFERING_FILE, "Small Instance"});
+        vmData.add(new String[] {NetworkModel.METATDATA_DIR, NetworkModel.AVAILABILITY_ZONE_FILE, "zone1"});
+        vmData.add(new String[] {NetworkModel.METATDATA_DIR, NetworkModel.LOCAL_HOSTNAME_FILE, "vm-1"});
+        vmData.add(new String[] {NetworkModel.METATDATA_DIR, NetworkModel.LOCAL_IPV4_FILE, "10.1.1.10"});
+        vmData.add(new String[] {NetworkModel.METATDATA_DIR, NetworkModel.PUBLIC_HOSTNAME_FILE, "7.7.7.7"});
+        vmData.add(new String[] {NetworkModel.METATDATA_DIR, NetworkModel.INSTANCE_ID_FILE, "i-2-10-VM"});
+        vmData.add(new String[] {NetworkModel.METATDATA_DIR, NetworkModel.VM_ID_FILE, "0a1b2c3d-4e5f-6071-8293-a4b5c6d7e8f9"});
+        vmData.add(new String[] {NetworkModel.METATDATA_DIR, NetworkModel.PUBLIC_KEYS_FILE, "ssh-rsa AAAAB3NzaC1yc2EAAAADAQABAAABAQC0 key@host"});
+        vmData.add(new String[] {NetworkModel.METATDATA_DIR, NetworkModel.CLOUD_IDENTIFIER_FILE, "CloudStack-{4a12c2e5-7a02-4ea0-9d8d-7d7f5c6a2b11}"});
+        vmData.add(new String[] {NetworkModel.PASSWORD_DIR, NetworkModel.PASSWORD_FILE, ""});
+
+        int builds = 1000;
+        long size = 0;
+        long startedAt = System.nanoTime();
+        for (int i = 0; i < builds; i++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ConfigDriveBuilder.createConfigDriveIso(vmData, "config-2").writeTo(out);
+            size = out.size();
+        }
+        long micros = (System.nanoTime() - startedAt) / 1000 / builds;
+        s_logger.info("Built " + builds + " config drive ISOs of " + size + " bytes in " + micros + "us each");
+
+        Assert.assertTrue(size < 128 * 1024);
+    }
+}
@@ -61,6 +61,8 @@ import org.apache.cloudstack.storage.command.CommandResult;
 import org.apache.cloudstack.storage.command.DeleteCommand;
 import org.apache.cloudstack.storage.datastore.DataObjectManager;
 import org.apache.cloudstack.storage.datastore.ObjectInDataStoreManager;
+import org.apache.cloudstack.storage.datastore.db.ImageStoreDetailVO;
+import org.apache.cloudstack.storage.datastore.db.ImageStoreDetailsDao;
 import org.apache.cloudstack.storage.datastore.db.TemplateDataStoreDao;
 import org.apache.cloudstack.storage.datastore.db.TemplateDataStoreVO;
 import org.apache.cloudstack.storage.image.datastore.ImageStoreEntity;
@@ -116,6 +118,11 @@ import com.google.common.base.Strings;
 @Component
 public class TemplateServiceImpl implements TemplateService {
     private static final Logger s_logger = Logger.getLogger(TemplateServiceImpl.class);
+
+    // the manifest and its sequence the last template sync of an image store got, see ListTemplateCommand
+    private static final String TEMPLATE_SYNC_EPOCH = "template.sync.epoch";
+    private static final String TEMPLATE_SYNC_SEQUENCE = "template.sync.sequence";
+
     @Inject
     ObjectInDataStoreManager _objectInDataStoreMgr;
     @Inject
@@ -155,6 +162,8 @@ public class TemplateServiceImpl implements TemplateService {
     @Inject
     ImageStoreDetailsUtil imageStoreDetailsUtil;
     @Inject
+    ImageStoreDetailsDao _imageStoreDetailsDao;
+    @Inject
     TemplateDataFactory imageFactory;
 
     class TemplateOpContext<T> extends AsyncRpcContext<T> {
@@ -303,10 +312,23 @@ public class TemplateServiceImpl implements TemplateService {
                 try {
                     Long zoneId = store.getScope().getScopeId();
 
-                    Map<String, TemplateProp> templateInfos = listTemplate(store);
-                    if (templateInfos == null) {
+                    ListTemplateAnswer listAnswer = listTemplate(store);
+                    if (listAnswer == null || listAnswer.getTemplateInfo() == null) {
                         return;
                     }
+                    Map<String, TemplateProp> templateInfos = listAnswer.getTemplateInfo();
+
+                    // with a delta only the templates changed since the last sync are listed, the others are as they were
+                    boolean delta = listAnswer.isDelta();
+                    Set<String> removedInfos = new HashSet<String>();
+                    Map<Long, TemplateDataStoreVO> tmpltStores = new HashMap<Long, TemplateDataStoreVO>();
+                    if (delta) {
+                        removedInfos.addAll(listAnswer.getRemovedTemplates());
+                        for (TemplateDataStoreVO tmpltStore : _vmTemplateStoreDao.listByStoreId(storeId)) {
+                            tmpltStores.put(tmpltStore.getTemplateId(), tmpltStore);
+                        }
+                        s_logger.info("Template Sync of image store " + storeId + " got " + templateInfos.size() + " changed and " + removedInfos.size() + " removed templates");
+                    }
 
                     Set<VMTemplateVO> toBeDownloaded = new HashSet<VMTemplateVO>();
                     List<VMTemplateVO> allTemplates = null;
@@ -352,7 +374,11 @@ public class TemplateServiceImpl implements TemplateService {
                     final StateMachine2<VirtualMachineTemplate.State, VirtualMachineTemplate.Event, VirtualMachineTemplate> stateMachine = VirtualMachineTemplate.State.getStateMachine();
                     for (VMTemplateVO tmplt : allTemplates) {
                         String uniqueName = tmplt.getUniqueName();
-                        TemplateDataStoreVO tmpltStore = _vmTemplateStoreDao.findByStoreTemplate(storeId, tmplt.getId());
+                        TemplateDataStoreVO tmpltStore = delta ? tmpltStores.get(tmplt.getId()) : _vmTemplateStoreDao.findByStoreTemplate(storeId, tmplt.getId());
+                        if (delta && !templateInfos.containsKey(uniqueName) && !removedInfos.contains(uniqueName) && isUnchangedOnStore(tmplt, tmpltStore)) {
+                            toBeDownloaded.remove(tmplt);
+                            continue;
+                        }
                         if (templateInfos.containsKey(uniqueName)) {
                             TemplateProp tmpltInfo = templateInfos.remove(uniqueName);
                             toBeDownloaded.remove(tmplt);
@@ -574,6 +600,11 @@ public class TemplateServiceImpl implements TemplateService {
 
                         }
                     }
+
+                    if (listAnswer.getSyncEpoch() != null) {
+                        _imageStoreDetailsDao.addDetail(storeId, TEMPLATE_SYNC_EPOCH, listAnswer.getSyncEpoch(), false);
+                        _imageStoreDetailsDao.addDetail(storeId, TEMPLATE_SYNC_SEQUENCE, String.valueOf(listAnswer.getSyncSequence()), false);
+                    }
                 } finally {
                     syncLock.unlock();
                 }
@@ -670,9 +701,32 @@ public class TemplateServiceImpl implements TemplateService {
         return null;
     }
 
-    private Map<String, TemplateProp> listTemplate(DataStore ssStore) {
+    /**
+     * A template the last sync found on the store and that did not change since, is left as it is.
+     */
+    private boolean isUnchangedOnStore(VMTemplateVO tmplt, TemplateDataStoreVO tmpltStore) {
+        if (tmpltStore == null || tmplt.getState() == VirtualMachineTemplate.State.NotUploaded || tmplt.getState() == VirtualMachineTemplate.State.UploadInProgress) {
+            return false;
+        }
+        if (tmpltStore.getDownloadState() == Status.DOWNLOADED && tmpltStore.getState() == State.Ready) {
+            return true;
+        }
+        // a corrupted private template is kept for the admin to check
+        return tmpltStore.getDownloadState() == Status.DOWNLOAD_ERROR && tmplt.getUrl() == null;
+    }
+
+    private static boolean isAfter(ListTemplateAnswer answer, ListTemplateCommand cmd) {
+        return cmd.getSyncEpoch() != null && cmd.getSyncEpoch().equals(answer.getSyncEpoch()) && answer.getSyncSequence() >= cmd.getSyncSequence();
+    }
+
+    private ListTemplateAnswer listTemplate(DataStore ssStore) {
         Integer nfsVersion = imageStoreDetailsUtil.getNfsVersion(ssStore.getId());
         ListTemplateCommand cmd = new ListTemplateCommand(ssStore.getTO(), nfsVersion);
+        ImageStoreDetailVO syncEpoch = _imageStoreDetailsDao.findDetail(ssStore.getId(), TEMPLATE_SYNC_EPOCH);
+        ImageStoreDetailVO syncSequence = _imageStoreDetailsDao.findDetail(ssStore.getId(), TEMPLATE_SYNC_SEQUENCE);
+        if (syncEpoch != null && syncSequence != null) {
+            cmd.setSyncPoint(syncEpoch.getValue(), Long.parseLong(syncSequence.getValue()));
+        }
         EndPoint ep = _epSelector.select(ssStore);
         Answer answer = null;
         if (ep == null) {
@@ -684,7 +738,15 @@ public class TemplateServiceImpl implements TemplateService {
         }
         if (answer != null && answer.getResult()) {
             ListTemplateAnswer tanswer = (ListTemplateAnswer)answer;
-            return tanswer.getTemplateInfo();
+            if (tanswer.isDelta() && !isAfter(tanswer, cmd)) {
+                // the changes are not counted from the point this server synced last, only a full list can be trusted
+                s_logger.warn("Template Sync of image store " + ssStore.getId() + " got changes up to " + tanswer.getSyncEpoch() + "/" + tanswer.getSyncSequence()
+                        + " that do not follow " + cmd.getSyncEpoch() + "/" + cmd.getSyncSequence() + ", listing all templates");
+                cmd.setSyncPoint(null, -1);
+                answer = ep.sendMessage(cmd);
+                return answer != null && answer.getResult() ? (ListTemplateAnswer)answer : null;
+            }
+            return tanswer;
         } else {
             if (s_logger.isDebugEnabled()) {
                 s_logger.debug("can not list template for secondary storage host " + ssStore.getId());
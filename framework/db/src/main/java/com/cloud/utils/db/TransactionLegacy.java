@@ -25,9 +25,11 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Savepoint;
 import java.sql.Statement;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -96,6 +98,9 @@ public class TransactionLegacy implements Closeable {
     private long _id;
 
     private final LinkedList<Pair<String, Long>> _lockTimes = new LinkedList<Pair<String, Long>>();
+    private final LinkedList<Runnable> _afterCommitTasks = new LinkedList<Runnable>();
+    // number of after commit tasks registered when each open savepoint was set
+    private final Map<Savepoint, Integer> _afterCommitMarks = new HashMap<Savepoint, Integer>();
 
     private String _name;
     private Connection _conn;
@@ -279,6 +284,33 @@ public class TransactionLegacy implements Closeable {
         txn.attach(value);
     }
 
+    /**
+     * Runs the task once the changes of the current transaction are committed, which for a nested transaction is
+     * when the outermost one commits.  The task is dropped if the transaction is rolled back, or if a savepoint set
+     * before the task was registered is rolled back to.  Without a transaction
+     * the changes are committed already and the task runs right away.
+     */
+    public static void runAfterCommit(Runnable task) {
+        TransactionLegacy txn = tls.get();
+        if (txn == null || !txn._txn) {
+            task.run();
+            return;
+        }
+        txn._afterCommitTasks.add(task);
+    }
+
+    protected void runAfterCommitTasks() {
+        _afterCommitMarks.clear();
+        while (!_afterCommitTasks.isEmpty()) {
+            Runnable task = _afterCommitTasks.removeFirst();
+            try {
+                task.run();
+            } catch (Exception e) {
+                s_logger.warn("Unable to run a task after the commit of " + buildName(), e);
+            }
+        }
+    }
+
     public static TransactionAttachment detachFromTxn(String name) {
         TransactionLegacy txn = tls.get();
         assert txn != null : "No Transaction in TLS";
@@ -735,11 +767,12 @@ public class TransactionLegacy implements Closeable {
                 clearLockTimes();
                 closeConnection();
             }
-            return true;
         } catch (final SQLException e) {
             rollbackTransaction();
             throw new CloudRuntimeException("Unable to commit or close the connection. ", e);
         }
+        runAfterCommitTasks();
+        return true;
     }
 
     protected void closeConnection() {
@@ -836,6 +869,8 @@ public class TransactionLegacy implements Closeable {
 
     protected void rollbackTransaction() {
         closePreviousStatement();
+        _afterCommitTasks.clear();
+        _afterCommitMarks.clear();
         if (!_txn) {
             if (s_logger.isTraceEnabled()) {
                 s_logger.trace("Rollback called for " + _name + " when there's no transaction: " + buildName());
@@ -897,6 +932,7 @@ public class TransactionLegacy implements Closeable {
         final Connection conn = getConnection();
         final Savepoint sp = conn.setSavepoint();
         st.ref = sp;
+        _afterCommitMarks.put(sp, _afterCommitTasks.size());
 
         return sp;
     }
@@ -908,12 +944,14 @@ public class TransactionLegacy implements Closeable {
         final Connection conn = getConnection();
         final Savepoint sp = conn.setSavepoint(name);
         st.ref = sp;
+        _afterCommitMarks.put(sp, _afterCommitTasks.size());
 
         return sp;
     }
 
     public void releaseSavepoint(final Savepoint sp) throws SQLException {
         removeTxn(sp);
+        _afterCommitMarks.remove(sp);
         if (_conn != null) {
             _conn.releaseSavepoint(sp);
         }
@@ -956,10 +994,21 @@ public class TransactionLegacy implements Closeable {
 
     public void rollback(final Savepoint sp) {
         removeTxn(sp);
+        dropAfterCommitTasks(sp);
 
         rollbackSavepoint(sp);
     }
 
+    protected void dropAfterCommitTasks(Savepoint sp) {
+        Integer mark = _afterCommitMarks.remove(sp);
+        if (mark == null) {
+            return;
+        }
+        while (_afterCommitTasks.size() > mark) {
+            _afterCommitTasks.removeLast();
+        }
+    }
+
     public Connection getCurrentConnection() {
         return _conn;
     }
@@ -26,6 +26,11 @@ import static org.mockito.Mockito.verify;
 
 import java.io.FileNotFoundException;
 import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.After;
@@ -127,4 +132,42 @@ public class TestTransaction {
         verify(conn, times(0)).rollback();
         verify(conn, times(1)).close();
     }
+
+    @Test
+    public void testAfterCommitTaskOfARolledBackSavepointIsDropped() throws Exception {
+        Mockito.when(conn.setSavepoint()).thenReturn(Mockito.mock(Savepoint.class));
+        final List<String> ran = new ArrayList<String>();
+        Transaction.execute(new TransactionCallbackWithExceptionNoReturn<SQLException>() {
+            @Override
+            public void doInTransactionWithoutResult(TransactionStatus status) throws SQLException {
+                TransactionLegacy.runAfterCommit(() -> ran.add("before the savepoint"));
+                TransactionLegacy txn = TransactionLegacy.currentTxn();
+                Savepoint sp = txn.setSavepoint();
+                TransactionLegacy.runAfterCommit(() -> ran.add("rolled back"));
+                txn.rollback(sp);
+                TransactionLegacy.runAfterCommit(() -> ran.add("after the savepoint"));
+                assertTrue(ran.isEmpty());
+            }
+        });
+
+        assertEquals(Arrays.asList("before the savepoint", "after the savepoint"), ran);
+        verify(conn, times(1)).commit();
+    }
+
+    @Test
+    public void testAfterCommitTaskOfAReleasedSavepointRuns() throws Exception {
+        Mockito.when(conn.setSavepoint()).thenReturn(Mockito.mock(Savepoint.class));
+        final List<String> ran = new ArrayList<String>();
+        Transaction.execute(new TransactionCallbackWithExceptionNoReturn<SQLException>() {
+            @Override
+            public void doInTransactionWithoutResult(TransactionStatus status) throws SQLException {
+                TransactionLegacy txn = TransactionLegacy.currentTxn();
+                Savepoint sp = txn.setSavepoint();
+                TransactionLegacy.runAfterCommit(() -> ran.add("released"));
+                txn.releaseSavepoint(sp);
+            }
+        });
+
+        assertEquals(Arrays.asList("released"), ran);
+    }
 }
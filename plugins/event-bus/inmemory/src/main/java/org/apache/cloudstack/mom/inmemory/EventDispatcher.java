@@ -0,0 +1,423 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.cloudstack.mom.inmemory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.cloudstack.framework.events.Event;
+import org.apache.cloudstack.framework.events.EventSubscriber;
+import org.apache.cloudstack.framework.events.EventTopic;
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.concurrency.NamedThreadFactory;
+
+/**
+ * Delivers events to the subscribers of the in memory event bus. Subscriptions are indexed by the event type of
+ * their topic, so an event is only matched against the subscriptions of its type and those of any type. Once
+ * started, each subscriber has a bounded queue of events of its own, drained in order by a pool of workers
+ * shared by all subscribers, so a slow subscriber only holds up itself. A publisher waits for room in the queue of a
+ * subscriber that is that far behind, unless one of the policies dropping events is chosen.
+ */
+public class EventDispatcher {
+    private static final Logger s_logger = Logger.getLogger(EventDispatcher.class);
+
+    private static final String ANY = "*";
+    // events delivered to a subscriber before its worker moves on to other subscribers
+    private static final int DRAIN_BATCH_SIZE = 100;
+    // how often a blocked publisher checks whether the dispatcher was stopped meanwhile
+    private static final long BLOCK_POLL_MILLIS = 100;
+
+    /**
+     * What is done with an event for a subscriber whose queue is full.
+     */
+    public enum OverflowPolicy {
+        DropNewest, DropOldest, Block
+    }
+
+    private final Map<UUID, Subscription> subscriptions = new ConcurrentHashMap<UUID, Subscription>();
+    // by the event type of the topic
+    private final Map<String, Set<Subscription>> subscriptionsByType = new ConcurrentHashMap<String, Set<Subscription>>();
+
+    private int workers = 4;
+    private int queueSize = 10000;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.Block;
+    // 0 to wait until there is room
+    private long blockTimeoutMillis = 0;
+
+    // null if events are delivered on the publishing thread
+    private volatile ExecutorService executor;
+    // true on the workers while they deliver events
+    private final ThreadLocal<Boolean> onWorker = new ThreadLocal<Boolean>();
+
+    public void setWorkers(int workers) {
+        this.workers = Math.max(1, workers);
+    }
+
+    /**
+     * Applies to subscriptions made afterwards.
+     */
+    public void setQueueSize(int queueSize) {
+        this.queueSize = Math.max(1, queueSize);
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * @param blockTimeoutMillis how long a publisher waits for room with the Block policy before the event is dropped, 0 to
+     *            wait until there is room
+     */
+    public void setBlockTimeoutMillis(long blockTimeoutMillis) {
+        this.blockTimeoutMillis = blockTimeoutMillis;
+    }
+
+    public synchronized void start() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(workers, new NamedThreadFactory("InMemoryEventBus-Dispatcher"));
+        }
+    }
+
+    /**
+     * Delivers what is queued on the publishing threads from now on, after the workers had the time given to finish.
+     */
+    public synchronized void stop(long timeoutMillis) {
+        ExecutorService stopped = executor;
+        if (stopped == null) {
+            return;
+        }
+        executor = null;
+        stopped.shutdown();
+        try {
+            if (!stopped.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                stopped.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            stopped.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void subscribe(UUID id, EventTopic topic, EventSubscriber subscriber) {
+        Subscription subscription = new Subscription(id, topic, subscriber, queueSize);
+        subscriptions.put(id, subscription);
+        Set<Subscription> ofType = subscriptionsByType.computeIfAbsent(subscription.type, type -> ConcurrentHashMap.newKeySet());
+        ofType.add(subscription);
+    }
+
+    /**
+     * @return false if there is no such subscription, events queued for it are dropped
+     */
+    public boolean unsubscribe(UUID id) {
+        Subscription subscription = subscriptions.remove(id);
+        if (subscription == null) {
+            return false;
+        }
+        subscriptionsByType.computeIfPresent(subscription.type, (type, ofType) -> {
+            ofType.remove(subscription);
+            return ofType.isEmpty() ? null : ofType;
+        });
+        subscription.queue.clear();
+        return true;
+    }
+
+    public boolean isSubscribed(UUID id) {
+        return subscriptions.containsKey(id);
+    }
+
+    public int getSubscriptionCount() {
+        return subscriptions.size();
+    }
+
+    public void dispatch(Event event) {
+        String type = normalize(event.getEventType());
+        if (type.equals(ANY)) {
+            // matches the topics of all types
+            dispatch(event, subscriptions.values());
+            return;
+        }
+        Set<Subscription> ofType = subscriptionsByType.get(type);
+        if (ofType != null) {
+            dispatch(event, ofType);
+        }
+        Set<Subscription> ofAnyType = subscriptionsByType.get(ANY);
+        if (ofAnyType != null) {
+            dispatch(event, ofAnyType);
+        }
+    }
+
+    private void dispatch(Event event, Collection<Subscription> candidates) {
+        for (Subscription subscription : candidates) {
+            if (matches(event, subscription.topic)) {
+                subscription.offer(event);
+            }
+        }
+    }
+
+    private Subscription getSubscription(UUID id) {
+        Subscription subscription = subscriptions.get(id);
+        if (subscription == null) {
+            throw new IllegalArgumentException("No subscriber found with subscriber id " + id);
+        }
+        return subscription;
+    }
+
+    public int getQueueDepth(UUID id) {
+        return getSubscription(id).queue.size();
+    }
+
+    /**
+     * @return how long the oldest event queued for the subscriber has been waiting, in milliseconds
+     */
+    public long getLagMillis(UUID id) {
+        Queued oldest = getSubscription(id).queue.peek();
+        return oldest == null ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldest.queuedAt);
+    }
+
+    /**
+     * @return the longest time an event waited before it was delivered to the subscriber, in milliseconds
+     */
+    public long getMaxLagMillis(UUID id) {
+        return TimeUnit.NANOSECONDS.toMillis(getSubscription(id).maxLagNanos.get());
+    }
+
+    public long getDelivered(UUID id) {
+        return getSubscription(id).delivered.get();
+    }
+
+    public long getDropped(UUID id) {
+        return getSubscription(id).dropped.get();
+    }
+
+    public String getSummary() {
+        StringBuilder summary = new StringBuilder().append(subscriptions.size()).append(" subscribers");
+        for (Subscription subscription : subscriptions.values()) {
+            Queued oldest = subscription.queue.peek();
+            summary.append(" [").append(subscription.id).append(": ").append(subscription.queue.size()).append(" queued, ")
+                    .append(subscription.delivered.get()).append(" delivered, ").append(subscription.dropped.get()).append(" dropped, lag ")
+                    .append(oldest == null ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldest.queuedAt)).append("ms, max ")
+                    .append(TimeUnit.NANOSECONDS.toMillis(subscription.maxLagNanos.get())).append("ms]");
+        }
+        return summary.toString();
+    }
+
+    private static String normalize(String key) {
+        if (key == null || key.isEmpty()) {
+            return ANY;
+        }
+        return key.replace(".", "-").toLowerCase();
+    }
+
+    private static boolean matches(String topicKey, String eventKey) {
+        String topic = normalize(topicKey);
+        String event = normalize(eventKey);
+        return topic.equals(ANY) || event.equals(ANY) || topic.equals(event);
+    }
+
+    static boolean matches(Event event, EventTopic topic) {
+        return matches(topic.getEventSource(), event.getEventSource()) && matches(topic.getEventCategory(), event.getEventCategory())
+                && matches(topic.getEventType(), event.getEventType()) && matches(topic.getResourceType(), event.getResourceType())
+                && matches(topic.getResourceUUID(), event.getResourceUUID());
+    }
+
+    private static class Queued {
+        final Event event;
+        final long queuedAt = System.nanoTime();
+
+        Queued(Event event) {
+            this.event = event;
+        }
+    }
+
+    private class Subscription extends ManagedContextRunnable {
+        final UUID id;
+        final EventTopic topic;
+        final EventSubscriber subscriber;
+        final String type;
+        final BlockingQueue<Queued> queue;
+        // true while the subscription is queued on or drained by a worker
+        final AtomicBoolean scheduled = new AtomicBoolean();
+        // the worker draining the queue, if any
+        volatile Thread drainer;
+        final AtomicLong delivered = new AtomicLong();
+        final AtomicLong dropped = new AtomicLong();
+        final AtomicLong maxLagNanos = new AtomicLong();
+
+        Subscription(UUID id, EventTopic topic, EventSubscriber subscriber, int queueSize) {
+            this.id = id;
+            this.topic = topic;
+            this.subscriber = subscriber;
+            this.type = normalize(topic.getEventType());
+            this.queue = new ArrayBlockingQueue<Queued>(queueSize);
+        }
+
+        void offer(Event event) {
+            ExecutorService current = executor;
+            if (current == null) {
+                deliver(new Queued(event));
+                return;
+            }
+            Queued queued = new Queued(event);
+            boolean added = queue.offer(queued);
+            if (!added) {
+                switch (overflowPolicy) {
+                case DropOldest:
+                    while (!added) {
+                        if (queue.poll() != null) {
+                            drop();
+                        }
+                        added = queue.offer(queued);
+                    }
+                    break;
+                case Block:
+                    try {
+                        added = block(queued);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    break;
+                default:
+                    break;
+                }
+                if (!added) {
+                    drop();
+                }
+            }
+            schedule(current);
+        }
+
+        void drop() {
+            long count = dropped.incrementAndGet();
+            if (count % 1000 == 1) {
+                s_logger.warn("Subscriber " + id + " of the in memory event bus is falling behind, dropped " + count + " events so far");
+            }
+        }
+
+        /**
+         * @return false if there was no room in time. A worker waits for room for a moment only, and then delivers the
+         *         event itself
+         */
+        boolean block(Queued queued) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + blockTimeoutMillis;
+            while (true) {
+                if (drainer == Thread.currentThread()) {
+                    // published by the subscriber itself, nobody else would make room for it
+                    deliver(queued);
+                    return true;
+                }
+                if (executor == null) {
+                    // stopped meanwhile, delivered on the publishing thread from now on
+                    Queued earlier;
+                    while ((earlier = queue.poll()) != null) {
+                        deliver(earlier);
+                    }
+                    deliver(queued);
+                    return true;
+                }
+                long wait = BLOCK_POLL_MILLIS;
+                if (blockTimeoutMillis > 0) {
+                    wait = Math.min(wait, deadline - System.currentTimeMillis());
+                    if (wait <= 0) {
+                        return false;
+                    }
+                }
+                if (queue.offer(queued, wait, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+                if (onWorker.get() != null) {
+                    // published by another subscriber, whose worker must not wait for long as all workers might be
+                    // waiting for each other
+                    deliver(queued);
+                    return true;
+                }
+            }
+        }
+
+        void schedule(ExecutorService current) {
+            if (queue.isEmpty() || !scheduled.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                current.execute(this);
+            } catch (RejectedExecutionException e) {
+                // stopping, the next event drains the queue on the publishing thread
+                scheduled.set(false);
+            }
+        }
+
+        @Override
+        protected void runInContext() {
+            drainer = Thread.currentThread();
+            onWorker.set(Boolean.TRUE);
+            try {
+                for (int i = 0; i < DRAIN_BATCH_SIZE; i++) {
+                    Queued queued = queue.poll();
+                    if (queued == null) {
+                        break;
+                    }
+                    deliver(queued);
+                }
+            } finally {
+                onWorker.remove();
+                drainer = null;
+                scheduled.set(false);
+            }
+            // more was queued meanwhile, or the batch was cut short to let other subscribers have a go
+            ExecutorService current = executor;
+            if (current != null) {
+                schedule(current);
+            } else {
+                Queued queued;
+                while ((queued = queue.poll()) != null) {
+                    deliver(queued);
+                }
+            }
+        }
+
+        void deliver(Queued queued) {
+            long lag = System.nanoTime() - queued.queuedAt;
+            long max = maxLagNanos.get();
+            while (lag > max && !maxLagNanos.compareAndSet(max, lag)) {
+                max = maxLagNanos.get();
+            }
+            try {
+                subscriber.onEvent(queued.event);
+            } catch (Exception e) {
+                s_logger.warn("Subscriber " + id + " of the in memory event bus failed to handle event " + queued.event.getEventType(), e);
+            }
+            delivered.incrementAndGet();
+        }
+    }
+}
@@ -21,7 +21,6 @@ package org.apache.cloudstack.mom.inmemory;
 
 import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
 
 import javax.naming.ConfigurationException;
 
@@ -33,18 +32,13 @@ import org.apache.cloudstack.framework.events.EventBusException;
 import org.apache.cloudstack.framework.events.EventSubscriber;
 import org.apache.cloudstack.framework.events.EventTopic;
 
-import com.cloud.utils.Pair;
 import com.cloud.utils.component.ManagerBase;
 
 public class InMemoryEventBus extends ManagerBase implements EventBus {
 
     private static final Logger s_logger = Logger.getLogger(InMemoryEventBus.class);
 
-    private final static Map<UUID, Pair<EventTopic, EventSubscriber>> subscribers;
-
-    static {
-        subscribers = new ConcurrentHashMap<UUID, Pair<EventTopic, EventSubscriber>>();
-    }
+    private final static EventDispatcher dispatcher = new EventDispatcher();
 
     @Override
     public boolean configure(String name, Map<String, Object> params) throws ConfigurationException {
@@ -57,6 +51,36 @@ public class InMemoryEventBus extends ManagerBase implements EventBus {
         _name = name;
     }
 
+    /**
+     * @param workers the number of threads delivering events to the subscribers
+     */
+    public void setWorkers(int workers) {
+        dispatcher.setWorkers(workers);
+    }
+
+    /**
+     * @param queueSize the number of events waiting for a subscriber at most
+     */
+    public void setQueueSize(int queueSize) {
+        dispatcher.setQueueSize(queueSize);
+    }
+
+    /**
+     * @param overflowPolicy Block (the default), DropNewest or DropOldest, what is done with an event for a subscriber whose
+     *            queue is full
+     */
+    public void setOverflowPolicy(String overflowPolicy) throws ConfigurationException {
+        try {
+            dispatcher.setOverflowPolicy(EventDispatcher.OverflowPolicy.valueOf(overflowPolicy));
+        } catch (IllegalArgumentException e) {
+            throw new ConfigurationException("Invalid overflow policy " + overflowPolicy);
+        }
+    }
+
+    public void setBlockTimeout(long blockTimeoutMillis) {
+        dispatcher.setBlockTimeoutMillis(blockTimeoutMillis);
+    }
+
     @Override
     public UUID subscribe(EventTopic topic, EventSubscriber subscriber) throws EventBusException {
         if (subscriber == null || topic == null) {
@@ -64,7 +88,7 @@ public class InMemoryEventBus extends ManagerBase implements EventBus {
         }
         UUID subscriberId = UUID.randomUUID();
 
-        subscribers.put(subscriberId, new Pair<EventTopic, EventSubscriber>(topic, subscriber));
+        dispatcher.subscribe(subscriberId, topic, subscriber);
         return subscriberId;
     }
 
@@ -74,31 +98,22 @@ public class InMemoryEventBus extends ManagerBase implements EventBus {
             throw new EventBusException("Cannot unregister a null subscriberId.");
         }
 
-        if (subscribers.isEmpty()) {
+        if (dispatcher.getSubscriptionCount() == 0) {
             throw new EventBusException("There are no registered subscribers to unregister.");
         }
 
-        if (!subscribers.containsKey(subscriberId)) {
+        if (!dispatcher.unsubscribe(subscriberId)) {
             throw new EventBusException("No subscriber found with subscriber id " + subscriberId);
-        } else {
-            subscribers.remove(subscriberId);
         }
     }
 
+    /**
+     * Queues the event for the subscribers whose topic it matches. Until the bus is started, and after it is
+     * stopped, the subscribers are called back on the publishing thread.
+     */
     @Override
     public void publish(Event event) throws EventBusException {
-        if (subscribers == null || subscribers.isEmpty()) {
-            return; // no subscriber to publish to, so just return
-        }
-
-        for (UUID subscriberId : subscribers.keySet()) {
-            Pair<EventTopic, EventSubscriber>  subscriberDetails =  subscribers.get(subscriberId);
-            // if the event matches subscribers interested event topic then call back the subscriber with the event
-            if (isEventMatchesTopic(event, subscriberDetails.first())) {
-                EventSubscriber subscriber =  subscriberDetails.second();
-                subscriber.onEvent(event);
-            }
-        }
+        dispatcher.dispatch(event);
     }
 
     @Override
@@ -108,68 +123,37 @@ public class InMemoryEventBus extends ManagerBase implements EventBus {
 
     @Override
     public boolean start() {
+        dispatcher.start();
         return true;
     }
 
     @Override
     public boolean stop() {
+        dispatcher.stop(10000);
+        s_logger.info("Stopped dispatching events of the in memory event bus: " + dispatcher.getSummary());
         return true;
     }
 
     public int totalSubscribers() {
-        return subscribers.size();
+        return dispatcher.getSubscriptionCount();
     }
 
-    private String replaceNullWithWildcard(String key) {
-        if (key == null || key.isEmpty()) {
-            return "*";
-        } else {
-            return key;
-        }
+    public int getSubscriberQueueDepth(UUID subscriberId) {
+        return dispatcher.getQueueDepth(subscriberId);
     }
 
-    private boolean isEventMatchesTopic(Event event, EventTopic topic) {
-
-        String eventTopicSource = replaceNullWithWildcard(topic.getEventSource());
-        eventTopicSource = eventTopicSource.replace(".", "-");
-        String eventSource = replaceNullWithWildcard(event.getEventSource());
-        eventSource = eventSource.replace(".", "-");
-        if (!eventTopicSource.equals("*") && !eventSource.equals("*") && !eventTopicSource.equalsIgnoreCase(eventSource)) {
-            return false;
-        }
-
-        String eventTopicCategory = replaceNullWithWildcard(topic.getEventCategory());
-        eventTopicCategory = eventTopicCategory.replace(".", "-");
-        String eventCategory = replaceNullWithWildcard(event.getEventCategory());
-        eventCategory = eventCategory.replace(".", "-");
-        if (!eventTopicCategory.equals("*") && !eventCategory.equals("*") && !eventTopicCategory.equalsIgnoreCase(eventCategory)) {
-            return false;
-        }
-
-        String eventTopicType = replaceNullWithWildcard(topic.getEventType());
-        eventTopicType = eventTopicType.replace(".", "-");
-        String eventType = replaceNullWithWildcard(event.getEventType());
-        eventType = eventType.replace(".", "-");
-        if (!eventTopicType.equals("*") && !eventType.equals("*") && !eventTopicType.equalsIgnoreCase(eventType)) {
-            return false;
-        }
-
-        String eventTopicResourceType = replaceNullWithWildcard(topic.getResourceType());
-        eventTopicResourceType = eventTopicResourceType.replace(".", "-");
-        String resourceType = replaceNullWithWildcard(event.getResourceType());
-        resourceType = resourceType.replace(".", "-");
-        if (!eventTopicResourceType.equals("*") && !resourceType.equals("*") && !eventTopicResourceType.equalsIgnoreCase(resourceType)) {
-            return false;
-        }
+    /**
+     * @return how long the oldest event queued for the subscriber has been waiting, in milliseconds
+     */
+    public long getSubscriberLag(UUID subscriberId) {
+        return dispatcher.getLagMillis(subscriberId);
+    }
 
-        String resourceUuid = replaceNullWithWildcard(event.getResourceUUID());
-        resourceUuid = resourceUuid.replace(".", "-");
-        String eventTopicresourceUuid = replaceNullWithWildcard(topic.getResourceUUID());
-        eventTopicresourceUuid = eventTopicresourceUuid.replace(".", "-");
-        if (!resourceUuid.equals("*") && !eventTopicresourceUuid.equals("*") && !resourceUuid.equalsIgnoreCase(eventTopicresourceUuid)) {
-            return false;
-        }
+    public long getSubscriberDropped(UUID subscriberId) {
+        return dispatcher.getDropped(subscriberId);
+    }
 
-        return true;
+    public String getSummary() {
+        return dispatcher.getSummary();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,244 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.cloudstack.mom.inmemory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.cloudstack.framework.events.Event;
+import org.apache.cloudstack.framework.events.EventSubscriber;
+import org.apache.cloudstack.framework.events.EventTopic;
+import org.junit.After;
+import org.junit.Test;
+
+public class EventDispatcherTest {
+    private final EventDispatcher dispatcher = new EventDispatcher();
+
+    private static class RecordingSubscriber implements EventSubscriber {
+        final List<Event> events = Collections.synchronizedList(new ArrayList<Event>());
+
+        @Override
+        public void onEvent(Event event) {
+            events.add(event);
+        }
+    }
+
+    private static Event event(String type, String uuid) {
+        return new Event("management-server", "ActionEvent", type, "VirtualMachine", uuid);
+    }
+
+    private static void waitFor(List<Event> events, int count) throws InterruptedException {
+        for (int i = 0; i < 500 && events.size() < count; i++) {
+            Thread.sleep(10);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        dispatcher.stop(1000);
+    }
+
+    @Test
+    public void testEventsAreDeliveredToTheMatchingTopics() {
+        RecordingSubscriber vmStart = new RecordingSubscriber();
+        RecordingSubscriber anyType = new RecordingSubscriber();
+        RecordingSubscriber oneVm = new RecordingSubscriber();
+        dispatcher.subscribe(UUID.randomUUID(), new EventTopic("ActionEvent", "VM.START", null, null, null), vmStart);
+        dispatcher.subscribe(UUID.randomUUID(), new EventTopic("ActionEvent", null, null, null, "management-server"), anyType);
+        dispatcher.subscribe(UUID.randomUUID(), new EventTopic(null, null, "VirtualMachine", "uuid-1", null), oneVm);
+
+        dispatcher.dispatch(event("VM.START", "uuid-1"));
+        dispatcher.dispatch(event("vm-start", "uuid-2"));
+        dispatcher.dispatch(event("VM.STOP", "uuid-1"));
+        dispatcher.dispatch(new Event("management-server", "AlertEvent", null, null, null));
+
+        assertEquals(2, vmStart.events.size());
+        assertEquals(3, anyType.events.size());
+        assertEquals(3, oneVm.events.size());
+    }
+
+    @Test
+    public void testSlowSubscriberDoesNotHoldUpThePublisherOrOthers() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        EventSubscriber slow = new EventSubscriber() {
+            @Override
+            public void onEvent(Event event) {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        RecordingSubscriber fast = new RecordingSubscriber();
+        UUID slowId = UUID.randomUUID();
+        dispatcher.subscribe(slowId, new EventTopic(null, null, null, null, null), slow);
+        dispatcher.subscribe(UUID.randomUUID(), new EventTopic(null, null, null, null, null), fast);
+        dispatcher.start();
+
+        long started = System.currentTimeMillis();
+        for (int i = 0; i < 100; i++) {
+            dispatcher.dispatch(event("VM.START", "uuid-" + i));
+        }
+        assertTrue(System.currentTimeMillis() - started < 5000);
+        waitFor(fast.events, 100);
+        assertEquals(100, fast.events.size());
+        // in order
+        assertEquals("uuid-99", fast.events.get(99).getResourceUUID());
+        assertTrue(dispatcher.getQueueDepth(slowId) > 0);
+        Thread.sleep(20);
+        assertTrue(dispatcher.getLagMillis(slowId) > 0);
+        release.countDown();
+    }
+
+    /**
+     * Publishes ten events to a subscriber stuck on the first one, with room for three more.
+     */
+    private List<Event> overflow(EventDispatcher.OverflowPolicy policy, UUID id) throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final RecordingSubscriber delivered = new RecordingSubscriber();
+        dispatcher.setQueueSize(3);
+        dispatcher.setWorkers(1);
+        dispatcher.setOverflowPolicy(policy);
+        dispatcher.setBlockTimeoutMillis(10);
+        dispatcher.subscribe(id, new EventTopic(null, null, null, null, null), new EventSubscriber() {
+            @Override
+            public void onEvent(Event event) {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                delivered.onEvent(event);
+            }
+        });
+        dispatcher.start();
+        dispatcher.dispatch(event("VM.START", "uuid-0"));
+        for (int i = 0; i < 500 && dispatcher.getQueueDepth(id) > 0; i++) {
+            Thread.sleep(10);
+        }
+        for (int i = 1; i < 10; i++) {
+            dispatcher.dispatch(event("VM.START", "uuid-" + i));
+        }
+        assertEquals(3, dispatcher.getQueueDepth(id));
+        release.countDown();
+        waitFor(delivered.events, 4);
+        return delivered.events;
+    }
+
+    @Test
+    public void testDropOldestKeepsTheLatestEvents() throws InterruptedException {
+        UUID id = UUID.randomUUID();
+        List<Event> delivered = overflow(EventDispatcher.OverflowPolicy.DropOldest, id);
+        assertEquals(4, delivered.size());
+        assertEquals("uuid-7", delivered.get(1).getResourceUUID());
+        assertEquals("uuid-9", delivered.get(3).getResourceUUID());
+        assertEquals(6, dispatcher.getDropped(id));
+    }
+
+    @Test
+    public void testDropNewestKeepsTheEarliestEvents() throws InterruptedException {
+        UUID id = UUID.randomUUID();
+        List<Event> delivered = overflow(EventDispatcher.OverflowPolicy.DropNewest, id);
+        assertEquals(4, delivered.size());
+        assertEquals("uuid-3", delivered.get(3).getResourceUUID());
+        assertEquals(6, dispatcher.getDropped(id));
+    }
+
+    @Test
+    public void testBlockDropsAfterTheTimeout() throws InterruptedException {
+        UUID id = UUID.randomUUID();
+        List<Event> delivered = overflow(EventDispatcher.OverflowPolicy.Block, id);
+        assertEquals(4, delivered.size());
+        assertEquals(6, dispatcher.getDropped(id));
+        assertTrue(dispatcher.unsubscribe(id));
+        assertFalse(dispatcher.isSubscribed(id));
+    }
+
+    @Test
+    public void testPublisherWaitsForRoomByDefault() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final RecordingSubscriber delivered = new RecordingSubscriber();
+        UUID id = UUID.randomUUID();
+        dispatcher.setQueueSize(3);
+        dispatcher.setWorkers(1);
+        dispatcher.subscribe(id, new EventTopic(null, null, null, null, null), new EventSubscriber() {
+            @Override
+            public void onEvent(Event event) {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                delivered.onEvent(event);
+            }
+        });
+        dispatcher.start();
+        Thread publisher = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 10; i++) {
+                    dispatcher.dispatch(event("VM.START", "uuid-" + i));
+                }
+            }
+        };
+        publisher.start();
+        publisher.join(200);
+        assertTrue(publisher.isAlive());
+        release.countDown();
+        publisher.join(5000);
+        waitFor(delivered.events, 10);
+        assertEquals(10, delivered.events.size());
+        assertEquals("uuid-9", delivered.events.get(9).getResourceUUID());
+        assertEquals(0, dispatcher.getDropped(id));
+    }
+
+    @Test
+    public void testWorkerPublishingToAnotherFullQueueDoesNotWaitForever() throws InterruptedException {
+        final RecordingSubscriber stopped = new RecordingSubscriber();
+        dispatcher.setQueueSize(1);
+        dispatcher.setWorkers(1);
+        dispatcher.subscribe(UUID.randomUUID(), new EventTopic("ActionEvent", "VM.START", null, null, null), new EventSubscriber() {
+            @Override
+            public void onEvent(Event event) {
+                // the only worker is busy here, nobody drains the queue of the other subscriber
+                for (int i = 0; i < 3; i++) {
+                    dispatcher.dispatch(event("VM.STOP", "uuid-" + i));
+                }
+            }
+        });
+        UUID stoppedId = UUID.randomUUID();
+        dispatcher.subscribe(stoppedId, new EventTopic("ActionEvent", "VM.STOP", null, null, null), stopped);
+        dispatcher.start();
+
+        dispatcher.dispatch(event("VM.START", "uuid-0"));
+        waitFor(stopped.events, 3);
+        assertEquals(3, stopped.events.size());
+        assertEquals(0, dispatcher.getDropped(stoppedId));
+    }
+}
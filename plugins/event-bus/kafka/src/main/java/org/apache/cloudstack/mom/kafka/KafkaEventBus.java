@@ -24,6 +24,9 @@ import java.io.FileInputStream;
 import java.util.Map;
 import java.util.UUID;
 import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.naming.ConfigurationException;
 
@@ -34,28 +37,42 @@ import org.apache.cloudstack.framework.events.EventBus;
 import org.apache.cloudstack.framework.events.EventBusException;
 import org.apache.cloudstack.framework.events.EventSubscriber;
 import org.apache.cloudstack.framework.events.EventTopic;
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
 
 import com.cloud.utils.component.ManagerBase;
+import com.cloud.utils.concurrency.NamedThreadFactory;
 
-import org.apache.kafka.clients.producer.Producer;
 import org.apache.kafka.clients.producer.KafkaProducer;
-import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.KafkaException;
 
+import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.PropertiesUtil;
 
 public class KafkaEventBus extends ManagerBase implements EventBus {
 
     public static final String DEFAULT_TOPIC = "cloudstack";
     public static final String DEFAULT_SERIALIZER = "org.apache.kafka.common.serialization.StringSerializer";
+    // values are encoded by the publisher
+    public static final String VALUE_SERIALIZER = "org.apache.kafka.common.serialization.ByteArraySerializer";
+
+    // producer settings used unless kafka.producer.properties has its own, to batch events and compress the batches
+    private static final String DEFAULT_LINGER_MS = "10";
+    private static final String DEFAULT_BATCH_SIZE = "65536";
+    private static final String DEFAULT_COMPRESSION_TYPE = "lz4";
 
     private String _topic = null;
-    private Producer<String,String> _producer;
+    private KafkaEventPublisher _publisher;
+    private long _retryInterval;
+    private ScheduledExecutorService _retryExecutor;
     private static final Logger s_logger = Logger.getLogger(KafkaEventBus.class);
 
     @Override
     public boolean configure(String name, Map<String, Object> params) throws ConfigurationException {
 
         final Properties props = new Properties();
+        KafkaEventPublisher.Format format;
+        int retryAttempts;
+        int retryQueueSize;
 
         try (final FileInputStream is = new FileInputStream(PropertiesUtil.findConfigFile("kafka.producer.properties"));) {
             props.load(is);
@@ -65,18 +82,31 @@ public class KafkaEventBus extends ManagerBase implements EventBus {
                 _topic = DEFAULT_TOPIC;
             }
 
+            final String envelopeFormat = (String)props.remove("envelope.format");
+            format = envelopeFormat == null ? KafkaEventPublisher.Format.Description : KafkaEventPublisher.Format.valueOf(envelopeFormat);
+            retryAttempts = NumbersUtil.parseInt((String)props.remove("retry.attempts"), 3);
+            retryQueueSize = NumbersUtil.parseInt((String)props.remove("retry.queue.size"), 1000);
+            _retryInterval = NumbersUtil.parseLong((String)props.remove("retry.interval.ms"), 5000);
+
             if (!props.containsKey("key.serializer")) {
                 props.put("key.serializer", DEFAULT_SERIALIZER);
             }
 
-            if (!props.containsKey("value.serializer")) {
-                props.put("value.serializer", DEFAULT_SERIALIZER);
+            if (props.containsKey("value.serializer") && !VALUE_SERIALIZER.equals(props.get("value.serializer"))) {
+                s_logger.warn("Ignoring value.serializer " + props.get("value.serializer") + ", event values are encoded as set by envelope.format");
             }
+            props.put("value.serializer", VALUE_SERIALIZER);
+
+            props.putIfAbsent("linger.ms", DEFAULT_LINGER_MS);
+            props.putIfAbsent("batch.size", DEFAULT_BATCH_SIZE);
+            props.putIfAbsent("compression.type", DEFAULT_COMPRESSION_TYPE);
+        } catch (IllegalArgumentException e) {
+            throw new ConfigurationException("Invalid envelope.format in kafka properties, expected one of Description, Json or Binary");
         } catch (Exception e) {
             throw new ConfigurationException("Could not read kafka properties");
         }
 
-        _producer = new KafkaProducer<String,String>(props);
+        _publisher = new KafkaEventPublisher(new KafkaProducer<String, byte[]>(props), _topic, format, retryAttempts, retryQueueSize);
         _name = name;
 
         return true;
@@ -100,8 +130,11 @@ public class KafkaEventBus extends ManagerBase implements EventBus {
 
     @Override
     public void publish(Event event) throws EventBusException {
-        ProducerRecord<String, String> record = new ProducerRecord<String,String>(_topic, event.getResourceUUID(), event.getDescription());
-        _producer.send(record);
+        try {
+            _publisher.publish(event);
+        } catch (KafkaException e) {
+            throw new EventBusException("Failed to publish event to topic " + _topic + " due to " + e.getMessage());
+        }
     }
 
     @Override
@@ -111,11 +144,26 @@ public class KafkaEventBus extends ManagerBase implements EventBus {
 
     @Override
     public boolean start() {
+        _retryExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("Kafka-EventBus-Retry"));
+        _retryExecutor.scheduleWithFixedDelay(new ManagedContextRunnable() {
+            @Override
+            protected void runInContext() {
+                int retried = _publisher.retry();
+                if (retried > 0 && s_logger.isDebugEnabled()) {
+                    s_logger.debug("Sent " + retried + " events again to topic " + _topic + ", " + _publisher.getSummary());
+                }
+            }
+        }, _retryInterval, _retryInterval, TimeUnit.MILLISECONDS);
         return true;
     }
 
     @Override
     public boolean stop() {
+        if (_retryExecutor != null) {
+            _retryExecutor.shutdownNow();
+        }
+        _publisher.close(10000);
+        s_logger.info("Stopped publishing events to topic " + _topic + ": " + _publisher.getSummary());
         return true;
     }
 }
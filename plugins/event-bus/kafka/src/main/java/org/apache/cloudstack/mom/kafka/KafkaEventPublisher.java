@@ -0,0 +1,268 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.cloudstack.mom.kafka;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.cloudstack.framework.events.Event;
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.internals.RecordHeader;
+import org.apache.log4j.Logger;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Sends events to a Kafka topic, keyed by the uuid of their resource so the events of a resource stay in order on
+ * one partition. The source, category, type and resource type of an event go in record headers, so consumers can
+ * route events without decoding them. Sends are confirmed by callbacks; events Kafka could not deliver, after its
+ * own retries, wait in a bounded queue to be sent again a few times before they are given up.
+ */
+public class KafkaEventPublisher {
+    private static final Logger s_logger = Logger.getLogger(KafkaEventPublisher.class);
+
+    public static final String HEADER_SOURCE = "source";
+    public static final String HEADER_CATEGORY = "category";
+    public static final String HEADER_TYPE = "type";
+    public static final String HEADER_RESOURCE_TYPE = "resourceType";
+    public static final String HEADER_FORMAT = "format";
+
+    private static final byte BINARY_VERSION = 1;
+
+    /**
+     * How an event is encoded in the value of a record.
+     */
+    public enum Format {
+        /** The description of the event only, as the bus always sent it */
+        Description,
+        /** A JSON object with all the fields of the event */
+        Json,
+        /** The version, then the source, category, type, resource type, resource uuid and description, each as a length and UTF-8 bytes, -1 for null */
+        Binary
+    }
+
+    private final Producer<String, byte[]> producer;
+    private final String topic;
+    private final Format format;
+    private final int maxAttempts;
+    private final BlockingQueue<Pending> retryQueue;
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong acknowledged = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    // failed sends by the class of the error
+    private final Map<String, AtomicLong> failures = new ConcurrentHashMap<String, AtomicLong>();
+
+    /**
+     * @param maxAttempts the number of times an event is sent at most
+     * @param retryQueueSize the number of failed events waiting to be sent again at most
+     */
+    public KafkaEventPublisher(Producer<String, byte[]> producer, String topic, Format format, int maxAttempts, int retryQueueSize) {
+        this.producer = producer;
+        this.topic = topic;
+        this.format = format;
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.retryQueue = new ArrayBlockingQueue<Pending>(Math.max(1, retryQueueSize));
+    }
+
+    private class Pending implements Callback {
+        final ProducerRecord<String, byte[]> record;
+        final int attempt;
+
+        Pending(ProducerRecord<String, byte[]> record, int attempt) {
+            this.record = record;
+            this.attempt = attempt;
+        }
+
+        @Override
+        public void onCompletion(RecordMetadata metadata, Exception exception) {
+            if (exception == null) {
+                acknowledged.incrementAndGet();
+                return;
+            }
+            failed.incrementAndGet();
+            failures.computeIfAbsent(exception.getClass().getSimpleName(), name -> new AtomicLong()).incrementAndGet();
+            // runs on the I/O thread of the producer, so never waits for room
+            if (attempt < maxAttempts && retryQueue.offer(new Pending(record, attempt + 1))) {
+                return;
+            }
+            if (dropped.incrementAndGet() % 1000 == 1) {
+                s_logger.warn("Dropped event " + record.key() + " as it could not be sent to topic " + topic + " due to " + exception.getMessage() + ", " + getSummary());
+            }
+        }
+    }
+
+    public void publish(Event event) {
+        List<Header> headers = new ArrayList<Header>();
+        addHeader(headers, HEADER_SOURCE, event.getEventSource());
+        addHeader(headers, HEADER_CATEGORY, event.getEventCategory());
+        addHeader(headers, HEADER_TYPE, event.getEventType());
+        addHeader(headers, HEADER_RESOURCE_TYPE, event.getResourceType());
+        addHeader(headers, HEADER_FORMAT, format.name());
+        ProducerRecord<String, byte[]> record = new ProducerRecord<String, byte[]>(topic, null, null, event.getResourceUUID(), encode(event, format), headers);
+        send(new Pending(record, 1));
+    }
+
+    private void send(Pending pending) {
+        sent.incrementAndGet();
+        producer.send(pending.record, pending);
+    }
+
+    /**
+     * Sends the events that failed before again.
+     *
+     * @return the number of events sent again
+     */
+    public int retry() {
+        List<Pending> batch = new ArrayList<Pending>();
+        retryQueue.drainTo(batch);
+        for (Pending pending : batch) {
+            retried.incrementAndGet();
+            send(pending);
+        }
+        return batch.size();
+    }
+
+    /**
+     * Waits until the events sent so far are delivered or failed, and gives those waiting to be sent again a last go.
+     */
+    public void close(long timeoutMillis) {
+        producer.flush();
+        if (retry() > 0) {
+            producer.flush();
+        }
+        dropped.addAndGet(retryQueue.size());
+        retryQueue.clear();
+        producer.close(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private static void addHeader(List<Header> headers, String name, String value) {
+        if (value != null) {
+            headers.add(new RecordHeader(name, value.getBytes(StandardCharsets.UTF_8)));
+        }
+    }
+
+    static byte[] encode(Event event, Format format) {
+        switch (format) {
+        case Json:
+            JsonObject json = new JsonObject();
+            json.addProperty("source", event.getEventSource());
+            json.addProperty("category", event.getEventCategory());
+            json.addProperty("type", event.getEventType());
+            json.addProperty("resourceType", event.getResourceType());
+            json.addProperty("resourceUUID", event.getResourceUUID());
+            json.add("description", parseDescription(event.getDescription()));
+            return json.toString().getBytes(StandardCharsets.UTF_8);
+        case Binary:
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeByte(BINARY_VERSION);
+                for (String field : new String[] {event.getEventSource(), event.getEventCategory(), event.getEventType(), event.getResourceType(),
+                        event.getResourceUUID(), event.getDescription()}) {
+                    if (field == null) {
+                        out.writeInt(-1);
+                    } else {
+                        byte[] value = field.getBytes(StandardCharsets.UTF_8);
+                        out.writeInt(value.length);
+                        out.write(value);
+                    }
+                }
+            } catch (IOException e) {
+                // not thrown writing to memory
+                throw new IllegalStateException(e);
+            }
+            return bytes.toByteArray();
+        default:
+            return event.getDescription() == null ? null : event.getDescription().getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * @return the description as JSON if it is, the bus sets the description of most events to a JSON object
+     */
+    private static JsonElement parseDescription(String description) {
+        if (description == null) {
+            return null;
+        }
+        try {
+            JsonElement parsed = new JsonParser().parse(description);
+            if (parsed.isJsonObject() || parsed.isJsonArray()) {
+                return parsed;
+            }
+        } catch (JsonParseException e) {
+            // not JSON, kept as is
+        }
+        return new JsonPrimitive(description);
+    }
+
+    public long getSent() {
+        return sent.get();
+    }
+
+    public long getAcknowledged() {
+        return acknowledged.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public long getFailed(Class<? extends Exception> error) {
+        AtomicLong count = failures.get(error.getSimpleName());
+        return count == null ? 0 : count.get();
+    }
+
+    public long getRetried() {
+        return retried.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public int getRetryQueueDepth() {
+        return retryQueue.size();
+    }
+
+    public String getSummary() {
+        return sent.get() + " events sent, " + acknowledged.get() + " acknowledged, " + failed.get() + " failed " + failures + ", " + retried.get() + " retried, "
+                + retryQueue.size() + " waiting to be retried, " + dropped.get() + " dropped";
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.cloudstack.mom.kafka;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.cloudstack.framework.events.Event;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.errors.TimeoutException;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+public class KafkaEventPublisherTest {
+
+    // stands in for the brokers, sends complete when the test says so
+    private final MockProducer<String, byte[]> producer = new MockProducer<String, byte[]>(false, new StringSerializer(), new ByteArraySerializer());
+
+    private static Event event(String uuid) {
+        Event event = new Event("management-server", "ActionEvent", "VM.START", "VirtualMachine", uuid);
+        event.setDescription("{\"status\":\"Completed\"}");
+        return event;
+    }
+
+    private static String header(ProducerRecord<String, byte[]> record, String name) {
+        return new String(record.headers().lastHeader(name).value(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testRecordsAreKeyedByResourceAndCarryHeaders() {
+        KafkaEventPublisher publisher = new KafkaEventPublisher(producer, "cloudstack", KafkaEventPublisher.Format.Description, 3, 10);
+        publisher.publish(event("uuid-1"));
+        producer.completeNext();
+
+        ProducerRecord<String, byte[]> record = producer.history().get(0);
+        assertEquals("cloudstack", record.topic());
+        assertEquals("uuid-1", record.key());
+        assertEquals("{\"status\":\"Completed\"}", new String(record.value(), StandardCharsets.UTF_8));
+        assertEquals("ActionEvent", header(record, KafkaEventPublisher.HEADER_CATEGORY));
+        assertEquals("VM.START", header(record, KafkaEventPublisher.HEADER_TYPE));
+        assertEquals("VirtualMachine", header(record, KafkaEventPublisher.HEADER_RESOURCE_TYPE));
+        assertEquals(1, publisher.getAcknowledged());
+    }
+
+    @Test
+    public void testJsonEnvelope() {
+        JsonObject json = new JsonParser().parse(new String(KafkaEventPublisher.encode(event("uuid-1"), KafkaEventPublisher.Format.Json), StandardCharsets.UTF_8))
+                .getAsJsonObject();
+        assertEquals("VM.START", json.get("type").getAsString());
+        assertEquals("uuid-1", json.get("resourceUUID").getAsString());
+        assertEquals("Completed", json.getAsJsonObject("description").get("status").getAsString());
+    }
+
+    @Test
+    public void testBinaryEnvelope() throws IOException {
+        byte[] value = KafkaEventPublisher.encode(new Event("management-server", "ActionEvent", "VM.START", null, "uuid-1"), KafkaEventPublisher.Format.Binary);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(value));
+        assertEquals(1, in.readByte());
+        byte[] source = new byte[in.readInt()];
+        in.readFully(source);
+        assertEquals("management-server", new String(source, StandardCharsets.UTF_8));
+        in.skipBytes(in.readInt());
+        in.skipBytes(in.readInt());
+        assertEquals(-1, in.readInt());
+    }
+
+    @Test
+    public void testFailedSendsAreRetriedAndThenDropped() {
+        KafkaEventPublisher publisher = new KafkaEventPublisher(producer, "cloudstack", KafkaEventPublisher.Format.Description, 2, 10);
+        publisher.publish(event("uuid-1"));
+        publisher.publish(event("uuid-2"));
+        producer.errorNext(new TimeoutException("no broker"));
+        producer.completeNext();
+        assertEquals(1, publisher.getFailed(TimeoutException.class));
+        assertEquals(1, publisher.getRetryQueueDepth());
+
+        assertEquals(1, publisher.retry());
+        producer.errorNext(new TimeoutException("no broker"));
+        // the second attempt was the last
+        assertEquals(0, publisher.getRetryQueueDepth());
+        assertEquals(1, publisher.getDropped());
+        assertEquals(3, publisher.getSent());
+        assertEquals(1, publisher.getAcknowledged());
+    }
+
+    @Test
+    public void testRetryQueueIsBounded() {
+        KafkaEventPublisher publisher = new KafkaEventPublisher(producer, "cloudstack", KafkaEventPublisher.Format.Description, 3, 2);
+        for (int i = 0; i < 5; i++) {
+            publisher.publish(event("uuid-" + i));
+        }
+        for (int i = 0; i < 5; i++) {
+            producer.errorNext(new TimeoutException("no broker"));
+        }
+        assertEquals(2, publisher.getRetryQueueDepth());
+        assertEquals(3, publisher.getDropped());
+
+        publisher.close(1000);
+        // sent again on close, and delivered as the brokers are back
+        assertEquals(7, publisher.getSent());
+        assertEquals(2, publisher.getAcknowledged());
+    }
+}
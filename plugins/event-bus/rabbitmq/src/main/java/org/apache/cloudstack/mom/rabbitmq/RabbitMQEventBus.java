@@ -19,6 +19,7 @@
 
 package org.apache.cloudstack.mom.rabbitmq;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.util.Map;
@@ -40,7 +41,6 @@ import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
 import com.rabbitmq.client.DefaultConsumer;
 import com.rabbitmq.client.Envelope;
-import com.rabbitmq.client.MessageProperties;
 import com.rabbitmq.client.ShutdownListener;
 import com.rabbitmq.client.ShutdownSignalException;
 
@@ -82,6 +82,17 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
 
     private static Integer retryInterval;
 
+    // events are published by this many threads, in batches of at most publisherBatchSize
+    private static Integer publisherThreads;
+    private static Integer publisherBufferSize;
+    private static Integer publisherBatchSize;
+    private static Integer publisherConfirmTimeout;
+    // events that cannot be published are spilled to files in this directory, of at most spillLimit MB
+    private static String spillDirectory;
+    private static Integer spillLimit;
+
+    private RabbitMQPublisher publisher;
+
     // hashmap to book keep the registered subscribers
     private static ConcurrentHashMap<String, Ternary<String, Channel, EventSubscriber>> s_subscribers;
 
@@ -130,6 +141,26 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
                 retryInterval = 10000;// default to 10s to try out reconnect
             }
 
+            if (publisherThreads == null) {
+                publisherThreads = 2;
+            }
+
+            if (publisherBufferSize == null) {
+                publisherBufferSize = 10000;
+            }
+
+            if (publisherBatchSize == null) {
+                publisherBatchSize = 100;
+            }
+
+            if (publisherConfirmTimeout == null) {
+                publisherConfirmTimeout = 5000;
+            }
+
+            if (spillLimit == null) {
+                spillLimit = 100;
+            }
+
         } catch (NumberFormatException e) {
             throw new ConfigurationException("Invalid port number/retry interval");
         }
@@ -138,6 +169,18 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
         executorService = Executors.newCachedThreadPool();
         disconnectHandler = new DisconnectHandler();
         blockedConnectionHandler = new BlockedConnectionHandler();
+        publisher = new RabbitMQPublisher(new RabbitMQPublisher.ChannelFactory() {
+            @Override
+            public RabbitMQPublisher.PublishChannel createChannel() throws Exception {
+                try {
+                    return new RabbitMQPublisher.AmqpPublishChannel(RabbitMQEventBus.this.createChannel(getConnection()), amqpExchangeName);
+                } catch (AlreadyClosedException e) {
+                    closeConnection();
+                    throw e;
+                }
+            }
+        }, publisherThreads, publisherBufferSize, publisherBatchSize, publisherConfirmTimeout, retryInterval,
+                spillDirectory == null || spillDirectory.isEmpty() ? null : new File(spillDirectory), spillLimit * 1024L * 1024L);
 
         return true;
     }
@@ -175,6 +218,30 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
         RabbitMQEventBus.retryInterval = retryInterval;
     }
 
+    public static void setPublisherThreads(Integer publisherThreads) {
+        RabbitMQEventBus.publisherThreads = publisherThreads;
+    }
+
+    public static void setPublisherBufferSize(Integer publisherBufferSize) {
+        RabbitMQEventBus.publisherBufferSize = publisherBufferSize;
+    }
+
+    public static void setPublisherBatchSize(Integer publisherBatchSize) {
+        RabbitMQEventBus.publisherBatchSize = publisherBatchSize;
+    }
+
+    public static void setPublisherConfirmTimeout(Integer publisherConfirmTimeout) {
+        RabbitMQEventBus.publisherConfirmTimeout = publisherConfirmTimeout;
+    }
+
+    public static void setSpillDirectory(String spillDirectory) {
+        RabbitMQEventBus.spillDirectory = spillDirectory;
+    }
+
+    public static void setSpillLimit(Integer spillLimit) {
+        RabbitMQEventBus.spillLimit = spillLimit;
+    }
+
     /** Call to subscribe to interested set of events
      *
      * @param topic defines category and type of the events being subscribed to
@@ -261,24 +328,15 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
         }
     }
 
-    // publish event on to the exchange created on AMQP server
+    // queue event to be published on to the exchange created on AMQP server, the publisher sends it in the background
     @Override
     public void publish(Event event) throws EventBusException {
 
         String routingKey = createRoutingKey(event);
         String eventDescription = event.getDescription();
 
-        try {
-            Connection connection = getConnection();
-            Channel channel = createChannel(connection);
-            createExchange(channel, amqpExchangeName);
-            publishEventToExchange(channel, amqpExchangeName, routingKey, eventDescription);
-            channel.close();
-        } catch (AlreadyClosedException e) {
-            closeConnection();
-            throw new EventBusException("Failed to publish event to message broker as connection to AMQP broker in lost");
-        } catch (Exception e) {
-            throw new EventBusException("Failed to publish event to message broker due to " + e.getMessage());
+        if (!publisher.publish(routingKey, eventDescription.getBytes())) {
+            throw new EventBusException("Failed to publish event " + routingKey + " to message broker as the publisher is stopped or falling behind");
         }
     }
 
@@ -443,16 +501,6 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
         }
     }
 
-    private void publishEventToExchange(Channel channel, String exchangeName, String routingKey, String eventDescription) throws Exception {
-        try {
-            byte[] messageBodyBytes = eventDescription.getBytes();
-            channel.basicPublish(exchangeName, routingKey, MessageProperties.PERSISTENT_TEXT_PLAIN, messageBodyBytes);
-        } catch (Exception e) {
-            s_logger.error("Failed to publish event " + routingKey + " on exchange " + exchangeName + "  of message broker due to " + e.getMessage());
-            throw e;
-        }
-    }
-
     private String getEventCategoryFromRoutingKey(String routingKey) {
         String[] keyParts = routingKey.split("\\.");
         return keyParts[1];
@@ -487,11 +535,19 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
     public boolean start() {
         ReconnectionTask reconnect = new ReconnectionTask(); // initiate connection to AMQP server
         executorService.submit(reconnect);
+        publisher.start();
         return true;
     }
 
     @Override
-    public synchronized boolean stop() {
+    public boolean stop() {
+        // not holding the lock, the publisher threads need it to get the connection while sending what is buffered
+        publisher.stop(publisherConfirmTimeout * 2L);
+        s_logger.info("Stopped publishing events to AMQP server: " + publisher.getSummary());
+        return stopSubscribers();
+    }
+
+    private synchronized boolean stopSubscribers() {
         if (s_connection.isOpen()) {
             for (String subscriberId : s_subscribers.keySet()) {
                 Ternary<String, Channel, EventSubscriber> subscriberDetails = s_subscribers.get(subscriberId);
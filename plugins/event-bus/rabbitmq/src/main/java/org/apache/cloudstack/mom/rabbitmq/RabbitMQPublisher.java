@@ -0,0 +1,473 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.cloudstack.mom.rabbitmq;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.MessageProperties;
+
+/**
+ * Publishes events to the exchange off the threads raising them. Events wait in a bounded buffer and are sent
+ * in batches by a few senders, each with a long lived channel in confirm mode, so a batch costs one wait for the
+ * broker's confirms instead of a new channel and several round trips per event. When the broker cannot be
+ * reached, or the buffer is full, events are spilled to files and sent once the broker is back.
+ */
+public class RabbitMQPublisher {
+    private static final Logger s_logger = Logger.getLogger(RabbitMQPublisher.class);
+
+    private static final String SPILL_SUFFIX = ".spill";
+
+    /**
+     * A channel to the broker, used by one sender at a time.
+     */
+    public interface PublishChannel {
+        void publish(String routingKey, byte[] body) throws IOException;
+
+        /**
+         * Waits until the broker confirmed all messages published so far, fails if it did not confirm one.
+         */
+        void waitForConfirms(long timeoutMillis) throws Exception;
+
+        boolean isOpen();
+
+        void close();
+    }
+
+    public interface ChannelFactory {
+        PublishChannel createChannel() throws Exception;
+    }
+
+    /**
+     * Publishes on an AMQP channel with publisher confirms, to the topic exchange that is declared on opening.
+     */
+    public static class AmqpPublishChannel implements PublishChannel {
+        private final Channel channel;
+        private final String exchange;
+
+        public AmqpPublishChannel(Channel channel, String exchange) throws IOException {
+            this.channel = channel;
+            this.exchange = exchange;
+            channel.exchangeDeclare(exchange, "topic", true);
+            channel.confirmSelect();
+        }
+
+        @Override
+        public void publish(String routingKey, byte[] body) throws IOException {
+            channel.basicPublish(exchange, routingKey, MessageProperties.PERSISTENT_TEXT_PLAIN, body);
+        }
+
+        @Override
+        public void waitForConfirms(long timeoutMillis) throws Exception {
+            channel.waitForConfirmsOrDie(timeoutMillis);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() {
+            try {
+                if (channel.isOpen()) {
+                    channel.close();
+                }
+            } catch (Exception e) {
+                s_logger.debug("Failed to close channel to AMQP server due to " + e.getMessage());
+            }
+        }
+    }
+
+    static class Message {
+        final String routingKey;
+        final byte[] body;
+        // when the message was buffered, 0 for messages read back from a spill file
+        final long queuedAt;
+
+        Message(String routingKey, byte[] body, long queuedAt) {
+            this.routingKey = routingKey;
+            this.body = body;
+            this.queuedAt = queuedAt;
+        }
+    }
+
+    private final ChannelFactory channelFactory;
+    private final BlockingQueue<Message> buffer;
+    private final int senders;
+    private final int batchSize;
+    private final long confirmTimeoutMillis;
+    private final long retryIntervalMillis;
+    // null if events are not spilled
+    private final File spillDirectory;
+    private final long spillLimitBytes;
+
+    private ExecutorService executor;
+    private volatile boolean running;
+
+    private final Object spillLock = new Object();
+    // the file spilled to, until it is replayed
+    private File spillFile;
+    private long spillBytes;
+    private long spillSequence;
+    private final AtomicBoolean replaying = new AtomicBoolean();
+
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong spilled = new AtomicLong();
+    private final AtomicLong failedBatches = new AtomicLong();
+    private final AtomicLong latencyNanos = new AtomicLong();
+    private final AtomicLong latencyCount = new AtomicLong();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+    /**
+     * @param spillDirectory where events are spilled to, null to drop them instead
+     * @param spillLimitBytes the size of the spilled events at most
+     */
+    public RabbitMQPublisher(ChannelFactory channelFactory, int senders, int bufferSize, int batchSize, long confirmTimeoutMillis, long retryIntervalMillis,
+            File spillDirectory, long spillLimitBytes) {
+        this.channelFactory = channelFactory;
+        this.senders = Math.max(1, senders);
+        this.buffer = new ArrayBlockingQueue<Message>(Math.max(1, bufferSize));
+        this.batchSize = Math.max(1, batchSize);
+        this.confirmTimeoutMillis = confirmTimeoutMillis;
+        this.retryIntervalMillis = Math.max(1, retryIntervalMillis);
+        this.spillDirectory = spillDirectory;
+        this.spillLimitBytes = spillLimitBytes;
+        if (spillDirectory != null) {
+            if (!spillDirectory.isDirectory() && !spillDirectory.mkdirs()) {
+                s_logger.warn("Unable to create " + spillDirectory + " to spill events to, events are dropped when they cannot be published");
+            }
+            for (File file : listSpillFiles()) {
+                spillBytes += file.length();
+            }
+        }
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        executor = Executors.newFixedThreadPool(senders, new NamedThreadFactory("RabbitMQ-Publisher"));
+        for (int i = 0; i < senders; i++) {
+            executor.execute(new Sender());
+        }
+    }
+
+    /**
+     * Stops the senders once they sent what is buffered, or spills it when they do not within the timeout.
+     */
+    public synchronized void stop(long timeoutMillis) {
+        if (!running) {
+            return;
+        }
+        running = false;
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        List<Message> left = new ArrayList<Message>();
+        buffer.drainTo(left);
+        if (!left.isEmpty() && !spill(left)) {
+            dropped.addAndGet(left.size());
+        }
+    }
+
+    /**
+     * Buffers a message to be published, or spills it if the buffer is full.
+     *
+     * @return false if the message was dropped
+     */
+    public boolean publish(String routingKey, byte[] body) {
+        Message message = new Message(routingKey, body, System.nanoTime());
+        if (running && buffer.offer(message)) {
+            return true;
+        }
+        if (spill(Arrays.asList(message))) {
+            return true;
+        }
+        if (dropped.incrementAndGet() % 1000 == 1) {
+            s_logger.warn("Dropped " + dropped.get() + " events as they could neither be buffered nor spilled: " + getSummary());
+        }
+        return false;
+    }
+
+    public int getBuffered() {
+        return buffer.size();
+    }
+
+    public long getPublished() {
+        return published.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getSpilled() {
+        return spilled.get();
+    }
+
+    public long getFailedBatches() {
+        return failedBatches.get();
+    }
+
+    /**
+     * @return the time from buffering an event to its confirmation by the broker on average, in milliseconds
+     */
+    public long getAverageLatencyMillis() {
+        long count = latencyCount.get();
+        return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(latencyNanos.get() / count);
+    }
+
+    public long getMaxLatencyMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxLatencyNanos.get());
+    }
+
+    public String getSummary() {
+        return published.get() + " events published, " + buffer.size() + " buffered, " + spilled.get() + " spilled, " + dropped.get() + " dropped, "
+                + failedBatches.get() + " failed batches, latency " + getAverageLatencyMillis() + "ms avg " + getMaxLatencyMillis() + "ms max";
+    }
+
+    private void published(List<Message> batch) {
+        published.addAndGet(batch.size());
+        long now = System.nanoTime();
+        for (Message message : batch) {
+            if (message.queuedAt == 0) {
+                continue;
+            }
+            long latency = now - message.queuedAt;
+            latencyNanos.addAndGet(latency);
+            latencyCount.incrementAndGet();
+            long max = maxLatencyNanos.get();
+            while (latency > max && !maxLatencyNanos.compareAndSet(max, latency)) {
+                max = maxLatencyNanos.get();
+            }
+        }
+    }
+
+    private File[] listSpillFiles() {
+        File[] files = spillDirectory.listFiles((dir, name) -> name.endsWith(SPILL_SUFFIX));
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files);
+        return files;
+    }
+
+    /**
+     * @return false if the messages could not be spilled, as spilling is off, the limit is reached or writing failed
+     */
+    boolean spill(List<Message> messages) {
+        if (spillDirectory == null) {
+            return false;
+        }
+        if (messages.isEmpty()) {
+            return true;
+        }
+        synchronized (spillLock) {
+            long size = 0;
+            for (Message message : messages) {
+                size += 8 + message.routingKey.length() * 3 + message.body.length;
+            }
+            if (spillBytes + size > spillLimitBytes) {
+                return false;
+            }
+            if (spillFile == null) {
+                // sorted by name in the order they were written
+                spillFile = new File(spillDirectory, String.format("events-%016d-%06d%s", System.currentTimeMillis(), spillSequence++ % 1000000, SPILL_SUFFIX));
+            }
+            long before = spillFile.length();
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile, true)))) {
+                for (Message message : messages) {
+                    byte[] key = message.routingKey.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(key.length);
+                    out.write(key);
+                    out.writeInt(message.body.length);
+                    out.write(message.body);
+                }
+            } catch (IOException e) {
+                s_logger.warn("Failed to spill " + messages.size() + " events to " + spillFile + " due to " + e.getMessage());
+                return false;
+            } finally {
+                spillBytes += spillFile.length() - before;
+            }
+            spilled.addAndGet(messages.size());
+            return true;
+        }
+    }
+
+    static List<Message> readSpillFile(File file) throws IOException {
+        List<Message> messages = new ArrayList<Message>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                byte[] key;
+                byte[] body;
+                try {
+                    key = new byte[in.readInt()];
+                    in.readFully(key);
+                    body = new byte[in.readInt()];
+                    in.readFully(body);
+                } catch (EOFException e) {
+                    // the end of the file, or of what was written before a crash
+                    break;
+                }
+                messages.add(new Message(new String(key, StandardCharsets.UTF_8), body, 0));
+            }
+        }
+        return messages;
+    }
+
+    private class Sender extends ManagedContextRunnable {
+        private PublishChannel channel;
+
+        @Override
+        protected void runInContext() {
+            List<Message> batch = new ArrayList<Message>(batchSize);
+            while (running || !buffer.isEmpty() || !batch.isEmpty()) {
+                try {
+                    if (batch.isEmpty()) {
+                        Message first = buffer.poll(1, TimeUnit.SECONDS);
+                        if (first == null) {
+                            replaySpill();
+                            continue;
+                        }
+                        batch.add(first);
+                        buffer.drainTo(batch, batchSize - 1);
+                    }
+                    send(batch);
+                    published(batch);
+                    batch.clear();
+                } catch (InterruptedException e) {
+                    break;
+                } catch (Exception e) {
+                    failedBatches.incrementAndGet();
+                    closeChannel();
+                    if (spill(batch)) {
+                        s_logger.warn("Failed to publish " + batch.size() + " events, spilled them to be published later, due to " + e.getMessage());
+                        batch.clear();
+                    } else {
+                        s_logger.warn("Failed to publish " + batch.size() + " events, retrying in " + retryIntervalMillis + "ms, due to " + e.getMessage());
+                    }
+                    if (!running) {
+                        break;
+                    }
+                    try {
+                        Thread.sleep(retryIntervalMillis);
+                    } catch (InterruptedException ie) {
+                        break;
+                    }
+                }
+            }
+            if (!batch.isEmpty() && !spill(batch)) {
+                dropped.addAndGet(batch.size());
+            }
+            closeChannel();
+        }
+
+        private void send(List<Message> batch) throws Exception {
+            if (channel == null || !channel.isOpen()) {
+                channel = channelFactory.createChannel();
+            }
+            for (Message message : batch) {
+                channel.publish(message.routingKey, message.body);
+            }
+            channel.waitForConfirms(confirmTimeoutMillis);
+        }
+
+        private void closeChannel() {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        }
+
+        /**
+         * Publishes the spilled events while the buffer is empty, one sender at a time.
+         */
+        private void replaySpill() throws Exception {
+            if (spillDirectory == null || !replaying.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                File[] files;
+                synchronized (spillLock) {
+                    if (spillBytes == 0) {
+                        return;
+                    }
+                    // spill to a new file from now on
+                    spillFile = null;
+                    files = listSpillFiles();
+                }
+                for (File file : files) {
+                    if (!running || !buffer.isEmpty()) {
+                        return;
+                    }
+                    // a file is deleted once all of it is confirmed, if publishing fails half way the events
+                    // published already are published again
+                    List<Message> messages = readSpillFile(file);
+                    for (int from = 0; from < messages.size(); from += batchSize) {
+                        List<Message> batch = messages.subList(from, Math.min(messages.size(), from + batchSize));
+                        send(batch);
+                        published(batch);
+                    }
+                    synchronized (spillLock) {
+                        long length = file.length();
+                        if (file.delete()) {
+                            spillBytes -= length;
+                        }
+                    }
+                    s_logger.info("Published " + messages.size() + " spilled events of " + file);
+                }
+            } finally {
+                replaying.set(false);
+            }
+        }
+    }
+}
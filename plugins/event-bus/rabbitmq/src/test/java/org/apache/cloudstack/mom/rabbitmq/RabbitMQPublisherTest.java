@@ -0,0 +1,179 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.cloudstack.mom.rabbitmq;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RabbitMQPublisherTest {
+    private File spillDirectory;
+
+    /**
+     * Stands in for the broker, confirming what was published unless it is down.
+     */
+    private static class FakeBroker implements RabbitMQPublisher.ChannelFactory {
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        volatile boolean down;
+        volatile int channels;
+
+        @Override
+        public RabbitMQPublisher.PublishChannel createChannel() throws Exception {
+            if (down) {
+                throw new IOException("connection refused");
+            }
+            channels++;
+            return new RabbitMQPublisher.PublishChannel() {
+                final List<String> unconfirmed = new ArrayList<String>();
+                boolean open = true;
+
+                @Override
+                public void publish(String routingKey, byte[] body) throws IOException {
+                    unconfirmed.add(routingKey + "=" + new String(body));
+                }
+
+                @Override
+                public void waitForConfirms(long timeoutMillis) throws Exception {
+                    if (down) {
+                        open = false;
+                        throw new IOException("channel closed");
+                    }
+                    received.addAll(unconfirmed);
+                    unconfirmed.clear();
+                }
+
+                @Override
+                public boolean isOpen() {
+                    return open;
+                }
+
+                @Override
+                public void close() {
+                    open = false;
+                }
+            };
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        spillDirectory = Files.createTempDirectory("events").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = spillDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        spillDirectory.delete();
+    }
+
+    private static void waitFor(FakeBroker broker, int count) throws InterruptedException {
+        for (int i = 0; i < 500 && broker.received.size() < count; i++) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testEventsArePublishedInBatchesOnLongLivedChannels() throws InterruptedException {
+        FakeBroker broker = new FakeBroker();
+        RabbitMQPublisher publisher = new RabbitMQPublisher(broker, 2, 1000, 50, 1000, 10, null, 0);
+        publisher.start();
+        for (int i = 0; i < 500; i++) {
+            Assert.assertTrue(publisher.publish("management-server.ActionEvent.VM-START", ("event " + i).getBytes()));
+        }
+        waitFor(broker, 500);
+        publisher.stop(1000);
+
+        Assert.assertEquals(500, broker.received.size());
+        Assert.assertEquals(500, publisher.getPublished());
+        Assert.assertTrue(broker.channels <= 2);
+        Assert.assertEquals(0, publisher.getDropped());
+    }
+
+    @Test
+    public void testEventsAreDroppedWhenTheBufferIsFullAndSpillingIsOff() {
+        FakeBroker broker = new FakeBroker();
+        RabbitMQPublisher publisher = new RabbitMQPublisher(broker, 1, 10, 10, 1000, 10, null, 0);
+        // not started, nothing is buffered
+        Assert.assertFalse(publisher.publish("key", "body".getBytes()));
+        Assert.assertEquals(1, publisher.getDropped());
+    }
+
+    @Test
+    public void testEventsAreSpilledWhileTheBrokerIsDownAndReplayedAfter() throws InterruptedException {
+        FakeBroker broker = new FakeBroker();
+        broker.down = true;
+        RabbitMQPublisher publisher = new RabbitMQPublisher(broker, 1, 1000, 20, 1000, 10, spillDirectory, 1024 * 1024);
+        publisher.start();
+        for (int i = 0; i < 100; i++) {
+            Assert.assertTrue(publisher.publish("key", ("event " + i).getBytes()));
+        }
+        for (int i = 0; i < 500 && publisher.getSpilled() < 100; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(100, publisher.getSpilled());
+        Assert.assertTrue(publisher.getFailedBatches() > 0);
+
+        broker.down = false;
+        waitFor(broker, 100);
+        publisher.stop(1000);
+        Assert.assertEquals(100, broker.received.size());
+        Assert.assertTrue(broker.received.contains("key=event 99"));
+        Assert.assertEquals(0, spillDirectory.listFiles().length);
+    }
+
+    @Test
+    public void testSpilledEventsArePublishedAfterARestart() throws InterruptedException {
+        FakeBroker broker = new FakeBroker();
+        RabbitMQPublisher stopped = new RabbitMQPublisher(broker, 1, 10, 10, 1000, 10, spillDirectory, 1024 * 1024);
+        for (int i = 0; i < 30; i++) {
+            Assert.assertTrue(stopped.publish("key", ("event " + i).getBytes()));
+        }
+        Assert.assertEquals(30, stopped.getSpilled());
+
+        RabbitMQPublisher publisher = new RabbitMQPublisher(broker, 1, 10, 10, 1000, 10, spillDirectory, 1024 * 1024);
+        publisher.start();
+        waitFor(broker, 30);
+        publisher.stop(1000);
+        Assert.assertEquals(30, broker.received.size());
+        Assert.assertEquals("key=event 0", broker.received.get(0));
+    }
+
+    @Test
+    public void testSpillLimit() {
+        RabbitMQPublisher publisher = new RabbitMQPublisher(new FakeBroker(), 1, 10, 10, 1000, 10, spillDirectory, 100);
+        Assert.assertTrue(publisher.publish("key", new byte[50]));
+        Assert.assertFalse(publisher.publish("key", new byte[50]));
+        Assert.assertEquals(1, publisher.getSpilled());
+        Assert.assertEquals(1, publisher.getDropped());
+    }
+}
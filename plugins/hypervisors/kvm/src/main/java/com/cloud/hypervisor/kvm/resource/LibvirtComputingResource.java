@@ -73,7 +73,6 @@ import org.libvirt.DomainSnapshot;
 import org.libvirt.LibvirtException;
 import org.libvirt.MemoryStatistic;
 import org.libvirt.Network;
-import org.libvirt.NodeInfo;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
@@ -285,6 +284,10 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 
     private final Map <String, String> _pifs = new HashMap<String, String>();
     private final Map<String, VmStats> _vmStats = new ConcurrentHashMap<String, VmStats>();
+    private final Map<String, VmStatsDevices> _vmStatsDevices = new ConcurrentHashMap<String, VmStatsDevices>();
+    private final LibvirtDomainXMLCache _domainXMLCache = new LibvirtDomainXMLCache();
+    private LibvirtVmStatsSampler _vmStatsSampler;
+    private volatile int _hostCpuCount;
 
     protected static final HashMap<DomainState, PowerState> s_powerStatesTable;
     static {
@@ -1082,6 +1085,8 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 
         configureDiskActivityChecks(params);
 
+        configureVmStatsSampler(params);
+
         final KVMStorageProcessor storageProcessor = new KVMStorageProcessor(_storagePoolMgr, this);
         storageProcessor.configure(name, params);
         storageHandler = new StorageSubsystemCommandHandlerBase(storageProcessor);
@@ -1089,6 +1094,20 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
         return true;
     }
 
+    protected void configureVmStatsSampler(final Map<String, Object> params) {
+        final int interval = NumbersUtil.parseInt((String)params.get("vm.stats.sample.interval"), 0);
+        if (interval > 0) {
+            final int history = NumbersUtil.parseInt((String)params.get("vm.stats.sample.history"), 5);
+            _vmStatsSampler = new LibvirtVmStatsSampler(this, history);
+            _vmStatsSampler.start(interval);
+            s_logger.info("Sampling domain statistics every " + interval + " seconds");
+        }
+    }
+
+    protected void setVmStatsSampler(final LibvirtVmStatsSampler vmStatsSampler) {
+        _vmStatsSampler = vmStatsSampler;
+    }
+
     protected void configureDiskActivityChecks(final Map<String, Object> params) {
         _diskActivityCheckEnabled = Boolean.parseBoolean((String)params.get("vm.diskactivity.checkenabled"));
         if (_diskActivityCheckEnabled) {
@@ -1414,6 +1433,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
     }
 
     public String startVM(final Connect conn, final String vmName, final String domainXML) throws LibvirtException, InternalErrorException {
+        invalidateDomainCache(vmName);
         try {
             /*
                 We create a transient domain here. When this method gets
@@ -1441,7 +1461,17 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
                 }
             }
 
-            conn.domainCreateXML(domainXML, 0);
+            final Domain started = conn.domainCreateXML(domainXML, 0);
+            if (started != null) {
+                // libvirt fills in device names and addresses, load the model of what actually runs
+                try {
+                    _domainXMLCache.get(started);
+                } catch (final LibvirtException e) {
+                    s_logger.debug("Unable to load the domain model of " + vmName + ": " + e.getMessage());
+                } finally {
+                    started.free();
+                }
+            }
         } catch (final LibvirtException e) {
             throw e;
         }
@@ -1450,6 +1480,9 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 
     @Override
     public boolean stop() {
+        if (_vmStatsSampler != null) {
+            _vmStatsSampler.stop();
+        }
         try {
             final Connect conn = LibvirtConnection.getConnection();
             conn.close();
@@ -1665,6 +1698,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 
         final Domain vm = getDomain(conn, vmName);
         vm.attachDevice(getVifDriver(nicTO.getType()).plug(nicTO, "Other PV", "", null).toString());
+        invalidateDomainCache(vmName);
     }
 
 
@@ -1676,6 +1710,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
         for (final InterfaceDef pluggedNic : pluggedNics) {
             if (pluggedNic.getMacAddress().equalsIgnoreCase(macAddr)) {
                 vm.detachDevice(pluggedNic.toString());
+                invalidateDomainCache(vmName);
                 // We don't know which "traffic type" is associated with
                 // each interface at this point, so inform all vif drivers
                 for (final VifDriver vifDriver : getAllVifDrivers()) {
@@ -2552,10 +2587,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
         final KVMStoragePool attachingPool = attachingDisk.getPool();
         try {
             dm = conn.domainLookupByName(vmName);
-            final LibvirtDomainXMLParser parser = new LibvirtDomainXMLParser();
-            final String domXml = dm.getXMLDesc(0);
-            parser.parseDomainXML(domXml);
-            disks = parser.getDisks();
+            disks = _domainXMLCache.get(dm).getDisks();
 
             if (!attach) {
                 for (final DiskDef disk : disks) {
@@ -2662,6 +2694,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
             }
             throw e;
         } finally {
+            invalidateDomainCache(vmName);
             if (dm != null) {
                 try {
                     dm.free();
@@ -2981,6 +3014,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
     public String stopVM(final Connect conn, final String vmName, final boolean forceStop) {
         DomainState state = null;
         Domain dm = null;
+        invalidateDomainCache(vmName);
 
         // delete the metadata of vm snapshots before stopping
         try {
@@ -3113,22 +3147,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
     }
 
     public Integer getVncPort(final Connect conn, final String vmName) throws LibvirtException {
-        final LibvirtDomainXMLParser parser = new LibvirtDomainXMLParser();
-        Domain dm = null;
-        try {
-            dm = conn.domainLookupByName(vmName);
-            final String xmlDesc = dm.getXMLDesc(0);
-            parser.parseDomainXML(xmlDesc);
-            return parser.getVncPort();
-        } finally {
-            try {
-                if (dm != null) {
-                    dm.free();
-                }
-            } catch (final LibvirtException l) {
-                s_logger.trace("Ignoring libvirt error.", l);
-            }
-        }
+        return _domainXMLCache.get(conn, vmName).getVncPort();
     }
 
     private boolean IsHVMEnabled(final Connect conn) {
@@ -3220,47 +3239,27 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
         return conn.domainLookupByName(vmName);
     }
 
+    /**
+     * The returned definitions come from the domain XML cache and are shared, they must not be modified.
+     */
     public List<InterfaceDef> getInterfaces(final Connect conn, final String vmName) {
-        final LibvirtDomainXMLParser parser = new LibvirtDomainXMLParser();
-        Domain dm = null;
         try {
-            dm = conn.domainLookupByName(vmName);
-            parser.parseDomainXML(dm.getXMLDesc(0));
-            return parser.getInterfaces();
-
+            return _domainXMLCache.get(conn, vmName).getInterfaces();
         } catch (final LibvirtException e) {
             s_logger.debug("Failed to get dom xml: " + e.toString());
             return new ArrayList<InterfaceDef>();
-        } finally {
-            try {
-                if (dm != null) {
-                    dm.free();
-                }
-            } catch (final LibvirtException e) {
-                s_logger.trace("Ignoring libvirt error.", e);
-            }
         }
     }
 
+    /**
+     * The returned definitions come from the domain XML cache and are shared, they must not be modified.
+     */
     public List<DiskDef> getDisks(final Connect conn, final String vmName) {
-        final LibvirtDomainXMLParser parser = new LibvirtDomainXMLParser();
-        Domain dm = null;
         try {
-            dm = conn.domainLookupByName(vmName);
-            parser.parseDomainXML(dm.getXMLDesc(0));
-            return parser.getDisks();
-
+            return _domainXMLCache.get(conn, vmName).getDisks();
         } catch (final LibvirtException e) {
             s_logger.debug("Failed to get dom xml: " + e.toString());
             return new ArrayList<DiskDef>();
-        } finally {
-            try {
-                if (dm != null) {
-                    dm.free();
-                }
-            } catch (final LibvirtException e) {
-                s_logger.trace("Ignoring libvirt error.", e);
-            }
         }
     }
 
@@ -3329,7 +3328,10 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
         }
     }
 
-    private class VmStats {
+    /**
+     * Raw, cumulative counters of a domain at a point in time.
+     */
+    static final class VmStats {
         long _usedTime;
         long _tx;
         long _rx;
@@ -3337,120 +3339,186 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
         long _ioWrote;
         long _bytesRead;
         long _bytesWrote;
+        int _numCpus;
+        long _maxMemory;
+        long _memory;
+        long _freeMemory;
         Calendar _timestamp;
     }
 
-    public VmStatsEntry getVmStat(final Connect conn, final String vmName) throws LibvirtException {
-        Domain dm = null;
-        try {
-            dm = getDomain(conn, vmName);
-            if (dm == null) {
-                return null;
-            }
-            DomainInfo info = dm.getInfo();
-            final VmStatsEntry stats = new VmStatsEntry();
+    /**
+     * The devices of a domain whose counters are collected for its statistics.
+     */
+    static final class VmStatsDevices {
+        final List<String> _vifs = new ArrayList<String>();
+        final List<String> _disks = new ArrayList<String>();
+    }
 
-            stats.setNumCPUs(info.nrVirtCpu);
-            stats.setEntityType("vm");
+    public VmStatsEntry getVmStat(final Connect conn, final String vmName) throws LibvirtException {
+        final VmStats oldStats = _vmStats.get(vmName);
 
-            stats.setMemoryKBs(info.maxMem);
-            stats.setTargetMemoryKBs(info.memory);
-            stats.setIntFreeMemoryKBs(getMemoryFreeInKBs(dm));
+        VmStats newStats = null;
+        if (_vmStatsSampler != null) {
+            newStats = _vmStatsSampler.getLatestSample(vmName);
+            if (newStats != null && oldStats != null && !newStats._timestamp.after(oldStats._timestamp)) {
+                // nothing sampled since the last report, fall back to sampling now
+                newStats = null;
+            }
+        }
 
-            /* get cpu utilization */
-            VmStats oldStats = null;
+        if (newStats == null) {
+            Domain dm = null;
+            try {
+                dm = getDomain(conn, vmName);
+                if (dm == null) {
+                    return null;
+                }
+                newStats = sampleVmStats(conn, dm, vmName);
+            } finally {
+                if (dm != null) {
+                    dm.free();
+                }
+            }
+        }
 
-            final Calendar now = Calendar.getInstance();
+        final VmStatsEntry stats = new VmStatsEntry();
 
-            oldStats = _vmStats.get(vmName);
+        stats.setNumCPUs(newStats._numCpus);
+        stats.setEntityType("vm");
 
-            long elapsedTime = 0;
-            if (oldStats != null) {
-                elapsedTime = now.getTimeInMillis() - oldStats._timestamp.getTimeInMillis();
-                double utilization = (info.cpuTime - oldStats._usedTime) / ((double)elapsedTime * 1000000);
+        stats.setMemoryKBs(newStats._maxMemory);
+        stats.setTargetMemoryKBs(newStats._memory);
+        stats.setIntFreeMemoryKBs(newStats._freeMemory);
 
-                final NodeInfo node = conn.nodeInfo();
-                utilization = utilization / node.cpus;
-                if (utilization > 0) {
-                    stats.setCPUUtilization(utilization * 100);
-                }
+        if (oldStats != null) {
+            /* get cpu utilization */
+            final long elapsedTime = newStats._timestamp.getTimeInMillis() - oldStats._timestamp.getTimeInMillis();
+            double utilization = (newStats._usedTime - oldStats._usedTime) / ((double)elapsedTime * 1000000);
+            utilization = utilization / getHostCpuCount(conn);
+            if (utilization > 0) {
+                stats.setCPUUtilization(utilization * 100);
             }
 
             /* get network stats */
-
-            final List<InterfaceDef> vifs = getInterfaces(conn, vmName);
-            long rx = 0;
-            long tx = 0;
-            for (final InterfaceDef vif : vifs) {
-                final DomainInterfaceStats ifStats = dm.interfaceStats(vif.getDevName());
-                rx += ifStats.rx_bytes;
-                tx += ifStats.tx_bytes;
+            final double deltarx = newStats._rx - oldStats._rx;
+            if (deltarx > 0) {
+                stats.setNetworkReadKBs(deltarx / 1024);
             }
-
-            if (oldStats != null) {
-                final double deltarx = rx - oldStats._rx;
-                if (deltarx > 0) {
-                    stats.setNetworkReadKBs(deltarx / 1024);
-                }
-                final double deltatx = tx - oldStats._tx;
-                if (deltatx > 0) {
-                    stats.setNetworkWriteKBs(deltatx / 1024);
-                }
+            final double deltatx = newStats._tx - oldStats._tx;
+            if (deltatx > 0) {
+                stats.setNetworkWriteKBs(deltatx / 1024);
             }
 
             /* get disk stats */
-            final List<DiskDef> disks = getDisks(conn, vmName);
-            long io_rd = 0;
-            long io_wr = 0;
-            long bytes_rd = 0;
-            long bytes_wr = 0;
-            for (final DiskDef disk : disks) {
+            final long deltaiord = newStats._ioRead - oldStats._ioRead;
+            if (deltaiord > 0) {
+                stats.setDiskReadIOs(deltaiord);
+            }
+            final long deltaiowr = newStats._ioWrote - oldStats._ioWrote;
+            if (deltaiowr > 0) {
+                stats.setDiskWriteIOs(deltaiowr);
+            }
+            final double deltabytesrd = newStats._bytesRead - oldStats._bytesRead;
+            if (deltabytesrd > 0) {
+                stats.setDiskReadKBs(deltabytesrd / 1024);
+            }
+            final double deltabyteswr = newStats._bytesWrote - oldStats._bytesWrote;
+            if (deltabyteswr > 0) {
+                stats.setDiskWriteKBs(deltabyteswr / 1024);
+            }
+        }
+
+        /* save to Hashmap */
+        _vmStats.put(vmName, newStats);
+        return stats;
+    }
+
+    /**
+     * Reads the cumulative counters of the domain. The devices to read are taken from a per domain cache,
+     * so the domain XML is only parsed again after the devices changed.
+     */
+    protected VmStats sampleVmStats(final Connect conn, final Domain dm, final String vmName) throws LibvirtException {
+        final DomainInfo info = dm.getInfo();
+        final VmStats sample = new VmStats();
+        sample._timestamp = Calendar.getInstance();
+        sample._usedTime = info.cpuTime;
+        sample._numCpus = info.nrVirtCpu;
+        sample._maxMemory = info.maxMem;
+        sample._memory = info.memory;
+        sample._freeMemory = getMemoryFreeInKBs(dm);
+
+        try {
+            readDeviceCounters(dm, getVmStatsDevices(conn, vmName), sample);
+        } catch (final LibvirtException e) {
+            // a device may have gone away since the devices were cached, try once more with fresh ones
+            s_logger.debug("Failed to read device statistics of " + vmName + ", refreshing its devices: " + e.getMessage());
+            invalidateDomainCache(vmName);
+            readDeviceCounters(dm, getVmStatsDevices(conn, vmName), sample);
+        }
+        return sample;
+    }
+
+    private void readDeviceCounters(final Domain dm, final VmStatsDevices devices, final VmStats sample) throws LibvirtException {
+        sample._rx = 0;
+        sample._tx = 0;
+        for (final String vif : devices._vifs) {
+            final DomainInterfaceStats ifStats = dm.interfaceStats(vif);
+            sample._rx += ifStats.rx_bytes;
+            sample._tx += ifStats.tx_bytes;
+        }
+
+        sample._ioRead = 0;
+        sample._ioWrote = 0;
+        sample._bytesRead = 0;
+        sample._bytesWrote = 0;
+        for (final String disk : devices._disks) {
+            final DomainBlockStats blockStats = dm.blockStats(disk);
+            sample._ioRead += blockStats.rd_req;
+            sample._ioWrote += blockStats.wr_req;
+            sample._bytesRead += blockStats.rd_bytes;
+            sample._bytesWrote += blockStats.wr_bytes;
+        }
+    }
+
+    protected VmStatsDevices getVmStatsDevices(final Connect conn, final String vmName) {
+        VmStatsDevices devices = _vmStatsDevices.get(vmName);
+        if (devices == null) {
+            devices = new VmStatsDevices();
+            for (final InterfaceDef vif : getInterfaces(conn, vmName)) {
+                devices._vifs.add(vif.getDevName());
+            }
+            for (final DiskDef disk : getDisks(conn, vmName)) {
                 if (disk.getDeviceType() == DeviceType.CDROM || disk.getDeviceType() == DeviceType.FLOPPY) {
                     continue;
                 }
-                final DomainBlockStats blockStats = dm.blockStats(disk.getDiskLabel());
-                io_rd += blockStats.rd_req;
-                io_wr += blockStats.wr_req;
-                bytes_rd += blockStats.rd_bytes;
-                bytes_wr += blockStats.wr_bytes;
-            }
-
-            if (oldStats != null) {
-                final long deltaiord = io_rd - oldStats._ioRead;
-                if (deltaiord > 0) {
-                    stats.setDiskReadIOs(deltaiord);
-                }
-                final long deltaiowr = io_wr - oldStats._ioWrote;
-                if (deltaiowr > 0) {
-                    stats.setDiskWriteIOs(deltaiowr);
-                }
-                final double deltabytesrd = bytes_rd - oldStats._bytesRead;
-                if (deltabytesrd > 0) {
-                    stats.setDiskReadKBs(deltabytesrd / 1024);
-                }
-                final double deltabyteswr = bytes_wr - oldStats._bytesWrote;
-                if (deltabyteswr > 0) {
-                    stats.setDiskWriteKBs(deltabyteswr / 1024);
-                }
-            }
-
-            /* save to Hashmap */
-            final VmStats newStat = new VmStats();
-            newStat._usedTime = info.cpuTime;
-            newStat._rx = rx;
-            newStat._tx = tx;
-            newStat._ioRead = io_rd;
-            newStat._ioWrote = io_wr;
-            newStat._bytesRead = bytes_rd;
-            newStat._bytesWrote = bytes_wr;
-            newStat._timestamp = now;
-            _vmStats.put(vmName, newStat);
-            return stats;
-        } finally {
-            if (dm != null) {
-                dm.free();
+                devices._disks.add(disk.getDiskLabel());
             }
+            _vmStatsDevices.put(vmName, devices);
+        }
+        return devices;
+    }
+
+    /**
+     * Drops the cached domain XML model and stats devices of the domain, to be called whenever devices
+     * are attached to or detached from it, when it is started, stopped or migrated, or when a snapshot of it
+     * is created, restored or reverted to.
+     */
+    public void invalidateDomainCache(final String vmName) {
+        if (vmName != null) {
+            _vmStatsDevices.remove(vmName);
+            _domainXMLCache.invalidate(vmName);
+        }
+    }
+
+    public LibvirtDomainXMLCache getDomainXMLCache() {
+        return _domainXMLCache;
+    }
+
+    private int getHostCpuCount(final Connect conn) throws LibvirtException {
+        if (_hostCpuCount <= 0) {
+            _hostCpuCount = conn.nodeInfo().cpus;
         }
+        return _hostCpuCount;
     }
 
     /**
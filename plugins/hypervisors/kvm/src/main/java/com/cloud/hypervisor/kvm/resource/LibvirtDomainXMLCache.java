@@ -0,0 +1,179 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.kvm.resource;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.libvirt.Connect;
+import org.libvirt.Domain;
+import org.libvirt.LibvirtException;
+
+import com.cloud.hypervisor.kvm.resource.LibvirtVMDef.DiskDef;
+import com.cloud.hypervisor.kvm.resource.LibvirtVMDef.InterfaceDef;
+
+/**
+ * Keeps the parsed domain XML of every domain, keyed by domain UUID, so the device topology does not have to
+ * be fetched from libvirt and parsed again for every stats report, nic plug or volume attach.
+ *
+ * An entry is valid as long as the domain keeps the ID it had when the entry was loaded; a restart gives the
+ * domain a new ID. Device changes made by the agent have to be announced through {@link #invalidate(String)}.
+ * The returned definitions are shared between callers and must not be modified.
+ */
+public class LibvirtDomainXMLCache {
+    private static final Logger s_logger = Logger.getLogger(LibvirtDomainXMLCache.class);
+
+    public static final class DomainModel {
+        private final String uuid;
+        private final String name;
+        private final int id;
+        private final LibvirtDomainXMLParser parser;
+
+        DomainModel(final String uuid, final String name, final int id, final LibvirtDomainXMLParser parser) {
+            this.uuid = uuid;
+            this.name = name;
+            this.id = id;
+            this.parser = parser;
+        }
+
+        public String getUuid() {
+            return uuid;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public List<InterfaceDef> getInterfaces() {
+            return new ArrayList<InterfaceDef>(parser.getInterfaces());
+        }
+
+        public List<DiskDef> getDisks() {
+            return new ArrayList<DiskDef>(parser.getDisks());
+        }
+
+        public Integer getVncPort() {
+            return parser.getVncPort();
+        }
+    }
+
+    private final Map<String, DomainModel> modelsByUuid = new ConcurrentHashMap<String, DomainModel>();
+    private final Map<String, String> uuidsByName = new ConcurrentHashMap<String, String>();
+    private final AtomicLong generation = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AtomicLong loadNanos = new AtomicLong();
+
+    public DomainModel get(final Connect conn, final String vmName) throws LibvirtException {
+        Domain dm = null;
+        try {
+            dm = conn.domainLookupByName(vmName);
+            return get(dm);
+        } finally {
+            if (dm != null) {
+                try {
+                    dm.free();
+                } catch (final LibvirtException e) {
+                    s_logger.trace("Ignoring libvirt error.", e);
+                }
+            }
+        }
+    }
+
+    public DomainModel get(final Domain dm) throws LibvirtException {
+        final String uuid = dm.getUUIDString();
+        final int id = dm.getID();
+        if (uuid != null) {
+            final DomainModel model = modelsByUuid.get(uuid);
+            if (model != null && model.getId() == id) {
+                hits.incrementAndGet();
+                return model;
+            }
+        }
+
+        misses.incrementAndGet();
+        final long loadGeneration = generation.get();
+        final long start = System.nanoTime();
+        final LibvirtDomainXMLParser parser = new LibvirtDomainXMLParser();
+        parser.parseDomainXML(dm.getXMLDesc(0));
+        final String name = dm.getName();
+        final DomainModel model = new DomainModel(uuid, name, id, parser);
+        loadNanos.addAndGet(System.nanoTime() - start);
+
+        // do not cache what was read while the domain may have been changed underneath
+        if (uuid != null && name != null && generation.get() == loadGeneration) {
+            modelsByUuid.put(uuid, model);
+            uuidsByName.put(name, uuid);
+        }
+        return model;
+    }
+
+    /**
+     * Drops the model of the domain, to be called whenever the agent changes its devices or its life cycle.
+     */
+    public void invalidate(final String vmName) {
+        if (vmName == null) {
+            return;
+        }
+        generation.incrementAndGet();
+        final String uuid = uuidsByName.remove(vmName);
+        if (uuid != null) {
+            modelsByUuid.remove(uuid);
+            invalidations.incrementAndGet();
+        }
+    }
+
+    public int size() {
+        return modelsByUuid.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    /**
+     * @return the average time in microseconds spent fetching and parsing a domain XML on a miss
+     */
+    public long getAverageLoadMicros() {
+        final long count = misses.get();
+        return count == 0 ? 0 : loadNanos.get() / count / 1000;
+    }
+
+    @Override
+    public String toString() {
+        return "LibvirtDomainXMLCache[size=" + size() + ", hits=" + getHits() + ", misses=" + getMisses() + ", invalidations=" + getInvalidations()
+                + ", avgLoadUs=" + getAverageLoadMicros() + "]";
+    }
+}
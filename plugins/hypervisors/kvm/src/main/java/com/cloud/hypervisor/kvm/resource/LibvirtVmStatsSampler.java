@@ -0,0 +1,152 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.kvm.resource;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.libvirt.Connect;
+import org.libvirt.Domain;
+import org.libvirt.LibvirtException;
+
+import com.cloud.hypervisor.kvm.resource.LibvirtComputingResource.VmStats;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+
+/**
+ * Periodically samples the raw counters of all running domains in one pass and keeps the last
+ * few samples of every domain in a small ring buffer, so GetVmStatsCommand can be answered
+ * without touching libvirt.
+ */
+public class LibvirtVmStatsSampler implements Runnable {
+    private static final Logger s_logger = Logger.getLogger(LibvirtVmStatsSampler.class);
+
+    private final LibvirtComputingResource resource;
+    private final int historySize;
+    private final Map<String, Deque<VmStats>> samples = new ConcurrentHashMap<String, Deque<VmStats>>();
+    private ScheduledExecutorService executor;
+    private volatile long lastRunDurationMillis;
+
+    public LibvirtVmStatsSampler(final LibvirtComputingResource resource, final int historySize) {
+        this.resource = resource;
+        this.historySize = Math.max(1, historySize);
+    }
+
+    public void start(final int intervalSeconds) {
+        executor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("LibvirtVmStatsSampler"));
+        executor.scheduleWithFixedDelay(this, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            sampleAll(LibvirtConnection.getConnection());
+        } catch (final Throwable t) {
+            s_logger.warn("Failed to sample domain statistics: " + t.getMessage(), t);
+        }
+    }
+
+    protected void sampleAll(final Connect conn) throws LibvirtException {
+        final long start = System.currentTimeMillis();
+        final Set<String> running = new HashSet<String>();
+        for (final int id : conn.listDomains()) {
+            Domain dm = null;
+            String vmName = null;
+            try {
+                dm = conn.domainLookupByID(id);
+                vmName = dm.getName();
+                running.add(vmName);
+                addSample(vmName, resource.sampleVmStats(conn, dm, vmName));
+            } catch (final LibvirtException e) {
+                s_logger.debug("Unable to sample statistics of domain " + (vmName != null ? vmName : id) + ": " + e.getMessage());
+            } finally {
+                if (dm != null) {
+                    try {
+                        dm.free();
+                    } catch (final LibvirtException e) {
+                        s_logger.trace("Ignoring libvirt error.", e);
+                    }
+                }
+            }
+        }
+        samples.keySet().retainAll(running);
+
+        lastRunDurationMillis = System.currentTimeMillis() - start;
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Sampled statistics of " + running.size() + " domains in " + lastRunDurationMillis + "ms");
+        }
+    }
+
+    protected void addSample(final String vmName, final VmStats sample) {
+        Deque<VmStats> history = samples.get(vmName);
+        if (history == null) {
+            history = new ArrayDeque<VmStats>(historySize);
+            samples.put(vmName, history);
+        }
+        synchronized (history) {
+            if (history.size() >= historySize) {
+                history.removeFirst();
+            }
+            history.addLast(sample);
+        }
+    }
+
+    /**
+     * @return the most recent sample of the domain, or null when the domain has not been sampled
+     */
+    public VmStats getLatestSample(final String vmName) {
+        final Deque<VmStats> history = samples.get(vmName);
+        if (history == null) {
+            return null;
+        }
+        synchronized (history) {
+            return history.peekLast();
+        }
+    }
+
+    /**
+     * @return the samples of the domain kept in the ring buffer, oldest first
+     */
+    public List<VmStats> getSamples(final String vmName) {
+        final Deque<VmStats> history = samples.get(vmName);
+        if (history == null) {
+            return new ArrayList<VmStats>();
+        }
+        synchronized (history) {
+            return new ArrayList<VmStats>(history);
+        }
+    }
+
+    public long getLastRunDurationMillis() {
+        return lastRunDurationMillis;
+    }
+}
@@ -63,6 +63,7 @@ public final class LibvirtCreateVMSnapshotCommandWrapper extends CommandWrapper<
                     + "  <memory snapshot='internal' />" + "</domainsnapshot>";
 
             dm.snapshotCreateXML(vmSnapshotXML);
+            libvirtComputingResource.invalidateDomainCache(vmName);
 
             return new CreateVMSnapshotAnswer(cmd, cmd.getTarget(), cmd.getVolumeTOs());
         } catch (LibvirtException e) {
@@ -63,6 +63,7 @@ public final class LibvirtPlugNicCommandWrapper extends CommandWrapper<PlugNicCo
             final VifDriver vifDriver = libvirtComputingResource.getVifDriver(nic.getType(), nic.getName());
             final InterfaceDef interfaceDef = vifDriver.plug(nic, "Other PV", "", null);
             vm.attachDevice(interfaceDef.toString());
+            libvirtComputingResource.invalidateDomainCache(vmName);
 
             return new PlugNicAnswer(command, true, "success");
         } catch (final LibvirtException e) {
@@ -63,6 +63,7 @@ public final class LibvirtPrepareForMigrationCommandWrapper extends CommandWrapp
             final LibvirtUtilitiesHelper libvirtUtilitiesHelper = libvirtComputingResource.getLibvirtUtilitiesHelper();
 
             final Connect conn = libvirtUtilitiesHelper.getConnectionByVmName(vm.getName());
+            libvirtComputingResource.invalidateDomainCache(vm.getName());
             for (final NicTO nic : nics) {
                 libvirtComputingResource.getVifDriver(nic.getType(), nic.getName()).plug(nic, null, "", null);
             }
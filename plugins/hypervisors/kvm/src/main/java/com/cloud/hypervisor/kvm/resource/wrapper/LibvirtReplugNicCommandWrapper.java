@@ -63,6 +63,8 @@ public final class LibvirtReplugNicCommandWrapper extends CommandWrapper<ReplugN
             vm = libvirtComputingResource.getDomain(conn, vmName);
 
             InterfaceDef oldPluggedNic = findPluggedNic(libvirtComputingResource, nic, vmName, conn);
+            // the definition is modified below, take it out of the domain cache
+            libvirtComputingResource.invalidateDomainCache(vmName);
 
             final VifDriver newVifDriver = libvirtComputingResource.getVifDriver(nic.getType(), nic.getName());
             final InterfaceDef interfaceDef = newVifDriver.plug(nic, "Other PV", oldPluggedNic.getModel().toString(), null);
@@ -78,14 +80,17 @@ public final class LibvirtReplugNicCommandWrapper extends CommandWrapper<ReplugN
                 i++;
                 s_logger.debug("ReplugNic: Detaching interface" + oldPluggedNic + " (Attempt: " + i + ")");
                 vm.detachDevice(oldPluggedNic.toString());
+                libvirtComputingResource.invalidateDomainCache(vmName);
             } while (findPluggedNic(libvirtComputingResource, nic, vmName, conn) != null && i <= 10);
 
             s_logger.debug("ReplugNic: Attaching interface" + interfaceDef);
             vm.attachDevice(interfaceDef.toString());
+            libvirtComputingResource.invalidateDomainCache(vmName);
 
             interfaceDef.setLinkStateUp(true);
             s_logger.debug("ReplugNic: Updating interface" + interfaceDef);
             vm.updateDeviceFlags(interfaceDef.toString(), DomainAffect.LIVE.getValue());
+            libvirtComputingResource.invalidateDomainCache(vmName);
 
             // We don't know which "traffic type" is associated with
             // each interface at this point, so inform all vif drivers
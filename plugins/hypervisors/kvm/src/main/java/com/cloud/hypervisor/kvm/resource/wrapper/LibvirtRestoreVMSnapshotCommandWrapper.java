@@ -72,6 +72,7 @@ public final class LibvirtRestoreVMSnapshotCommandWrapper extends CommandWrapper
                         flags += 2; // VIR_DOMAIN_SNAPSHOT_CREATE_CURRENT = 2
                     }
                     dm.snapshotCreateXML(vmSnapshotXML, flags);
+                    libvirtComputingResource.invalidateDomainCache(vmName);
                 } catch (LibvirtException e) {
                     s_logger.debug("Failed to restore vm snapshot " + snapshot.getSnapshotName() + " on " + vmName);
                     return new RestoreVMSnapshotAnswer(cmd, false, e.toString());
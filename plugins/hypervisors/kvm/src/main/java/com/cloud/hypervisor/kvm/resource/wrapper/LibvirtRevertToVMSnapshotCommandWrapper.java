@@ -66,12 +66,14 @@ public final class LibvirtRevertToVMSnapshotCommandWrapper extends CommandWrappe
                 return new RevertToVMSnapshotAnswer(cmd, false, "Cannot find vmSnapshot with name: " + cmd.getTarget().getSnapshotName());
 
             dm.revertToSnapshot(snapshot);
+            libvirtComputingResource.invalidateDomainCache(vmName);
             snapshot.free();
 
             if (!snapshotMemory) {
                 dm.destroy();
                 if (dm.isPersistent() == 1)
                     dm.undefine();
+                libvirtComputingResource.invalidateDomainCache(vmName);
                 vmState = VirtualMachine.PowerState.PowerOff;
             } else {
                 vmState = VirtualMachine.PowerState.PowerOn;
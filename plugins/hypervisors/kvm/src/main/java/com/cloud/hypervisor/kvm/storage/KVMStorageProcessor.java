@@ -99,7 +99,6 @@ import com.cloud.exception.InvalidParameterValueException;
 import com.cloud.hypervisor.Hypervisor;
 import com.cloud.hypervisor.kvm.resource.LibvirtComputingResource;
 import com.cloud.hypervisor.kvm.resource.LibvirtConnection;
-import com.cloud.hypervisor.kvm.resource.LibvirtDomainXMLParser;
 import com.cloud.hypervisor.kvm.resource.LibvirtVMDef.DiskDef;
 import com.cloud.hypervisor.kvm.resource.LibvirtVMDef.DiskDef.DeviceType;
 import com.cloud.hypervisor.kvm.resource.LibvirtVMDef.DiskDef.DiscardType;
@@ -1155,6 +1154,7 @@ public class KVMStorageProcessor implements StorageProcessor {
             }
             throw e;
         } finally {
+            resource.invalidateDomainCache(vmName);
             if (dm != null) {
                 try {
                     dm.free();
@@ -1178,10 +1178,7 @@ public class KVMStorageProcessor implements StorageProcessor {
         final KVMStoragePool attachingPool = attachingDisk.getPool();
         try {
             dm = conn.domainLookupByName(vmName);
-            final LibvirtDomainXMLParser parser = new LibvirtDomainXMLParser();
-            final String domXml = dm.getXMLDesc(0);
-            parser.parseDomainXML(domXml);
-            disks = parser.getDisks();
+            disks = resource.getDomainXMLCache().get(dm).getDisks();
             if (!attach) {
                 if (attachingPool.getType() == StoragePoolType.RBD) {
                     if (resource.getHypervisorType() == Hypervisor.HypervisorType.LXC) {
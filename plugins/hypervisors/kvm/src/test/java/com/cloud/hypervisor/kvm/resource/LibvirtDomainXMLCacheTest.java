@@ -0,0 +1,131 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.kvm.resource;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.libvirt.Connect;
+import org.libvirt.Domain;
+import org.libvirt.LibvirtException;
+import org.mockito.Mockito;
+
+import com.cloud.hypervisor.kvm.resource.LibvirtDomainXMLCache.DomainModel;
+
+public class LibvirtDomainXMLCacheTest {
+    private static final String VMNAME = "i-2-3-VM";
+    private static final String UUID = "4d2c1526-865d-4fc9-a1ac-dbd1801a22d0";
+    private static final String XML = "<domain type='kvm' id='10'>" +
+            "<name>" + VMNAME + "</name>" +
+            "<uuid>" + UUID + "</uuid>" +
+            "<devices>" +
+            "<disk type='file' device='disk'>" +
+            "<driver name='qemu' type='qcow2' cache='none'/>" +
+            "<source file='/mnt/pool/disk.qcow2'/>" +
+            "<target dev='vda' bus='virtio'/>" +
+            "</disk>" +
+            "<interface type='bridge'>" +
+            "<mac address='02:00:00:00:00:01'/>" +
+            "<source bridge='cloudbr0'/>" +
+            "<target dev='vnet0'/>" +
+            "<model type='virtio'/>" +
+            "</interface>" +
+            "<graphics type='vnc' port='5900' autoport='yes' listen='0.0.0.0'/>" +
+            "</devices>" +
+            "</domain>";
+
+    private Connect connect;
+    private Domain domain;
+    private LibvirtDomainXMLCache cache;
+
+    @Before
+    public void setUp() throws LibvirtException {
+        connect = Mockito.mock(Connect.class);
+        domain = Mockito.mock(Domain.class);
+        Mockito.when(connect.domainLookupByName(VMNAME)).thenReturn(domain);
+        Mockito.when(domain.getUUIDString()).thenReturn(UUID);
+        Mockito.when(domain.getName()).thenReturn(VMNAME);
+        Mockito.when(domain.getID()).thenReturn(10);
+        Mockito.when(domain.getXMLDesc(0)).thenReturn(XML);
+        cache = new LibvirtDomainXMLCache();
+    }
+
+    @Test
+    public void testModelIsParsedOnce() throws LibvirtException {
+        final DomainModel model = cache.get(connect, VMNAME);
+        Assert.assertEquals(UUID, model.getUuid());
+        Assert.assertEquals("vnet0", model.getInterfaces().get(0).getDevName());
+        Assert.assertEquals("vda", model.getDisks().get(0).getDiskLabel());
+        Assert.assertEquals(Integer.valueOf(5900), model.getVncPort());
+
+        Assert.assertSame(model, cache.get(connect, VMNAME));
+        Mockito.verify(domain, Mockito.times(1)).getXMLDesc(0);
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+        Assert.assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testReturnedListsAreCopies() throws LibvirtException {
+        cache.get(connect, VMNAME).getInterfaces().clear();
+        Assert.assertEquals(1, cache.get(connect, VMNAME).getInterfaces().size());
+    }
+
+    @Test
+    public void testModelIsReloadedWhenDomainIdChanges() throws LibvirtException {
+        cache.get(connect, VMNAME);
+        Mockito.when(domain.getID()).thenReturn(11);
+
+        Assert.assertEquals(11, cache.get(connect, VMNAME).getId());
+        Mockito.verify(domain, Mockito.times(2)).getXMLDesc(0);
+        Assert.assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void testInvalidate() throws LibvirtException {
+        cache.get(connect, VMNAME);
+        cache.invalidate(VMNAME);
+        Assert.assertEquals(0, cache.size());
+        Assert.assertEquals(1, cache.getInvalidations());
+
+        cache.get(connect, VMNAME);
+        Mockito.verify(domain, Mockito.times(2)).getXMLDesc(0);
+    }
+
+    @Test
+    public void testDomainWithoutUuidIsNotCached() throws LibvirtException {
+        Mockito.when(domain.getUUIDString()).thenReturn(null);
+
+        cache.get(connect, VMNAME);
+        cache.get(connect, VMNAME);
+        Mockito.verify(domain, Mockito.times(2)).getXMLDesc(0);
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testResourceReadsTopologyFromCache() throws LibvirtException {
+        final LibvirtComputingResource resource = new LibvirtComputingResource();
+        Assert.assertEquals(1, resource.getInterfaces(connect, VMNAME).size());
+        Assert.assertEquals(1, resource.getDisks(connect, VMNAME).size());
+        Assert.assertEquals(Integer.valueOf(5900), resource.getVncPort(connect, VMNAME));
+        Mockito.verify(domain, Mockito.times(1)).getXMLDesc(0);
+
+        resource.invalidateDomainCache(VMNAME);
+        resource.getInterfaces(connect, VMNAME);
+        Mockito.verify(domain, Mockito.times(2)).getXMLDesc(0);
+    }
+}
@@ -0,0 +1,167 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.kvm.resource;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.libvirt.Connect;
+import org.libvirt.Domain;
+import org.libvirt.DomainBlockStats;
+import org.libvirt.DomainInfo;
+import org.libvirt.DomainInterfaceStats;
+import org.libvirt.LibvirtException;
+import org.libvirt.MemoryStatistic;
+import org.libvirt.NodeInfo;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+
+import com.cloud.agent.api.VmStatsEntry;
+import com.cloud.hypervisor.kvm.resource.LibvirtComputingResource.VmStats;
+import com.cloud.hypervisor.kvm.resource.LibvirtVMDef.DiskDef;
+import com.cloud.hypervisor.kvm.resource.LibvirtVMDef.InterfaceDef;
+
+public class LibvirtVmStatsSamplerTest {
+    private static final String VMNAME = "i-2-3-VM";
+
+    private Connect connect;
+    private Domain domain;
+    private int interfaceLookups;
+    private int diskLookups;
+    private LibvirtComputingResource resource;
+
+    @Before
+    public void setUp() throws LibvirtException {
+        connect = Mockito.mock(Connect.class);
+        domain = Mockito.mock(Domain.class);
+        final DomainInfo domainInfo = new DomainInfo();
+        domainInfo.cpuTime = 1000000000L;
+        Mockito.when(domain.getInfo()).thenReturn(domainInfo);
+        Mockito.when(domain.getName()).thenReturn(VMNAME);
+        Mockito.when(domain.memoryStats(Matchers.anyInt())).thenReturn(new MemoryStatistic[0]);
+        Mockito.when(domain.interfaceStats(Matchers.anyString())).thenReturn(new DomainInterfaceStats());
+        Mockito.when(domain.blockStats(Matchers.anyString())).thenReturn(new DomainBlockStats());
+        Mockito.when(connect.domainLookupByName(VMNAME)).thenReturn(domain);
+        Mockito.when(connect.domainLookupByID(1)).thenReturn(domain);
+        final NodeInfo nodeInfo = new NodeInfo();
+        nodeInfo.cpus = 4;
+        Mockito.when(connect.nodeInfo()).thenReturn(nodeInfo);
+
+        resource = new LibvirtComputingResource() {
+            @Override
+            public List<InterfaceDef> getInterfaces(final Connect conn, final String vmName) {
+                interfaceLookups++;
+                final InterfaceDef interfaceDef = new InterfaceDef();
+                interfaceDef.defBridgeNet("cloudbr0", "vnet0", "02:00:00:00:00:01", InterfaceDef.NicModel.VIRTIO);
+                return Arrays.asList(interfaceDef);
+            }
+
+            @Override
+            public List<DiskDef> getDisks(final Connect conn, final String vmName) {
+                diskLookups++;
+                final DiskDef diskDef = new DiskDef();
+                diskDef.defFileBasedDisk("/mnt/pool/disk", "vda", DiskDef.DiskBus.VIRTIO, DiskDef.DiskFmtType.QCOW2);
+                return Arrays.asList(diskDef);
+            }
+        };
+    }
+
+    private VmStats sample(final long timeInMillis, final long rx) {
+        final VmStats stats = new VmStats();
+        stats._timestamp = Calendar.getInstance();
+        stats._timestamp.setTimeInMillis(timeInMillis);
+        stats._rx = rx;
+        return stats;
+    }
+
+    @Test
+    public void testDevicesAreCachedUntilInvalidated() throws LibvirtException {
+        resource.getVmStat(connect, VMNAME);
+        resource.getVmStat(connect, VMNAME);
+        Assert.assertEquals(1, interfaceLookups);
+        Assert.assertEquals(1, diskLookups);
+        Mockito.verify(domain, Mockito.times(2)).interfaceStats("vnet0");
+        Mockito.verify(domain, Mockito.times(2)).blockStats("vda");
+
+        resource.invalidateDomainCache(VMNAME);
+        resource.getVmStat(connect, VMNAME);
+        Assert.assertEquals(2, interfaceLookups);
+        Assert.assertEquals(2, diskLookups);
+    }
+
+    @Test
+    public void testDevicesAreRefreshedWhenADeviceIsGone() throws LibvirtException {
+        resource.getVmStat(connect, VMNAME);
+        Mockito.when(domain.interfaceStats("vnet0")).thenThrow(LibvirtException.class).thenReturn(new DomainInterfaceStats());
+
+        Assert.assertNotNull(resource.getVmStat(connect, VMNAME));
+        Assert.assertEquals(2, interfaceLookups);
+    }
+
+    @Test
+    public void testSamplerKeepsBoundedHistoryOfRunningDomains() throws LibvirtException {
+        final LibvirtVmStatsSampler sampler = new LibvirtVmStatsSampler(resource, 2);
+        Mockito.when(connect.listDomains()).thenReturn(new int[] {1});
+
+        sampler.sampleAll(connect);
+        sampler.sampleAll(connect);
+        sampler.sampleAll(connect);
+        Assert.assertEquals(2, sampler.getSamples(VMNAME).size());
+        Assert.assertNotNull(sampler.getLatestSample(VMNAME));
+        Assert.assertEquals(1, interfaceLookups);
+        Mockito.verify(connect, Mockito.never()).domainLookupByName(VMNAME);
+
+        Mockito.when(connect.listDomains()).thenReturn(new int[0]);
+        sampler.sampleAll(connect);
+        Assert.assertNull(sampler.getLatestSample(VMNAME));
+        Assert.assertTrue(sampler.getSamples(VMNAME).isEmpty());
+    }
+
+    @Test
+    public void testSamplesAreKeptOldestFirst() {
+        final LibvirtVmStatsSampler sampler = new LibvirtVmStatsSampler(resource, 5);
+        final long now = System.currentTimeMillis();
+        sampler.addSample(VMNAME, sample(now - 20000, 1024));
+        sampler.addSample(VMNAME, sample(now - 10000, 3072));
+        Assert.assertEquals(3072, sampler.getLatestSample(VMNAME)._rx);
+        Assert.assertEquals(1024, sampler.getSamples(VMNAME).get(0)._rx);
+    }
+
+    @Test
+    public void testGetVmStatUsesLatestSample() throws LibvirtException {
+        final LibvirtVmStatsSampler sampler = new LibvirtVmStatsSampler(resource, 5);
+        resource.setVmStatsSampler(sampler);
+        final long now = System.currentTimeMillis();
+
+        sampler.addSample(VMNAME, sample(now - 20000, 1024));
+        resource.getVmStat(connect, VMNAME);
+        sampler.addSample(VMNAME, sample(now - 10000, 3072));
+        final VmStatsEntry entry = resource.getVmStat(connect, VMNAME);
+
+        Assert.assertEquals(2.0, entry.getNetworkReadKBs(), 0.0);
+        // answered from the samples, libvirt has not been asked for the domain
+        Mockito.verify(connect, Mockito.never()).domainLookupByName(VMNAME);
+
+        // no new sample since the last report, the domain is sampled on demand
+        resource.getVmStat(connect, VMNAME);
+        Mockito.verify(connect, Mockito.times(1)).domainLookupByName(VMNAME);
+    }
+}
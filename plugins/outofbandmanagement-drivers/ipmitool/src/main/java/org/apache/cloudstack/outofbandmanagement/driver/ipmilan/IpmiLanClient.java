@@ -0,0 +1,174 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.outofbandmanagement.driver.ipmilan;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.SecureRandom;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends the packets of all IPMI sessions from one non-blocking UDP socket. A single receiver thread hands every
+ * incoming packet to the session it belongs to, by the session id the remote console chose.
+ */
+public class IpmiLanClient {
+    public static final Logger LOG = Logger.getLogger(IpmiLanClient.class);
+
+    private static final int MAX_DATAGRAM_LENGTH = 1024;
+    private static final int MAX_QUEUED_PACKETS = 16;
+
+    private static final class Exchange {
+        private final InetSocketAddress address;
+        private final BlockingQueue<IpmiLanPacket> packets = new LinkedBlockingQueue<IpmiLanPacket>(MAX_QUEUED_PACKETS);
+
+        private Exchange(final InetSocketAddress address) {
+            this.address = address;
+        }
+    }
+
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final Thread receiver;
+    private final ConcurrentHashMap<Integer, Exchange> exchanges = new ConcurrentHashMap<Integer, Exchange>();
+    private final AtomicInteger consoleSessionIds = new AtomicInteger(new SecureRandom().nextInt());
+    private volatile boolean running = true;
+
+    public IpmiLanClient() throws IOException {
+        channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+        channel.bind(null);
+        selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+        receiver = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                receive();
+            }
+        }, "IpmiLanReceiver");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    /**
+     * Reserves a new remote console session id, and the queue the packets of that session are delivered to.
+     */
+    public int register(final InetSocketAddress address) {
+        while (true) {
+            final int consoleSessionId = consoleSessionIds.incrementAndGet();
+            if (consoleSessionId != 0 && exchanges.putIfAbsent(consoleSessionId, new Exchange(address)) == null) {
+                return consoleSessionId;
+            }
+        }
+    }
+
+    public BlockingQueue<IpmiLanPacket> getPackets(final int consoleSessionId) {
+        final Exchange exchange = exchanges.get(consoleSessionId);
+        if (exchange == null) {
+            throw new IpmiLanException("Session " + consoleSessionId + " is not registered");
+        }
+        return exchange.packets;
+    }
+
+    public void unregister(final int consoleSessionId) {
+        exchanges.remove(consoleSessionId);
+    }
+
+    public void send(final InetSocketAddress address, final byte[] datagram) {
+        try {
+            // a datagram that does not fit into the send buffer is dropped like one lost on the network
+            if (channel.send(ByteBuffer.wrap(datagram), address) == 0 && LOG.isTraceEnabled()) {
+                LOG.trace("Send buffer full, dropped IPMI packet to " + address);
+            }
+        } catch (final IOException e) {
+            throw new IpmiLanException("Unable to send IPMI packet to " + address, e);
+        }
+    }
+
+    private void receive() {
+        final ByteBuffer buffer = ByteBuffer.allocate(MAX_DATAGRAM_LENGTH);
+        while (running) {
+            try {
+                if (selector.select(1000) == 0) {
+                    continue;
+                }
+                selector.selectedKeys().clear();
+                while (true) {
+                    buffer.clear();
+                    final SocketAddress from = channel.receive(buffer);
+                    if (from == null) {
+                        break;
+                    }
+                    buffer.flip();
+                    dispatch(from, buffer);
+                }
+            } catch (final ClosedSelectorException | ClosedChannelException e) {
+                break;
+            } catch (final IOException e) {
+                LOG.warn("Failed to receive IPMI packets", e);
+            }
+        }
+    }
+
+    private void dispatch(final SocketAddress from, final ByteBuffer buffer) {
+        final byte[] datagram = new byte[buffer.remaining()];
+        buffer.get(datagram);
+        final IpmiLanPacket packet;
+        try {
+            packet = IpmiLanPacket.decode(datagram, datagram.length);
+        } catch (final IpmiLanException e) {
+            if (LOG.isTraceEnabled()) {
+                LOG.trace("Dropped invalid IPMI packet from " + from + ": " + e.getMessage());
+            }
+            return;
+        }
+        final Exchange exchange = exchanges.get(packet.getConsoleSessionId());
+        if (exchange == null || !exchange.address.equals(from)) {
+            if (LOG.isTraceEnabled()) {
+                LOG.trace("Dropped IPMI packet from " + from + " for unknown session " + packet.getConsoleSessionId());
+            }
+            return;
+        }
+        if (!exchange.packets.offer(packet) && LOG.isTraceEnabled()) {
+            LOG.trace("Dropped IPMI packet from " + from + ", too many packets queued for session " + packet.getConsoleSessionId());
+        }
+    }
+
+    public void close() {
+        running = false;
+        try {
+            selector.close();
+            channel.close();
+            receiver.join(2000);
+        } catch (final IOException e) {
+            LOG.warn("Failed to close IPMI socket", e);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
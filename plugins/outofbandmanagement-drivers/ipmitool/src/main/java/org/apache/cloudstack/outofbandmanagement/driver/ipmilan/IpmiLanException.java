@@ -0,0 +1,63 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.outofbandmanagement.driver.ipmilan;
+
+import com.cloud.utils.exception.CloudRuntimeException;
+
+public class IpmiLanException extends CloudRuntimeException {
+    public static final int NO_COMPLETION_CODE = -1;
+
+    private final boolean authFailure;
+    private final int completionCode;
+
+    public IpmiLanException(final String message) {
+        this(message, false);
+    }
+
+    public IpmiLanException(final String message, final boolean authFailure) {
+        super(message);
+        this.authFailure = authFailure;
+        this.completionCode = NO_COMPLETION_CODE;
+    }
+
+    /**
+     * For a request the BMC answered with an error completion code.
+     */
+    public IpmiLanException(final String message, final int completionCode) {
+        super(message);
+        this.authFailure = false;
+        this.completionCode = completionCode;
+    }
+
+    public IpmiLanException(final String message, final Throwable cause) {
+        super(message, cause);
+        this.authFailure = false;
+        this.completionCode = NO_COMPLETION_CODE;
+    }
+
+    public boolean isAuthFailure() {
+        return authFailure;
+    }
+
+    public int getCompletionCode() {
+        return completionCode;
+    }
+
+    public boolean isCompletionCodeError() {
+        return completionCode != NO_COMPLETION_CODE;
+    }
+}
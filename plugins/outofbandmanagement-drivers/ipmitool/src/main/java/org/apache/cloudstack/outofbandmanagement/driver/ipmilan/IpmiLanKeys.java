@@ -0,0 +1,111 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.outofbandmanagement.driver.ipmilan;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * The keys of an RMCP+ session using cipher suite 3: RAKP-HMAC-SHA1 authentication, HMAC-SHA1-96 integrity
+ * and AES-CBC-128 confidentiality.
+ */
+public final class IpmiLanKeys {
+    public static final int INTEGRITY_LENGTH = 12;
+
+    private static final int SHA1_LENGTH = 20;
+    private static final int AES_BLOCK_LENGTH = 16;
+
+    private final byte[] integrityKey;
+    private final SecretKeySpec confidentialityKey;
+    private final SecureRandom random;
+
+    public IpmiLanKeys(final byte[] sessionIntegrityKey, final SecureRandom random) {
+        this.integrityKey = hmacSha1(sessionIntegrityKey, constant(0x01));
+        this.confidentialityKey = new SecretKeySpec(Arrays.copyOf(hmacSha1(sessionIntegrityKey, constant(0x02)), AES_BLOCK_LENGTH), "AES");
+        this.random = random;
+    }
+
+    private static byte[] constant(final int value) {
+        final byte[] bytes = new byte[SHA1_LENGTH];
+        Arrays.fill(bytes, (byte) value);
+        return bytes;
+    }
+
+    public static byte[] hmacSha1(final byte[] key, final byte[]... parts) {
+        try {
+            final Mac mac = Mac.getInstance("HmacSHA1");
+            // HMAC pads keys with zeros, an empty key is the same as a key of zeros
+            mac.init(new SecretKeySpec(key.length == 0 ? new byte[SHA1_LENGTH] : key, "HmacSHA1"));
+            for (final byte[] part : parts) {
+                mac.update(part);
+            }
+            return mac.doFinal();
+        } catch (final GeneralSecurityException e) {
+            throw new IpmiLanException("Unable to compute HMAC-SHA1", e);
+        }
+    }
+
+    public byte[] integrity(final byte[] data, final int offset, final int length) {
+        return Arrays.copyOf(hmacSha1(integrityKey, Arrays.copyOfRange(data, offset, offset + length)), INTEGRITY_LENGTH);
+    }
+
+    public byte[] encrypt(final byte[] data) {
+        final int padLength = (AES_BLOCK_LENGTH - (data.length + 1) % AES_BLOCK_LENGTH) % AES_BLOCK_LENGTH;
+        final byte[] plain = Arrays.copyOf(data, data.length + padLength + 1);
+        for (int i = 0; i < padLength; i++) {
+            plain[data.length + i] = (byte) (i + 1);
+        }
+        plain[plain.length - 1] = (byte) padLength;
+
+        final byte[] iv = new byte[AES_BLOCK_LENGTH];
+        random.nextBytes(iv);
+        try {
+            final Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, confidentialityKey, new IvParameterSpec(iv));
+            final byte[] encrypted = cipher.doFinal(plain);
+            final byte[] payload = Arrays.copyOf(iv, iv.length + encrypted.length);
+            System.arraycopy(encrypted, 0, payload, iv.length, encrypted.length);
+            return payload;
+        } catch (final GeneralSecurityException e) {
+            throw new IpmiLanException("Unable to encrypt IPMI payload", e);
+        }
+    }
+
+    public byte[] decrypt(final byte[] payload) {
+        if (payload.length < 2 * AES_BLOCK_LENGTH || payload.length % AES_BLOCK_LENGTH != 0) {
+            throw new IpmiLanException("Invalid encrypted IPMI payload length " + payload.length);
+        }
+        final byte[] plain;
+        try {
+            final Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, confidentialityKey, new IvParameterSpec(payload, 0, AES_BLOCK_LENGTH));
+            plain = cipher.doFinal(payload, AES_BLOCK_LENGTH, payload.length - AES_BLOCK_LENGTH);
+        } catch (final GeneralSecurityException e) {
+            throw new IpmiLanException("Unable to decrypt IPMI payload", e);
+        }
+        final int padLength = plain[plain.length - 1] & 0xFF;
+        if (padLength >= AES_BLOCK_LENGTH) {
+            throw new IpmiLanException("Invalid confidentiality pad length " + padLength);
+        }
+        return Arrays.copyOf(plain, plain.length - padLength - 1);
+    }
+}
@@ -0,0 +1,276 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.outofbandmanagement.driver.ipmilan;
+
+import com.cloud.utils.component.AdapterBase;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+import org.apache.cloudstack.framework.config.ConfigKey;
+import org.apache.cloudstack.framework.config.Configurable;
+import org.apache.cloudstack.outofbandmanagement.OutOfBandManagement;
+import org.apache.cloudstack.outofbandmanagement.OutOfBandManagementDriver;
+import org.apache.cloudstack.outofbandmanagement.driver.OutOfBandManagementDriverChangePasswordCommand;
+import org.apache.cloudstack.outofbandmanagement.driver.OutOfBandManagementDriverCommand;
+import org.apache.cloudstack.outofbandmanagement.driver.OutOfBandManagementDriverPowerCommand;
+import org.apache.cloudstack.outofbandmanagement.driver.OutOfBandManagementDriverResponse;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Out-of-band management driver that speaks IPMI 2.0 over LAN (RMCP+) from the management server itself, instead
+ * of forking an ipmitool process for every operation. The sessions of all BMCs share one UDP socket, and the
+ * session with a BMC is reused by the following operations until it has been idle for a while.
+ */
+public final class IpmiLanOutOfBandManagementDriver extends AdapterBase implements OutOfBandManagementDriver, Configurable {
+    public static final Logger LOG = Logger.getLogger(IpmiLanOutOfBandManagementDriver.class);
+
+    private static final int DEFAULT_IPMI_PORT = 623;
+    private static final int MAX_USER_ID = 63;
+    private static final int SET_PASSWORD = 0x02;
+    private static final long CLOSE_SESSION_TIMEOUT_MS = 2000L;
+
+    public final ConfigKey<Integer> IpmiLanRetries = new ConfigKey<Integer>("Advanced", Integer.class, "outofbandmanagement.ipmilan.retries", "1",
+            "The number of times the IpmiLan driver retransmits an IPMI request that is not answered. Default 1.", true, ConfigKey.Scope.Global);
+
+    public final ConfigKey<Integer> IpmiLanSessionIdleTimeout = new ConfigKey<Integer>("Advanced", Integer.class, "outofbandmanagement.ipmilan.session.idle.timeout", "20",
+            "The number of seconds after which the IpmiLan driver closes an unused IPMI session. It should be lower than the session inactivity timeout of the BMCs. Default 20.",
+            false, ConfigKey.Scope.Global);
+
+    private final Map<String, IpmiLanSession> sessions = new ConcurrentHashMap<String, IpmiLanSession>();
+    private volatile IpmiLanClient client;
+    private ScheduledExecutorService sessionCleaner;
+
+    private final class SessionCleanupTask implements Runnable {
+        @Override
+        public void run() {
+            final long idleSince = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(IpmiLanSessionIdleTimeout.value());
+            final Iterator<IpmiLanSession> it = sessions.values().iterator();
+            while (it.hasNext()) {
+                final IpmiLanSession session = it.next();
+                if (session.getLastUsed() < idleSince) {
+                    it.remove();
+                    session.close(System.currentTimeMillis() + CLOSE_SESSION_TIMEOUT_MS);
+                }
+            }
+        }
+    }
+
+    @Override
+    public OutOfBandManagementDriverResponse execute(final OutOfBandManagementDriverCommand cmd) {
+        final IpmiLanClient ipmiClient = client;
+        if (ipmiClient == null) {
+            return new OutOfBandManagementDriverResponse(null, "Driver not enabled or shutdown", false);
+        }
+        final long deadline = System.currentTimeMillis() + cmd.getTimeout().getMillis();
+        try {
+            if (cmd instanceof OutOfBandManagementDriverPowerCommand) {
+                return execute(ipmiClient, (OutOfBandManagementDriverPowerCommand) cmd, deadline);
+            } else if (cmd instanceof OutOfBandManagementDriverChangePasswordCommand) {
+                return execute(ipmiClient, (OutOfBandManagementDriverChangePasswordCommand) cmd, deadline);
+            }
+            return new OutOfBandManagementDriverResponse(null, "Unsupported Command", false);
+        } catch (final IpmiLanException e) {
+            final OutOfBandManagementDriverResponse response = new OutOfBandManagementDriverResponse(null, e.getMessage(), false);
+            response.setAuthFailure(e.isAuthFailure());
+            return response;
+        }
+    }
+
+    private OutOfBandManagementDriverResponse execute(final IpmiLanClient ipmiClient, final OutOfBandManagementDriverPowerCommand cmd, final long deadline) {
+        final OutOfBandManagement.PowerOperation operation = cmd.getPowerOperation();
+        if (operation == OutOfBandManagement.PowerOperation.STATUS) {
+            final byte[] status = execute(ipmiClient, cmd.getOptions(), IpmiLanSession.NETFN_CHASSIS, IpmiLanSession.CMD_GET_CHASSIS_STATUS, new byte[0], deadline);
+            if (status.length < 1) {
+                throw new IpmiLanException("Empty chassis status response");
+            }
+            final boolean on = (status[0] & 0x01) != 0;
+            final OutOfBandManagementDriverResponse response = new OutOfBandManagementDriverResponse("Chassis Power is " + (on ? "on" : "off"), null, true);
+            response.setPowerState(on ? OutOfBandManagement.PowerState.On : OutOfBandManagement.PowerState.Off);
+            return response;
+        }
+
+        final int control;
+        final String result;
+        switch (operation) {
+            case OFF:
+                control = 0x00;
+                result = "Down/Off";
+                break;
+            case ON:
+                control = 0x01;
+                result = "Up/On";
+                break;
+            case CYCLE:
+                control = 0x02;
+                result = "Cycle";
+                break;
+            case RESET:
+                control = 0x03;
+                result = "Reset";
+                break;
+            case SOFT:
+                control = 0x05;
+                result = "Soft";
+                break;
+            default:
+                throw new IllegalStateException("Invalid power operation requested: " + operation);
+        }
+        execute(ipmiClient, cmd.getOptions(), IpmiLanSession.NETFN_CHASSIS, IpmiLanSession.CMD_CHASSIS_CONTROL, new byte[] {(byte) control}, deadline);
+        return new OutOfBandManagementDriverResponse("Chassis Power Control: " + result, null, true);
+    }
+
+    private OutOfBandManagementDriverResponse execute(final IpmiLanClient ipmiClient, final OutOfBandManagementDriverChangePasswordCommand cmd, final long deadline) {
+        final ImmutableMap<OutOfBandManagement.Option, String> options = cmd.getOptions();
+        final byte[] username = options.get(OutOfBandManagement.Option.USERNAME).getBytes(StandardCharsets.US_ASCII);
+        final byte[] newPassword = cmd.getNewPassword().getBytes(StandardCharsets.US_ASCII);
+        if (newPassword.length > 20) {
+            throw new IpmiLanException("IPMI passwords are limited to 20 characters");
+        }
+
+        Integer userId = null;
+        for (int id = 1; id <= MAX_USER_ID && userId == null; id++) {
+            final byte[] name;
+            try {
+                name = execute(ipmiClient, options, IpmiLanSession.NETFN_APP, IpmiLanSession.CMD_GET_USER_NAME, new byte[] {(byte) id}, deadline);
+            } catch (final IpmiLanException e) {
+                if (e.isCompletionCodeError()) {
+                    // past the last user id of the BMC
+                    break;
+                }
+                throw e;
+            }
+            int length = 0;
+            while (length < name.length && name[length] != 0) {
+                length++;
+            }
+            if (Arrays.equals(username, Arrays.copyOf(name, length))) {
+                userId = id;
+            }
+        }
+        if (userId == null) {
+            throw new IpmiLanException("No IPMI user ID found for the username: " + options.get(OutOfBandManagement.Option.USERNAME));
+        }
+
+        // passwords longer than 16 characters need the 20 byte format, flagged in the user id byte
+        final boolean longPassword = newPassword.length > 16;
+        final byte[] data = new byte[2 + (longPassword ? 20 : 16)];
+        data[0] = (byte) (userId | (longPassword ? 0x80 : 0));
+        data[1] = SET_PASSWORD;
+        System.arraycopy(newPassword, 0, data, 2, newPassword.length);
+        execute(ipmiClient, options, IpmiLanSession.NETFN_APP, IpmiLanSession.CMD_SET_USER_PASSWORD, data, deadline);
+        return new OutOfBandManagementDriverResponse("Set User Password command successful (user " + userId + ")", null, true);
+    }
+
+    /**
+     * Runs an IPMI command in the session with the BMC. A command that fails on a reused session is retried once on a
+     * new session, the BMC may have dropped the old one.
+     */
+    private byte[] execute(final IpmiLanClient ipmiClient, final ImmutableMap<OutOfBandManagement.Option, String> options, final int netFn, final int command,
+                           final byte[] data, final long deadline) {
+        final String address = options.get(OutOfBandManagement.Option.ADDRESS);
+        final String username = options.get(OutOfBandManagement.Option.USERNAME);
+        final String password = Strings.nullToEmpty(options.get(OutOfBandManagement.Option.PASSWORD));
+        if (Strings.isNullOrEmpty(address) || Strings.isNullOrEmpty(username)) {
+            throw new IpmiLanException("IPMI address and username are required");
+        }
+        final String port = options.get(OutOfBandManagement.Option.PORT);
+        final String key = username + "@" + address + ":" + (Strings.isNullOrEmpty(port) ? DEFAULT_IPMI_PORT : port);
+
+        IpmiLanSession session = sessions.get(key);
+        if (session != null && !session.hasPassword(password)) {
+            sessions.remove(key, session);
+            session.release();
+            session = null;
+        }
+        if (session != null) {
+            try {
+                // leave half of the time for a new session in case the BMC no longer knows this one
+                final long now = System.currentTimeMillis();
+                return session.execute(netFn, command, data, now + (deadline - now) / 2);
+            } catch (final IpmiLanException e) {
+                if (e.isCompletionCodeError()) {
+                    throw e;
+                }
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("IPMI command failed on the existing session with " + address + ", opening a new one: " + e.getMessage());
+                }
+                sessions.remove(key, session);
+                session.release();
+            }
+        }
+
+        final int ipmiPort = Strings.isNullOrEmpty(port) ? DEFAULT_IPMI_PORT : Integer.parseInt(port);
+        session = new IpmiLanSession(ipmiClient, new InetSocketAddress(address, ipmiPort), username, password, IpmiLanRetries.value());
+        session.open(deadline);
+        final IpmiLanSession existing = sessions.put(key, session);
+        if (existing != null && existing != session) {
+            existing.close(System.currentTimeMillis() + CLOSE_SESSION_TIMEOUT_MS);
+        }
+        return session.execute(netFn, command, data, deadline);
+    }
+
+    @Override
+    public boolean start() {
+        try {
+            client = new IpmiLanClient();
+        } catch (final IOException e) {
+            LOG.error("OutOfBandManagementDriver ipmilan failed to open its UDP socket", e);
+            return false;
+        }
+        sessionCleaner = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("IpmiLanSessionCleaner"));
+        sessionCleaner.scheduleWithFixedDelay(new SessionCleanupTask(), 5L, 5L, TimeUnit.SECONDS);
+        return true;
+    }
+
+    @Override
+    public boolean stop() {
+        if (sessionCleaner != null) {
+            sessionCleaner.shutdownNow();
+        }
+        final IpmiLanClient ipmiClient = client;
+        client = null;
+        for (final IpmiLanSession session : sessions.values()) {
+            session.close(System.currentTimeMillis() + CLOSE_SESSION_TIMEOUT_MS);
+        }
+        sessions.clear();
+        if (ipmiClient != null) {
+            ipmiClient.close();
+        }
+        return true;
+    }
+
+    @Override
+    public String getConfigComponentName() {
+        return IpmiLanOutOfBandManagementDriver.class.getSimpleName();
+    }
+
+    @Override
+    public ConfigKey<?>[] getConfigKeys() {
+        return new ConfigKey<?>[] {IpmiLanRetries, IpmiLanSessionIdleTimeout};
+    }
+}
@@ -0,0 +1,262 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.outofbandmanagement.driver.ipmilan;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * An IPMI 2.0 (RMCP+) session packet, and the IPMI messages carried in it.
+ */
+public final class IpmiLanPacket {
+    public static final int PAYLOAD_IPMI = 0x00;
+    public static final int PAYLOAD_OPEN_SESSION_REQUEST = 0x10;
+    public static final int PAYLOAD_OPEN_SESSION_RESPONSE = 0x11;
+    public static final int PAYLOAD_RAKP_1 = 0x12;
+    public static final int PAYLOAD_RAKP_2 = 0x13;
+    public static final int PAYLOAD_RAKP_3 = 0x14;
+    public static final int PAYLOAD_RAKP_4 = 0x15;
+
+    private static final byte[] RMCP_HEADER = {0x06, 0x00, (byte) 0xFF, 0x07};
+    private static final int AUTH_TYPE_RMCP_PLUS = 0x06;
+    private static final int PAYLOAD_ENCRYPTED = 0x80;
+    private static final int PAYLOAD_AUTHENTICATED = 0x40;
+    private static final int SESSION_HEADER_LENGTH = RMCP_HEADER.length + 12;
+    private static final int NEXT_HEADER = 0x07;
+
+    private static final int BMC_ADDRESS = 0x20;
+    private static final int REMOTE_CONSOLE_ADDRESS = 0x81;
+
+    private final int payloadType;
+    private final boolean encrypted;
+    private final boolean authenticated;
+    private final int sessionId;
+    private final int sequence;
+    private final byte[] payload;
+    private final byte[] datagram;
+
+    private IpmiLanPacket(final int payloadType, final boolean encrypted, final boolean authenticated, final int sessionId, final int sequence, final byte[] payload, final byte[] datagram) {
+        this.payloadType = payloadType;
+        this.encrypted = encrypted;
+        this.authenticated = authenticated;
+        this.sessionId = sessionId;
+        this.sequence = sequence;
+        this.payload = payload;
+        this.datagram = datagram;
+    }
+
+    /**
+     * Encodes a session packet. With keys the payload is encrypted and the packet is authenticated.
+     */
+    public static byte[] encode(final int payloadType, final int sessionId, final int sequence, final byte[] payload, final IpmiLanKeys keys) {
+        final byte[] body = keys == null ? payload : keys.encrypt(payload);
+        int padLength = 0;
+        int trailerLength = 0;
+        if (keys != null) {
+            // the authenticated part, from the auth type up to the next header, is a multiple of 4 bytes
+            padLength = (4 - (SESSION_HEADER_LENGTH - RMCP_HEADER.length + body.length + 2) % 4) % 4;
+            trailerLength = padLength + 2 + IpmiLanKeys.INTEGRITY_LENGTH;
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocate(SESSION_HEADER_LENGTH + body.length + trailerLength).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(RMCP_HEADER);
+        buffer.put((byte) AUTH_TYPE_RMCP_PLUS);
+        buffer.put((byte) (payloadType | (keys == null ? 0 : PAYLOAD_ENCRYPTED | PAYLOAD_AUTHENTICATED)));
+        buffer.putInt(sessionId);
+        buffer.putInt(sequence);
+        buffer.putShort((short) body.length);
+        buffer.put(body);
+        if (keys != null) {
+            for (int i = 0; i < padLength; i++) {
+                buffer.put((byte) 0xFF);
+            }
+            buffer.put((byte) padLength);
+            buffer.put((byte) NEXT_HEADER);
+            buffer.put(keys.integrity(buffer.array(), RMCP_HEADER.length, buffer.position() - RMCP_HEADER.length));
+        }
+        return buffer.array();
+    }
+
+    public static IpmiLanPacket decode(final byte[] datagram, final int length) {
+        if (length < SESSION_HEADER_LENGTH || datagram[0] != RMCP_HEADER[0] || datagram[3] != RMCP_HEADER[3] || datagram[4] != AUTH_TYPE_RMCP_PLUS) {
+            throw new IpmiLanException("Not an RMCP+ session packet");
+        }
+        final ByteBuffer buffer = ByteBuffer.wrap(datagram, 0, length).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.position(RMCP_HEADER.length + 1);
+        final int type = buffer.get() & 0xFF;
+        final int sessionId = buffer.getInt();
+        final int sequence = buffer.getInt();
+        final int payloadLength = buffer.getShort() & 0xFFFF;
+        if (SESSION_HEADER_LENGTH + payloadLength > length) {
+            throw new IpmiLanException("Truncated RMCP+ session packet");
+        }
+        return new IpmiLanPacket(type & 0x3F, (type & PAYLOAD_ENCRYPTED) != 0, (type & PAYLOAD_AUTHENTICATED) != 0, sessionId, sequence,
+                Arrays.copyOfRange(datagram, SESSION_HEADER_LENGTH, SESSION_HEADER_LENGTH + payloadLength), Arrays.copyOf(datagram, length));
+    }
+
+    /**
+     * Verifies and decrypts the payload with the keys of the session.
+     */
+    public byte[] open(final IpmiLanKeys keys) {
+        if (!encrypted && !authenticated) {
+            return payload;
+        }
+        if (keys == null) {
+            throw new IpmiLanException("Secured packet received outside of an established session");
+        }
+        if (authenticated) {
+            final int integrityOffset = datagram.length - IpmiLanKeys.INTEGRITY_LENGTH;
+            if (integrityOffset < SESSION_HEADER_LENGTH + payload.length + 2) {
+                throw new IpmiLanException("Truncated session trailer");
+            }
+            final byte[] expected = keys.integrity(datagram, RMCP_HEADER.length, integrityOffset - RMCP_HEADER.length);
+            if (!MessageDigest.isEqual(expected, Arrays.copyOfRange(datagram, integrityOffset, datagram.length))) {
+                throw new IpmiLanException("Invalid integrity check value");
+            }
+        }
+        return encrypted ? keys.decrypt(payload) : payload;
+    }
+
+    /**
+     * @return the id the remote console chose for the session the packet belongs to
+     */
+    public int getConsoleSessionId() {
+        if ((payloadType == PAYLOAD_OPEN_SESSION_RESPONSE || payloadType == PAYLOAD_RAKP_2 || payloadType == PAYLOAD_RAKP_4) && payload.length >= 8) {
+            return readInt(payload, 4);
+        }
+        return sessionId;
+    }
+
+    public int getPayloadType() {
+        return payloadType;
+    }
+
+    public boolean isSecured() {
+        return encrypted && authenticated;
+    }
+
+    public int getSessionId() {
+        return sessionId;
+    }
+
+    public int getSequence() {
+        return sequence;
+    }
+
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    public static int readInt(final byte[] bytes, final int offset) {
+        return (bytes[offset] & 0xFF) | (bytes[offset + 1] & 0xFF) << 8 | (bytes[offset + 2] & 0xFF) << 16 | (bytes[offset + 3] & 0xFF) << 24;
+    }
+
+    public static byte[] intBytes(final int value) {
+        return ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(value).array();
+    }
+
+    private static byte checksum(final byte[] bytes, final int from, final int to) {
+        int sum = 0;
+        for (int i = from; i < to; i++) {
+            sum += bytes[i];
+        }
+        return (byte) -sum;
+    }
+
+    public static byte[] encodeRequest(final int netFn, final int command, final int requestSequence, final byte[] data) {
+        return encodeMessage(BMC_ADDRESS, netFn, REMOTE_CONSOLE_ADDRESS, requestSequence, command, null, data);
+    }
+
+    public static byte[] encodeResponse(final Message request, final int completionCode, final byte[] data) {
+        return encodeMessage(REMOTE_CONSOLE_ADDRESS, request.getNetFn() | 1, BMC_ADDRESS, request.getRequestSequence(), request.getCommand(), completionCode, data);
+    }
+
+    private static byte[] encodeMessage(final int targetAddress, final int netFn, final int sourceAddress, final int requestSequence, final int command, final Integer completionCode, final byte[] data) {
+        final int headerLength = completionCode == null ? 6 : 7;
+        final byte[] message = new byte[headerLength + data.length + 1];
+        message[0] = (byte) targetAddress;
+        message[1] = (byte) (netFn << 2);
+        message[2] = checksum(message, 0, 2);
+        message[3] = (byte) sourceAddress;
+        message[4] = (byte) (requestSequence << 2);
+        message[5] = (byte) command;
+        if (completionCode != null) {
+            message[6] = completionCode.byteValue();
+        }
+        System.arraycopy(data, 0, message, headerLength, data.length);
+        message[message.length - 1] = checksum(message, 3, message.length - 1);
+        return message;
+    }
+
+    public static Message decodeRequest(final byte[] message) {
+        return decodeMessage(message, false);
+    }
+
+    public static Message decodeResponse(final byte[] message) {
+        return decodeMessage(message, true);
+    }
+
+    private static Message decodeMessage(final byte[] message, final boolean response) {
+        final int headerLength = response ? 7 : 6;
+        if (message.length < headerLength + 1) {
+            throw new IpmiLanException("Truncated IPMI message");
+        }
+        if (checksum(message, 0, 3) != 0 || checksum(message, 3, message.length) != 0) {
+            throw new IpmiLanException("Invalid IPMI message checksum");
+        }
+        return new Message((message[1] & 0xFF) >> 2, message[5] & 0xFF, (message[4] & 0xFF) >> 2, response ? message[6] & 0xFF : 0,
+                Arrays.copyOfRange(message, headerLength, message.length - 1));
+    }
+
+    public static final class Message {
+        private final int netFn;
+        private final int command;
+        private final int requestSequence;
+        private final int completionCode;
+        private final byte[] data;
+
+        private Message(final int netFn, final int command, final int requestSequence, final int completionCode, final byte[] data) {
+            this.netFn = netFn;
+            this.command = command;
+            this.requestSequence = requestSequence;
+            this.completionCode = completionCode;
+            this.data = data;
+        }
+
+        public int getNetFn() {
+            return netFn;
+        }
+
+        public int getCommand() {
+            return command;
+        }
+
+        public int getRequestSequence() {
+            return requestSequence;
+        }
+
+        public int getCompletionCode() {
+            return completionCode;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+    }
+}
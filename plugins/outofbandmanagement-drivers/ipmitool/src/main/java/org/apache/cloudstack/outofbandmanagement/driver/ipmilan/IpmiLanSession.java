@@ -0,0 +1,329 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.outofbandmanagement.driver.ipmilan;
+
+import org.apache.log4j.Logger;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An RMCP+ session with one BMC, established with cipher suite 3 at the administrator privilege level. The
+ * session is kept open between commands; all calls are bound by an absolute deadline.
+ */
+public class IpmiLanSession {
+    public static final Logger LOG = Logger.getLogger(IpmiLanSession.class);
+
+    public static final int NETFN_CHASSIS = 0x00;
+    public static final int NETFN_APP = 0x06;
+    public static final int CMD_GET_CHASSIS_STATUS = 0x01;
+    public static final int CMD_CHASSIS_CONTROL = 0x02;
+    public static final int CMD_SET_SESSION_PRIVILEGE_LEVEL = 0x3B;
+    public static final int CMD_CLOSE_SESSION = 0x3C;
+    public static final int CMD_GET_USER_NAME = 0x46;
+    public static final int CMD_SET_USER_PASSWORD = 0x47;
+    public static final int PRIVILEGE_ADMINISTRATOR = 0x04;
+
+    // RMCP+ status codes of the RAKP messages that mean the credentials were not accepted
+    private static final int STATUS_UNAUTHORIZED_ROLE = 0x09;
+    private static final int STATUS_UNAUTHORIZED_NAME = 0x0D;
+    private static final int NAME_ONLY_LOOKUP = 0x10;
+    private static final int RANDOM_LENGTH = 16;
+    private static final int GUID_LENGTH = 16;
+    private static final int SHA1_LENGTH = 20;
+
+    private interface Filter<T> {
+        /**
+         * @return the content of the packet, or null if it is not the expected response
+         */
+        T accept(IpmiLanPacket packet);
+    }
+
+    private interface DatagramBuilder {
+        byte[] build();
+    }
+
+    private final IpmiLanClient client;
+    private final InetSocketAddress address;
+    private final byte[] username;
+    private final byte[] password;
+    private final int retries;
+    private final SecureRandom random = new SecureRandom();
+
+    private int consoleSessionId;
+    private int bmcSessionId;
+    private IpmiLanKeys keys;
+    private int sequence;
+    private int requestSequence;
+    private int messageTag;
+    private volatile long lastUsed = System.currentTimeMillis();
+
+    public IpmiLanSession(final IpmiLanClient client, final InetSocketAddress address, final String username, final String password, final int retries) {
+        this.client = client;
+        this.address = address;
+        this.username = username.getBytes(StandardCharsets.US_ASCII);
+        this.password = password.getBytes(StandardCharsets.US_ASCII);
+        this.retries = Math.max(0, retries);
+        if (this.username.length > 16 || this.password.length > SHA1_LENGTH) {
+            throw new IpmiLanException("IPMI user names are limited to 16 and passwords to 20 characters");
+        }
+    }
+
+    public synchronized boolean isOpen() {
+        return keys != null;
+    }
+
+    public boolean hasPassword(final String password) {
+        return Arrays.equals(this.password, password.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    public long getLastUsed() {
+        return lastUsed;
+    }
+
+    public synchronized void open(final long deadline) {
+        if (keys != null) {
+            return;
+        }
+        consoleSessionId = client.register(address);
+        try {
+            handshake(deadline);
+            // sessions start at the user privilege level, chassis control needs administrator
+            execute(NETFN_APP, CMD_SET_SESSION_PRIVILEGE_LEVEL, new byte[] {PRIVILEGE_ADMINISTRATOR}, deadline);
+        } catch (final RuntimeException e) {
+            release();
+            throw e;
+        }
+    }
+
+    private void handshake(final long deadline) {
+        final int openTag = nextMessageTag();
+        final ByteBuffer openRequest = ByteBuffer.allocate(32).order(ByteOrder.LITTLE_ENDIAN);
+        openRequest.put((byte) openTag).put((byte) PRIVILEGE_ADMINISTRATOR).putShort((short) 0).putInt(consoleSessionId);
+        // RAKP-HMAC-SHA1, HMAC-SHA1-96 and AES-CBC-128
+        openRequest.put(new byte[] {0x00, 0, 0, 0x08, 0x01, 0, 0, 0});
+        openRequest.put(new byte[] {0x01, 0, 0, 0x08, 0x01, 0, 0, 0});
+        openRequest.put(new byte[] {0x02, 0, 0, 0x08, 0x01, 0, 0, 0});
+        final byte[] openResponse = exchange(fixed(IpmiLanPacket.encode(IpmiLanPacket.PAYLOAD_OPEN_SESSION_REQUEST, 0, 0, openRequest.array(), null)),
+                plain(IpmiLanPacket.PAYLOAD_OPEN_SESSION_RESPONSE, openTag, 8), deadline);
+        checkStatus(openResponse, "Open Session");
+        if (openResponse.length < 12) {
+            throw new IpmiLanException("Truncated Open Session response from " + address);
+        }
+        bmcSessionId = IpmiLanPacket.readInt(openResponse, 8);
+
+        final int rakp1Tag = nextMessageTag();
+        final byte[] consoleRandom = new byte[RANDOM_LENGTH];
+        random.nextBytes(consoleRandom);
+        final byte role = (byte) (NAME_ONLY_LOOKUP | PRIVILEGE_ADMINISTRATOR);
+        final ByteBuffer rakp1 = ByteBuffer.allocate(28 + username.length).order(ByteOrder.LITTLE_ENDIAN);
+        rakp1.put((byte) rakp1Tag).put(new byte[3]).putInt(bmcSessionId).put(consoleRandom).put(role).putShort((short) 0).put((byte) username.length).put(username);
+        final byte[] rakp2 = exchange(fixed(IpmiLanPacket.encode(IpmiLanPacket.PAYLOAD_RAKP_1, 0, 0, rakp1.array(), null)),
+                plain(IpmiLanPacket.PAYLOAD_RAKP_2, rakp1Tag, 8), deadline);
+        checkStatus(rakp2, "RAKP 2");
+        if (rakp2.length < 40 + SHA1_LENGTH) {
+            throw new IpmiLanException("Truncated RAKP 2 message from " + address);
+        }
+        final byte[] bmcRandom = Arrays.copyOfRange(rakp2, 8, 8 + RANDOM_LENGTH);
+        final byte[] guid = Arrays.copyOfRange(rakp2, 24, 24 + GUID_LENGTH);
+        final byte[] roleAndName = roleAndName(role);
+        final byte[] expectedRakp2 = IpmiLanKeys.hmacSha1(password, IpmiLanPacket.intBytes(consoleSessionId), IpmiLanPacket.intBytes(bmcSessionId),
+                consoleRandom, bmcRandom, guid, roleAndName);
+        if (!MessageDigest.isEqual(expectedRakp2, Arrays.copyOfRange(rakp2, 40, 40 + SHA1_LENGTH))) {
+            throw new IpmiLanException("RAKP 2 HMAC is invalid", true);
+        }
+        final byte[] sessionIntegrityKey = IpmiLanKeys.hmacSha1(password, consoleRandom, bmcRandom, roleAndName);
+
+        final int rakp3Tag = nextMessageTag();
+        final ByteBuffer rakp3 = ByteBuffer.allocate(8 + SHA1_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+        rakp3.put((byte) rakp3Tag).put(new byte[3]).putInt(bmcSessionId)
+                .put(IpmiLanKeys.hmacSha1(password, bmcRandom, IpmiLanPacket.intBytes(consoleSessionId), roleAndName));
+        final byte[] rakp4 = exchange(fixed(IpmiLanPacket.encode(IpmiLanPacket.PAYLOAD_RAKP_3, 0, 0, rakp3.array(), null)),
+                plain(IpmiLanPacket.PAYLOAD_RAKP_4, rakp3Tag, 8), deadline);
+        checkStatus(rakp4, "RAKP 4");
+        final byte[] expectedRakp4 = Arrays.copyOf(IpmiLanKeys.hmacSha1(sessionIntegrityKey, consoleRandom, IpmiLanPacket.intBytes(bmcSessionId), guid),
+                IpmiLanKeys.INTEGRITY_LENGTH);
+        if (rakp4.length < 8 + IpmiLanKeys.INTEGRITY_LENGTH || !MessageDigest.isEqual(expectedRakp4, Arrays.copyOfRange(rakp4, 8, 8 + IpmiLanKeys.INTEGRITY_LENGTH))) {
+            throw new IpmiLanException("RAKP 4 integrity check value is invalid", true);
+        }
+
+        keys = new IpmiLanKeys(sessionIntegrityKey, random);
+        sequence = 0;
+    }
+
+    private byte[] roleAndName(final byte role) {
+        final byte[] roleAndName = new byte[2 + username.length];
+        roleAndName[0] = role;
+        roleAndName[1] = (byte) username.length;
+        System.arraycopy(username, 0, roleAndName, 2, username.length);
+        return roleAndName;
+    }
+
+    private void checkStatus(final byte[] message, final String name) {
+        final int status = message[1] & 0xFF;
+        if (status != 0) {
+            throw new IpmiLanException(String.format("%s from %s failed with status 0x%02x", name, address, status),
+                    status == STATUS_UNAUTHORIZED_NAME || status == STATUS_UNAUTHORIZED_ROLE);
+        }
+    }
+
+    /**
+     * Sends an IPMI request in the session.
+     *
+     * @return the response data, without the completion code
+     */
+    public synchronized byte[] execute(final int netFn, final int command, final byte[] data, final long deadline) {
+        if (keys == null) {
+            throw new IpmiLanException("Session with " + address + " is not open");
+        }
+        requestSequence = (requestSequence + 1) & 0x3F;
+        final int expectedSequence = requestSequence;
+        final byte[] request = IpmiLanPacket.encodeRequest(netFn, command, expectedSequence, data);
+        final IpmiLanPacket.Message response = exchange(new DatagramBuilder() {
+            @Override
+            public byte[] build() {
+                // a retransmission gets a new session sequence number, the BMC rejects duplicates
+                return IpmiLanPacket.encode(IpmiLanPacket.PAYLOAD_IPMI, bmcSessionId, nextSequence(), request, keys);
+            }
+        }, new Filter<IpmiLanPacket.Message>() {
+            @Override
+            public IpmiLanPacket.Message accept(final IpmiLanPacket packet) {
+                if (packet.getPayloadType() != IpmiLanPacket.PAYLOAD_IPMI || !packet.isSecured()) {
+                    return null;
+                }
+                final IpmiLanPacket.Message message = IpmiLanPacket.decodeResponse(packet.open(keys));
+                return message.getRequestSequence() == expectedSequence && message.getCommand() == command ? message : null;
+            }
+        }, deadline);
+        lastUsed = System.currentTimeMillis();
+        if (response.getCompletionCode() != 0) {
+            throw new IpmiLanException(String.format("IPMI command 0x%02x to %s failed with completion code 0x%02x", command, address, response.getCompletionCode()),
+                    response.getCompletionCode());
+        }
+        return response.getData();
+    }
+
+    /**
+     * Closes the session on the BMC, as far as it answers before the deadline, and releases it locally.
+     */
+    public synchronized void close(final long deadline) {
+        if (keys == null) {
+            return;
+        }
+        try {
+            execute(NETFN_APP, CMD_CLOSE_SESSION, IpmiLanPacket.intBytes(bmcSessionId), deadline);
+        } catch (final IpmiLanException e) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Failed to close IPMI session with " + address + ": " + e.getMessage());
+            }
+        } finally {
+            release();
+        }
+    }
+
+    public synchronized void release() {
+        client.unregister(consoleSessionId);
+        keys = null;
+    }
+
+    private int nextMessageTag() {
+        messageTag = (messageTag + 1) & 0xFF;
+        return messageTag;
+    }
+
+    private int nextSequence() {
+        sequence++;
+        if (sequence == 0) {
+            sequence++;
+        }
+        return sequence;
+    }
+
+    private static DatagramBuilder fixed(final byte[] datagram) {
+        return new DatagramBuilder() {
+            @Override
+            public byte[] build() {
+                return datagram;
+            }
+        };
+    }
+
+    private static Filter<byte[]> plain(final int payloadType, final int messageTag, final int minimumLength) {
+        return new Filter<byte[]>() {
+            @Override
+            public byte[] accept(final IpmiLanPacket packet) {
+                final byte[] payload = packet.getPayload();
+                if (packet.getPayloadType() != payloadType || payload.length < minimumLength || (payload[0] & 0xFF) != messageTag) {
+                    return null;
+                }
+                return payload;
+            }
+        };
+    }
+
+    /**
+     * Sends the datagram and waits for the expected response, retransmitting it when no response arrives in time.
+     * The time left until the deadline is split evenly among the remaining attempts.
+     */
+    private <T> T exchange(final DatagramBuilder datagram, final Filter<T> filter, final long deadline) {
+        final BlockingQueue<IpmiLanPacket> packets = client.getPackets(consoleSessionId);
+        final int attempts = retries + 1;
+        for (int attempt = 0; attempt < attempts; attempt++) {
+            final long now = System.currentTimeMillis();
+            if (now >= deadline) {
+                break;
+            }
+            final long attemptDeadline = now + (deadline - now) / (attempts - attempt);
+            client.send(address, datagram.build());
+            try {
+                long wait;
+                while ((wait = attemptDeadline - System.currentTimeMillis()) > 0) {
+                    final IpmiLanPacket packet = packets.poll(wait, TimeUnit.MILLISECONDS);
+                    if (packet == null) {
+                        break;
+                    }
+                    final T result = accept(filter, packet);
+                    if (result != null) {
+                        return result;
+                    }
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IpmiLanException("Interrupted while waiting for " + address);
+            }
+        }
+        throw new IpmiLanException("Timed out waiting for a response from " + address);
+    }
+
+    private <T> T accept(final Filter<T> filter, final IpmiLanPacket packet) {
+        try {
+            return filter.accept(packet);
+        } catch (final IpmiLanException e) {
+            if (LOG.isTraceEnabled()) {
+                LOG.trace("Ignored IPMI packet from " + address + ": " + e.getMessage());
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.outofbandmanagement.driver.ipmilan;
+
+import com.google.common.collect.ImmutableMap;
+import org.apache.cloudstack.outofbandmanagement.OutOfBandManagement;
+import org.apache.cloudstack.outofbandmanagement.driver.OutOfBandManagementDriverChangePasswordCommand;
+import org.apache.cloudstack.outofbandmanagement.driver.OutOfBandManagementDriverPowerCommand;
+import org.apache.cloudstack.outofbandmanagement.driver.OutOfBandManagementDriverResponse;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class IpmiLanOutOfBandManagementDriverTest {
+    private static final String USERNAME = "ADMIN";
+    private static final String PASSWORD = "password";
+
+    private final IpmiLanOutOfBandManagementDriver driver = new IpmiLanOutOfBandManagementDriver();
+    private final List<IpmiLanSimulator> simulators = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        Assert.assertTrue(driver.start());
+    }
+
+    @After
+    public void tearDown() {
+        driver.stop();
+        for (final IpmiLanSimulator simulator : simulators) {
+            simulator.close();
+        }
+    }
+
+    private IpmiLanSimulator simulator() throws Exception {
+        final IpmiLanSimulator simulator = new IpmiLanSimulator(USERNAME, PASSWORD);
+        simulators.add(simulator);
+        return simulator;
+    }
+
+    private ImmutableMap<OutOfBandManagement.Option, String> options(final IpmiLanSimulator simulator, final String password) {
+        return ImmutableMap.of(OutOfBandManagement.Option.ADDRESS, "127.0.0.1",
+                OutOfBandManagement.Option.PORT, String.valueOf(simulator.getPort()),
+                OutOfBandManagement.Option.USERNAME, USERNAME,
+                OutOfBandManagement.Option.PASSWORD, password);
+    }
+
+    private OutOfBandManagementDriverResponse power(final IpmiLanSimulator simulator, final OutOfBandManagement.PowerOperation operation) {
+        return driver.execute(new OutOfBandManagementDriverPowerCommand(options(simulator, simulator.getPassword()), 5L, operation));
+    }
+
+    @Test
+    public void testPowerOperations() throws Exception {
+        final IpmiLanSimulator simulator = simulator();
+
+        OutOfBandManagementDriverResponse response = power(simulator, OutOfBandManagement.PowerOperation.STATUS);
+        Assert.assertTrue(response.getError(), response.isSuccess());
+        Assert.assertEquals(OutOfBandManagement.PowerState.Off, response.getPowerState());
+
+        response = power(simulator, OutOfBandManagement.PowerOperation.ON);
+        Assert.assertTrue(response.getError(), response.isSuccess());
+        Assert.assertTrue(simulator.isPowerOn());
+        Assert.assertEquals(OutOfBandManagement.PowerState.On, power(simulator, OutOfBandManagement.PowerOperation.STATUS).getPowerState());
+
+        Assert.assertTrue(power(simulator, OutOfBandManagement.PowerOperation.SOFT).isSuccess());
+        Assert.assertFalse(simulator.isPowerOn());
+        Assert.assertEquals(OutOfBandManagement.PowerState.Off, power(simulator, OutOfBandManagement.PowerOperation.STATUS).getPowerState());
+    }
+
+    @Test
+    public void testSessionIsReused() throws Exception {
+        final IpmiLanSimulator simulator = simulator();
+        for (int i = 0; i < 10; i++) {
+            Assert.assertTrue(power(simulator, OutOfBandManagement.PowerOperation.STATUS).isSuccess());
+        }
+        Assert.assertEquals(1, simulator.getOpenedSessions());
+        // set session privilege level plus the ten status requests
+        Assert.assertEquals(11, simulator.getCommands());
+    }
+
+    @Test
+    public void testSessionDroppedByBmcIsReopened() throws Exception {
+        final IpmiLanSimulator simulator = simulator();
+        Assert.assertTrue(power(simulator, OutOfBandManagement.PowerOperation.STATUS).isSuccess());
+        simulator.dropSessions();
+
+        final OutOfBandManagementDriverResponse response = power(simulator, OutOfBandManagement.PowerOperation.STATUS);
+        Assert.assertTrue(response.getError(), response.isSuccess());
+        Assert.assertEquals(2, simulator.getOpenedSessions());
+    }
+
+    @Test
+    public void testInvalidPasswordIsAuthFailure() throws Exception {
+        final IpmiLanSimulator simulator = simulator();
+        final OutOfBandManagementDriverResponse response = driver.execute(new OutOfBandManagementDriverPowerCommand(options(simulator, "wrong"), 5L,
+                OutOfBandManagement.PowerOperation.STATUS));
+        Assert.assertFalse(response.isSuccess());
+        Assert.assertTrue(response.hasAuthFailure());
+        Assert.assertEquals(OutOfBandManagement.PowerState.Event.AuthError, response.toEvent());
+    }
+
+    @Test
+    public void testUnresponsiveBmcTimesOut() throws Exception {
+        final IpmiLanSimulator simulator = simulator();
+        simulator.setResponding(false);
+        final long start = System.currentTimeMillis();
+        final OutOfBandManagementDriverResponse response = driver.execute(new OutOfBandManagementDriverPowerCommand(options(simulator, PASSWORD), 1L,
+                OutOfBandManagement.PowerOperation.STATUS));
+        final long elapsed = System.currentTimeMillis() - start;
+        Assert.assertFalse(response.isSuccess());
+        Assert.assertFalse(response.hasAuthFailure());
+        Assert.assertTrue("took " + elapsed + "ms", elapsed >= 900 && elapsed < 3000);
+    }
+
+    @Test
+    public void testChangePassword() throws Exception {
+        final IpmiLanSimulator simulator = simulator();
+        final OutOfBandManagementDriverResponse response = driver.execute(new OutOfBandManagementDriverChangePasswordCommand(options(simulator, PASSWORD), 5L, "newPassword"));
+        Assert.assertTrue(response.getError(), response.isSuccess());
+        Assert.assertEquals("newPassword", simulator.getPassword());
+        Assert.assertTrue(power(simulator, OutOfBandManagement.PowerOperation.STATUS).isSuccess());
+    }
+
+    @Test
+    public void testManyBmcsArePolledConcurrently() throws Exception {
+        final int bmcs = 50;
+        for (int i = 0; i < bmcs; i++) {
+            simulator().setPowerOn(i % 2 == 0);
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(bmcs);
+        try {
+            for (int round = 0; round < 3; round++) {
+                final List<Future<OutOfBandManagementDriverResponse>> responses = new ArrayList<>();
+                for (final IpmiLanSimulator simulator : simulators) {
+                    responses.add(executor.submit(new Callable<OutOfBandManagementDriverResponse>() {
+                        @Override
+                        public OutOfBandManagementDriverResponse call() {
+                            return power(simulator, OutOfBandManagement.PowerOperation.STATUS);
+                        }
+                    }));
+                }
+                for (int i = 0; i < bmcs; i++) {
+                    final OutOfBandManagementDriverResponse response = responses.get(i).get();
+                    Assert.assertTrue(response.getError(), response.isSuccess());
+                    Assert.assertEquals(i % 2 == 0 ? OutOfBandManagement.PowerState.On : OutOfBandManagement.PowerState.Off, response.getPowerState());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        for (final IpmiLanSimulator simulator : simulators) {
+            Assert.assertEquals(1, simulator.getOpenedSessions());
+        }
+    }
+}
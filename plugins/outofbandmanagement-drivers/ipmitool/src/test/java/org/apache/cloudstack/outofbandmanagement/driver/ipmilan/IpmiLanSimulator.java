@@ -0,0 +1,310 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.outofbandmanagement.driver.ipmilan;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A BMC on a local UDP port that implements the RMCP+ session setup with cipher suite 3 and the chassis and user
+ * commands used by the IpmiLan driver.
+ */
+public class IpmiLanSimulator {
+    private static final int CC_OK = 0x00;
+    private static final int CC_INVALID_COMMAND = 0xC1;
+    private static final int CC_PARAMETER_OUT_OF_RANGE = 0xC9;
+    private static final int CC_INSUFFICIENT_PRIVILEGE = 0xD4;
+
+    private static final class Session {
+        private final int consoleSessionId;
+        private byte[] consoleRandom;
+        private byte[] bmcRandom;
+        private byte[] roleAndName;
+        private IpmiLanKeys keys;
+        private int privilege = 0x02;
+        private int sequence;
+
+        private Session(final int consoleSessionId) {
+            this.consoleSessionId = consoleSessionId;
+        }
+    }
+
+    private final DatagramSocket socket;
+    private final Thread thread;
+    private final SecureRandom random = new SecureRandom();
+    private final byte[] guid = new byte[16];
+    private final String username;
+    private volatile String password;
+    private volatile boolean responding = true;
+    private volatile boolean powerOn;
+    private final Map<Integer, Session> sessions = new ConcurrentHashMap<Integer, Session>();
+    private final AtomicInteger openedSessions = new AtomicInteger();
+    private final AtomicInteger commands = new AtomicInteger();
+
+    public IpmiLanSimulator(final String username, final String password) throws SocketException {
+        this.username = username;
+        this.password = password;
+        random.nextBytes(guid);
+        socket = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        }, "IpmiLanSimulator-" + socket.getLocalPort());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public int getPort() {
+        return socket.getLocalPort();
+    }
+
+    public void setResponding(final boolean responding) {
+        this.responding = responding;
+    }
+
+    public boolean isPowerOn() {
+        return powerOn;
+    }
+
+    public void setPowerOn(final boolean powerOn) {
+        this.powerOn = powerOn;
+    }
+
+    public String getPassword() {
+        return password;
+    }
+
+    public int getOpenedSessions() {
+        return openedSessions.get();
+    }
+
+    public int getActiveSessions() {
+        int active = 0;
+        for (final Session session : sessions.values()) {
+            if (session.keys != null) {
+                active++;
+            }
+        }
+        return active;
+    }
+
+    public int getCommands() {
+        return commands.get();
+    }
+
+    public void dropSessions() {
+        sessions.clear();
+    }
+
+    public void close() {
+        socket.close();
+        try {
+            thread.join(2000);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void serve() {
+        final byte[] buffer = new byte[1024];
+        while (!socket.isClosed()) {
+            final DatagramPacket datagram = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.receive(datagram);
+            } catch (final IOException e) {
+                return;
+            }
+            if (!responding) {
+                continue;
+            }
+            try {
+                final byte[] response = handle(IpmiLanPacket.decode(datagram.getData(), datagram.getLength()));
+                if (response != null) {
+                    socket.send(new DatagramPacket(response, response.length, datagram.getSocketAddress()));
+                }
+            } catch (final IpmiLanException | IOException e) {
+                // a real BMC silently discards packets it cannot handle
+            }
+        }
+    }
+
+    private byte[] handle(final IpmiLanPacket packet) {
+        final byte[] payload = packet.getPayload();
+        switch (packet.getPayloadType()) {
+            case IpmiLanPacket.PAYLOAD_OPEN_SESSION_REQUEST:
+                return openSession(payload);
+            case IpmiLanPacket.PAYLOAD_RAKP_1:
+                return rakp2(payload);
+            case IpmiLanPacket.PAYLOAD_RAKP_3:
+                return rakp4(payload);
+            case IpmiLanPacket.PAYLOAD_IPMI:
+                return command(packet);
+            default:
+                return null;
+        }
+    }
+
+    private byte[] openSession(final byte[] request) {
+        final int consoleSessionId = IpmiLanPacket.readInt(request, 4);
+        int bmcSessionId;
+        do {
+            bmcSessionId = random.nextInt();
+        } while (bmcSessionId == 0 || sessions.containsKey(bmcSessionId));
+        sessions.put(bmcSessionId, new Session(consoleSessionId));
+
+        final ByteBuffer response = ByteBuffer.allocate(36).order(ByteOrder.LITTLE_ENDIAN);
+        response.put(request[0]).put((byte) 0).put((byte) IpmiLanSession.PRIVILEGE_ADMINISTRATOR).put((byte) 0).putInt(consoleSessionId).putInt(bmcSessionId);
+        response.put(Arrays.copyOfRange(request, 8, 32));
+        return IpmiLanPacket.encode(IpmiLanPacket.PAYLOAD_OPEN_SESSION_RESPONSE, 0, 0, response.array(), null);
+    }
+
+    private byte[] rakp2(final byte[] request) {
+        final int bmcSessionId = IpmiLanPacket.readInt(request, 4);
+        final Session session = sessions.get(bmcSessionId);
+        if (session == null) {
+            return null;
+        }
+        final byte role = request[24];
+        final int nameLength = request[27];
+        final byte[] name = Arrays.copyOfRange(request, 28, 28 + nameLength);
+        final ByteBuffer response;
+        if (!Arrays.equals(name, username.getBytes(StandardCharsets.US_ASCII))) {
+            response = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            response.put(request[0]).put((byte) 0x0D).putShort((short) 0).putInt(session.consoleSessionId);
+            sessions.remove(bmcSessionId);
+        } else {
+            session.consoleRandom = Arrays.copyOfRange(request, 8, 24);
+            session.bmcRandom = new byte[16];
+            random.nextBytes(session.bmcRandom);
+            session.roleAndName = new byte[2 + nameLength];
+            session.roleAndName[0] = role;
+            session.roleAndName[1] = (byte) nameLength;
+            System.arraycopy(name, 0, session.roleAndName, 2, nameLength);
+
+            response = ByteBuffer.allocate(60).order(ByteOrder.LITTLE_ENDIAN);
+            response.put(request[0]).put((byte) 0).putShort((short) 0).putInt(session.consoleSessionId).put(session.bmcRandom).put(guid);
+            response.put(IpmiLanKeys.hmacSha1(passwordBytes(), IpmiLanPacket.intBytes(session.consoleSessionId), IpmiLanPacket.intBytes(bmcSessionId),
+                    session.consoleRandom, session.bmcRandom, guid, session.roleAndName));
+        }
+        return IpmiLanPacket.encode(IpmiLanPacket.PAYLOAD_RAKP_2, 0, 0, response.array(), null);
+    }
+
+    private byte[] rakp4(final byte[] request) {
+        final int bmcSessionId = IpmiLanPacket.readInt(request, 4);
+        final Session session = sessions.get(bmcSessionId);
+        if (session == null || session.bmcRandom == null) {
+            return null;
+        }
+        final byte[] expected = IpmiLanKeys.hmacSha1(passwordBytes(), session.bmcRandom, IpmiLanPacket.intBytes(session.consoleSessionId), session.roleAndName);
+        final ByteBuffer response;
+        if (!Arrays.equals(expected, Arrays.copyOfRange(request, 8, 28))) {
+            response = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            response.put(request[0]).put((byte) 0x0F).putShort((short) 0).putInt(session.consoleSessionId);
+            sessions.remove(bmcSessionId);
+        } else {
+            final byte[] sessionIntegrityKey = IpmiLanKeys.hmacSha1(passwordBytes(), session.consoleRandom, session.bmcRandom, session.roleAndName);
+            session.keys = new IpmiLanKeys(sessionIntegrityKey, random);
+            openedSessions.incrementAndGet();
+            response = ByteBuffer.allocate(20).order(ByteOrder.LITTLE_ENDIAN);
+            response.put(request[0]).put((byte) 0).putShort((short) 0).putInt(session.consoleSessionId);
+            response.put(Arrays.copyOf(IpmiLanKeys.hmacSha1(sessionIntegrityKey, session.consoleRandom, IpmiLanPacket.intBytes(bmcSessionId), guid),
+                    IpmiLanKeys.INTEGRITY_LENGTH));
+        }
+        return IpmiLanPacket.encode(IpmiLanPacket.PAYLOAD_RAKP_4, 0, 0, response.array(), null);
+    }
+
+    private byte[] command(final IpmiLanPacket packet) {
+        final Session session = sessions.get(packet.getSessionId());
+        if (session == null || session.keys == null || !packet.isSecured()) {
+            return null;
+        }
+        final IpmiLanPacket.Message request = IpmiLanPacket.decodeRequest(packet.open(session.keys));
+        commands.incrementAndGet();
+
+        int completionCode = CC_OK;
+        byte[] data = new byte[0];
+        final byte[] requestData = request.getData();
+        final int command = request.getNetFn() << 8 | request.getCommand();
+        switch (command) {
+            case IpmiLanSession.NETFN_APP << 8 | IpmiLanSession.CMD_SET_SESSION_PRIVILEGE_LEVEL:
+                session.privilege = requestData[0];
+                data = new byte[] {requestData[0]};
+                break;
+            case IpmiLanSession.NETFN_APP << 8 | IpmiLanSession.CMD_CLOSE_SESSION:
+                sessions.remove(packet.getSessionId());
+                break;
+            case IpmiLanSession.NETFN_CHASSIS << 8 | IpmiLanSession.CMD_GET_CHASSIS_STATUS:
+                data = new byte[] {(byte) (powerOn ? 0x01 : 0x00), 0, 0};
+                break;
+            case IpmiLanSession.NETFN_CHASSIS << 8 | IpmiLanSession.CMD_CHASSIS_CONTROL:
+                if (session.privilege < IpmiLanSession.PRIVILEGE_ADMINISTRATOR) {
+                    completionCode = CC_INSUFFICIENT_PRIVILEGE;
+                } else if (requestData[0] == 0x00 || requestData[0] == 0x05) {
+                    powerOn = false;
+                } else {
+                    powerOn = true;
+                }
+                break;
+            case IpmiLanSession.NETFN_APP << 8 | IpmiLanSession.CMD_GET_USER_NAME:
+                // user 1 is the anonymous user, the configured user is user 2 of 10
+                if (requestData[0] < 1 || requestData[0] > 10) {
+                    completionCode = CC_PARAMETER_OUT_OF_RANGE;
+                } else {
+                    data = new byte[16];
+                    if (requestData[0] == 2) {
+                        final byte[] name = username.getBytes(StandardCharsets.US_ASCII);
+                        System.arraycopy(name, 0, data, 0, name.length);
+                    }
+                }
+                break;
+            case IpmiLanSession.NETFN_APP << 8 | IpmiLanSession.CMD_SET_USER_PASSWORD:
+                if ((requestData[0] & 0x3F) != 2) {
+                    completionCode = CC_PARAMETER_OUT_OF_RANGE;
+                } else {
+                    int length = 2;
+                    while (length < requestData.length && requestData[length] != 0) {
+                        length++;
+                    }
+                    password = new String(requestData, 2, length - 2, StandardCharsets.US_ASCII);
+                }
+                break;
+            default:
+                completionCode = CC_INVALID_COMMAND;
+        }
+        session.sequence++;
+        return IpmiLanPacket.encode(IpmiLanPacket.PAYLOAD_IPMI, session.consoleSessionId, session.sequence,
+                IpmiLanPacket.encodeResponse(request, completionCode, data), session.keys);
+    }
+
+    private byte[] passwordBytes() {
+        return password.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -1839,6 +1839,8 @@ public enum Config {
     PublishResourceStateEvent("Advanced", ManagementServer.class, Boolean.class, "publish.resource.state.events", "true", "enable or disable publishing of alert events on the event bus", null),
     PublishUsageEvent("Advanced", ManagementServer.class, Boolean.class, "publish.usage.events", "true", "enable or disable publishing of usage events on the event bus", null),
     PublishAsynJobEvent("Advanced", ManagementServer.class, Boolean.class, "publish.async.job.events", "true", "enable or disable publishing of usage events on the event bus", null),
+    EventPipelineWorkers("Advanced", ManagementServer.class, Integer.class, "event.pipeline.workers", "4", "the number of threads persisting and publishing action events, restart required", null),
+    EventPipelineQueueSize("Advanced", ManagementServer.class, Integer.class, "event.pipeline.queue.size", "10000", "the number of action events waiting to be persisted and published per thread at most, restart required", null),
 
     // StatsCollector
     StatsOutPutGraphiteHost("Advanced", ManagementServer.class, String.class, "stats.output.uri", "", "URI to additionally send StatsCollector statistics to", null),
@@ -18,11 +18,15 @@
 package com.cloud.event;
 
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
 
 import com.cloud.utils.ReflectUtil;
@@ -46,8 +50,15 @@ import com.cloud.user.dao.AccountDao;
 import com.cloud.user.dao.UserDao;
 import com.cloud.projects.dao.ProjectDao;
 import com.cloud.projects.Project;
+import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.component.ComponentContext;
+import com.cloud.utils.exception.CloudRuntimeException;
 
+/**
+ * Raises action events. Apart from the events of scheduled jobs, they are persisted and published by the workers of a
+ * pipeline in the order they were raised for each account, not in the database transaction of the operation raising
+ * them. An operation that is rolled back afterwards leaves its events behind.
+ */
 public class ActionEventUtils {
     private static final Logger s_logger = Logger.getLogger(ActionEventUtils.class);
 
@@ -58,6 +69,10 @@ public class ActionEventUtils {
     protected static EventBus s_eventBus = null;
     protected static EntityManager s_entityMgr;
     protected static ConfigurationDao s_configDao;
+    // persists and publishes action events off the threads raising them
+    protected static EventPipeline<ActionEventRecord> s_pipeline;
+
+    private static final int EVENT_BATCH_SIZE = 100;
 
     public static final String EventDetails = "event_details";
     public static final String EventId = "event_id";
@@ -89,15 +104,50 @@ public class ActionEventUtils {
         s_projectDao = projectDao;
         s_entityMgr = entityMgr;
         s_configDao = configDao;
+
+        stopPipeline();
+        int workers = NumbersUtil.parseInt(configDao.getValue(Config.EventPipelineWorkers.key()), 4);
+        int queueSize = NumbersUtil.parseInt(configDao.getValue(Config.EventPipelineQueueSize.key()), 10000);
+        EventPipeline<ActionEventRecord> pipeline = new EventPipeline<ActionEventRecord>("ActionEvent-Pipeline", workers, queueSize, EVENT_BATCH_SIZE,
+                new EventPipeline.Handler<ActionEventRecord>() {
+                    @Override
+                    public void handle(List<ActionEventRecord> batch) {
+                        handleActionEvents(batch);
+                    }
+                });
+        pipeline.start();
+        s_pipeline = pipeline;
     }
 
-    public static Long onActionEvent(Long userId, Long accountId, Long domainId, String type, String description) {
+    @PreDestroy
+    void destroy() {
+        stopPipeline();
+    }
 
-        publishOnEventBus(userId, accountId, EventCategory.ACTION_EVENT.getName(), type, com.cloud.event.Event.State.Completed, description);
+    private static void stopPipeline() {
+        if (s_pipeline != null) {
+            s_pipeline.stop(10000);
+            s_logger.info("Stopped action event pipeline: " + s_pipeline.getSummary());
+        }
+    }
 
-        Event event = persistActionEvent(userId, accountId, domainId, null, type, Event.State.Completed, true, description, null);
+    /**
+     * Waits until the action events raised so far are persisted and published.
+     *
+     * @return false if they are not within the timeout
+     */
+    public static boolean flushActionEvents(long timeoutMillis) throws InterruptedException {
+        return s_pipeline == null || s_pipeline.flush(timeoutMillis);
+    }
 
-        return event.getId();
+    /**
+     * @return null, the event is persisted in the background
+     */
+    public static Long onActionEvent(Long userId, Long accountId, Long domainId, String type, String description) {
+
+        submitActionEvent(userId, accountId, domainId, null, type, Event.State.Completed, true, description, null, true);
+
+        return null;
     }
 
     /*
@@ -105,10 +155,11 @@ public class ActionEventUtils {
      */
     public static Long onScheduledActionEvent(Long userId, Long accountId, String type, String description, boolean eventDisplayEnabled, long startEventId) {
 
-        publishOnEventBus(userId, accountId, EventCategory.ACTION_EVENT.getName(), type, com.cloud.event.Event.State.Scheduled, description);
-
+        // persisted right away, the id is the start event id of the job
         Event event = persistActionEvent(userId, accountId, null, null, type, Event.State.Scheduled, eventDisplayEnabled, description, startEventId);
 
+        submitActionEvent(userId, accountId, null, null, type, Event.State.Scheduled, eventDisplayEnabled, description, startEventId, false);
+
         return event.getId();
     }
 
@@ -128,15 +179,13 @@ public class ActionEventUtils {
     }
 
     /*
-     * Save event after starting execution of an async job
+     * Save event after starting execution of an async job, returns null as the event is persisted in the background
      */
     public static Long onStartedActionEvent(Long userId, Long accountId, String type, String description, boolean eventDisplayEnabled, long startEventId) {
 
-        publishOnEventBus(userId, accountId, EventCategory.ACTION_EVENT.getName(), type, com.cloud.event.Event.State.Started, description);
-
-        Event event = persistActionEvent(userId, accountId, null, null, type, Event.State.Started, eventDisplayEnabled, description, startEventId);
+        submitActionEvent(userId, accountId, null, null, type, Event.State.Started, eventDisplayEnabled, description, startEventId, true);
 
-        return event.getId();
+        return null;
     }
 
     public static Long onCompletedActionEvent(Long userId, Long accountId, String level, String type, String description, long startEventId) {
@@ -144,26 +193,133 @@ public class ActionEventUtils {
         return onCompletedActionEvent(userId, accountId, level, type, true, description, startEventId);
     }
 
+    /**
+     * @return null, the event is persisted in the background
+     */
     public static Long onCompletedActionEvent(Long userId, Long accountId, String level, String type, boolean eventDisplayEnabled, String description, long startEventId) {
-        publishOnEventBus(userId, accountId, EventCategory.ACTION_EVENT.getName(), type, com.cloud.event.Event.State.Completed, description);
-
-        Event event = persistActionEvent(userId, accountId, null, level, type, Event.State.Completed, eventDisplayEnabled, description, startEventId);
+        submitActionEvent(userId, accountId, null, level, type, Event.State.Completed, eventDisplayEnabled, description, startEventId, true);
 
-        return event.getId();
+        return null;
 
     }
 
     public static Long onCreatedActionEvent(Long userId, Long accountId, String level, String type, boolean eventDisplayEnabled, String description) {
 
-        publishOnEventBus(userId, accountId, EventCategory.ACTION_EVENT.getName(), type, com.cloud.event.Event.State.Created, description);
-
+        // persisted right away, the id is the start event id of the action
         Event event = persistActionEvent(userId, accountId, null, level, type, Event.State.Created, eventDisplayEnabled, description, null);
 
+        submitActionEvent(userId, accountId, null, level, type, Event.State.Created, eventDisplayEnabled, description, null, false);
+
         return event.getId();
     }
 
+    /**
+     * What is known of an action event when it is raised. It is looked up what else the event needs on the
+     * pipeline, not on the thread raising it.
+     */
+    static class ActionEventRecord {
+        final long userId;
+        final long accountId;
+        final Long domainId;
+        final String level;
+        final String type;
+        final Event.State state;
+        final boolean display;
+        final String description;
+        final Long startEventId;
+        final Date createDate = new Date();
+        // the context parameters of the call raising the event, the entities it touched
+        final Map<Object, Object> contextParameters;
+        // false if the event was persisted already and is only published
+        final boolean persist;
+
+        ActionEventRecord(long userId, long accountId, Long domainId, String level, String type, Event.State state, boolean display, String description,
+                Long startEventId, Map<Object, Object> contextParameters, boolean persist) {
+            this.userId = userId;
+            this.accountId = accountId;
+            this.domainId = domainId;
+            this.level = level;
+            this.type = type;
+            this.state = state;
+            this.display = display;
+            this.description = description;
+            this.startEventId = startEventId;
+            this.contextParameters = contextParameters;
+            this.persist = persist;
+        }
+    }
+
+    private static void submitActionEvent(Long userId, Long accountId, Long domainId, String level, String type, Event.State state, boolean eventDisplayEnabled,
+            String description, Long startEventId, boolean persist) {
+        ActionEventRecord record = new ActionEventRecord(userId, accountId, domainId, level, type, state, eventDisplayEnabled, description, startEventId,
+                getContextParameters(), persist);
+        if (s_pipeline == null) {
+            handleActionEvents(Collections.singletonList(record));
+            return;
+        }
+        // the events of an account are handled in order, which keeps the events of each of its resources in order
+        s_pipeline.submit(accountId, record);
+    }
+
+    /*
+     * Copies the context parameters of the current call, the record is handled after the call moved on
+     */
+    private static Map<Object, Object> getContextParameters() {
+        CallContext ctx = CallContext.current();
+        if (ctx == null || ctx.getContextParameters() == null) {
+            return new HashMap<Object, Object>();
+        }
+        return new HashMap<Object, Object>(ctx.getContextParameters());
+    }
+
+    private static void handleActionEvents(List<ActionEventRecord> records) {
+        Map<Long, Long> domainIds = new HashMap<Long, Long>();
+        List<EventVO> events = new ArrayList<EventVO>();
+        for (ActionEventRecord record : records) {
+            if (!record.persist) {
+                continue;
+            }
+            Long domainId = record.domainId;
+            if (domainId == null) {
+                domainId = domainIds.get(record.accountId);
+                if (domainId == null) {
+                    domainId = getDomainId(record.accountId);
+                    domainIds.put(record.accountId, domainId);
+                }
+            }
+            EventVO event = createActionEvent(record.userId, record.accountId, domainId, record.level, record.type, record.state, record.display,
+                    record.description, record.startEventId);
+            event.setCreatedDate(record.createDate);
+            events.add(event);
+        }
+        if (!events.isEmpty()) {
+            try {
+                s_eventDao.persistBatch(events);
+            } catch (CloudRuntimeException e) {
+                s_logger.warn("Failed to persist " + events.size() + " action events at once, persisting them one by one", e);
+                for (EventVO event : events) {
+                    try {
+                        s_eventDao.persist(event);
+                    } catch (Exception ex) {
+                        s_logger.warn("Failed to persist action event " + event.getType() + " of account " + event.getAccountId(), ex);
+                    }
+                }
+            }
+        }
+
+        publishOnEventBus(records);
+    }
+
     private static Event persistActionEvent(Long userId, Long accountId, Long domainId, String level, String type,
                                             Event.State state, boolean eventDisplayEnabled, String description, Long startEventId) {
+        EventVO event = createActionEvent(userId, accountId, domainId != null ? domainId : getDomainId(accountId), level, type, state, eventDisplayEnabled,
+                description, startEventId);
+        event = s_eventDao.persist(event);
+        return event;
+    }
+
+    private static EventVO createActionEvent(Long userId, Long accountId, long domainId, String level, String type,
+                                             Event.State state, boolean eventDisplayEnabled, String description, Long startEventId) {
         EventVO event = new EventVO();
         event.setUserId(userId);
         event.setAccountId(accountId);
@@ -171,23 +327,17 @@ public class ActionEventUtils {
         event.setState(state);
         event.setDescription(description);
         event.setDisplay(eventDisplayEnabled);
-
-        if (domainId != null) {
-            event.setDomainId(domainId);
-        } else {
-            event.setDomainId(getDomainId(accountId));
-        }
+        event.setDomainId(domainId);
         if (level != null && !level.isEmpty()) {
             event.setLevel(level);
         }
         if (startEventId != null) {
             event.setStartId(startEventId);
         }
-        event = s_eventDao.persist(event);
         return event;
     }
 
-    private static void publishOnEventBus(long userId, long accountId, String eventCategory, String eventType, Event.State state, String description) {
+    private static void publishOnEventBus(List<ActionEventRecord> records) {
         String configKey = Config.PublishActionEvent.key();
         String value = s_configDao.getValue(configKey);
         boolean configValue = Boolean.parseBoolean(value);
@@ -199,15 +349,37 @@ public class ActionEventUtils {
             return; // no provider is configured to provide events bus, so just return
         }
 
+        // looked up once for the events of a batch
+        Map<Long, Project> projects = new HashMap<Long, Project>();
+        Map<Long, Account> accounts = new HashMap<Long, Account>();
+        Map<Long, User> users = new HashMap<Long, User>();
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss Z");
+
+        for (ActionEventRecord record : records) {
+            if (!projects.containsKey(record.accountId)) {
+                projects.put(record.accountId, s_projectDao.findByProjectAccountId(record.accountId));
+            }
+            if (!accounts.containsKey(record.accountId)) {
+                accounts.put(record.accountId, s_accountDao.findById(record.accountId));
+            }
+            if (!users.containsKey(record.userId)) {
+                users.put(record.userId, s_userDao.findById(record.userId));
+            }
+            publishOnEventBus(record, projects.get(record.accountId), accounts.get(record.accountId), users.get(record.userId), dateFormat);
+        }
+    }
+
+    private static void publishOnEventBus(ActionEventRecord record, Project project, Account account, User user, SimpleDateFormat dateFormat) {
+        String eventType = record.type;
+
         // get the entity details for which ActionEvent is generated
         String entityType = null;
         String entityUuid = null;
-        CallContext context = CallContext.current();
         //Get entity Class(Example - VirtualMachine.class) from the event Type eg. - VM.CREATE
         Class<?> entityClass = EventTypes.getEntityClassForEvent(eventType);
         if (entityClass != null){
             //Get uuid from id
-            Object param = context.getContextParameter(entityClass);
+            Object param = record.contextParameters.get(entityClass);
             if(param != null){
                 try {
                     entityUuid = getEntityUuid(entityClass, param);
@@ -219,12 +391,9 @@ public class ActionEventUtils {
         }
 
         org.apache.cloudstack.framework.events.Event event =
-            new org.apache.cloudstack.framework.events.Event(ManagementService.Name, eventCategory, eventType, EventTypes.getEntityForEvent(eventType), entityUuid);
+            new org.apache.cloudstack.framework.events.Event(ManagementService.Name, EventCategory.ACTION_EVENT.getName(), eventType, EventTypes.getEntityForEvent(eventType), entityUuid);
 
         Map<String, String> eventDescription = new HashMap<String, String>();
-        Project project = s_projectDao.findByProjectAccountId(accountId);
-        Account account = s_accountDao.findById(accountId);
-        User user = s_userDao.findById(userId);
         // if account has been deleted, this might be called during cleanup of resources and results in null pointer
         if (account == null)
             return;
@@ -235,14 +404,14 @@ public class ActionEventUtils {
         eventDescription.put("user", user.getUuid());
         eventDescription.put("account", account.getUuid());
         eventDescription.put("event", eventType);
-        eventDescription.put("status", state.toString());
+        eventDescription.put("status", record.state.toString());
         eventDescription.put("entity", entityType);
         eventDescription.put("entityuuid", entityUuid);
         //Put all the first class entities that are touched during the action. For now atleast put in the vmid.
-        populateFirstClassEntities(eventDescription);
-        eventDescription.put("description", description);
+        populateFirstClassEntities(eventDescription, record.contextParameters);
+        eventDescription.put("description", record.description);
 
-        String eventDate = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss Z").format(new Date());
+        String eventDate = dateFormat.format(record.createDate);
         eventDescription.put("eventDateTime", eventDate);
 
         event.setDescription(eventDescription);
@@ -286,10 +455,7 @@ public class ActionEventUtils {
         return account.getDomainId();
     }
 
-    private static void populateFirstClassEntities(Map<String, String> eventDescription){
-
-        CallContext context = CallContext.current();
-        Map<Object, Object> contextMap = context.getContextParameters();
+    private static void populateFirstClassEntities(Map<String, String> eventDescription, Map<Object, Object> contextMap){
 
         for(Map.Entry<Object, Object> entry : contextMap.entrySet()){
             try{
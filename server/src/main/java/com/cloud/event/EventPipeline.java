@@ -0,0 +1,258 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.event;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.concurrency.NamedThreadFactory;
+
+/**
+ * Handles items in batches on background workers. Items of the same key always go to the same worker, so they are
+ * handled in the order they were submitted. Each worker has a bounded queue and a submitter waits for room in it, so
+ * memory stays bounded and no item is lost or overtaken when the workers fall behind.
+ */
+public class EventPipeline<T> {
+    private static final Logger s_logger = Logger.getLogger(EventPipeline.class);
+
+    public interface Handler<T> {
+        /**
+         * Handles the items in the order they were submitted, an exception fails the whole batch and is only logged.
+         */
+        void handle(List<T> batch);
+    }
+
+    private final String name;
+    private final Handler<T> handler;
+    private final int batchSize;
+    private final List<BlockingQueue<T>> queues = new ArrayList<BlockingQueue<T>>();
+
+    private ExecutorService executor;
+    private volatile boolean running;
+    // true on the workers, which cannot wait for room in a queue as they might be the ones to make it
+    private final ThreadLocal<Boolean> onWorker = new ThreadLocal<Boolean>();
+
+    // submitted and not handled yet
+    private long pending;
+    private final AtomicLong handled = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong waited = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private long lastWaitWarning;
+
+    public EventPipeline(String name, int workers, int queueSize, int batchSize, Handler<T> handler) {
+        this.name = name;
+        this.handler = handler;
+        this.batchSize = Math.max(1, batchSize);
+        for (int i = 0; i < Math.max(1, workers); i++) {
+            queues.add(new ArrayBlockingQueue<T>(Math.max(1, queueSize)));
+        }
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        executor = Executors.newFixedThreadPool(queues.size(), new NamedThreadFactory(name));
+        for (BlockingQueue<T> queue : queues) {
+            executor.execute(new Worker(queue));
+        }
+    }
+
+    /**
+     * Stops taking items, and waits until the workers handled what they have.
+     */
+    public void stop(long timeoutMillis) {
+        ExecutorService stopped;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            stopped = executor;
+        }
+        stopped.shutdown();
+        try {
+            if (!stopped.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                s_logger.warn(name + " did not finish within " + timeoutMillis + "ms, " + getSummary());
+                stopped.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            stopped.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queues the item on the worker of its key, waiting for room in its queue. The item is handled on the calling
+     * thread if the pipeline is not running, or if it is submitted by a worker while the queue is full.
+     */
+    public void submit(Object key, T item) {
+        synchronized (this) {
+            pending++;
+        }
+        if (running) {
+            BlockingQueue<T> queue = queues.get((key == null ? 0 : key.hashCode() & Integer.MAX_VALUE) % queues.size());
+            boolean interrupted = false;
+            boolean full = false;
+            try {
+                while (running) {
+                    try {
+                        if (queue.offer(item, full ? 100 : 0, TimeUnit.MILLISECONDS)) {
+                            // the worker may have finished meanwhile, if it did the item is still in the queue
+                            if (running || !queue.remove(item)) {
+                                return;
+                            }
+                            break;
+                        }
+                    } catch (InterruptedException e) {
+                        // the item is queued all the same, as later items of its key must not overtake it
+                        interrupted = true;
+                    }
+                    if (onWorker.get() != null) {
+                        break;
+                    }
+                    if (!full) {
+                        full = true;
+                        waited.incrementAndGet();
+                        warnWaiting();
+                    }
+                }
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        handle(Collections.singletonList(item));
+    }
+
+    private void warnWaiting() {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            if (now - lastWaitWarning <= 60000) {
+                return;
+            }
+            lastWaitWarning = now;
+        }
+        s_logger.warn(name + " is falling behind, submitters wait for room in its queues, " + getSummary());
+    }
+
+    /**
+     * Waits until all items submitted so far are handled.
+     *
+     * @return false if they are not within the timeout
+     */
+    public synchronized boolean flush(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (pending > 0) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                return false;
+            }
+            wait(left);
+        }
+        return true;
+    }
+
+    private void handle(List<T> batch) {
+        try {
+            handler.handle(batch);
+        } catch (Exception e) {
+            failed.addAndGet(batch.size());
+            s_logger.warn(name + " failed to handle " + batch.size() + " items", e);
+        } finally {
+            handled.addAndGet(batch.size());
+            batches.incrementAndGet();
+            synchronized (this) {
+                pending -= batch.size();
+                if (pending == 0) {
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    public int getQueued() {
+        int queued = 0;
+        for (BlockingQueue<T> queue : queues) {
+            queued += queue.size();
+        }
+        return queued;
+    }
+
+    public long getHandled() {
+        return handled.get();
+    }
+
+    /**
+     * @return the number of items whose submitter waited for room in the queue of their worker
+     */
+    public long getWaited() {
+        return waited.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public String getSummary() {
+        long count = batches.get();
+        return handled.get() + " handled in " + count + " batches (" + (count == 0 ? 0 : handled.get() / count) + " avg), " + getQueued() + " queued, "
+                + waited.get() + " waited, " + failed.get() + " failed";
+    }
+
+    private class Worker extends ManagedContextRunnable {
+        private final BlockingQueue<T> queue;
+
+        Worker(BlockingQueue<T> queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        protected void runInContext() {
+            onWorker.set(Boolean.TRUE);
+            List<T> batch = new ArrayList<T>(batchSize);
+            while (running || !queue.isEmpty()) {
+                try {
+                    T first = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    batch.add(first);
+                    queue.drainTo(batch, batchSize - 1);
+                    handle(batch);
+                } catch (InterruptedException e) {
+                    break;
+                } finally {
+                    batch.clear();
+                }
+            }
+        }
+    }
+}
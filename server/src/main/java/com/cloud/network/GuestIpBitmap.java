@@ -0,0 +1,125 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import com.cloud.utils.net.NetUtils;
+
+/**
+ * The guest IPv4 addresses of a network that are in use, one bit per address of the CIDR without its network
+ * and broadcast addresses. Finding a free address scans the bits a word at a time instead of listing the
+ * addresses in use. Not thread safe.
+ */
+public class GuestIpBitmap {
+    private final String cidr;
+    // the first address of the range
+    private final long first;
+    private final int size;
+    private final BitSet used;
+    private int usedCount;
+    // when the addresses in use were loaded, 0 if they were not
+    private long loadedAt;
+
+    public GuestIpBitmap(String cidr) {
+        this.cidr = cidr;
+        String[] parts = cidr.split("/");
+        int cidrSize = Integer.parseInt(parts[1]);
+        long network = NetUtils.ip2Long(parts[0]) & NetUtils.ip2Long(NetUtils.getCidrNetmask(cidrSize));
+        first = network + 1;
+        size = (int)Math.max(0, (1L << (32 - cidrSize)) - 2);
+        used = new BitSet(size);
+    }
+
+    public String getCidr() {
+        return cidr;
+    }
+
+    public long getLoadedAt() {
+        return loadedAt;
+    }
+
+    /**
+     * Frees all addresses, to claim those in use again.
+     */
+    public void reset() {
+        used.clear();
+        usedCount = 0;
+        loadedAt = System.currentTimeMillis();
+    }
+
+    public boolean contains(long ip) {
+        return ip >= first && ip < first + size;
+    }
+
+    public boolean isUsed(long ip) {
+        return contains(ip) && used.get((int)(ip - first));
+    }
+
+    /**
+     * @return false if the address is in use already or not in the range
+     */
+    public boolean claim(long ip) {
+        if (!contains(ip) || used.get((int)(ip - first))) {
+            return false;
+        }
+        used.set((int)(ip - first));
+        usedCount++;
+        return true;
+    }
+
+    public void release(long ip) {
+        if (contains(ip) && used.get((int)(ip - first))) {
+            used.clear((int)(ip - first));
+            usedCount--;
+        }
+    }
+
+    /**
+     * @return the first free address from the given one on, wrapping around at the end of the range, -1 if there is none
+     */
+    public long nextFree(long from) {
+        if (usedCount >= size) {
+            return -1;
+        }
+        int index = contains(from) ? (int)(from - first) : 0;
+        int free = used.nextClearBit(index);
+        if (free >= size) {
+            free = used.nextClearBit(0);
+        }
+        return free >= size ? -1 : first + free;
+    }
+
+    /**
+     * @return a free address at random, -1 if there is none
+     */
+    public long randomFree(Random random) {
+        if (usedCount >= size) {
+            return -1;
+        }
+        return nextFree(first + random.nextInt(size));
+    }
+
+    public int getFreeCount() {
+        return size - usedCount;
+    }
+
+    public int getSize() {
+        return size;
+    }
+}
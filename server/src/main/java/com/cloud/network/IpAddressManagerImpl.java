@@ -18,6 +18,7 @@ package com.cloud.network;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -26,6 +27,8 @@ import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.inject.Inject;
 
@@ -40,6 +43,7 @@ import org.apache.cloudstack.engine.orchestration.service.NetworkOrchestrationSe
 import org.apache.cloudstack.framework.config.ConfigKey;
 import org.apache.cloudstack.framework.config.Configurable;
 import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
+import org.apache.cloudstack.lb.dao.ApplicationLoadBalancerRuleDao;
 import org.apache.cloudstack.region.PortableIp;
 import org.apache.cloudstack.region.PortableIpDao;
 import org.apache.cloudstack.region.PortableIpVO;
@@ -73,6 +77,7 @@ import com.cloud.domain.dao.DomainDao;
 import com.cloud.event.ActionEventUtils;
 import com.cloud.event.EventTypes;
 import com.cloud.event.UsageEventUtils;
+import com.cloud.event.UsageEventVO;
 import com.cloud.event.dao.UsageEventDao;
 import com.cloud.exception.AccountLimitException;
 import com.cloud.exception.ConcurrentOperationException;
@@ -277,6 +282,8 @@ public class IpAddressManagerImpl extends ManagerBase implements IpAddressManage
     @Inject
     NicSecondaryIpDao _nicSecondaryIpDao;
     @Inject
+    ApplicationLoadBalancerRuleDao _appLbRuleDao;
+    @Inject
     UserIpv6AddressDao _ipv6Dao;
     @Inject
     Ipv6AddressManager _ipv6Mgr;
@@ -299,8 +306,18 @@ public class IpAddressManagerImpl extends ManagerBase implements IpAddressManage
             Boolean.class, "system.vm.public.ip.reservation.mode.strictness", "false",
             "If enabled, the use of System VMs public IP reservation is strict, preferred if not.", false, ConfigKey.Scope.Global);
 
+    static final ConfigKey<Integer> GuestIpCacheTtl = new ConfigKey<Integer>("Advanced", Integer.class, "guest.ip.cache.ttl", "300",
+            "Seconds the guest IP addresses in use in a network are cached for allocating guest IP addresses, addresses released meanwhile are not reused before", true);
+
+    // addresses picked that turn out to be in use, e.g. allocated by another management server, before the cache is loaded again
+    private static final int GuestIpConflictsBeforeReload = 8;
+
     private Random rand = new Random(System.currentTimeMillis());
 
+    final ConcurrentHashMap<Long, GuestIpBitmap> _guestIpBitmaps = new ConcurrentHashMap<Long, GuestIpBitmap>();
+    // when the bitmaps older than the cache ttl were last dropped, so that those of removed networks do not pile up
+    final AtomicLong _guestIpBitmapsEvictedAt = new AtomicLong(System.currentTimeMillis());
+
     @Override
     public boolean configure(String name, Map<String, Object> params) {
         // populate providers
@@ -699,125 +716,12 @@ public class IpAddressManagerImpl extends ManagerBase implements IpAddressManage
     public PublicIp fetchNewPublicIp(final long dcId, final Long podId, final List<Long> vlanDbIds, final Account owner, final VlanType vlanUse, final Long guestNetworkId,
             final boolean sourceNat, final boolean assign, final String requestedIp, final boolean isSystem, final Long vpcId, final Boolean displayIp, final boolean forSystemVms)
                     throws InsufficientAddressCapacityException {
+        final Map<Long, VlanVO> vlans = new HashMap<Long, VlanVO>();
         IPAddressVO addr = Transaction.execute(new TransactionCallbackWithException<IPAddressVO, InsufficientAddressCapacityException>() {
             @Override
             public IPAddressVO doInTransaction(TransactionStatus status) throws InsufficientAddressCapacityException {
-                StringBuilder errorMessage = new StringBuilder("Unable to get ip address in ");
-                boolean fetchFromDedicatedRange = false;
-                List<Long> dedicatedVlanDbIds = new ArrayList<Long>();
-                List<Long> nonDedicatedVlanDbIds = new ArrayList<Long>();
-                DataCenter zone = _entityMgr.findById(DataCenter.class, dcId);
-
-                SearchCriteria<IPAddressVO> sc = null;
-                if (podId != null) {
-                    sc = AssignIpAddressFromPodVlanSearch.create();
-                    sc.setJoinParameters("podVlanMapSB", "podId", podId);
-                    errorMessage.append(" pod id=" + podId);
-                } else {
-                    sc = AssignIpAddressSearch.create();
-                    errorMessage.append(" zone id=" + dcId);
-                }
-
-                // If owner has dedicated Public IP ranges, fetch IP from the dedicated range
-                // Otherwise fetch IP from the system pool
-                Network network = _networksDao.findById(guestNetworkId);
-                //Checking if network is null in the case of system VM's. At the time of allocation of IP address to systemVm, no network is present.
-                if(network == null || !(network.getGuestType() == GuestType.Shared && zone.getNetworkType() == NetworkType.Advanced)) {
-                    List<AccountVlanMapVO> maps = _accountVlanMapDao.listAccountVlanMapsByAccount(owner.getId());
-                    for (AccountVlanMapVO map : maps) {
-                        if (vlanDbIds == null || vlanDbIds.contains(map.getVlanDbId()))
-                            dedicatedVlanDbIds.add(map.getVlanDbId());
-                    }
-                }
-                List<DomainVlanMapVO> domainMaps = _domainVlanMapDao.listDomainVlanMapsByDomain(owner.getDomainId());
-                for (DomainVlanMapVO map : domainMaps) {
-                    if (vlanDbIds == null || vlanDbIds.contains(map.getVlanDbId()))
-                        dedicatedVlanDbIds.add(map.getVlanDbId());
-                }
-                List<VlanVO> nonDedicatedVlans = _vlanDao.listZoneWideNonDedicatedVlans(dcId);
-                for (VlanVO nonDedicatedVlan : nonDedicatedVlans) {
-                    if (vlanDbIds == null || vlanDbIds.contains(nonDedicatedVlan.getId()))
-                        nonDedicatedVlanDbIds.add(nonDedicatedVlan.getId());
-                }
-                if (dedicatedVlanDbIds != null && !dedicatedVlanDbIds.isEmpty()) {
-                    fetchFromDedicatedRange = true;
-                    sc.setParameters("vlanId", dedicatedVlanDbIds.toArray());
-                    errorMessage.append(", vlanId id=" + Arrays.toString(dedicatedVlanDbIds.toArray()));
-                } else if (nonDedicatedVlanDbIds != null && !nonDedicatedVlanDbIds.isEmpty()) {
-                    sc.setParameters("vlanId", nonDedicatedVlanDbIds.toArray());
-                    errorMessage.append(", vlanId id=" + Arrays.toString(nonDedicatedVlanDbIds.toArray()));
-                } else {
-                    if (podId != null) {
-                        InsufficientAddressCapacityException ex = new InsufficientAddressCapacityException("Insufficient address capacity", Pod.class, podId);
-                        ex.addProxyObject(ApiDBUtils.findPodById(podId).getUuid());
-                        throw ex;
-                    }
-                    s_logger.warn(errorMessage.toString());
-                    InsufficientAddressCapacityException ex = new InsufficientAddressCapacityException("Insufficient address capacity", DataCenter.class, dcId);
-                    ex.addProxyObject(ApiDBUtils.findZoneById(dcId).getUuid());
-                    throw ex;
-                }
-
-                sc.setParameters("dc", dcId);
-
-                // for direct network take ip addresses only from the vlans belonging to the network
-                if (vlanUse == VlanType.DirectAttached) {
-                    sc.setJoinParameters("vlan", "networkId", guestNetworkId);
-                    errorMessage.append(", network id=" + guestNetworkId);
-                }
-                sc.setJoinParameters("vlan", "type", vlanUse);
-
-                if (requestedIp != null) {
-                    sc.addAnd("address", SearchCriteria.Op.EQ, requestedIp);
-                    errorMessage.append(": requested ip " + requestedIp + " is not available");
-                }
-
-                boolean ascOrder = ! forSystemVms;
-                Filter filter = new Filter(IPAddressVO.class, "forSystemVms", ascOrder, 0l, 1l);
-                if (SystemVmPublicIpReservationModeStrictness.value()) {
-                    sc.setParameters("forSystemVms", forSystemVms);
-                }
-
-                filter.addOrderBy(IPAddressVO.class,"vlanId", true);
-
-                List<IPAddressVO> addrs = _ipAddressDao.search(sc, filter, false);
-
-                // If all the dedicated IPs of the owner are in use fetch an IP from the system pool
-                if (addrs.size() == 0 && fetchFromDedicatedRange) {
-                    // Verify if account is allowed to acquire IPs from the system
-                    boolean useSystemIps = UseSystemPublicIps.valueIn(owner.getId());
-                    if (useSystemIps && nonDedicatedVlanDbIds != null && !nonDedicatedVlanDbIds.isEmpty()) {
-                        fetchFromDedicatedRange = false;
-                        sc.setParameters("vlanId", nonDedicatedVlanDbIds.toArray());
-                        errorMessage.append(", vlanId id=" + Arrays.toString(nonDedicatedVlanDbIds.toArray()));
-                        addrs = _ipAddressDao.search(sc, filter, false);
-                    }
-                }
-
-                if (addrs.size() == 0) {
-                    if (podId != null) {
-                        InsufficientAddressCapacityException ex = new InsufficientAddressCapacityException("Insufficient address capacity", Pod.class, podId);
-                        // for now, we hardcode the table names, but we should ideally do a lookup for the tablename from the VO object.
-                        ex.addProxyObject(ApiDBUtils.findPodById(podId).getUuid());
-                        throw ex;
-                    }
-                    s_logger.warn(errorMessage.toString());
-                    InsufficientAddressCapacityException ex = new InsufficientAddressCapacityException("Insufficient address capacity", DataCenter.class, dcId);
-                    ex.addProxyObject(ApiDBUtils.findZoneById(dcId).getUuid());
-                    throw ex;
-                }
-
-                assert(addrs.size() == 1) : "Return size is incorrect: " + addrs.size();
-
-                if (!fetchFromDedicatedRange && VlanType.VirtualNetwork.equals(vlanUse)) {
-                    // Check that the maximum number of public IPs for the given accountId will not be exceeded
-                    try {
-                        _resourceLimitMgr.checkResourceLimit(owner, ResourceType.public_ip);
-                    } catch (ResourceAllocationException ex) {
-                        s_logger.warn("Failed to allocate resource of type " + ex.getResourceType() + " for account " + owner);
-                        throw new AccountLimitException("Maximum number of public IP addresses for account: " + owner.getAccountName() + " has been exceeded.");
-                    }
-                }
+                // only the row claimed is locked, concurrent allocations in the zone do not wait for each other's candidates
+                List<IPAddressVO> addrs = listFreePublicIps(dcId, podId, vlanDbIds, owner, vlanUse, guestNetworkId, requestedIp, forSystemVms, 1, false);
 
                 IPAddressVO finalAddr = null;
                 for (final IPAddressVO possibleAddr: addrs) {
@@ -842,7 +746,7 @@ public class IpAddressManagerImpl extends ManagerBase implements IpAddressManage
                     if (_ipAddressDao.lockRow(possibleAddr.getId(), true) != null) {
                         final IPAddressVO userIp = _ipAddressDao.findById(addr.getId());
                         if (userIp.getState() == IpAddress.State.Free) {
-                            addr.setState(IpAddress.State.Allocating);
+                            addr.setState(assign ? IpAddress.State.Allocated : IpAddress.State.Allocating);
                             if (_ipAddressDao.update(addr.getId(), addr)) {
                                 finalAddr = addr;
                                 break;
@@ -852,18 +756,14 @@ public class IpAddressManagerImpl extends ManagerBase implements IpAddressManage
                 }
 
                 if (finalAddr == null) {
-                    s_logger.error("Failed to fetch any free public IP address");
-                    throw new CloudRuntimeException("Failed to fetch any free public IP address");
+                    s_logger.warn("Failed to fetch any free public IP address in zone " + dcId);
+                    throw insufficientAddressCapacity(dcId, podId);
                 }
 
+                vlans.put(finalAddr.getVlanId(), _vlanDao.findById(finalAddr.getVlanId()));
                 if (assign) {
-                    markPublicIpAsAllocated(finalAddr);
-                }
-
-                final State expectedAddressState = assign ? State.Allocated : State.Allocating;
-                if (finalAddr.getState() != expectedAddressState) {
-                    s_logger.error("Failed to fetch new public IP and get in expected state=" + expectedAddressState);
-                    throw new CloudRuntimeException("Failed to fetch new public IP with expected state " + expectedAddressState);
+                    // the row stays locked until the transaction ends
+                    markPublicIpsAsAllocated(owner, Collections.singletonList(finalAddr), vlans);
                 }
 
                 return finalAddr;
@@ -874,7 +774,245 @@ public class IpAddressManagerImpl extends ManagerBase implements IpAddressManage
             _firewallMgr.addSystemFirewallRules(addr, owner);
         }
 
-        return PublicIp.createFromAddrAndVlan(addr, _vlanDao.findById(addr.getVlanId()));
+        return PublicIp.createFromAddrAndVlan(addr, vlans.get(addr.getVlanId()));
+    }
+
+    @DB
+    @Override
+    public List<PublicIp> assignPublicIpAddresses(final long dcId, final Long podId, final Account owner, final VlanType vlanUse, final Long guestNetworkId,
+            final Long vpcId, final int count, final boolean isSystem, final Boolean displayIp) throws InsufficientAddressCapacityException {
+        if (count <= 0) {
+            return new ArrayList<PublicIp>();
+        }
+        if (count == 1) {
+            return Collections.singletonList(fetchNewPublicIp(dcId, podId, null, owner, vlanUse, guestNetworkId, false, true, null, isSystem, vpcId, displayIp, false));
+        }
+        return allocatePublicIps(dcId, podId, owner, vlanUse, guestNetworkId, vpcId, isSystem, displayIp, count);
+    }
+
+    /**
+     * Allocates free public IPs to the owner, locked with a single scan, with one batch of usage events and one update
+     * of the resource count. Fails as a whole if fewer IPs than requested can be allocated. The scan locks the rows it
+     * sorts, so it is only worth it for more than one IP.
+     */
+    private List<PublicIp> allocatePublicIps(final long dcId, final Long podId, final Account owner, final VlanType vlanUse, final Long guestNetworkId,
+            final Long vpcId, final boolean isSystem, final Boolean displayIp, final int count) throws InsufficientAddressCapacityException {
+        final Map<Long, VlanVO> vlans = new HashMap<Long, VlanVO>();
+        List<IPAddressVO> addrs = Transaction.execute(new TransactionCallbackWithException<List<IPAddressVO>, InsufficientAddressCapacityException>() {
+            @Override
+            public List<IPAddressVO> doInTransaction(TransactionStatus status) throws InsufficientAddressCapacityException {
+                // the rows stay locked until the transaction ends, so they need not be locked one by one
+                List<IPAddressVO> candidates = listFreePublicIps(dcId, podId, null, owner, vlanUse, guestNetworkId, null, false, count, true);
+                List<IPAddressVO> claimed = new ArrayList<IPAddressVO>(count);
+                Date now = new Date();
+                for (IPAddressVO addr : candidates) {
+                    if (addr.getState() != IpAddress.State.Free) {
+                        continue;
+                    }
+                    addr.setSourceNat(false);
+                    addr.setAllocatedTime(now);
+                    addr.setAllocatedInDomainId(owner.getDomainId());
+                    addr.setAllocatedToAccountId(owner.getId());
+                    addr.setSystem(isSystem);
+                    if (displayIp != null) {
+                        addr.setDisplay(displayIp);
+                    }
+                    if (vlanUse != VlanType.DirectAttached) {
+                        addr.setAssociatedWithNetworkId(guestNetworkId);
+                        addr.setVpcId(vpcId);
+                    }
+                    addr.setState(IpAddress.State.Allocated);
+                    if (_ipAddressDao.update(addr.getId(), addr)) {
+                        claimed.add(addr);
+                        if (!vlans.containsKey(addr.getVlanId())) {
+                            vlans.put(addr.getVlanId(), _vlanDao.findById(addr.getVlanId()));
+                        }
+                    }
+                }
+                if (claimed.size() < count) {
+                    s_logger.warn("Failed to allocate " + count + " free public IP addresses in zone " + dcId + ", got " + claimed.size());
+                    throw insufficientAddressCapacity(dcId, podId);
+                }
+                markPublicIpsAsAllocated(owner, claimed, vlans);
+                return claimed;
+            }
+        });
+
+        List<PublicIp> ips = new ArrayList<PublicIp>(addrs.size());
+        for (IPAddressVO addr : addrs) {
+            if (vlanUse == VlanType.VirtualNetwork) {
+                _firewallMgr.addSystemFirewallRules(addr, owner);
+            }
+            ips.add(PublicIp.createFromAddrAndVlan(addr, vlans.get(addr.getVlanId())));
+        }
+        return ips;
+    }
+
+    private InsufficientAddressCapacityException insufficientAddressCapacity(final long dcId, final Long podId) {
+        if (podId != null) {
+            InsufficientAddressCapacityException ex = new InsufficientAddressCapacityException("Insufficient address capacity", Pod.class, podId);
+            // for now, we hardcode the table names, but we should ideally do a lookup for the tablename from the VO object.
+            ex.addProxyObject(_hpDao.findById(podId).getUuid());
+            return ex;
+        }
+        InsufficientAddressCapacityException ex = new InsufficientAddressCapacityException("Insufficient address capacity", DataCenter.class, dcId);
+        ex.addProxyObject(_dcDao.findById(dcId).getUuid());
+        return ex;
+    }
+
+    /**
+     * Saves the usage events and the resource count of IPs allocated and locked in the current transaction, with one
+     * batch of usage events and one update of the resource count.
+     */
+    private void markPublicIpsAsAllocated(Account owner, List<IPAddressVO> addrs, Map<Long, VlanVO> vlans) {
+        if (owner.getAccountId() == Account.ACCOUNT_ID_SYSTEM) {
+            return;
+        }
+        List<UsageEventVO> events = new ArrayList<UsageEventVO>();
+        List<String> uuids = new ArrayList<String>();
+        Map<Long, Boolean> dedicatedVlans = new HashMap<Long, Boolean>();
+        long counted = 0;
+        for (IPAddressVO addr : addrs) {
+            Boolean dedicated = dedicatedVlans.get(addr.getVlanId());
+            if (dedicated == null) {
+                dedicated = isIpDedicated(addr);
+                dedicatedVlans.put(addr.getVlanId(), dedicated);
+            }
+            if (!dedicated) {
+                events.add(new UsageEventVO(EventTypes.EVENT_NET_IP_ASSIGN, owner.getId(), addr.getDataCenterId(), addr.getId(), addr.getAddress().toString(),
+                        addr.isSourceNat(), vlans.get(addr.getVlanId()).getVlanType().toString(), addr.getSystem()));
+                uuids.add(addr.getUuid());
+            }
+            if (updateIpResourceCount(addr)) {
+                counted++;
+            }
+        }
+        UsageEventUtils.publishUsageEvents(events, IPAddressVO.class.getName(), uuids);
+        if (counted > 0) {
+            _resourceLimitMgr.incrementResourceCount(owner.getId(), ResourceType.public_ip, counted);
+        }
+    }
+
+    /**
+     * Finds free public IPs the owner may get, from the dedicated ranges of the owner first.
+     *
+     * @param count the number of IPs needed, fewer is an insufficient capacity
+     * @param lock whether to lock the rows found for update, in a single scan
+     */
+    protected List<IPAddressVO> listFreePublicIps(final long dcId, final Long podId, final List<Long> vlanDbIds, final Account owner, final VlanType vlanUse,
+            final Long guestNetworkId, final String requestedIp, final boolean forSystemVms, final int count, final boolean lock) throws InsufficientAddressCapacityException {
+        StringBuilder errorMessage = new StringBuilder("Unable to get ip address in ");
+        boolean fetchFromDedicatedRange = false;
+        List<Long> dedicatedVlanDbIds = new ArrayList<Long>();
+        List<Long> nonDedicatedVlanDbIds = new ArrayList<Long>();
+        DataCenter zone = _entityMgr.findById(DataCenter.class, dcId);
+
+        SearchCriteria<IPAddressVO> sc = null;
+        if (podId != null) {
+            sc = AssignIpAddressFromPodVlanSearch.create();
+            sc.setJoinParameters("podVlanMapSB", "podId", podId);
+            errorMessage.append(" pod id=" + podId);
+        } else {
+            sc = AssignIpAddressSearch.create();
+            errorMessage.append(" zone id=" + dcId);
+        }
+
+        // If owner has dedicated Public IP ranges, fetch IP from the dedicated range
+        // Otherwise fetch IP from the system pool
+        Network network = _networksDao.findById(guestNetworkId);
+        //Checking if network is null in the case of system VM's. At the time of allocation of IP address to systemVm, no network is present.
+        if(network == null || !(network.getGuestType() == GuestType.Shared && zone.getNetworkType() == NetworkType.Advanced)) {
+            List<AccountVlanMapVO> maps = _accountVlanMapDao.listAccountVlanMapsByAccount(owner.getId());
+            for (AccountVlanMapVO map : maps) {
+                if (vlanDbIds == null || vlanDbIds.contains(map.getVlanDbId()))
+                    dedicatedVlanDbIds.add(map.getVlanDbId());
+            }
+        }
+        List<DomainVlanMapVO> domainMaps = _domainVlanMapDao.listDomainVlanMapsByDomain(owner.getDomainId());
+        for (DomainVlanMapVO map : domainMaps) {
+            if (vlanDbIds == null || vlanDbIds.contains(map.getVlanDbId()))
+                dedicatedVlanDbIds.add(map.getVlanDbId());
+        }
+        List<VlanVO> nonDedicatedVlans = _vlanDao.listZoneWideNonDedicatedVlans(dcId);
+        for (VlanVO nonDedicatedVlan : nonDedicatedVlans) {
+            if (vlanDbIds == null || vlanDbIds.contains(nonDedicatedVlan.getId()))
+                nonDedicatedVlanDbIds.add(nonDedicatedVlan.getId());
+        }
+        if (dedicatedVlanDbIds != null && !dedicatedVlanDbIds.isEmpty()) {
+            fetchFromDedicatedRange = true;
+            sc.setParameters("vlanId", dedicatedVlanDbIds.toArray());
+            errorMessage.append(", vlanId id=" + Arrays.toString(dedicatedVlanDbIds.toArray()));
+        } else if (nonDedicatedVlanDbIds != null && !nonDedicatedVlanDbIds.isEmpty()) {
+            sc.setParameters("vlanId", nonDedicatedVlanDbIds.toArray());
+            errorMessage.append(", vlanId id=" + Arrays.toString(nonDedicatedVlanDbIds.toArray()));
+        } else {
+            if (podId == null) {
+                s_logger.warn(errorMessage.toString());
+            }
+            throw insufficientAddressCapacity(dcId, podId);
+        }
+
+        sc.setParameters("dc", dcId);
+
+        // for direct network take ip addresses only from the vlans belonging to the network
+        if (vlanUse == VlanType.DirectAttached) {
+            sc.setJoinParameters("vlan", "networkId", guestNetworkId);
+            errorMessage.append(", network id=" + guestNetworkId);
+        }
+        sc.setJoinParameters("vlan", "type", vlanUse);
+
+        if (requestedIp != null) {
+            sc.addAnd("address", SearchCriteria.Op.EQ, requestedIp);
+            errorMessage.append(": requested ip " + requestedIp + " is not available");
+        }
+
+        boolean ascOrder = ! forSystemVms;
+        Filter filter = new Filter(IPAddressVO.class, "forSystemVms", ascOrder, 0l, (long)count);
+        if (SystemVmPublicIpReservationModeStrictness.value()) {
+            sc.setParameters("forSystemVms", forSystemVms);
+        }
+
+        filter.addOrderBy(IPAddressVO.class,"vlanId", true);
+
+        List<IPAddressVO> addrs = lock ? _ipAddressDao.lockRows(sc, filter, true) : _ipAddressDao.search(sc, filter, false);
+
+        // If the dedicated IPs of the owner do not suffice top them up with IPs from the system pool
+        int systemIps = fetchFromDedicatedRange ? 0 : addrs.size();
+        if (addrs.size() < count && fetchFromDedicatedRange) {
+            // Verify if account is allowed to acquire IPs from the system
+            boolean useSystemIps = UseSystemPublicIps.valueIn(owner.getId());
+            if (useSystemIps && nonDedicatedVlanDbIds != null && !nonDedicatedVlanDbIds.isEmpty()) {
+                sc.setParameters("vlanId", nonDedicatedVlanDbIds.toArray());
+                errorMessage.append(", vlanId id=" + Arrays.toString(nonDedicatedVlanDbIds.toArray()));
+                Filter systemFilter = new Filter(IPAddressVO.class, "forSystemVms", ascOrder, 0l, (long)(count - addrs.size()));
+                systemFilter.addOrderBy(IPAddressVO.class, "vlanId", true);
+                List<IPAddressVO> systemAddrs = lock ? _ipAddressDao.lockRows(sc, systemFilter, true) : _ipAddressDao.search(sc, systemFilter, false);
+                systemIps = systemAddrs.size();
+                addrs = new ArrayList<IPAddressVO>(addrs);
+                addrs.addAll(systemAddrs);
+            }
+        }
+
+        if (addrs.size() < count) {
+            if (podId == null) {
+                s_logger.warn(errorMessage.toString());
+            }
+            throw insufficientAddressCapacity(dcId, podId);
+        }
+
+        assert(addrs.size() == count) : "Return size is incorrect: " + addrs.size();
+
+        if (systemIps > 0 && VlanType.VirtualNetwork.equals(vlanUse)) {
+            // Check that the maximum number of public IPs for the given accountId will not be exceeded
+            try {
+                _resourceLimitMgr.checkResourceLimit(owner, ResourceType.public_ip, systemIps);
+            } catch (ResourceAllocationException ex) {
+                s_logger.warn("Failed to allocate resource of type " + ex.getResourceType() + " for account " + owner);
+                throw new AccountLimitException("Maximum number of public IP addresses for account: " + owner.getAccountName() + " has been exceeded.");
+            }
+        }
+
+        return addrs;
     }
 
     @DB
@@ -1836,30 +1974,119 @@ public class IpAddressManagerImpl extends ManagerBase implements IpAddressManage
             return null;
         }
 
-        Set<Long> availableIps = _networkModel.getAvailableIps(network, requestedIp);
-
-        if (availableIps == null || availableIps.isEmpty()) {
+        if (network.getCidr() == null) {
             s_logger.debug("There are no free ips in the  network " + network);
             return null;
         }
 
-        Long[] array = availableIps.toArray(new Long[availableIps.size()]);
+        evictStaleGuestIpBitmaps();
+        final String cidr = network.getCidr();
+        while (true) {
+            final GuestIpBitmap bitmap = _guestIpBitmaps.compute(network.getId(), (id, cached) -> cached != null && cached.getCidr().equals(cidr) ? cached : new GuestIpBitmap(cidr));
+            synchronized (bitmap) {
+                if (_guestIpBitmaps.get(network.getId()) != bitmap) {
+                    // evicted or replaced meanwhile, addresses are only picked from the bitmap in the cache
+                    continue;
+                }
+                return acquireGuestIpAddress(network, requestedIp, bitmap);
+            }
+        }
+    }
+
+    /**
+     * Drops the bitmaps not loaded within the cache ttl, at most once per ttl. Such a bitmap is loaded again before
+     * it is used anyway.
+     */
+    protected void evictStaleGuestIpBitmaps() {
+        final long now = System.currentTimeMillis();
+        final long ttlMillis = GuestIpCacheTtl.value() * 1000L;
+        final long evictedAt = _guestIpBitmapsEvictedAt.get();
+        if (evictedAt >= now - ttlMillis || !_guestIpBitmapsEvictedAt.compareAndSet(evictedAt, now)) {
+            return;
+        }
+        for (Map.Entry<Long, GuestIpBitmap> entry : _guestIpBitmaps.entrySet()) {
+            final GuestIpBitmap bitmap = entry.getValue();
+            synchronized (bitmap) {
+                if (bitmap.getLoadedAt() < now - ttlMillis) {
+                    _guestIpBitmaps.remove(entry.getKey(), bitmap);
+                }
+            }
+        }
+    }
+
+    private String acquireGuestIpAddress(Network network, String requestedIp, GuestIpBitmap bitmap) {
+        final String cidr = network.getCidr();
+        boolean loaded = false;
+        if (bitmap.getLoadedAt() < System.currentTimeMillis() - GuestIpCacheTtl.value() * 1000L) {
+            loadGuestIpBitmap(network, bitmap);
+            loaded = true;
+        }
 
         if (requestedIp != null) {
             // check that requested ip has the same cidr
-            String[] cidr = network.getCidr().split("/");
-            boolean isSameCidr = NetUtils.sameSubnetCIDR(requestedIp, NetUtils.long2Ip(array[0]), Integer.parseInt(cidr[1]));
+            String[] cidrParts = cidr.split("/");
+            boolean isSameCidr = NetUtils.sameSubnetCIDR(requestedIp, cidrParts[0], Integer.parseInt(cidrParts[1]));
             if (!isSameCidr) {
                 s_logger.warn("Requested ip address " + requestedIp + " doesn't belong to the network " + network + " cidr");
                 return null;
-            } else if (NetUtils.IsIpEqualToNetworkOrBroadCastIp(requestedIp, cidr[0], Integer.parseInt(cidr[1]))) {
+            } else if (NetUtils.IsIpEqualToNetworkOrBroadCastIp(requestedIp, cidrParts[0], Integer.parseInt(cidrParts[1]))) {
                 s_logger.warn("Requested ip address " + requestedIp + " is equal to the to the network/broadcast ip of the network" + network);
                 return null;
+            } else if (isGuestIpInUse(network, requestedIp)) {
+                s_logger.warn("Requested ip address " + requestedIp + " is already in use in network" + network);
+                return null;
             }
+            bitmap.claim(NetUtils.ip2Long(requestedIp));
             return requestedIp;
         }
 
-        return NetUtils.long2Ip(array[rand.nextInt(array.length)]);
+        int conflicts = 0;
+        while (true) {
+            final long ip = bitmap.randomFree(rand);
+            if (ip < 0 || conflicts >= GuestIpConflictsBeforeReload) {
+                if (loaded) {
+                    break;
+                }
+                // addresses may have been released or allocated since the cache was loaded
+                loadGuestIpBitmap(network, bitmap);
+                loaded = true;
+                conflicts = 0;
+                continue;
+            }
+            // claimed even if it is in use, so that it is not picked again
+            bitmap.claim(ip);
+            final String address = NetUtils.long2Ip(ip);
+            if (loaded || !isGuestIpInUse(network, address)) {
+                return address;
+            }
+            conflicts++;
+        }
+
+        s_logger.debug("There are no free ips in the  network " + network);
+        return null;
+    }
+
+    /**
+     * Claims the addresses in use in the network, the gateway included.
+     */
+    protected void loadGuestIpBitmap(Network network, GuestIpBitmap bitmap) {
+        bitmap.reset();
+        for (String ip : _networkModel.getUsedIpsInNetwork(network)) {
+            if (ip != null) {
+                bitmap.claim(NetUtils.ip2Long(ip));
+            }
+        }
+        if (network.getGateway() != null) {
+            bitmap.claim(NetUtils.ip2Long(network.getGateway()));
+        }
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Loaded the guest ips in use in network " + network + ", " + bitmap.getFreeCount() + " of " + bitmap.getSize() + " are free");
+        }
+    }
+
+    protected boolean isGuestIpInUse(Network network, String ip) {
+        return _nicDao.findByIp4AddressAndNetworkId(ip, network.getId()) != null || _nicSecondaryIpDao.findByIp4AddressAndNetworkId(ip, network.getId()) != null
+                || _appLbRuleDao.countBySourceIp(new Ip(ip), network.getId()) > 0;
     }
 
     /**
@@ -2153,7 +2380,7 @@ public class IpAddressManagerImpl extends ManagerBase implements IpAddressManage
 
     @Override
     public ConfigKey<?>[] getConfigKeys() {
-        return new ConfigKey<?>[] {UseSystemPublicIps, RulesContinueOnError, SystemVmPublicIpReservationModeStrictness};
+        return new ConfigKey<?>[] {UseSystemPublicIps, RulesContinueOnError, RulesApplyIncremental, SystemVmPublicIpReservationModeStrictness, GuestIpCacheTtl};
     }
 
     /**
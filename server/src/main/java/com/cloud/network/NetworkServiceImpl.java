@@ -975,16 +975,18 @@ public class NetworkServiceImpl extends ManagerBase implements NetworkService {
         PhysicalNetworkVO pNetwork = _physicalNetworkDao.findById(physicalNetworkId);
         if (pNetwork.getVnet() != null) {
             List<Pair<Integer, Integer>> vlanList = pNetwork.getVnet();
+            // the same for all vlans
+            String globalVlanBits = _configDao.getValue(Config.GuestVlanBits.key());
+            int cidrSize = 8 + Integer.parseInt(globalVlanBits);
+            String guestNetworkCidr = zone.getGuestNetworkCidr();
+            String[] cidrTuple = guestNetworkCidr.split("\\/");
+            long guestNetworkAddress = NetUtils.ip2Long(cidrTuple[0]);
             for (Pair<Integer, Integer> vlanRange : vlanList) {
                 Integer lowestVlanTag = vlanRange.first();
                 Integer highestVlanTag = vlanRange.second();
                 for (int vlan = lowestVlanTag; vlan <= highestVlanTag; ++vlan) {
                     int offset = vlan - lowestVlanTag;
-                    String globalVlanBits = _configDao.getValue(Config.GuestVlanBits.key());
-                    int cidrSize = 8 + Integer.parseInt(globalVlanBits);
-                    String guestNetworkCidr = zone.getGuestNetworkCidr();
-                    String[] cidrTuple = guestNetworkCidr.split("\\/");
-                    long newCidrAddress = (NetUtils.ip2Long(cidrTuple[0]) & 0xff000000) | (offset << (32 - cidrSize));
+                    long newCidrAddress = (guestNetworkAddress & 0xff000000) | (offset << (32 - cidrSize));
                     if (NetUtils.isNetworksOverlap(NetUtils.long2Ip(newCidrAddress), cidr)) {
                         throw new InvalidParameterValueException("Specified CIDR for shared network conflict with CIDR that is reserved for zone vlan " + vlan);
                     }
@@ -116,7 +116,7 @@ import com.cloud.vm.dao.UserVmDao;
 
 public class VirtualRouterElement extends AdapterBase implements VirtualRouterElementService, DhcpServiceProvider, UserDataServiceProvider, SourceNatServiceProvider,
 StaticNatServiceProvider, FirewallServiceProvider, LoadBalancingServiceProvider, PortForwardingServiceProvider, RemoteAccessVPNServiceProvider, IpDeployer,
-NetworkMigrationResponder, AggregatedCommandExecutor, RedundantResource, DnsServiceProvider {
+NetworkMigrationResponder, AggregatedCommandExecutor, RedundantResource, DnsServiceProvider, RuleDeltaServiceProvider {
     private static final Logger s_logger = Logger.getLogger(VirtualRouterElement.class);
     public static final AutoScaleCounterType AutoScaleCounterCpu = new AutoScaleCounterType("cpu");
     public static final AutoScaleCounterType AutoScaleCounterMemory = new AutoScaleCounterType("memory");
@@ -845,6 +845,17 @@ NetworkMigrationResponder, AggregatedCommandExecutor, RedundantResource, DnsServ
         return result;
     }
 
+    @Override
+    public boolean canApplyRuleDelta(final Network network, final FirewallRule.Purpose purpose, final FirewallRule.TrafficType trafficType) {
+        // the router merges ingress firewall and port forwarding rules into its data bags by rule, a router that
+        // starts gets all the rules anyway. Egress rules depend on the default policy, and the whole load balancer
+        // config is written at once, so those are always applied in full
+        if (purpose == FirewallRule.Purpose.PortForwarding) {
+            return true;
+        }
+        return purpose == FirewallRule.Purpose.Firewall && trafficType == FirewallRule.TrafficType.Ingress;
+    }
+
     @Override
     public boolean isReady(final PhysicalNetworkServiceProvider provider) {
         final VirtualRouterProviderVO element = _vrProviderDao.findByNspIdAndType(provider.getId(), getVirtualRouterProvider());
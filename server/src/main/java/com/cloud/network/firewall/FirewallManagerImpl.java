@@ -61,7 +61,9 @@ import com.cloud.network.dao.NetworkDao;
 import com.cloud.network.dao.NetworkVO;
 import com.cloud.network.element.FirewallServiceProvider;
 import com.cloud.network.element.NetworkACLServiceProvider;
+import com.cloud.network.element.NetworkElement;
 import com.cloud.network.element.PortForwardingServiceProvider;
+import com.cloud.network.element.RuleDeltaServiceProvider;
 import com.cloud.network.element.StaticNatServiceProvider;
 import com.cloud.network.rules.FirewallManager;
 import com.cloud.network.rules.FirewallRule;
@@ -71,6 +73,8 @@ import com.cloud.network.rules.FirewallRule.State;
 import com.cloud.network.rules.FirewallRuleVO;
 import com.cloud.network.rules.PortForwardingRule;
 import com.cloud.network.rules.PortForwardingRuleVO;
+import com.cloud.network.rules.RuleApplyCoalescer;
+import com.cloud.network.rules.RuleDeltaTracker;
 import com.cloud.network.rules.dao.PortForwardingRulesDao;
 import com.cloud.network.vpc.VpcManager;
 import com.cloud.projects.Project.ListProjectResourcesCriteria;
@@ -146,6 +150,9 @@ public class FirewallManagerImpl extends ManagerBase implements FirewallService,
     @Inject
     IpAddressManager _ipAddrMgr;
 
+    private final RuleDeltaTracker _ruleDeltaTracker = new RuleDeltaTracker();
+    private final RuleApplyCoalescer _applyCoalescer = new RuleApplyCoalescer();
+
     private boolean _elbEnabled = false;
     static Boolean rulesContinueOnErrFlag = true;
 
@@ -600,7 +607,12 @@ public class FirewallManagerImpl extends ManagerBase implements FirewallService,
                 if (!isFwProvider) {
                     continue;
                 }
-                handled = fwElement.applyFWRules(network, rules);
+                List<? extends FirewallRule> toApply = getRulesToApply(fwElement, network, purpose, rules);
+                try {
+                    handled = toApply.isEmpty() || fwElement.applyFWRules(network, toApply);
+                } finally {
+                    setRulesApplied(fwElement, network, purpose, rules, toApply, handled);
+                }
                 if (handled)
                     break;
             }
@@ -612,7 +624,12 @@ public class FirewallManagerImpl extends ManagerBase implements FirewallService,
                 if (!isPfProvider) {
                     continue;
                 }
-                    handled = element.applyPFRules(network, (List<PortForwardingRule>)rules);
+                List<PortForwardingRule> toApply = getRulesToApply(element, network, purpose, (List<PortForwardingRule>)rules);
+                try {
+                    handled = toApply.isEmpty() || element.applyPFRules(network, toApply);
+                } finally {
+                    setRulesApplied(element, network, purpose, rules, toApply, handled);
+                }
                 if (handled)
                     break;
             }
@@ -637,6 +654,40 @@ public class FirewallManagerImpl extends ManagerBase implements FirewallService,
         return handled;
     }
 
+    private boolean isRuleDeltaSupported(NetworkElement element, Network network, Purpose purpose, List<? extends FirewallRule> rules) {
+        return _ipAddrMgr.RulesApplyIncremental.value() && element instanceof RuleDeltaServiceProvider && !rules.isEmpty()
+                && ((RuleDeltaServiceProvider)element).canApplyRuleDelta(network, purpose, rules.get(0).getTrafficType());
+    }
+
+    /**
+     * @return the rules the element does not have yet if it keeps the rules it was given before, all of them otherwise
+     */
+    private <T extends FirewallRule> List<T> getRulesToApply(NetworkElement element, Network network, Purpose purpose, List<T> rules) {
+        if (!isRuleDeltaSupported(element, network, purpose, rules)) {
+            return rules;
+        }
+        List<T> delta = _ruleDeltaTracker.getDelta(element.getName(), network.getId(), purpose, rules.get(0).getTrafficType(), rules);
+        if (s_logger.isDebugEnabled() && delta.size() < rules.size()) {
+            s_logger.debug("Applying " + delta.size() + " of " + rules.size() + " " + purpose + " rules changed since the last apply on " + element.getName()
+                    + " in network " + network.getId());
+        }
+        return delta;
+    }
+
+    private void setRulesApplied(NetworkElement element, Network network, Purpose purpose, List<? extends FirewallRule> rules, List<? extends FirewallRule> applied,
+            boolean handled) {
+        if (!isRuleDeltaSupported(element, network, purpose, rules)) {
+            return;
+        }
+        FirewallRule.TrafficType trafficType = rules.get(0).getTrafficType();
+        if (handled) {
+            _ruleDeltaTracker.setApplied(element.getName(), network.getId(), purpose, trafficType, applied);
+        } else {
+            // the element may have applied some of the rules, send all of them next time
+            _ruleDeltaTracker.invalidate(element.getName(), network.getId(), purpose, trafficType);
+        }
+    }
+
     @Override
     public void removeRule(FirewallRule rule) {
 
@@ -651,9 +702,15 @@ public class FirewallManagerImpl extends ManagerBase implements FirewallService,
     }
 
     @Override
-    public boolean applyIngressFirewallRules(long ipId, Account caller) throws ResourceUnavailableException {
-        List<FirewallRuleVO> rules = _firewallDao.listByIpAndPurpose(ipId, Purpose.Firewall);
-        return applyFirewallRules(rules, false, caller);
+    public boolean applyIngressFirewallRules(final long ipId, final Account caller) throws ResourceUnavailableException {
+        // concurrent changes to the firewall rules of the ip are applied at once
+        return _applyCoalescer.apply(ipId, new RuleApplyCoalescer.Apply() {
+            @Override
+            public boolean apply() {
+                List<FirewallRuleVO> rules = _firewallDao.listByIpAndPurpose(ipId, Purpose.Firewall);
+                return applyFirewallRules(rules, false, caller);
+            }
+        });
     }
 
     @Override
@@ -124,6 +124,7 @@ import com.cloud.network.rules.LbStickinessMethod;
 import com.cloud.network.rules.LbStickinessMethod.LbStickinessMethodParam;
 import com.cloud.network.rules.LoadBalancer;
 import com.cloud.network.rules.LoadBalancerContainer.Scheme;
+import com.cloud.network.rules.RuleApplyCoalescer;
 import com.cloud.network.rules.RulesManager;
 import com.cloud.network.rules.StickinessPolicy;
 import com.cloud.network.vpc.VpcManager;
@@ -257,6 +258,8 @@ public class LoadBalancingRulesManagerImpl<Type> extends ManagerBase implements
     @Inject
     LoadBalancerCertMapDao _lbCertMapDao;
 
+    private final RuleApplyCoalescer _applyCoalescer = new RuleApplyCoalescer();
+
     @Inject
     NicSecondaryIpDao _nicSecondaryIpDao;
 
@@ -1786,31 +1789,39 @@ public class LoadBalancingRulesManagerImpl<Type> extends ManagerBase implements
 
     @Override
     public boolean applyLoadBalancerConfig(long lbRuleId) throws ResourceUnavailableException {
-        LoadBalancerVO lb = _lbDao.findById(lbRuleId);
-        List<LoadBalancerVO> lbs;
+        final LoadBalancerVO lb = _lbDao.findById(lbRuleId);
         if (isRollBackAllowedForProvider(lb)) {
             // this is for Netscalar type of devices. if their is failure the db
             // entries will be rollbacked.
-            lbs = Arrays.asList(lb);
-        } else {
-            boolean onlyRulesInTransitionState = true;
-            for (LoadBalancingServiceProvider lbElement : _lbProviders) {
-                Provider provider = lbElement.getProvider();
-                boolean isLbProvider = _networkModel.isProviderSupportServiceInNetwork(lb.getNetworkId(), Service.Lb, provider);
-                if (!isLbProvider) {
-                    continue;
-                }
-                onlyRulesInTransitionState = lbElement.handlesOnlyRulesInTransitionState();
-                break;
+            return applyLoadBalancerRules(Arrays.asList(lb), true);
+        }
+        // the rules of the network are applied at once, so concurrent changes to them are too
+        return _applyCoalescer.apply(lb.getNetworkId() + ":" + lb.getScheme(), new RuleApplyCoalescer.Apply() {
+            @Override
+            public boolean apply() throws ResourceUnavailableException {
+                return applyLoadBalancerConfigOfNetwork(lb);
             }
+        });
+    }
 
-            // get all rules in transition state
-            if (onlyRulesInTransitionState) {
-                lbs = _lbDao.listInTransitionStateByNetworkIdAndScheme(lb.getNetworkId(), lb.getScheme());
-            } else {
-                lbs = _lbDao.listByNetworkIdAndScheme(lb.getNetworkId(), lb.getScheme());
+    private boolean applyLoadBalancerConfigOfNetwork(LoadBalancerVO lb) throws ResourceUnavailableException {
+        boolean onlyRulesInTransitionState = true;
+        for (LoadBalancingServiceProvider lbElement : _lbProviders) {
+            Provider provider = lbElement.getProvider();
+            boolean isLbProvider = _networkModel.isProviderSupportServiceInNetwork(lb.getNetworkId(), Service.Lb, provider);
+            if (!isLbProvider) {
+                continue;
             }
+            onlyRulesInTransitionState = lbElement.handlesOnlyRulesInTransitionState();
+            break;
+        }
 
+        // get all rules in transition state
+        List<LoadBalancerVO> lbs;
+        if (onlyRulesInTransitionState) {
+            lbs = _lbDao.listInTransitionStateByNetworkIdAndScheme(lb.getNetworkId(), lb.getScheme());
+        } else {
+            lbs = _lbDao.listByNetworkIdAndScheme(lb.getNetworkId(), lb.getScheme());
         }
         return applyLoadBalancerRules(lbs, true);
     }
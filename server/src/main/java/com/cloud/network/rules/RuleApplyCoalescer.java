@@ -0,0 +1,119 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.rules;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.exception.ResourceUnavailableException;
+
+/**
+ * Coalesces concurrent applies of the same rules. An apply reads the rules to apply when it starts, so a request made
+ * while another apply of the same key runs is done by the next apply to start, and requests that pile up meanwhile
+ * are all done by that one apply rather than by one each.
+ */
+public class RuleApplyCoalescer {
+    private static final Logger s_logger = Logger.getLogger(RuleApplyCoalescer.class);
+
+    public interface Apply {
+        /**
+         * Reads the current rules and applies them.
+         */
+        boolean apply() throws ResourceUnavailableException;
+    }
+
+    private static class Key {
+        // the number of requests made so far
+        long requested;
+        // the last request covered by the running apply, and by the last apply that succeeded
+        long running;
+        long applied;
+        boolean busy;
+        int waiting;
+    }
+
+    private final Map<Object, Key> keys = new HashMap<Object, Key>();
+    private long coalesced;
+
+    /**
+     * Applies the rules of the key, unless an apply that started after this call succeeds meanwhile.
+     *
+     * @return the result of the apply, true if it was done by another one
+     */
+    public boolean apply(Object key, Apply apply) throws ResourceUnavailableException {
+        Key state;
+        long request;
+        synchronized (this) {
+            state = keys.get(key);
+            if (state == null) {
+                state = new Key();
+                keys.put(key, state);
+            }
+            request = ++state.requested;
+            state.waiting++;
+            try {
+                while (state.busy) {
+                    wait();
+                }
+                if (state.applied >= request) {
+                    coalesced++;
+                    if (s_logger.isDebugEnabled()) {
+                        s_logger.debug("Rules of " + key + " were applied by a concurrent request");
+                    }
+                    return true;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                s_logger.warn("Interrupted waiting to apply the rules of " + key);
+                return false;
+            } finally {
+                state.waiting--;
+                if (!state.busy && state.waiting == 0) {
+                    keys.remove(key);
+                }
+            }
+            state.busy = true;
+            state.running = state.requested;
+            keys.put(key, state);
+        }
+        boolean success = false;
+        try {
+            success = apply.apply();
+            return success;
+        } finally {
+            synchronized (this) {
+                state.busy = false;
+                if (success) {
+                    state.applied = state.running;
+                }
+                if (state.waiting == 0) {
+                    keys.remove(key);
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return the number of requests done by the apply of another request
+     */
+    public synchronized long getCoalesced() {
+        return coalesced;
+    }
+}
@@ -0,0 +1,118 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.rules;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.cloud.network.rules.FirewallRule.Purpose;
+import com.cloud.network.rules.FirewallRule.State;
+import com.cloud.network.rules.FirewallRule.TrafficType;
+
+/**
+ * Keeps, per network element, network, purpose and traffic type, the rules last applied and a revision that goes up
+ * with every apply, so that elements keeping their rules can be sent only what changed. An element the tracker knows
+ * nothing about, for instance after a restart of the management server or a failed apply, gets the full set again.
+ */
+public class RuleDeltaTracker {
+
+    private final Map<String, Applied> applied = new HashMap<String, Applied>();
+
+    private static class Applied {
+        long revision;
+        final Map<Long, String> rules = new HashMap<Long, String>();
+    }
+
+    private static String key(String element, long networkId, Purpose purpose, TrafficType trafficType) {
+        return element + ":" + networkId + ":" + purpose + ":" + trafficType;
+    }
+
+    /**
+     * @return what the element applies of the rule, a rule whose signature changed is sent again
+     */
+    static String signature(FirewallRule rule) {
+        StringBuilder signature = new StringBuilder().append(rule.getSourceIpAddressId()).append(':').append(rule.getProtocol()).append(':')
+                .append(rule.getSourcePortStart()).append('-').append(rule.getSourcePortEnd()).append(':').append(rule.getIcmpType()).append('/')
+                .append(rule.getIcmpCode()).append(':').append(rule.getSourceCidrList()).append(':').append(rule.getDestinationCidrList());
+        if (rule instanceof PortForwardingRule) {
+            PortForwardingRule pf = (PortForwardingRule)rule;
+            signature.append(':').append(pf.getVirtualMachineId()).append(':').append(pf.getDestinationIpAddress()).append(':')
+                    .append(pf.getDestinationPortStart()).append('-').append(pf.getDestinationPortEnd());
+        }
+        return signature.toString();
+    }
+
+    /**
+     * @return the rules the element does not have yet, or all of them if the tracker does not know what the element has
+     */
+    public synchronized <T extends FirewallRule> List<T> getDelta(String element, long networkId, Purpose purpose, TrafficType trafficType, List<T> rules) {
+        Applied known = applied.get(key(element, networkId, purpose, trafficType));
+        if (known == null) {
+            return rules;
+        }
+        List<T> delta = new ArrayList<T>();
+        for (T rule : rules) {
+            if (rule.getState() == State.Revoke || !signature(rule).equals(known.rules.get(rule.getId()))) {
+                delta.add(rule);
+            }
+        }
+        return delta;
+    }
+
+    /**
+     * Records the rules as applied on the element, the revoked ones as gone.
+     *
+     * @return the new revision of the rules of the element
+     */
+    public synchronized long setApplied(String element, long networkId, Purpose purpose, TrafficType trafficType, List<? extends FirewallRule> rules) {
+        String key = key(element, networkId, purpose, trafficType);
+        Applied known = applied.get(key);
+        if (known == null) {
+            known = new Applied();
+            applied.put(key, known);
+        }
+        for (FirewallRule rule : rules) {
+            if (rule.getState() == State.Revoke) {
+                known.rules.remove(rule.getId());
+            } else {
+                known.rules.put(rule.getId(), signature(rule));
+            }
+        }
+        if (known.rules.isEmpty()) {
+            // nothing left to track, for instance as the network is shut down
+            applied.remove(key);
+        }
+        return ++known.revision;
+    }
+
+    /**
+     * Forgets what the element has, its next apply sends the full set.
+     */
+    public synchronized void invalidate(String element, long networkId, Purpose purpose, TrafficType trafficType) {
+        applied.remove(key(element, networkId, purpose, trafficType));
+    }
+
+    /**
+     * @return the revision of the rules of the element, 0 if the tracker does not know what the element has
+     */
+    public synchronized long getRevision(String element, long networkId, Purpose purpose, TrafficType trafficType) {
+        Applied known = applied.get(key(element, networkId, purpose, trafficType));
+        return known == null ? 0 : known.revision;
+    }
+}
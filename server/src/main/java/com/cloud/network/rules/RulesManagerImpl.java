@@ -146,6 +146,8 @@ public class RulesManagerImpl extends ManagerBase implements RulesManager, Rules
     @Inject
     VpcService _vpcSvc;
 
+    private final RuleApplyCoalescer _applyCoalescer = new RuleApplyCoalescer();
+
     protected void checkIpAndUserVm(IpAddress ipAddress, UserVm userVm, Account caller, Boolean ignoreVmState) {
         if (ipAddress == null || ipAddress.getAllocatedTime() == null || ipAddress.getAllocatedToAccountId() == null) {
             throw new InvalidParameterValueException("Unable to create ip forwarding rule on address " + ipAddress + ", invalid IP address specified.");
@@ -860,7 +862,22 @@ public class RulesManagerImpl extends ManagerBase implements RulesManager, Rules
         return new Pair<List<? extends PortForwardingRule>, Integer>(result.first(), result.second());
     }
 
-    protected boolean applyPortForwardingRules(long ipId, boolean continueOnError, Account caller) {
+    protected boolean applyPortForwardingRules(final long ipId, final boolean continueOnError, final Account caller) {
+        // concurrent changes to the port forwarding rules of the ip are applied at once
+        try {
+            return _applyCoalescer.apply(ipId, new RuleApplyCoalescer.Apply() {
+                @Override
+                public boolean apply() {
+                    return applyPortForwardingRulesForIp(ipId, continueOnError, caller);
+                }
+            });
+        } catch (ResourceUnavailableException ex) {
+            s_logger.warn("Failed to apply port forwarding rules for ip due to ", ex);
+            return false;
+        }
+    }
+
+    private boolean applyPortForwardingRulesForIp(long ipId, boolean continueOnError, Account caller) {
         List<PortForwardingRuleVO> rules = _portForwardingDao.listForApplication(ipId);
 
         if (rules.size() == 0) {
@@ -133,6 +133,7 @@ import com.cloud.utils.db.TransactionCallbackWithException;
 import com.cloud.utils.db.TransactionStatus;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.exception.ExceptionUtil;
+import com.cloud.utils.net.IpPrefix;
 import com.cloud.utils.net.NetUtils;
 import com.cloud.vm.DomainRouterVO;
 import com.cloud.vm.ReservationContext;
@@ -1354,10 +1355,12 @@ public class VpcManagerImpl extends ManagerBase implements VpcManager, VpcProvis
                     // 3) Network cidr shouldn't cross the cidr of other vpc
                     // network cidrs
                     final List<? extends Network> ntwks = _ntwkDao.listByVpc(vpc.getId());
+                    final IpPrefix prefix = IpPrefix.parse(cidr);
                     for (final Network ntwk : ntwks) {
                         assert cidr != null : "Why the network cidr is null when it belongs to vpc?";
 
-                        if (NetUtils.isNetworkAWithinNetworkB(ntwk.getCidr(), cidr) || NetUtils.isNetworkAWithinNetworkB(cidr, ntwk.getCidr())) {
+                        final IpPrefix ntwkPrefix = IpPrefix.tryParse(ntwk.getCidr());
+                        if (ntwkPrefix != null && prefix.overlaps(ntwkPrefix)) {
                             throw new InvalidParameterValueException("Network cidr " + cidr + " crosses other network cidr " + ntwk + " belonging to the same vpc " + vpc);
                         }
                     }
@@ -2169,12 +2172,14 @@ public class VpcManagerImpl extends ManagerBase implements VpcManager, VpcProvis
         assert routes.size() >= 1 : "For static routes, we now always first persist the route and then check for "
                 + "network conflicts so we should at least have one rule at this point.";
 
+        final IpPrefix newPrefix = IpPrefix.tryParse(newRoute.getCidr());
         for (final StaticRoute route : routes) {
             if (route.getId() == newRoute.getId()) {
                 continue; // Skips my own route.
             }
 
-            if (NetUtils.isNetworksOverlap(route.getCidr(), newRoute.getCidr())) {
+            final IpPrefix prefix = IpPrefix.tryParse(route.getCidr());
+            if (newPrefix != null && prefix != null && newPrefix.overlaps(prefix)) {
                 throw new NetworkRuleConflictException("New static route cidr conflicts with existing route " + route);
             }
         }
@@ -76,6 +76,8 @@ import com.cloud.utils.db.JoinBuilder;
 import com.cloud.utils.db.SearchBuilder;
 import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.exception.CloudRuntimeException;
+import com.cloud.utils.net.IpPrefix;
+import com.cloud.utils.net.IpPrefixIndex;
 import com.cloud.utils.net.NetUtils;
 import com.cloud.vm.DomainRouterVO;
 
@@ -156,13 +158,18 @@ public class Site2SiteVpnManagerImpl extends ManagerBase implements Site2SiteVpn
             throw new InvalidParameterValueException("Too many subnets of customer gateway! The limit is " + _subnetsLimit);
         }
         // Remote sub nets cannot overlap themselves
-        for (int i = 0; i < cidrList.length - 1; i++) {
-            for (int j = i + 1; j < cidrList.length; j++) {
-                if (NetUtils.isNetworksOverlap(cidrList[i], cidrList[j])) {
-                    throw new InvalidParameterValueException("The subnet of customer gateway " + cidrList[i] + " is overlapped with another subnet " + cidrList[j] +
-                        " of customer gateway!");
-                }
+        IpPrefixIndex<String> subnets = new IpPrefixIndex<String>();
+        for (String cidr : cidrList) {
+            IpPrefix prefix = IpPrefix.tryParse(cidr);
+            if (prefix == null) {
+                continue;
+            }
+            String overlapped = subnets.findAnyOverlapping(prefix);
+            if (overlapped != null) {
+                throw new InvalidParameterValueException("The subnet of customer gateway " + overlapped + " is overlapped with another subnet " + cidr +
+                    " of customer gateway!");
             }
+            subnets.put(prefix, cidr);
         }
     }
 
@@ -272,8 +279,10 @@ public class Site2SiteVpnManagerImpl extends ManagerBase implements Site2SiteVpn
 
         // Remote sub nets cannot overlap VPC's sub net
         String vpcCidr = _vpcDao.findById(vpnGateway.getVpcId()).getCidr();
+        IpPrefix vpcPrefix = IpPrefix.tryParse(vpcCidr);
         for (String cidr : cidrList) {
-            if (NetUtils.isNetworksOverlap(vpcCidr, cidr)) {
+            IpPrefix prefix = IpPrefix.tryParse(cidr);
+            if (vpcPrefix != null && prefix != null && vpcPrefix.overlaps(prefix)) {
                 throw new InvalidParameterValueException("The subnets of customer gateway " + customerGatewayId + "'s subnet " + cidr + " is overlapped with VPC cidr " +
                         vpcCidr + "!");
             }
@@ -284,21 +293,27 @@ public class Site2SiteVpnManagerImpl extends ManagerBase implements Site2SiteVpn
         if (conns.size() >= _connLimit) {
             throw new InvalidParameterValueException("There are too many VPN connections with current VPN gateway! The limit is " + _connLimit);
         }
+        IpPrefixIndex<Pair<Site2SiteCustomerGatewayVO, String>> oldSubnets = new IpPrefixIndex<Pair<Site2SiteCustomerGatewayVO, String>>();
         for (Site2SiteVpnConnectionVO vc : conns) {
             if (vc == null) {
                 continue;
             }
             Site2SiteCustomerGatewayVO gw = _customerGatewayDao.findById(vc.getCustomerGatewayId());
-            String[] oldCidrList = gw.getGuestCidrList().split(",");
-            for (String oldCidr : oldCidrList) {
-                for (String cidr : cidrList) {
-                    if (NetUtils.isNetworksOverlap(cidr, oldCidr)) {
-                        throw new InvalidParameterValueException("The new connection's remote subnet " + cidr +
-                            " is overlapped with existed VPN connection to customer gateway " + gw.getName() + "'s subnet " + oldCidr);
-                    }
+            for (String oldCidr : gw.getGuestCidrList().split(",")) {
+                IpPrefix prefix = IpPrefix.tryParse(oldCidr);
+                if (prefix != null) {
+                    oldSubnets.put(prefix, new Pair<Site2SiteCustomerGatewayVO, String>(gw, oldCidr));
                 }
             }
         }
+        for (String cidr : cidrList) {
+            IpPrefix prefix = IpPrefix.tryParse(cidr);
+            Pair<Site2SiteCustomerGatewayVO, String> overlapped = prefix == null ? null : oldSubnets.findAnyOverlapping(prefix);
+            if (overlapped != null) {
+                throw new InvalidParameterValueException("The new connection's remote subnet " + cidr +
+                    " is overlapped with existed VPN connection to customer gateway " + overlapped.first().getName() + "'s subnet " + overlapped.second());
+            }
+        }
 
         Site2SiteVpnConnectionVO conn = new Site2SiteVpnConnectionVO(owner.getAccountId(), owner.getDomainId(), vpnGatewayId, customerGatewayId, cmd.isPassive());
         conn.setState(State.Pending);
@@ -0,0 +1,129 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.resourcelimit;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Collects changes to resource_count rows that no limit check depends on, in striped in-memory counters,
+ * and writes them to the database in one relative update per row on {@link #flush()}.
+ */
+public class ResourceCountWriteBehindBuffer {
+    private static final Logger s_logger = Logger.getLogger(ResourceCountWriteBehindBuffer.class);
+
+    public interface Writer {
+        /**
+         * Adds the delta to the count of the row, returns false if the row could not be updated.
+         */
+        boolean addToCount(long rowId, long delta);
+    }
+
+    private final Writer _writer;
+    private final int _stripes;
+    private final ConcurrentHashMap<Long, AtomicLongArray> _pending = new ConcurrentHashMap<Long, AtomicLongArray>();
+    private final AtomicLong _changes = new AtomicLong();
+    private final AtomicLong _writes = new AtomicLong();
+    private final AtomicInteger _flushing = new AtomicInteger();
+
+    public ResourceCountWriteBehindBuffer(final Writer writer, final int stripes) {
+        _writer = writer;
+        _stripes = Math.max(1, stripes);
+    }
+
+    public void add(final long rowId, final long delta) {
+        final AtomicLongArray counters = _pending.computeIfAbsent(rowId, id -> new AtomicLongArray(_stripes));
+        counters.addAndGet(stripe(), delta);
+        _changes.incrementAndGet();
+    }
+
+    /**
+     * @return the change of the row not written to the database yet
+     */
+    public long getPending(final long rowId) {
+        final AtomicLongArray counters = _pending.get(rowId);
+        long sum = 0;
+        if (counters != null) {
+            for (int i = 0; i < counters.length(); i++) {
+                sum += counters.get(i);
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Writes the collected changes to the database. A change that cannot be written is kept for the next flush.
+     *
+     * @return the number of rows updated
+     */
+    public int flush() {
+        _flushing.incrementAndGet();
+        try {
+            int rows = 0;
+            for (final Map.Entry<Long, AtomicLongArray> entry : _pending.entrySet()) {
+                final AtomicLongArray counters = entry.getValue();
+                long delta = 0;
+                for (int i = 0; i < counters.length(); i++) {
+                    delta += counters.getAndSet(i, 0);
+                }
+                if (delta == 0) {
+                    continue;
+                }
+
+                boolean written = false;
+                try {
+                    written = _writer.addToCount(entry.getKey(), delta);
+                } catch (final RuntimeException e) {
+                    s_logger.warn("Failed to write resource count change of " + delta + " to row " + entry.getKey(), e);
+                }
+                if (written) {
+                    rows++;
+                    _writes.incrementAndGet();
+                } else {
+                    counters.addAndGet(0, delta);
+                }
+            }
+            return rows;
+        } finally {
+            _flushing.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return true while a flush may have taken changes out of the buffer without having written them yet
+     */
+    public boolean isFlushing() {
+        return _flushing.get() > 0;
+    }
+
+    public long getChangeCount() {
+        return _changes.get();
+    }
+
+    public long getWriteCount() {
+        return _writes.get();
+    }
+
+    private int stripe() {
+        return (int)(Thread.currentThread().getId() % _stripes);
+    }
+}
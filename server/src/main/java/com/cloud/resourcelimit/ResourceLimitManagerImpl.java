@@ -19,10 +19,15 @@ package com.cloud.resourcelimit;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
@@ -98,6 +103,7 @@ import com.cloud.utils.db.Transaction;
 import com.cloud.utils.db.TransactionCallback;
 import com.cloud.utils.db.TransactionCallbackNoReturn;
 import com.cloud.utils.db.TransactionCallbackWithExceptionNoReturn;
+import com.cloud.utils.db.TransactionLegacy;
 import com.cloud.utils.db.TransactionStatus;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.vm.dao.UserVmDao;
@@ -156,8 +162,21 @@ public class ResourceLimitManagerImpl extends ManagerBase implements ResourceLim
     protected GenericSearchBuilder<SnapshotDataStoreVO, SumCount> snapshotSizeSearch;
 
     protected SearchBuilder<ResourceCountVO> ResourceCountSearch;
+    static final ConfigKey<Long> ResourceCountWriteBehindInterval = new ConfigKey<Long>("Advanced", Long.class, "resource.count.write.behind.interval", "1000",
+            "Interval in milliseconds in which changes to the resource counts of the ROOT domain are written to the database. The ROOT domain has no limits, so these "
+                    + "counts are not locked with every change but collected in memory and reconciled by the resource count check task. 0 updates them with every change", false);
+
+    static final ConfigKey<Integer> ResourceCountRecalculationWorkers = new ConfigKey<Integer>("Advanced", Integer.class, "resource.count.recalculation.workers", "4",
+            "Number of threads that recalculate the resource counts of accounts in parallel, for the resource types that cannot be counted for all accounts at once", false);
+
     ScheduledExecutorService _rcExecutor;
+    ExecutorService _recalculationExecutor;
     long _resourceCountCheckInterval = 0;
+    ScheduledExecutorService _writeBehindExecutor;
+    long _writeBehindInterval = 0;
+    // changes to the ROOT domain counts, which no limit check reads, are collected here instead of locking the rows
+    ResourceCountWriteBehindBuffer _rootDomainCountBuffer;
+    private final Map<ResourceType, Long> _rootDomainCountRowIds = new ConcurrentHashMap<ResourceType, Long>();
     Map<ResourceType, Long> accountResourceLimitMap = new EnumMap<ResourceType, Long>(ResourceType.class);
     Map<ResourceType, Long> domainResourceLimitMap = new EnumMap<ResourceType, Long>(ResourceType.class);
     Map<ResourceType, Long> projectResourceLimitMap = new EnumMap<ResourceType, Long>(ResourceType.class);
@@ -167,11 +186,26 @@ public class ResourceLimitManagerImpl extends ManagerBase implements ResourceLim
         if (_resourceCountCheckInterval > 0) {
             _rcExecutor.scheduleAtFixedRate(new ResourceCountCheckTask(), _resourceCountCheckInterval, _resourceCountCheckInterval, TimeUnit.SECONDS);
         }
+        if (_writeBehindInterval > 0) {
+            _writeBehindExecutor.scheduleWithFixedDelay(new ResourceCountWriteBehindTask(), _writeBehindInterval, _writeBehindInterval, TimeUnit.MILLISECONDS);
+        }
         return true;
     }
 
     @Override
     public boolean stop() {
+        if (_recalculationExecutor != null) {
+            _recalculationExecutor.shutdownNow();
+        }
+        if (_writeBehindExecutor != null) {
+            _writeBehindExecutor.shutdown();
+            try {
+                _writeBehindExecutor.awaitTermination(_writeBehindInterval, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            _rootDomainCountBuffer.flush();
+        }
         return true;
     }
 
@@ -207,6 +241,27 @@ public class ResourceLimitManagerImpl extends ManagerBase implements ResourceLim
             _rcExecutor = Executors.newScheduledThreadPool(1, new NamedThreadFactory("ResourceCountChecker"));
         }
 
+        int recalculationWorkers = ResourceCountRecalculationWorkers.value();
+        if (recalculationWorkers > 1) {
+            _recalculationExecutor = Executors.newFixedThreadPool(recalculationWorkers, new NamedThreadFactory("ResourceCountRecalculation"));
+        }
+
+        _writeBehindInterval = ResourceCountWriteBehindInterval.value();
+        if (_writeBehindInterval > 0) {
+            _rootDomainCountBuffer = new ResourceCountWriteBehindBuffer(new ResourceCountWriteBehindBuffer.Writer() {
+                @Override
+                public boolean addToCount(final long rowId, final long delta) {
+                    return Transaction.execute(new TransactionCallback<Boolean>() {
+                        @Override
+                        public Boolean doInTransaction(TransactionStatus status) {
+                            return _resourceCountDao.addToCount(rowId, delta);
+                        }
+                    });
+                }
+            }, Runtime.getRuntime().availableProcessors());
+            _writeBehindExecutor = Executors.newScheduledThreadPool(1, new NamedThreadFactory("ResourceCountWriteBehind"));
+        }
+
         try {
             projectResourceLimitMap.put(Resource.ResourceType.public_ip, Long.parseLong(_configDao.getValue(Config.DefaultMaxProjectPublicIPs.key())));
             projectResourceLimitMap.put(Resource.ResourceType.snapshot, Long.parseLong(_configDao.getValue(Config.DefaultMaxProjectSnapshots.key())));
@@ -462,11 +517,34 @@ public class ResourceLimitManagerImpl extends ManagerBase implements ResourceLim
 
     private List<ResourceCountVO> lockAccountAndOwnerDomainRows(long accountId, final ResourceType type) {
         Set<Long> rowIdsToLock = _resourceCountDao.listAllRowsToUpdate(accountId, ResourceOwnerType.Account, type);
+        Long rootDomainRowId = getWriteBehindRowId(type);
+        if (rootDomainRowId != null) {
+            rowIdsToLock.remove(rootDomainRowId);
+        }
         SearchCriteria<ResourceCountVO> sc = ResourceCountSearch.create();
         sc.setParameters("id", rowIdsToLock.toArray());
         return _resourceCountDao.lockRows(sc, null, true);
     }
 
+    /**
+     * @return the id of the ROOT domain count row of the type when its changes are written behind, null otherwise
+     */
+    private Long getWriteBehindRowId(final ResourceType type) {
+        if (_rootDomainCountBuffer == null || !type.supportsOwner(ResourceOwnerType.Domain)) {
+            return null;
+        }
+        Long rowId = _rootDomainCountRowIds.get(type);
+        if (rowId == null) {
+            ResourceCountVO rootDomainRC = _resourceCountDao.findByOwnerAndType(Domain.ROOT_DOMAIN, ResourceOwnerType.Domain, type);
+            if (rootDomainRC == null) {
+                return null;
+            }
+            rowId = rootDomainRC.getId();
+            _rootDomainCountRowIds.put(type, rowId);
+        }
+        return rowId;
+    }
+
     private List<ResourceCountVO> lockDomainRows(long domainId, final ResourceType type) {
         Set<Long> rowIdsToLock = _resourceCountDao.listAllRowsToUpdate(domainId, ResourceOwnerType.Domain, type);
         SearchCriteria<ResourceCountVO> sc = ResourceCountSearch.create();
@@ -815,6 +893,16 @@ public class ResourceLimitManagerImpl extends ManagerBase implements ResourceLim
                             result = false;
                         }
                     }
+                    final Long rootDomainRowId = getWriteBehindRowId(type);
+                    if (result && rootDomainRowId != null) {
+                        // a change that is rolled back with the transaction of the caller must not reach the ROOT domain count
+                        TransactionLegacy.runAfterCommit(new Runnable() {
+                            @Override
+                            public void run() {
+                                _rootDomainCountBuffer.add(rootDomainRowId, increment ? delta : -delta);
+                            }
+                        });
+                    }
                     return result;
                 }
             });
@@ -826,50 +914,236 @@ public class ResourceLimitManagerImpl extends ManagerBase implements ResourceLim
 
     @DB
     protected long recalculateDomainResourceCount(final long domainId, final ResourceType type) {
-        return Transaction.execute(new TransactionCallback<Long>() {
-            @Override
-            public Long doInTransaction(TransactionStatus status) {
-                long newResourceCount = 0;
-                lockDomainRows(domainId, type);
-                ResourceCountVO domainRC = _resourceCountDao.findByOwnerAndType(domainId, ResourceOwnerType.Domain, type);
-                long oldResourceCount = domainRC.getCount();
+        final DomainVO domain = _domainDao.findById(domainId);
+
+        // the domain and its subdomains, every parent before its children
+        final List<DomainVO> domains = new ArrayList<DomainVO>();
+        domains.add(domain);
+        final Map<Long, List<DomainVO>> childrenByParent = new HashMap<Long, List<DomainVO>>();
+        for (DomainVO child : _domainDao.findAllChildren(domain.getPath(), domainId)) {
+            List<DomainVO> children = childrenByParent.get(child.getParent());
+            if (children == null) {
+                children = new ArrayList<DomainVO>();
+                childrenByParent.put(child.getParent(), children);
+            }
+            children.add(child);
+        }
+        for (int i = 0; i < domains.size(); i++) {
+            List<DomainVO> children = childrenByParent.get(domains.get(i).getId());
+            if (children != null) {
+                domains.addAll(children);
+            }
+        }
 
-                List<DomainVO> domainChildren = _domainDao.findImmediateChildrenForParent(domainId);
-                // for each child domain update the resource count
-                if (type.supportsOwner(ResourceOwnerType.Domain)) {
+        final Map<Long, List<AccountVO>> accountsByDomain = new HashMap<Long, List<AccountVO>>();
+        final List<Long> accountIds = new ArrayList<Long>();
+        if (type.supportsOwner(ResourceOwnerType.Account)) {
+            for (DomainVO subDomain : domains) {
+                List<AccountVO> accounts = _accountDao.findActiveAccountsForDomain(subDomain.getId());
+                accountsByDomain.put(subDomain.getId(), accounts);
+                for (AccountVO account : accounts) {
+                    accountIds.add(account.getId());
+                }
+            }
+        }
+        final List<Long> domainIds = new ArrayList<Long>();
+        for (DomainVO subDomain : domains) {
+            domainIds.add(subDomain.getId());
+        }
+        // read the stored counts before counting, so that a change committed in between shows up as a changed row
+        final List<ResourceCountVO> accountRows = _resourceCountDao.listByTypeAndOwners(type, ResourceOwnerType.Account, accountIds);
+        final List<ResourceCountVO> domainRows = _resourceCountDao.listByTypeAndOwners(type, ResourceOwnerType.Domain, domainIds);
+        final Map<Long, Long> accountCounts = calculateAccountResourceCounts(domain.getPath(), accountIds, type);
+
+        // sum up the counts from the bottom of the tree
+        final Map<Long, Long> domainCounts = new HashMap<Long, Long>();
+        for (int i = domains.size() - 1; i >= 0; i--) {
+            DomainVO subDomain = domains.get(i);
+            long count = 0;
+            if (type == ResourceType.project) {
+                count += _projectDao.countProjectsForDomain(subDomain.getId());
+            }
+            List<DomainVO> children = childrenByParent.get(subDomain.getId());
+            if (children != null) {
+                for (DomainVO child : children) {
+                    count += domainCounts.get(child.getId());
+                }
+            }
+            List<AccountVO> accounts = accountsByDomain.get(subDomain.getId());
+            if (accounts != null) {
+                for (AccountVO account : accounts) {
+                    count += accountCounts.get(account.getId());
+                }
+            }
+            domainCounts.put(subDomain.getId(), count);
+        }
 
-                    // calculate project count here
-                    if (type == ResourceType.project) {
-                        newResourceCount += _projectDao.countProjectsForDomain(domainId);
-                    }
+        writeChangedResourceCounts(domainId, type, accountRows, domainRows, accountCounts, domainCounts);
+        if (domainId == Domain.ROOT_DOMAIN && getWriteBehindRowId(type) != null) {
+            List<DomainVO> children = childrenByParent.get(domainId);
+            List<AccountVO> accounts = accountsByDomain.get(domainId);
+            reconcileRootDomainResourceCount(children == null ? new ArrayList<DomainVO>() : children, accounts == null ? new ArrayList<AccountVO>() : accounts, type);
+        }
+        return domainCounts.get(domainId);
+    }
 
-                    for (DomainVO childDomain : domainChildren) {
-                        long childDomainResourceCount = recalculateDomainResourceCount(childDomain.getId(), type);
-                        newResourceCount += childDomainResourceCount; // add the child domain count to parent domain count
-                    }
-                }
+    /**
+     * @return the changes of the row not written behind yet, null if a flush is running or changes were added since
+     * the given change count, in which case the database and the buffer may not add up
+     */
+    private Long getPendingWhenNotFlushing(final long rowId, final long changes) {
+        if (_rootDomainCountBuffer.isFlushing()) {
+            return null;
+        }
+        final long pending = _rootDomainCountBuffer.getPending(rowId);
+        if (_rootDomainCountBuffer.isFlushing() || _rootDomainCountBuffer.getChangeCount() != changes) {
+            return null;
+        }
+        return pending;
+    }
 
-                if (type.supportsOwner(ResourceOwnerType.Account)) {
-                    List<AccountVO> accounts = _accountDao.findActiveAccountsForDomain(domainId);
-                    for (AccountVO account : accounts) {
-                        long accountResourceCount = recalculateAccountResourceCount(account.getId(), type);
-                        newResourceCount += accountResourceCount; // add account's resource count to parent domain count
-                    }
-                }
-                _resourceCountDao.setResourceCount(domainId, ResourceOwnerType.Domain, type, newResourceCount);
+    /**
+     * Calculates the counts of the accounts in grouped queries where possible, otherwise account by account in parallel.
+     */
+    private Map<Long, Long> calculateAccountResourceCounts(final String domainPath, final List<Long> accountIds, final ResourceType type) {
+        final Map<Long, Long> counts = new ConcurrentHashMap<Long, Long>();
+        if (accountIds.isEmpty()) {
+            return counts;
+        }
+
+        final Map<Long, Long> groupedCounts = _resourceCountDao.countResourcesPerAccount(type, domainPath);
+        if (groupedCounts != null) {
+            for (Long accountId : accountIds) {
+                Long count = groupedCounts.get(accountId);
+                counts.put(accountId, count == null ? 0 : count);
+            }
+            return counts;
+        }
 
-                if (oldResourceCount != newResourceCount) {
-                    s_logger.warn("Discrepency in the resource count has been detected " + "(original count = " + oldResourceCount + " correct count = " + newResourceCount + ") for Type = " + type
-                            + " for Domain ID = " + domainId + " is fixed during resource count recalculation.");
+        if (_recalculationExecutor == null) {
+            for (Long accountId : accountIds) {
+                Long count = calculateAccountResourceCount(accountId, type);
+                counts.put(accountId, count == null ? 0 : count);
+            }
+            return counts;
+        }
+
+        final List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (final Long accountId : accountIds) {
+            futures.add(_recalculationExecutor.submit(new ManagedContextRunnable() {
+                @Override
+                protected void runInContext() {
+                    Long count = calculateAccountResourceCount(accountId, type);
+                    counts.put(accountId, count == null ? 0 : count);
                 }
+            }));
+        }
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CloudRuntimeException("Interrupted while recalculating resource counts of type " + type, e);
+        } catch (ExecutionException e) {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+            throw new CloudRuntimeException("Failed to recalculate resource counts of type " + type, e.getCause());
+        }
+        return counts;
+    }
 
-                return newResourceCount;
+    /**
+     * Writes the counts that differ from the stored ones. A row that has been changed since it was read is left alone,
+     * because the new count may or may not include that change; the next recalculation picks it up. The ROOT domain row
+     * is left to {@link #reconcileRootDomainResourceCount} when its changes are written behind.
+     */
+    private void writeChangedResourceCounts(final long domainId, final ResourceType type, final List<ResourceCountVO> accountRows, final List<ResourceCountVO> domainRows,
+            final Map<Long, Long> accountCounts, final Map<Long, Long> domainCounts) {
+        final Long rootDomainRowId = getWriteBehindRowId(type);
+        final Map<Long, Long> newCounts = new HashMap<Long, Long>();
+        final Map<Long, ResourceCountVO> oldRows = new HashMap<Long, ResourceCountVO>();
+        for (ResourceCountVO row : accountRows) {
+            long newCount = accountCounts.get(row.getAccountId());
+            if (row.getCount() != newCount) {
+                newCounts.put(row.getId(), newCount);
+                oldRows.put(row.getId(), row);
+            }
+        }
+        for (ResourceCountVO row : domainRows) {
+            long newCount = domainCounts.get(row.getDomainId());
+            if (row.getCount() != newCount && (rootDomainRowId == null || rootDomainRowId != row.getId())) {
+                newCounts.put(row.getId(), newCount);
+                oldRows.put(row.getId(), row);
+            }
+        }
+        if (newCounts.isEmpty()) {
+            return;
+        }
+
+        Transaction.execute(new TransactionCallbackNoReturn() {
+            @Override
+            public void doInTransactionWithoutResult(TransactionStatus status) {
+                lockDomainRows(domainId, type);
+                SearchCriteria<ResourceCountVO> sc = ResourceCountSearch.create();
+                sc.setParameters("id", newCounts.keySet().toArray());
+                for (ResourceCountVO row : _resourceCountDao.lockRows(sc, null, true)) {
+                    ResourceCountVO oldRow = oldRows.get(row.getId());
+                    long newCount = newCounts.get(row.getId());
+                    if (row.getCount() != oldRow.getCount()) {
+                        s_logger.debug("Resource count of type " + type + " in row " + row.getId() + " changed during recalculation, leaving it for the next one");
+                        continue;
+                    }
+                    row.setCount(newCount);
+                    _resourceCountDao.update(row.getId(), row);
+
+                    if (row.getResourceOwnerType() == ResourceOwnerType.Domain) {
+                        s_logger.warn("Discrepency in the resource count has been detected " + "(original count = " + oldRow.getCount() + " correct count = " + newCount + ") for Type = "
+                                + type + " for Domain ID = " + row.getDomainId() + " is fixed during resource count recalculation.");
+                    } else if (type != Resource.ResourceType.primary_storage && type != Resource.ResourceType.secondary_storage) {
+                        // No need to log message for primary and secondary storage because both are recalculating the
+                        // resource count which will not lead to any discrepancy.
+                        s_logger.warn("Discrepancy in the resource count " + "(original count=" + oldRow.getCount() + " correct count = " + newCount + ") for type " + type
+                                + " for account ID " + row.getAccountId() + " is fixed during resource count recalculation.");
+                    }
+                }
             }
         });
     }
 
     @DB
     protected long recalculateAccountResourceCount(final long accountId, final ResourceType type) {
+        final Long newCount = calculateAccountResourceCount(accountId, type);
+
+        long oldCount = 0;
+        final ResourceCountVO accountRC = _resourceCountDao.findByOwnerAndType(accountId, ResourceOwnerType.Account, type);
+        if (accountRC != null) {
+            oldCount = accountRC.getCount();
+        }
+
+        if (newCount == null || !newCount.equals(oldCount)) {
+            Transaction.execute(new TransactionCallbackNoReturn() {
+                @Override
+                public void doInTransactionWithoutResult(TransactionStatus status) {
+                    lockAccountAndOwnerDomainRows(accountId, type);
+                    _resourceCountDao.setResourceCount(accountId, ResourceOwnerType.Account, type, (newCount == null) ? 0 : newCount);
+                }
+            });
+        }
+
+        // No need to log message for primary and secondary storage because both are recalculating the
+        // resource count which will not lead to any discrepancy.
+        if (newCount != null && !newCount.equals(oldCount) &&
+                type != Resource.ResourceType.primary_storage && type != Resource.ResourceType.secondary_storage) {
+            s_logger.warn("Discrepancy in the resource count " + "(original count=" + oldCount + " correct count = " + newCount + ") for type " + type +
+                    " for account ID " + accountId + " is fixed during resource count recalculation.");
+        }
+
+        return (newCount == null) ? 0 : newCount;
+    }
+
+    private Long calculateAccountResourceCount(final long accountId, final ResourceType type) {
         final Long newCount;
         if (type == Resource.ResourceType.user_vm) {
             newCount = _userVmDao.countAllocatedVMsForAccount(accountId);
@@ -900,32 +1174,7 @@ public class ResourceLimitManagerImpl extends ManagerBase implements ResourceLim
         } else {
             throw new InvalidParameterValueException("Unsupported resource type " + type);
         }
-
-        long oldCount = 0;
-        final ResourceCountVO accountRC = _resourceCountDao.findByOwnerAndType(accountId, ResourceOwnerType.Account, type);
-        if (accountRC != null) {
-            oldCount = accountRC.getCount();
-        }
-
-        if (newCount == null || !newCount.equals(oldCount)) {
-            Transaction.execute(new TransactionCallbackNoReturn() {
-                @Override
-                public void doInTransactionWithoutResult(TransactionStatus status) {
-                    lockAccountAndOwnerDomainRows(accountId, type);
-                    _resourceCountDao.setResourceCount(accountId, ResourceOwnerType.Account, type, (newCount == null) ? 0 : newCount);
-                }
-            });
-        }
-
-        // No need to log message for primary and secondary storage because both are recalculating the
-        // resource count which will not lead to any discrepancy.
-        if (newCount != null && !newCount.equals(oldCount) &&
-                type != Resource.ResourceType.primary_storage && type != Resource.ResourceType.secondary_storage) {
-            s_logger.warn("Discrepancy in the resource count " + "(original count=" + oldCount + " correct count = " + newCount + ") for type " + type +
-                    " for account ID " + accountId + " is fixed during resource count recalculation.");
-        }
-
-        return (newCount == null) ? 0 : newCount;
+        return newCount;
     }
 
     public long countCpusForAccount(long accountId) {
@@ -1037,7 +1286,7 @@ public class ResourceLimitManagerImpl extends ManagerBase implements ResourceLim
 
     @Override
     public ConfigKey<?>[] getConfigKeys() {
-        return new ConfigKey<?>[] {ResourceCountCheckInterval};
+        return new ConfigKey<?>[] {ResourceCountCheckInterval, ResourceCountWriteBehindInterval, ResourceCountRecalculationWorkers};
     }
 
     protected class ResourceCountCheckTask extends ManagedContextRunnable {
@@ -1069,6 +1318,102 @@ public class ResourceLimitManagerImpl extends ManagerBase implements ResourceLim
                     }
                 }
             }
+
+            if (_rootDomainCountBuffer != null) {
+                for (ResourceType type : ResourceCount.ResourceType.values()) {
+                    if (type.supportsOwner(ResourceOwnerType.Domain)) {
+                        reconcileRootDomainResourceCount(domains, accounts, type);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Corrects the ROOT domain count by the difference to the sum of the counts of its children. The changes of other
+     * management servers may not have been written behind yet, so the difference is only applied if it is still the
+     * same after they have had the time to write them; it is added to the row rather than set, not to overwrite them.
+     */
+    protected void reconcileRootDomainResourceCount(final List<DomainVO> childDomains, final List<AccountVO> accounts, final ResourceType type) {
+        final Long rootDomainRowId = getWriteBehindRowId(type);
+        if (rootDomainRowId == null) {
+            return;
+        }
+        _rootDomainCountBuffer.flush();
+        final Long drift = Transaction.execute(new TransactionCallback<Long>() {
+            @Override
+            public Long doInTransaction(TransactionStatus status) {
+                return getRootDomainResourceCountDrift(rootDomainRowId, childDomains, accounts, type);
+            }
+        });
+        if (drift == null || drift == 0) {
+            return;
+        }
+
+        try {
+            Thread.sleep(2 * _writeBehindInterval);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        _rootDomainCountBuffer.flush();
+        Transaction.execute(new TransactionCallbackNoReturn() {
+            @Override
+            public void doInTransactionWithoutResult(TransactionStatus status) {
+                Long currentDrift = getRootDomainResourceCountDrift(rootDomainRowId, childDomains, accounts, type);
+                if (!drift.equals(currentDrift)) {
+                    s_logger.debug("ROOT domain resource count of type " + type + " changed during reconciliation, leaving it for the next one");
+                    return;
+                }
+                long oldCount = _resourceCountDao.getResourceCount(Domain.ROOT_DOMAIN, ResourceOwnerType.Domain, type);
+                s_logger.warn("Discrepancy in the resource count (original count = " + oldCount + " correct count = " + (oldCount + drift) + ") for Type = " + type
+                        + " for the ROOT domain is fixed during resource count reconciliation.");
+                _resourceCountDao.addToCount(rootDomainRowId, drift);
+            }
+        });
+    }
+
+    /**
+     * Locks the ROOT domain row and compares it, with the changes of this management server still to be written behind,
+     * to the sum of the counts of its children.
+     *
+     * @return the count missing from the ROOT domain row, null if the changes to be written behind could not be read
+     */
+    private Long getRootDomainResourceCountDrift(final long rootDomainRowId, final List<DomainVO> childDomains, final List<AccountVO> accounts, final ResourceType type) {
+        final long changes = _rootDomainCountBuffer.getChangeCount();
+        lockDomainRows(Domain.ROOT_DOMAIN, type);
+        long count = 0;
+        if (type == ResourceType.project) {
+            count += _projectDao.countProjectsForDomain(Domain.ROOT_DOMAIN);
+        }
+        for (DomainVO childDomain : childDomains) {
+            count += _resourceCountDao.getResourceCount(childDomain.getId(), ResourceOwnerType.Domain, type);
+        }
+        if (type.supportsOwner(ResourceOwnerType.Account)) {
+            for (AccountVO account : accounts) {
+                count += _resourceCountDao.getResourceCount(account.getId(), ResourceOwnerType.Account, type);
+            }
+        }
+        final long rootCount = _resourceCountDao.getResourceCount(Domain.ROOT_DOMAIN, ResourceOwnerType.Domain, type);
+        // a flush that has not taken the pending changes yet adds them to the row once the lock is released
+        final Long pending = getPendingWhenNotFlushing(rootDomainRowId, changes);
+        if (pending == null) {
+            return null;
+        }
+        return count - rootCount - pending;
+    }
+
+    protected class ResourceCountWriteBehindTask extends ManagedContextRunnable {
+        @Override
+        protected void runInContext() {
+            try {
+                int rows = _rootDomainCountBuffer.flush();
+                if (rows > 0 && s_logger.isTraceEnabled()) {
+                    s_logger.trace("Wrote " + rows + " ROOT domain resource counts, " + _rootDomainCountBuffer.getChangeCount() + " changes collected so far");
+                }
+            } catch (Exception e) {
+                s_logger.warn("Failed to write ROOT domain resource counts", e);
+            }
         }
     }
 }
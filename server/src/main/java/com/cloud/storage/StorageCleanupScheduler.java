@@ -0,0 +1,227 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.storage;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
+import org.apache.log4j.Logger;
+
+/**
+ * Runs the deletions of a storage garbage collection run in parallel. The work is partitioned by storage pool or
+ * image store and cut in batches. Batches of different partitions run in parallel, batches of the same partition
+ * only a few at a time, so a large backlog on one store neither holds up the others nor overloads that store.
+ */
+public class StorageCleanupScheduler {
+    private static final Logger s_logger = Logger.getLogger(StorageCleanupScheduler.class);
+
+    public interface BatchHandler<T> {
+        /**
+         * @return the number of objects deleted, the others are left for the next run
+         */
+        int handle(List<T> batch) throws Exception;
+    }
+
+    private final ExecutorService executor;
+    private final int partitionConcurrency;
+    private final Map<String, Partition> partitions = new HashMap<String, Partition>();
+    private final long startedAt = System.currentTimeMillis();
+
+    private final AtomicLong backlog = new AtomicLong();
+    private final AtomicLong deleted = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    // batches submitted and not done yet
+    private int outstanding;
+
+    /**
+     * @param partitionConcurrency the number of batches of the same partition run at a time
+     */
+    public StorageCleanupScheduler(ExecutorService executor, int partitionConcurrency) {
+        this.executor = executor;
+        this.partitionConcurrency = Math.max(1, partitionConcurrency);
+    }
+
+    /**
+     * Queues the deletion of objects in batches.
+     *
+     * @param partition the storage pool or image store the objects are on
+     * @param description what the objects are, for the log
+     */
+    public <T> void submit(String partition, String description, List<T> items, int batchSize, BatchHandler<T> handler) {
+        if (items == null || items.isEmpty()) {
+            return;
+        }
+        batchSize = Math.max(1, batchSize);
+        Partition queue;
+        synchronized (partitions) {
+            queue = partitions.get(partition);
+            if (queue == null) {
+                queue = new Partition(partition);
+                partitions.put(partition, queue);
+            }
+        }
+        for (int from = 0; from < items.size(); from += batchSize) {
+            List<T> batch = new ArrayList<T>(items.subList(from, Math.min(items.size(), from + batchSize)));
+            backlog.addAndGet(batch.size());
+            synchronized (this) {
+                outstanding++;
+            }
+            queue.add(new Batch<T>(partition, description, batch, handler));
+        }
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Storage garbage collector queued " + items.size() + " " + description + " on " + partition + ", backlog is " + backlog.get());
+        }
+        queue.schedule();
+    }
+
+    /**
+     * Waits until all the batches submitted so far are done.
+     */
+    public synchronized void await() throws InterruptedException {
+        while (outstanding > 0) {
+            wait();
+        }
+    }
+
+    private synchronized void done() {
+        outstanding--;
+        if (outstanding == 0) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return the number of objects waiting to be deleted
+     */
+    public long getBacklog() {
+        return backlog.get();
+    }
+
+    public long getDeleted() {
+        return deleted.get();
+    }
+
+    /**
+     * @return the number of objects that could not be deleted and are left for the next run
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * @return the number of objects deleted per second since the scheduler was created
+     */
+    public long getThroughput() {
+        long millis = System.currentTimeMillis() - startedAt;
+        return millis == 0 ? deleted.get() : deleted.get() * 1000 / millis;
+    }
+
+    public String getSummary() {
+        return "deleted " + deleted.get() + " objects in " + (System.currentTimeMillis() - startedAt) + "ms (" + getThroughput() + "/s) on " + partitions.size()
+                + " stores, " + failed.get() + " left for the next run";
+    }
+
+    private class Batch<T> {
+        private final String partition;
+        private final String description;
+        private final List<T> items;
+        private final BatchHandler<T> handler;
+
+        Batch(String partition, String description, List<T> items, BatchHandler<T> handler) {
+            this.partition = partition;
+            this.description = description;
+            this.items = items;
+            this.handler = handler;
+        }
+
+        void run() {
+            int count = 0;
+            try {
+                count = Math.min(items.size(), Math.max(0, handler.handle(items)));
+            } catch (Exception e) {
+                s_logger.warn("Problem cleaning up " + items.size() + " " + description + " on " + partition, e);
+            } finally {
+                deleted.addAndGet(count);
+                failed.addAndGet(items.size() - count);
+                backlog.addAndGet(-items.size());
+            }
+        }
+
+        void skip() {
+            failed.addAndGet(items.size());
+            backlog.addAndGet(-items.size());
+        }
+    }
+
+    private class Partition {
+        private final String name;
+        private final Queue<Batch<?>> queue = new ArrayDeque<Batch<?>>();
+        private int running;
+
+        Partition(String name) {
+            this.name = name;
+        }
+
+        synchronized void add(Batch<?> batch) {
+            queue.add(batch);
+        }
+
+        void schedule() {
+            List<Batch<?>> batches = new ArrayList<Batch<?>>();
+            synchronized (this) {
+                while (running < partitionConcurrency && !queue.isEmpty()) {
+                    running++;
+                    batches.add(queue.poll());
+                }
+            }
+            for (final Batch<?> batch : batches) {
+                try {
+                    executor.execute(new ManagedContextRunnable() {
+                        @Override
+                        protected void runInContext() {
+                            try {
+                                batch.run();
+                            } finally {
+                                finished();
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    s_logger.warn("Storage garbage collector is shutting down, leaving a batch on " + name + " for the next run");
+                    batch.skip();
+                    finished();
+                }
+            }
+        }
+
+        private void finished() {
+            synchronized (this) {
+                running--;
+            }
+            done();
+            schedule();
+        }
+    }
+}
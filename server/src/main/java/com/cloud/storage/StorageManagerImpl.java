@@ -33,6 +33,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -311,8 +312,12 @@ public class StorageManagerImpl extends ManagerBase implements StorageManager, C
     protected GenericSearchBuilder<StoragePoolHostVO, Long> UpHostsInPoolSearch;
     protected SearchBuilder<VMInstanceVO> StoragePoolSearch;
     protected SearchBuilder<StoragePoolVO> LocalStorageSearch;
+    protected SearchBuilder<TemplateDataStoreVO> TemplateStoreRefsSearch;
+    protected SearchBuilder<VolumeDataStoreVO> VolumeStoreRefsSearch;
 
     ScheduledExecutorService _executor = null;
+    // runs the deletions of the storage cleanup
+    ExecutorService _cleanupExecutor = null;
     int _storagePoolAcquisitionWaitSeconds = 1800; // 30 minutes
     int _downloadUrlCleanupInterval;
     int _downloadUrlExpirationInterval;
@@ -485,6 +490,7 @@ public class StorageManagerImpl extends ManagerBase implements StorageManager, C
         String workers = configs.get("expunge.workers");
         int wrks = NumbersUtil.parseInt(workers, 10);
         _executor = Executors.newScheduledThreadPool(wrks, new NamedThreadFactory("StorageManager-Scavenger"));
+        _cleanupExecutor = Executors.newFixedThreadPool(StorageCleanupWorkers.value(), new NamedThreadFactory("StorageManager-Cleanup"));
 
         _agentMgr.registerForHostEvents(ComponentContext.inject(LocalStoragePoolListener.class), true, false, false);
 
@@ -515,6 +521,14 @@ public class StorageManagerImpl extends ManagerBase implements StorageManager, C
         LocalStorageSearch.and("type", LocalStorageSearch.entity().getPoolType(), SearchCriteria.Op.IN);
         LocalStorageSearch.done();
 
+        TemplateStoreRefsSearch = _templateStoreDao.createSearchBuilder();
+        TemplateStoreRefsSearch.and("ids", TemplateStoreRefsSearch.entity().getId(), SearchCriteria.Op.IN);
+        TemplateStoreRefsSearch.done();
+
+        VolumeStoreRefsSearch = _volumeStoreDao.createSearchBuilder();
+        VolumeStoreRefsSearch.and("ids", VolumeStoreRefsSearch.entity().getId(), SearchCriteria.Op.IN);
+        VolumeStoreRefsSearch.done();
+
         Volume.State.getStateMachine().registerListener(new VolumeStateListener(_configDao, _vmInstanceDao));
 
         return true;
@@ -550,6 +564,7 @@ public class StorageManagerImpl extends ManagerBase implements StorageManager, C
         if (StorageCleanupEnabled.value()) {
             _executor.shutdown();
         }
+        _cleanupExecutor.shutdown();
         return true;
     }
 
@@ -1054,6 +1069,13 @@ public class StorageManagerImpl extends ManagerBase implements StorageManager, C
             try {
                 List<Answer> answers = new ArrayList<Answer>();
                 Command[] cmdArray = cmds.toCommands();
+                if (cmdArray.length > 1 && !cmds.stopOnError()) {
+                    // commands that do not depend on each other go to the host in one request
+                    Long batchHostId = getBatchTargetHost(hostId, cmdArray);
+                    if (batchHostId != null) {
+                        return new Pair<Long, Answer[]>(hostId, _agentMgr.send(batchHostId, cmds));
+                    }
+                }
                 for (Command cmd : cmdArray) {
                     long targetHostId = _hvGuruMgr.getGuruProcessedCommandTargetHost(hostId, cmd);
                     answers.add(_agentMgr.send(targetHostId, cmd));
@@ -1069,6 +1091,22 @@ public class StorageManagerImpl extends ManagerBase implements StorageManager, C
         throw new StorageUnavailableException("Unable to send command to the pool ", pool.getId());
     }
 
+    /**
+     * @return the host all the commands are sent to, null if they go to different hosts
+     */
+    private Long getBatchTargetHost(long hostId, Command[] cmds) {
+        Long targetHostId = null;
+        for (Command cmd : cmds) {
+            long cmdHostId = _hvGuruMgr.getGuruProcessedCommandTargetHost(hostId, cmd);
+            if (targetHostId == null) {
+                targetHostId = cmdHostId;
+            } else if (targetHostId != cmdHostId) {
+                return null;
+            }
+        }
+        return targetHostId;
+    }
+
     @Override
     public Pair<Long, Answer> sendToPool(StoragePool pool, long[] hostIdsToTryFirst, List<Long> hostIdsToAvoid, Command cmd) throws StorageUnavailableException {
         Commands cmds = new Commands(cmd);
@@ -1083,14 +1121,18 @@ public class StorageManagerImpl extends ManagerBase implements StorageManager, C
         try {
             if (scanLock.lock(3)) {
                 try {
+                    StorageCleanupScheduler scheduler = new StorageCleanupScheduler(_cleanupExecutor, StorageCleanupStoreConcurrency.value());
+                    int batchSize = StorageCleanupBatchSize.value();
+
                     // Cleanup primary storage pools
                     if (TemplateCleanupEnabled.value()) {
                         List<StoragePoolVO> storagePools = _storagePoolDao.listAll();
-                        for (StoragePoolVO pool : storagePools) {
+                        for (final StoragePoolVO pool : storagePools) {
                             try {
 
                                 List<VMTemplateStoragePoolVO> unusedTemplatesInPool = _tmpltMgr.getUnusedTemplatesInPool(pool);
                                 s_logger.debug("Storage pool garbage collector found " + unusedTemplatesInPool.size() + " templates to clean up in storage pool: " + pool.getName());
+                                List<VMTemplateStoragePoolVO> templatesToEvict = new ArrayList<VMTemplateStoragePoolVO>();
                                 for (VMTemplateStoragePoolVO templatePoolVO : unusedTemplatesInPool) {
                                     if (templatePoolVO.getDownloadState() != VMTemplateStorageResourceAssoc.Status.DOWNLOADED) {
                                         s_logger.debug("Storage pool garbage collector is skipping template with ID: " + templatePoolVO.getTemplateId() + " on pool " + templatePoolVO.getPoolId()
@@ -1106,8 +1148,15 @@ public class StorageManagerImpl extends ManagerBase implements StorageManager, C
                                         continue;
                                     }
 
-                                    _tmpltMgr.evictTemplateFromStoragePool(templatePoolVO);
+                                    templatesToEvict.add(templatePoolVO);
                                 }
+                                scheduler.submit(getCleanupPartition(DataStoreRole.Primary, pool.getId()), "unused templates", templatesToEvict, batchSize,
+                                        new StorageCleanupScheduler.BatchHandler<VMTemplateStoragePoolVO>() {
+                                    @Override
+                                    public int handle(List<VMTemplateStoragePoolVO> batch) {
+                                        return _tmpltMgr.evictTemplatesFromStoragePool(pool, batch);
+                                    }
+                                });
                             } catch (Exception e) {
                                 s_logger.warn("Problem cleaning up primary storage pool " + pool, e);
                             }
@@ -1116,37 +1165,69 @@ public class StorageManagerImpl extends ManagerBase implements StorageManager, C
 
                     //destroy snapshots in destroying state in snapshot_store_ref
                     List<SnapshotDataStoreVO> ssSnapshots = _snapshotStoreDao.listByState(ObjectInDataStoreStateMachine.State.Destroying);
+                    Map<String, List<SnapshotDataStoreVO>> ssSnapshotsByStore = new HashMap<String, List<SnapshotDataStoreVO>>();
                     for (SnapshotDataStoreVO ssSnapshotVO : ssSnapshots) {
-                        try {
-                            _snapshotService.deleteSnapshot(snapshotFactory.getSnapshot(ssSnapshotVO.getSnapshotId(), DataStoreRole.Image));
-                        } catch (Exception e) {
-                            s_logger.debug("Failed to delete snapshot: " + ssSnapshotVO.getId() + " from storage");
+                        String partition = getCleanupPartition(ssSnapshotVO.getRole(), ssSnapshotVO.getDataStoreId());
+                        if (!ssSnapshotsByStore.containsKey(partition)) {
+                            ssSnapshotsByStore.put(partition, new ArrayList<SnapshotDataStoreVO>());
                         }
+                        ssSnapshotsByStore.get(partition).add(ssSnapshotVO);
+                    }
+                    for (Map.Entry<String, List<SnapshotDataStoreVO>> entry : ssSnapshotsByStore.entrySet()) {
+                        scheduler.submit(entry.getKey(), "destroying snapshots", entry.getValue(), batchSize, new StorageCleanupScheduler.BatchHandler<SnapshotDataStoreVO>() {
+                            @Override
+                            public int handle(List<SnapshotDataStoreVO> batch) {
+                                int deleted = 0;
+                                for (SnapshotDataStoreVO ssSnapshotVO : batch) {
+                                    try {
+                                        if (_snapshotService.deleteSnapshot(snapshotFactory.getSnapshot(ssSnapshotVO.getSnapshotId(), DataStoreRole.Image))) {
+                                            deleted++;
+                                        }
+                                    } catch (Exception e) {
+                                        s_logger.debug("Failed to delete snapshot: " + ssSnapshotVO.getId() + " from storage");
+                                    }
+                                }
+                                return deleted;
+                            }
+                        });
                     }
-                    cleanupSecondaryStorage(recurring);
 
                     List<VolumeVO> vols = _volsDao.listVolumesToBeDestroyed(new Date(System.currentTimeMillis() - ((long)StorageCleanupDelay.value() << 10)));
+                    Map<String, List<VolumeVO>> volsByPool = new HashMap<String, List<VolumeVO>>();
                     for (VolumeVO vol : vols) {
-                        try {
-                            // If this fails, just log a warning. It's ideal if we clean up the host-side clustered file
-                            // system, but not necessary.
-                            handleManagedStorage(vol);
-                        } catch (Exception e) {
-                            s_logger.warn("Unable to destroy host-side clustered file system " + vol.getUuid(), e);
+                        String partition = vol.getPoolId() == null ? "no storage pool" : getCleanupPartition(DataStoreRole.Primary, vol.getPoolId());
+                        if (!volsByPool.containsKey(partition)) {
+                            volsByPool.put(partition, new ArrayList<VolumeVO>());
                         }
-
-                        try {
-                            VolumeInfo volumeInfo = volFactory.getVolume(vol.getId());
-                            if (volumeInfo != null) {
-                                volService.expungeVolumeAsync(volumeInfo);
-                            } else {
-                                s_logger.debug("Volume " + vol.getUuid() + " is already destroyed");
+                        volsByPool.get(partition).add(vol);
+                    }
+                    for (Map.Entry<String, List<VolumeVO>> entry : volsByPool.entrySet()) {
+                        scheduler.submit(entry.getKey(), "destroyed volumes", entry.getValue(), batchSize, new StorageCleanupScheduler.BatchHandler<VolumeVO>() {
+                            @Override
+                            public int handle(List<VolumeVO> batch) {
+                                int expunged = 0;
+                                for (VolumeVO vol : batch) {
+                                    if (expungeDestroyedVolume(vol)) {
+                                        expunged++;
+                                    }
+                                }
+                                return expunged;
                             }
-                        } catch (Exception e) {
-                            s_logger.warn("Unable to destroy volume " + vol.getUuid(), e);
-                        }
+                        });
                     }
 
+                    try {
+                        scheduler.await();
+                    } catch (InterruptedException e) {
+                        s_logger.warn("Interrupted while waiting for the storage garbage collector, " + scheduler.getBacklog() + " objects are left");
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    s_logger.info("Storage garbage collector " + scheduler.getSummary());
+
+                    // after the objects above, so that their store entries destroyed meanwhile are removed in the same run
+                    cleanupSecondaryStorage(recurring);
+
                     // remove snapshots in Error state
                     List<SnapshotVO> snapshots = _snapshotDao.listAllByStatus(Snapshot.State.Error);
                     for (SnapshotVO snapshotVO : snapshots) {
@@ -1256,6 +1337,44 @@ public class StorageManagerImpl extends ManagerBase implements StorageManager, C
         }
     }
 
+    /**
+     * @return the storage pool or image store the storage cleanup runs the deletions of an object on
+     */
+    private static String getCleanupPartition(DataStoreRole role, long storeId) {
+        return (role == DataStoreRole.Primary ? "storage pool " : "image store ") + storeId;
+    }
+
+    /**
+     * @return true if the volume was expunged, or was already
+     */
+    private boolean expungeDestroyedVolume(VolumeVO vol) {
+        try {
+            // If this fails, just log a warning. It's ideal if we clean up the host-side clustered file
+            // system, but not necessary.
+            handleManagedStorage(vol);
+        } catch (Exception e) {
+            s_logger.warn("Unable to destroy host-side clustered file system " + vol.getUuid(), e);
+        }
+
+        try {
+            VolumeInfo volumeInfo = volFactory.getVolume(vol.getId());
+            if (volumeInfo == null) {
+                s_logger.debug("Volume " + vol.getUuid() + " is already destroyed");
+                return true;
+            }
+            // wait for the expunge, so that the deletions on a pool are no more than the cleanup allows
+            VolumeApiResult result = volService.expungeVolumeAsync(volumeInfo).get();
+            if (result.isFailed()) {
+                s_logger.warn("Unable to destroy volume " + vol.getUuid() + " due to: " + result.getResult());
+                return false;
+            }
+            return true;
+        } catch (Exception e) {
+            s_logger.warn("Unable to destroy volume " + vol.getUuid(), e);
+            return false;
+        }
+    }
+
     /**
      * This method only applies for managed storage.
      *
@@ -1357,71 +1476,99 @@ public class StorageManagerImpl extends ManagerBase implements StorageManager, C
         // NOTE that object_store refactor will immediately delete the object from secondary storage when deleteTemplate etc api is issued.
         // so here we don't need to issue DeleteCommand to resource anymore, only need to remove db entry.
         try {
-            // Cleanup templates in template_store_ref
+            StorageCleanupScheduler scheduler = new StorageCleanupScheduler(_cleanupExecutor, StorageCleanupStoreConcurrency.value());
+            int batchSize = StorageCleanupBatchSize.value();
             List<DataStore> imageStores = _dataStoreMgr.getImageStoresByScope(new ZoneScope(null));
-            for (DataStore store : imageStores) {
+            for (final DataStore store : imageStores) {
+                String partition = getCleanupPartition(DataStoreRole.Image, store.getId());
+
+                // Cleanup templates in template_store_ref
                 try {
-                    long storeId = store.getId();
-                    List<TemplateDataStoreVO> destroyedTemplateStoreVOs = _templateStoreDao.listDestroyed(storeId);
+                    List<TemplateDataStoreVO> destroyedTemplateStoreVOs = _templateStoreDao.listDestroyed(store.getId());
                     s_logger.debug("Secondary storage garbage collector found " + destroyedTemplateStoreVOs.size() + " templates to cleanup on template_store_ref for store: " + store.getName());
-                    for (TemplateDataStoreVO destroyedTemplateStoreVO : destroyedTemplateStoreVOs) {
-                        if (s_logger.isDebugEnabled()) {
-                            s_logger.debug("Deleting template store DB entry: " + destroyedTemplateStoreVO);
+                    scheduler.submit(partition, "templates in template_store_ref", destroyedTemplateStoreVOs, batchSize, new StorageCleanupScheduler.BatchHandler<TemplateDataStoreVO>() {
+                        @Override
+                        public int handle(List<TemplateDataStoreVO> batch) {
+                            if (s_logger.isDebugEnabled()) {
+                                s_logger.debug("Deleting template store DB entries: " + batch);
+                            }
+                            List<Long> ids = new ArrayList<Long>();
+                            for (TemplateDataStoreVO destroyedTemplateStoreVO : batch) {
+                                ids.add(destroyedTemplateStoreVO.getId());
+                            }
+                            SearchCriteria<TemplateDataStoreVO> sc = TemplateStoreRefsSearch.create();
+                            sc.setParameters("ids", ids.toArray());
+                            return _templateStoreDao.remove(sc);
                         }
-                        _templateStoreDao.remove(destroyedTemplateStoreVO.getId());
-                    }
+                    });
                 } catch (Exception e) {
                     s_logger.warn("problem cleaning up templates in template_store_ref for store: " + store.getName(), e);
                 }
-            }
 
-            // CleanUp snapshots on snapshot_store_ref
-            for (DataStore store : imageStores) {
+                // CleanUp snapshots on snapshot_store_ref
                 try {
                     List<SnapshotDataStoreVO> destroyedSnapshotStoreVOs = _snapshotStoreDao.listDestroyed(store.getId());
                     s_logger.debug("Secondary storage garbage collector found " + destroyedSnapshotStoreVOs.size() + " snapshots to cleanup on snapshot_store_ref for store: " + store.getName());
-                    for (SnapshotDataStoreVO destroyedSnapshotStoreVO : destroyedSnapshotStoreVOs) {
-                        // check if this snapshot has child
-                        SnapshotInfo snap = snapshotFactory.getSnapshot(destroyedSnapshotStoreVO.getSnapshotId(), store);
-                        if (snap.getChild() != null) {
-                            s_logger.debug("Skip snapshot on store: " + destroyedSnapshotStoreVO + " , because it has child");
-                            continue;
-                        }
+                    scheduler.submit(partition, "snapshots in snapshot_store_ref", destroyedSnapshotStoreVOs, batchSize, new StorageCleanupScheduler.BatchHandler<SnapshotDataStoreVO>() {
+                        @Override
+                        public int handle(List<SnapshotDataStoreVO> batch) {
+                            int deleted = 0;
+                            for (SnapshotDataStoreVO destroyedSnapshotStoreVO : batch) {
+                                // check if this snapshot has child
+                                SnapshotInfo snap = snapshotFactory.getSnapshot(destroyedSnapshotStoreVO.getSnapshotId(), store);
+                                if (snap.getChild() != null) {
+                                    s_logger.debug("Skip snapshot on store: " + destroyedSnapshotStoreVO + " , because it has child");
+                                    continue;
+                                }
 
-                        if (s_logger.isDebugEnabled()) {
-                            s_logger.debug("Deleting snapshot store DB entry: " + destroyedSnapshotStoreVO);
-                        }
+                                if (s_logger.isDebugEnabled()) {
+                                    s_logger.debug("Deleting snapshot store DB entry: " + destroyedSnapshotStoreVO);
+                                }
 
-                        _snapshotDao.remove(destroyedSnapshotStoreVO.getSnapshotId());
-                        SnapshotDataStoreVO snapshotOnPrimary = _snapshotStoreDao.findBySnapshot(destroyedSnapshotStoreVO.getSnapshotId(), DataStoreRole.Primary);
-                        if (snapshotOnPrimary != null) {
-                            _snapshotStoreDao.remove(snapshotOnPrimary.getId());
+                                _snapshotDao.remove(destroyedSnapshotStoreVO.getSnapshotId());
+                                SnapshotDataStoreVO snapshotOnPrimary = _snapshotStoreDao.findBySnapshot(destroyedSnapshotStoreVO.getSnapshotId(), DataStoreRole.Primary);
+                                if (snapshotOnPrimary != null) {
+                                    _snapshotStoreDao.remove(snapshotOnPrimary.getId());
+                                }
+                                _snapshotStoreDao.remove(destroyedSnapshotStoreVO.getId());
+                                deleted++;
+                            }
+                            return deleted;
                         }
-                        _snapshotStoreDao.remove(destroyedSnapshotStoreVO.getId());
-                    }
-
+                    });
                 } catch (Exception e2) {
                     s_logger.warn("problem cleaning up snapshots in snapshot_store_ref for store: " + store.getName(), e2);
                 }
 
-            }
-
-            // CleanUp volumes on volume_store_ref
-            for (DataStore store : imageStores) {
+                // CleanUp volumes on volume_store_ref
                 try {
                     List<VolumeDataStoreVO> destroyedStoreVOs = _volumeStoreDao.listDestroyed(store.getId());
                     s_logger.debug("Secondary storage garbage collector found " + destroyedStoreVOs.size() + " volumes to cleanup on volume_store_ref for store: " + store.getName());
-                    for (VolumeDataStoreVO destroyedStoreVO : destroyedStoreVOs) {
-                        if (s_logger.isDebugEnabled()) {
-                            s_logger.debug("Deleting volume store DB entry: " + destroyedStoreVO);
+                    scheduler.submit(partition, "volumes in volume_store_ref", destroyedStoreVOs, batchSize, new StorageCleanupScheduler.BatchHandler<VolumeDataStoreVO>() {
+                        @Override
+                        public int handle(List<VolumeDataStoreVO> batch) {
+                            if (s_logger.isDebugEnabled()) {
+                                s_logger.debug("Deleting volume store DB entries: " + batch);
+                            }
+                            List<Long> ids = new ArrayList<Long>();
+                            for (VolumeDataStoreVO destroyedStoreVO : batch) {
+                                ids.add(destroyedStoreVO.getId());
+                            }
+                            SearchCriteria<VolumeDataStoreVO> sc = VolumeStoreRefsSearch.create();
+                            sc.setParameters("ids", ids.toArray());
+                            return _volumeStoreDao.remove(sc);
                         }
-                        _volumeStoreDao.remove(destroyedStoreVO.getId());
-                    }
-
+                    });
                 } catch (Exception e2) {
                     s_logger.warn("problem cleaning up volumes in volume_store_ref for store: " + store.getName(), e2);
                 }
             }
+
+            scheduler.await();
+            s_logger.info("Secondary storage garbage collector " + scheduler.getSummary());
+        } catch (InterruptedException e) {
+            s_logger.warn("Interrupted while cleaning up secondary storage DB entries");
+            Thread.currentThread().interrupt();
         } catch (Exception e3) {
             s_logger.warn("problem cleaning up secondary storage DB entries. ", e3);
         }
@@ -2493,6 +2640,9 @@ public class StorageManagerImpl extends ManagerBase implements StorageManager, C
                 StorageCleanupInterval,
                 StorageCleanupDelay,
                 StorageCleanupEnabled,
+                StorageCleanupWorkers,
+                StorageCleanupStoreConcurrency,
+                StorageCleanupBatchSize,
                 TemplateCleanupEnabled,
                 KvmStorageOfflineMigrationWait,
                 KvmStorageOnlineMigrationWait,
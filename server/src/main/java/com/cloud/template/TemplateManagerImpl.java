@@ -119,6 +119,7 @@ import com.cloud.agent.api.storage.DestroyCommand;
 import com.cloud.agent.api.to.DataTO;
 import com.cloud.agent.api.to.DiskTO;
 import com.cloud.agent.api.to.NfsTO;
+import com.cloud.agent.manager.Commands;
 import com.cloud.api.ApiDBUtils;
 import com.cloud.api.ApiResponseHelper;
 import com.cloud.api.query.dao.UserVmJoinDao;
@@ -1054,6 +1055,63 @@ public class TemplateManagerImpl extends ManagerBase implements TemplateManager,
         }
     }
 
+    @Override
+    public int evictTemplatesFromStoragePool(StoragePool pool, List<VMTemplateStoragePoolVO> templatePoolVOs) {
+        if (pool.isManaged()) {
+            // templates on managed storage are volumes of their own, deleted one by one
+            int evicted = 0;
+            for (VMTemplateStoragePoolVO templatePoolVO : templatePoolVOs) {
+                evictTemplateFromStoragePool(templatePoolVO);
+                if (_tmpltPoolDao.findById(templatePoolVO.getId()) == null) {
+                    evicted++;
+                }
+            }
+            return evicted;
+        }
+
+        // Hold the locks for the same reason as evictTemplateFromStoragePool does
+        List<VMTemplateStoragePoolVO> locked = new ArrayList<VMTemplateStoragePoolVO>();
+        int evicted = 0;
+        try {
+            Commands cmds = new Commands(Command.OnError.Continue);
+            for (VMTemplateStoragePoolVO templatePoolVO : templatePoolVOs) {
+                if (_tmpltPoolDao.acquireInLockTable(templatePoolVO.getId()) == null) {
+                    s_logger.debug("Can't aquire the lock for template pool ref: " + templatePoolVO.getId());
+                    continue;
+                }
+                locked.add(templatePoolVO);
+                cmds.addCommand(new DestroyCommand(pool, templatePoolVO));
+            }
+            if (locked.isEmpty()) {
+                return 0;
+            }
+
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Evicting " + locked.size() + " templates from storage pool " + pool.getName());
+            }
+            Answer[] answers = _storageMgr.sendToPool(pool, cmds);
+            for (int i = 0; i < locked.size(); i++) {
+                VMTemplateStoragePoolVO templatePoolVO = locked.get(i);
+                Answer answer = answers != null && i < answers.length ? answers[i] : null;
+                if (answer != null && answer.getResult()) {
+                    if (_tmpltPoolDao.remove(templatePoolVO.getId())) {
+                        s_logger.debug("Successfully evicted template " + templatePoolVO.getTemplateId() + " from storage pool " + pool.getName());
+                        evicted++;
+                    }
+                } else {
+                    s_logger.info("Will retry evict template " + templatePoolVO.getTemplateId() + " from storage pool " + pool.getName());
+                }
+            }
+        } catch (StorageUnavailableException e) {
+            s_logger.info("Storage is unavailable currently. Will retry evicting " + locked.size() + " templates from storage pool " + pool.getName());
+        } finally {
+            for (VMTemplateStoragePoolVO templatePoolVO : locked) {
+                _tmpltPoolDao.releaseFromLockTable(templatePoolVO.getId());
+            }
+        }
+        return evicted;
+    }
+
     @Override
     public boolean start() {
         return true;
@@ -0,0 +1,309 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+
+package org.apache.cloudstack.ha;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.concurrency.NamedThreadFactory;
+
+/**
+ * Schedules the health checks of HA resources. A resource that keeps passing its health checks is checked at
+ * growing intervals up to a maximum, a resource that failed its last check or is not Available is checked on
+ * every poll. The due checks of a group (e.g. the resources of one HA provider and cluster) are queued as
+ * batches whose probes run concurrently, and checks beyond the allowed number in flight are deferred to the
+ * next poll instead of being run on the poller thread.
+ */
+public class HACheckScheduler {
+    public static final Logger LOG = Logger.getLogger(HACheckScheduler.class);
+
+    private static final long MIN_INTERVAL = 1000L;
+
+    public interface Check {
+        /**
+         * Starts the probe of the resource, returns null if the check is not run.
+         */
+        Future<Boolean> start();
+
+        /**
+         * Waits for the probe and processes its result, returns true if the resource is healthy.
+         */
+        boolean complete(Future<Boolean> future);
+
+        /**
+         * @return how long the probe took, or -1 if it did not finish
+         */
+        long getProbeMillis();
+    }
+
+    private static final class Schedule {
+        private long nextCheck;
+        private int passed;
+        private boolean inFlight;
+    }
+
+    private final ConcurrentHashMap<String, Schedule> schedules = new ConcurrentHashMap<>();
+    private final ThreadPoolExecutor batchExecutor;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile long maxInterval;
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong deferred = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong unhealthy = new AtomicLong();
+    private final AtomicLong startedBatches = new AtomicLong();
+    private final AtomicLong totalQueueWaitMillis = new AtomicLong();
+    private final AtomicLong maxQueueWaitMillis = new AtomicLong();
+    private final AtomicLong probes = new AtomicLong();
+    private final AtomicLong totalProbeMillis = new AtomicLong();
+    private final AtomicLong maxProbeMillis = new AtomicLong();
+
+    /**
+     * @param batchWorkers the number of batches run at the same time
+     * @param maxInterval the longest interval in milliseconds between the checks of a healthy resource, 0 to check it on every poll
+     */
+    public HACheckScheduler(final int batchWorkers, final long maxInterval) {
+        final int workers = Math.max(1, batchWorkers);
+        batchExecutor = new ThreadPoolExecutor(workers, workers, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("HA-HealthCheck-Batch"));
+        batchExecutor.allowCoreThreadTimeOut(true);
+        this.maxInterval = maxInterval;
+    }
+
+    public void setMaxInterval(final long maxInterval) {
+        this.maxInterval = maxInterval;
+    }
+
+    /**
+     * @param suspect true if the resource is not known to be healthy, it is then checked regardless of its interval
+     * @return true if the resource should be checked now
+     */
+    public boolean isDue(final String key, final boolean suspect, final long now) {
+        final Schedule schedule = schedules.get(key);
+        if (schedule == null) {
+            return true;
+        }
+        synchronized (schedule) {
+            return !schedule.inFlight && (suspect || now >= schedule.nextCheck);
+        }
+    }
+
+    /**
+     * Queues the checks of one group in batches of up to batchSize checks. Checks of resources that are still
+     * being checked are dropped, checks beyond maxPending checks in flight are deferred.
+     *
+     * @return the number of checks queued
+     */
+    public int submit(final Map<String, ? extends Check> checks, final int batchSize, final int maxPending) {
+        final int size = Math.max(1, batchSize);
+        List<Map.Entry<String, Check>> batch = new ArrayList<>(size);
+        int queued = 0;
+        for (final Map.Entry<String, ? extends Check> entry : checks.entrySet()) {
+            if (inFlight.get() >= maxPending) {
+                deferred.incrementAndGet();
+                continue;
+            }
+            final Schedule schedule = schedules.computeIfAbsent(entry.getKey(), key -> new Schedule());
+            synchronized (schedule) {
+                if (schedule.inFlight) {
+                    continue;
+                }
+                schedule.inFlight = true;
+            }
+            inFlight.incrementAndGet();
+            submitted.incrementAndGet();
+            queued++;
+            batch.add(new AbstractMap.SimpleImmutableEntry<String, Check>(entry.getKey(), entry.getValue()));
+            if (batch.size() >= size) {
+                dispatch(batch);
+                batch = new ArrayList<>(size);
+            }
+        }
+        if (!batch.isEmpty()) {
+            dispatch(batch);
+        }
+        return queued;
+    }
+
+    private void dispatch(final List<Map.Entry<String, Check>> batch) {
+        final long queued = System.currentTimeMillis();
+        try {
+            batchExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    runBatch(batch, queued);
+                }
+            });
+            batches.incrementAndGet();
+        } catch (final RejectedExecutionException e) {
+            LOG.warn("Unable to queue a batch of " + batch.size() + " health checks: " + e.getMessage());
+            for (final Map.Entry<String, Check> entry : batch) {
+                release(entry.getKey(), null);
+            }
+        }
+    }
+
+    private void runBatch(final List<Map.Entry<String, Check>> batch, final long queued) {
+        final long queueWait = System.currentTimeMillis() - queued;
+        startedBatches.incrementAndGet();
+        totalQueueWaitMillis.addAndGet(queueWait);
+        updateMax(maxQueueWaitMillis, queueWait);
+
+        final List<Future<Boolean>> futures = new ArrayList<>(batch.size());
+        for (final Map.Entry<String, Check> entry : batch) {
+            Future<Boolean> future = null;
+            try {
+                future = entry.getValue().start();
+            } catch (final RejectedExecutionException e) {
+                LOG.warn("Unable to start the health check of resource " + entry.getKey() + ", it is deferred to the next poll: " + e.getMessage());
+            } catch (final RuntimeException e) {
+                LOG.warn("Unable to start the health check of resource " + entry.getKey(), e);
+            }
+            futures.add(future);
+        }
+
+        for (int i = 0; i < batch.size(); i++) {
+            final Map.Entry<String, Check> entry = batch.get(i);
+            final Future<Boolean> future = futures.get(i);
+            Boolean healthy = null;
+            try {
+                if (future != null) {
+                    healthy = entry.getValue().complete(future);
+                    final long probeMillis = entry.getValue().getProbeMillis();
+                    if (probeMillis >= 0) {
+                        probes.incrementAndGet();
+                        totalProbeMillis.addAndGet(probeMillis);
+                        updateMax(maxProbeMillis, probeMillis);
+                    }
+                }
+            } catch (final RuntimeException e) {
+                LOG.warn("Unable to complete the health check of resource " + entry.getKey(), e);
+            } finally {
+                release(entry.getKey(), healthy);
+            }
+        }
+    }
+
+    private void release(final String key, final Boolean healthy) {
+        final Schedule schedule = schedules.get(key);
+        if (schedule != null) {
+            synchronized (schedule) {
+                schedule.inFlight = false;
+                if (healthy != null) {
+                    schedule.nextCheck = System.currentTimeMillis() + nextInterval(schedule, healthy);
+                }
+            }
+        }
+        if (healthy != null) {
+            completed.incrementAndGet();
+            if (!healthy) {
+                unhealthy.incrementAndGet();
+            }
+        }
+        inFlight.decrementAndGet();
+    }
+
+    private long nextInterval(final Schedule schedule, final boolean healthy) {
+        if (!healthy) {
+            schedule.passed = 0;
+            return 0;
+        }
+        schedule.passed++;
+        final long max = maxInterval;
+        if (max <= 0) {
+            return 0;
+        }
+        return Math.min(max, MIN_INTERVAL << Math.min(schedule.passed - 1, 20));
+    }
+
+    private static void updateMax(final AtomicLong max, final long value) {
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    public void forget(final String key) {
+        final Schedule schedule = schedules.get(key);
+        if (schedule != null) {
+            synchronized (schedule) {
+                if (!schedule.inFlight) {
+                    schedules.remove(key, schedule);
+                }
+            }
+        }
+    }
+
+    public int getInFlightCount() {
+        return inFlight.get();
+    }
+
+    public long getSubmittedCount() {
+        return submitted.get();
+    }
+
+    public long getDeferredCount() {
+        return deferred.get();
+    }
+
+    public long getBatchCount() {
+        return batches.get();
+    }
+
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    public long getUnhealthyCount() {
+        return unhealthy.get();
+    }
+
+    public long getAverageQueueWaitMillis() {
+        final long count = startedBatches.get();
+        return count == 0 ? 0 : totalQueueWaitMillis.get() / count;
+    }
+
+    public long getMaxQueueWaitMillis() {
+        return maxQueueWaitMillis.get();
+    }
+
+    public long getAverageProbeMillis() {
+        final long count = probes.get();
+        return count == 0 ? 0 : totalProbeMillis.get() / count;
+    }
+
+    public long getMaxProbeMillis() {
+        return maxProbeMillis.get();
+    }
+
+    public void shutdown() {
+        batchExecutor.shutdownNow();
+    }
+}
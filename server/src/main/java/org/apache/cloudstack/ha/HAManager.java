@@ -66,6 +66,17 @@ public interface HAManager extends HAConfigManager {
             "2500",
             "The number of pending fence operations per management server. This setting determines the size of the size of the FENCE queue.", true);
 
+    ConfigKey<Integer> HealthCheckMaxInterval = new ConfigKey<>("Advanced", Integer.class,
+            "ha.health.check.max.interval",
+            "30",
+            "The longest interval in seconds between the health checks of a resource that keeps passing them. The interval doubles with every passed health check up to this value, "
+                    + "a resource that failed its last health check is checked on every poll. Set to 0 to check every resource on every poll.", true);
+
+    ConfigKey<Integer> HealthCheckBatchSize = new ConfigKey<>("Advanced", Integer.class,
+            "ha.health.check.batch.size",
+            "10",
+            "The number of health checks of resources of the same HA provider and cluster that are queued as one batch.", false);
+
     boolean transitionHAState(final HAConfig.Event event, final HAConfig haConfig);
     HAProvider getHAProvider(final String name);
     HAResourceCounter getHACounter(final Long resourceId, final HAResource.ResourceType resourceType);
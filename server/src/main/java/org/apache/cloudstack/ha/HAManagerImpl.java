@@ -19,6 +19,7 @@ package org.apache.cloudstack.ha;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ArrayBlockingQueue;
@@ -110,6 +111,7 @@ public final class HAManagerImpl extends ManagerBase implements HAManager, Clust
     private Map<String, HAProvider<HAResource>> haProviderMap = new HashMap<>();
 
     private static ExecutorService healthCheckExecutor;
+    private static HACheckScheduler healthCheckScheduler;
     private static ExecutorService activityCheckExecutor;
     private static ExecutorService recoveryExecutor;
     private static ExecutorService fenceExecutor;
@@ -140,6 +142,9 @@ public final class HAManagerImpl extends ManagerBase implements HAManager, Clust
 
     public synchronized void purgeHACounter(final Long resourceId, final HAResource.ResourceType resourceType) {
         final String key = resourceCounterKey(resourceId, resourceType);
+        if (healthCheckScheduler != null) {
+            healthCheckScheduler.forget(key);
+        }
         if (haCounterMap.containsKey(key)) {
             haCounterMap.remove(key);
         }
@@ -569,6 +574,9 @@ public final class HAManagerImpl extends ManagerBase implements HAManager, Clust
     @Override
     public boolean stop() {
         haConfigDao.expireServerOwnership(ManagementServerNode.getManagementServerId());
+        if (healthCheckScheduler != null) {
+            healthCheckScheduler.shutdown();
+        }
         return true;
     }
 
@@ -579,7 +587,11 @@ public final class HAManagerImpl extends ManagerBase implements HAManager, Clust
         final int healthCheckQueueSize = MaxPendingHealthCheckOperations.value();
         healthCheckExecutor = new ThreadPoolExecutor(healthCheckWorkers, healthCheckWorkers,
                 0L, TimeUnit.MILLISECONDS,
-                new ArrayBlockingQueue<Runnable>(healthCheckQueueSize, true), new ThreadPoolExecutor.CallerRunsPolicy());
+                new ArrayBlockingQueue<Runnable>(healthCheckQueueSize, true));
+        // Each batch waits for the probes of its resources, enough batches run to keep the health check workers busy
+        final int healthCheckBatchSize = Math.max(1, HealthCheckBatchSize.value());
+        healthCheckScheduler = new HACheckScheduler((healthCheckWorkers + healthCheckBatchSize - 1) / healthCheckBatchSize,
+                HealthCheckMaxInterval.value() * 1000L);
 
         // Activity Check
         final int activityCheckWorkers = MaxConcurrentActivityCheckOperations.value();
@@ -628,7 +640,9 @@ public final class HAManagerImpl extends ManagerBase implements HAManager, Clust
                 MaxConcurrentRecoveryOperations,
                 MaxPendingRecoveryOperations,
                 MaxConcurrentFenceOperations,
-                MaxPendingFenceOperations
+                MaxPendingFenceOperations,
+                HealthCheckMaxInterval,
+                HealthCheckBatchSize
         };
     }
 
@@ -644,6 +658,8 @@ public final class HAManagerImpl extends ManagerBase implements HAManager, Clust
                     LOG.trace("HA health check task is running...");
                 }
                 final List<HAConfig> haConfigList = new ArrayList<HAConfig>(haConfigDao.listAll());
+                final Map<String, Map<String, HealthCheckTask>> healthChecks = new HashMap<>();
+                final long now = System.currentTimeMillis();
                 for (final HAConfig haConfig : haConfigList) {
                     if (haConfig == null) {
                         continue;
@@ -668,9 +684,13 @@ public final class HAManagerImpl extends ManagerBase implements HAManager, Clust
                         case Suspect:
                         case Degraded:
                         case Fenced:
-                            final HealthCheckTask task = ComponentContext.inject(new HealthCheckTask(resource, haProvider, haConfig,
-                                    HAProviderConfig.HealthCheckTimeout, healthCheckExecutor));
-                            healthCheckExecutor.submit(task);
+                            final String key = resourceCounterKey(haConfig.getResourceId(), haConfig.getResourceType());
+                            if (healthCheckScheduler.isDue(key, haConfig.getState() != HAConfig.HAState.Available, now)) {
+                                final HealthCheckTask task = ComponentContext.inject(new HealthCheckTask(resource, haProvider, haConfig,
+                                        HAProviderConfig.HealthCheckTimeout, healthCheckExecutor));
+                                final String group = haConfig.getHaProvider() + "-" + resource.getClusterId();
+                                healthChecks.computeIfAbsent(group, g -> new LinkedHashMap<>()).put(key, task);
+                            }
                             break;
                     default:
                         break;
@@ -711,11 +731,30 @@ public final class HAManagerImpl extends ManagerBase implements HAManager, Clust
                         transitionHAState(HAConfig.Event.RetryFencing, haConfig);
                     }
                 }
+                submitHealthChecks(healthChecks);
             } catch (Throwable t) {
                 LOG.error("Error trying to perform health checks in HA manager", t);
             }
         }
 
+        private void submitHealthChecks(final Map<String, Map<String, HealthCheckTask>> healthChecks) {
+            if (healthChecks.isEmpty()) {
+                return;
+            }
+            healthCheckScheduler.setMaxInterval(HealthCheckMaxInterval.value() * 1000L);
+            final int batchSize = HealthCheckBatchSize.value();
+            final int maxPending = MaxPendingHealthCheckOperations.value();
+            int queued = 0;
+            for (final Map<String, HealthCheckTask> checks : healthChecks.values()) {
+                queued += healthCheckScheduler.submit(checks, batchSize, maxPending);
+            }
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Queued " + queued + " HA health checks, " + healthCheckScheduler.getInFlightCount() + " in flight, " + healthCheckScheduler.getDeferredCount()
+                        + " deferred so far, average queue wait " + healthCheckScheduler.getAverageQueueWaitMillis() + "ms (max " + healthCheckScheduler.getMaxQueueWaitMillis()
+                        + "ms), average probe latency " + healthCheckScheduler.getAverageProbeMillis() + "ms (max " + healthCheckScheduler.getMaxProbeMillis() + "ms)");
+            }
+        }
+
         @Override
         public Long getDelay() {
             return null;
@@ -42,6 +42,8 @@ public abstract class BaseHATask implements Callable<Boolean> {
     private final ExecutorService executor;
     private Long timeout;
     private DateTime created;
+    private volatile long started;
+    private volatile long finished;
 
     public BaseHATask(final HAResource resource, final HAProvider<HAResource> haProvider, final HAConfig haConfig, final HAProvider.HAProviderConfig haProviderConfig,
             final ExecutorService executor) {
@@ -75,25 +77,41 @@ public abstract class BaseHATask implements Callable<Boolean> {
 
     public abstract void processResult(boolean result, Throwable e);
 
-    @Override
-    public Boolean call() {
+    /**
+     * Submits the action to the executor, returns null if the task is too old to be run.
+     */
+    public Future<Boolean> start() {
         if (new DateTime().minusHours(1).isAfter(getCreated())) {
-            return false;
+            return null;
         }
-        final Future<Boolean> future = executor.submit(new Callable<Boolean>() {
+        started = System.currentTimeMillis();
+        return executor.submit(new Callable<Boolean>() {
             @Override
             public Boolean call() throws HACheckerException, HAFenceException, HARecoveryException {
-                return performAction();
+                try {
+                    return performAction();
+                } finally {
+                    finished = System.currentTimeMillis();
+                }
             }
         });
+    }
 
+    /**
+     * Waits for the action started by {@link #start()} until the timeout of the task and processes its result.
+     */
+    public boolean complete(final Future<Boolean> future) {
+        if (future == null) {
+            return false;
+        }
         boolean result = false;
         Throwable throwable = null;
         try {
             if (timeout == null) {
                 result = future.get();
             } else {
-                result = future.get(timeout, TimeUnit.SECONDS);
+                final long remaining = started + timeout * 1000L - System.currentTimeMillis();
+                result = future.get(Math.max(0L, remaining), TimeUnit.MILLISECONDS);
             }
         } catch (InterruptedException | ExecutionException e) {
             LOG.warn("Exception occurred while running " + getTaskType() + " on a resource: " + e.getMessage(), e.getCause());
@@ -105,6 +123,19 @@ public abstract class BaseHATask implements Callable<Boolean> {
         return result;
     }
 
+    /**
+     * @return how long the action took, or -1 if it has not finished
+     */
+    public long getProbeMillis() {
+        final long end = finished;
+        return end == 0L ? -1L : end - started;
+    }
+
+    @Override
+    public Boolean call() {
+        return complete(start());
+    }
+
     public DateTime getCreated() {
         return created;
     }
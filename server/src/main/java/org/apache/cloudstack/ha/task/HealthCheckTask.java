@@ -17,6 +17,7 @@
 
 package org.apache.cloudstack.ha.task;
 
+import org.apache.cloudstack.ha.HACheckScheduler;
 import org.apache.cloudstack.ha.HAConfig;
 import org.apache.cloudstack.ha.HAManager;
 import org.apache.cloudstack.ha.HAResource;
@@ -28,7 +29,7 @@ import org.apache.log4j.Logger;
 import javax.inject.Inject;
 import java.util.concurrent.ExecutorService;
 
-public class HealthCheckTask extends BaseHATask {
+public class HealthCheckTask extends BaseHATask implements HACheckScheduler.Check {
 
     @Inject
     private HAManager haManager;
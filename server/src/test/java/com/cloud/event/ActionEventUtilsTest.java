@@ -59,7 +59,7 @@ import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 
 @RunWith(PowerMockRunner.class)
-@PrepareForTest(ComponentContext.class)
+@PrepareForTest({ComponentContext.class, CallContext.class})
 public class ActionEventUtilsTest {
     //Predictable constants used throughout this test.
     public static final long EVENT_ID = 1;
@@ -191,7 +191,7 @@ public class ActionEventUtilsTest {
     }
 
     @Test
-    public void testPopulateFirstClassEntities() {
+    public void testPopulateFirstClassEntities() throws InterruptedException {
         AccountVO account = new AccountVO("testaccount", 1L, "networkdomain", (short) 0, "uuid");
         account.setId(ACCOUNT_ID);
         UserVO user = new UserVO(1, "testuser", "password", "firstname", "lastName", "email", "timezone",
@@ -209,6 +209,8 @@ public class ActionEventUtilsTest {
         CallContext.current().putContextParameter(IpAddress.class, ipUuid);
 
         ActionEventUtils.onActionEvent(USER_ID, ACCOUNT_ID, account.getDomainId(), "StaticNat", "Test event");
+        //Events are published in the background.
+        Assert.assertTrue(ActionEventUtils.flushActionEvents(10000));
 
         //Assertions
         Assert.assertNotEquals(publishedEvents.size(), 0);
@@ -226,4 +228,21 @@ public class ActionEventUtilsTest {
 
         CallContext.unregister();
     }
+
+    @Test
+    public void testActionEventWithoutCallContext() throws InterruptedException {
+        AccountVO account = new AccountVO("testaccount", 1L, "networkdomain", (short) 0, "uuid");
+        account.setId(ACCOUNT_ID);
+        Mockito.when(accountDao.findById(ACCOUNT_ID)).thenReturn(account);
+
+        PowerMockito.mockStatic(CallContext.class);
+        Mockito.when(CallContext.current()).thenReturn(null);
+
+        ActionEventUtils.onActionEvent(USER_ID, ACCOUNT_ID, account.getDomainId(), "StaticNat", "Test event");
+        Assert.assertTrue(ActionEventUtils.flushActionEvents(10000));
+
+        Assert.assertEquals(publishedEvents.size(), 1);
+        JsonObject json = new JsonParser().parse(publishedEvents.get(0).getDescription()).getAsJsonObject();
+        Assert.assertFalse(json.has("VirtualMachine"));
+    }
 }
@@ -0,0 +1,136 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.event;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class EventPipelineTest {
+
+    private static class Item {
+        final int key;
+        final int sequence;
+
+        Item(int key, int sequence) {
+            this.key = key;
+            this.sequence = sequence;
+        }
+    }
+
+    private static class RecordingHandler implements EventPipeline.Handler<Item> {
+        final List<Item> handled = Collections.synchronizedList(new ArrayList<Item>());
+        final AtomicInteger batches = new AtomicInteger();
+        final AtomicInteger maxBatchSize = new AtomicInteger();
+
+        @Override
+        public void handle(List<Item> batch) {
+            batches.incrementAndGet();
+            maxBatchSize.accumulateAndGet(batch.size(), Math::max);
+            handled.addAll(batch);
+        }
+    }
+
+    @Test
+    public void testItemsOfAKeyAreHandledInOrder() throws InterruptedException {
+        RecordingHandler handler = new RecordingHandler();
+        EventPipeline<Item> pipeline = new EventPipeline<Item>("test", 4, 100, 10, handler);
+        pipeline.start();
+        for (int sequence = 0; sequence < 200; sequence++) {
+            for (int key = 0; key < 10; key++) {
+                pipeline.submit(key, new Item(key, sequence));
+            }
+        }
+        Assert.assertTrue(pipeline.flush(10000));
+        pipeline.stop(1000);
+
+        Assert.assertEquals(2000, handler.handled.size());
+        Assert.assertEquals(2000, pipeline.getHandled());
+        Assert.assertTrue(handler.maxBatchSize.get() <= 10);
+        Map<Integer, Integer> last = new HashMap<Integer, Integer>();
+        for (Item item : handler.handled) {
+            Integer previous = last.put(item.key, item.sequence);
+            Assert.assertEquals(previous == null ? 0 : previous + 1, item.sequence);
+        }
+    }
+
+    @Test
+    public void testSubmitterWaitsWhileTheQueueIsFull() throws InterruptedException {
+        final Object gate = new Object();
+        final List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+        final List<Item> handled = Collections.synchronizedList(new ArrayList<Item>());
+        EventPipeline<Item> pipeline = new EventPipeline<Item>("test", 1, 1, 1, new EventPipeline.Handler<Item>() {
+            @Override
+            public void handle(List<Item> batch) {
+                threads.add(Thread.currentThread());
+                if (batch.get(0).sequence == 0) {
+                    synchronized (gate) {
+                        try {
+                            gate.wait(500);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                }
+                handled.addAll(batch);
+            }
+        });
+        pipeline.start();
+        for (int sequence = 0; sequence < 5; sequence++) {
+            pipeline.submit(1, new Item(1, sequence));
+        }
+        Assert.assertTrue(pipeline.getWaited() > 0);
+        Assert.assertFalse(threads.contains(Thread.currentThread()));
+        Assert.assertTrue(pipeline.flush(10000));
+        pipeline.stop(1000);
+        Assert.assertEquals(5, pipeline.getHandled());
+        for (int sequence = 0; sequence < 5; sequence++) {
+            Assert.assertEquals(sequence, handled.get(sequence).sequence);
+        }
+    }
+
+    @Test
+    public void testItemsAreHandledOnTheSubmitterWhenStopped() throws InterruptedException {
+        RecordingHandler handler = new RecordingHandler();
+        EventPipeline<Item> pipeline = new EventPipeline<Item>("test", 2, 10, 10, handler);
+        pipeline.submit(1, new Item(1, 0));
+        Assert.assertEquals(1, handler.handled.size());
+        Assert.assertTrue(pipeline.flush(0));
+    }
+
+    @Test
+    public void testFailedBatchesAreCounted() throws InterruptedException {
+        EventPipeline<Item> pipeline = new EventPipeline<Item>("test", 1, 10, 10, new EventPipeline.Handler<Item>() {
+            @Override
+            public void handle(List<Item> batch) {
+                throw new RuntimeException("database is unavailable");
+            }
+        });
+        pipeline.start();
+        pipeline.submit(1, new Item(1, 0));
+        pipeline.submit(1, new Item(1, 1));
+        Assert.assertTrue(pipeline.flush(10000));
+        pipeline.stop(1000);
+        Assert.assertEquals(2, pipeline.getFailed());
+    }
+}
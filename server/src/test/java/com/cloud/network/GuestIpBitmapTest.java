@@ -0,0 +1,101 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.cloud.utils.net.NetUtils;
+
+public class GuestIpBitmapTest {
+    private static final Logger s_logger = Logger.getLogger(GuestIpBitmapTest.class);
+
+    @Test
+    public void testRangeExcludesNetworkAndBroadcast() {
+        GuestIpBitmap bitmap = new GuestIpBitmap("10.1.1.0/24");
+        Assert.assertEquals(254, bitmap.getSize());
+        Assert.assertFalse(bitmap.contains(NetUtils.ip2Long("10.1.1.0")));
+        Assert.assertTrue(bitmap.contains(NetUtils.ip2Long("10.1.1.1")));
+        Assert.assertTrue(bitmap.contains(NetUtils.ip2Long("10.1.1.254")));
+        Assert.assertFalse(bitmap.contains(NetUtils.ip2Long("10.1.1.255")));
+        Assert.assertFalse(bitmap.claim(NetUtils.ip2Long("10.1.2.1")));
+    }
+
+    @Test
+    public void testClaimAndRelease() {
+        GuestIpBitmap bitmap = new GuestIpBitmap("10.1.1.0/30");
+        long first = NetUtils.ip2Long("10.1.1.1");
+        long second = NetUtils.ip2Long("10.1.1.2");
+        Assert.assertTrue(bitmap.claim(first));
+        Assert.assertFalse(bitmap.claim(first));
+        Assert.assertEquals(second, bitmap.nextFree(first));
+        Assert.assertTrue(bitmap.claim(second));
+        Assert.assertEquals(-1, bitmap.nextFree(first));
+        Assert.assertEquals(-1, bitmap.randomFree(new Random()));
+
+        bitmap.release(first);
+        // wraps around to the start of the range
+        Assert.assertEquals(first, bitmap.nextFree(second));
+        Assert.assertEquals(1, bitmap.getFreeCount());
+
+        bitmap.reset();
+        Assert.assertEquals(2, bitmap.getFreeCount());
+        Assert.assertTrue(bitmap.getLoadedAt() > 0);
+    }
+
+    @Test
+    public void testRandomFreeNeverReturnsUsedAddresses() {
+        GuestIpBitmap bitmap = new GuestIpBitmap("172.16.0.0/22");
+        Random random = new Random(42);
+        Set<Long> picked = new HashSet<Long>();
+        long ip;
+        while ((ip = bitmap.randomFree(random)) >= 0) {
+            Assert.assertTrue(bitmap.contains(ip));
+            Assert.assertTrue(picked.add(ip));
+            bitmap.claim(ip);
+        }
+        Assert.assertEquals(1022, picked.size());
+    }
+
+    /**
+     * Shows the time to allocate an address of a /16 at increasing fill levels.
+     */
+    @Test
+    public void testAllocationLatencyByFillLevel() {
+        GuestIpBitmap bitmap = new GuestIpBitmap("10.0.0.0/16");
+        Random random = new Random(7);
+        int[] levels = {0, 50, 90, 99};
+        for (int level : levels) {
+            while (bitmap.getSize() - bitmap.getFreeCount() < (long)bitmap.getSize() * level / 100) {
+                bitmap.claim(bitmap.randomFree(random));
+            }
+            int allocations = Math.min(500, bitmap.getFreeCount());
+            long started = System.nanoTime();
+            for (int i = 0; i < allocations; i++) {
+                long ip = bitmap.randomFree(random);
+                Assert.assertFalse(bitmap.isUsed(ip));
+                bitmap.claim(ip);
+            }
+            s_logger.info("Allocated " + allocations + " guest ips of a /16 filled to " + level + "% in " + (System.nanoTime() - started) / 1000 + "us");
+        }
+    }
+}
@@ -25,6 +25,7 @@ import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -37,18 +38,36 @@ import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.Spy;
 
+import com.cloud.configuration.Resource.ResourceType;
+import com.cloud.dc.AccountVlanMapVO;
+import com.cloud.dc.DataCenter;
+import com.cloud.dc.DataCenterVO;
+import com.cloud.dc.Vlan.VlanType;
+import com.cloud.dc.VlanVO;
+import com.cloud.dc.dao.AccountVlanMapDao;
+import com.cloud.dc.dao.DataCenterDao;
+import com.cloud.dc.dao.DomainVlanMapDao;
+import com.cloud.dc.dao.VlanDao;
+import com.cloud.exception.InsufficientAddressCapacityException;
 import com.cloud.exception.InvalidParameterValueException;
 import com.cloud.exception.ResourceUnavailableException;
 import com.cloud.network.Network.Service;
+import com.cloud.network.addr.PublicIp;
 import com.cloud.network.dao.IPAddressDao;
 import com.cloud.network.dao.IPAddressVO;
 import com.cloud.network.dao.NetworkDao;
 import com.cloud.network.dao.NetworkVO;
+import com.cloud.network.rules.FirewallManager;
 import com.cloud.network.rules.StaticNat;
 import com.cloud.network.rules.StaticNatImpl;
 import com.cloud.offerings.NetworkOfferingVO;
 import com.cloud.offerings.dao.NetworkOfferingDao;
 import com.cloud.user.AccountVO;
+import com.cloud.user.ResourceLimitService;
+import com.cloud.utils.db.EntityManager;
+import com.cloud.utils.db.Filter;
+import com.cloud.utils.db.SearchBuilder;
+import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.net.Ip;
 import org.mockito.runners.MockitoJUnitRunner;
 
@@ -64,6 +83,27 @@ public class IpAddressManagerTest {
     @Mock
     NetworkOfferingDao networkOfferingDao;
 
+    @Mock
+    VlanDao vlanDao;
+
+    @Mock
+    AccountVlanMapDao accountVlanMapDao;
+
+    @Mock
+    DomainVlanMapDao domainVlanMapDao;
+
+    @Mock
+    DataCenterDao dcDao;
+
+    @Mock
+    EntityManager entityMgr;
+
+    @Mock
+    ResourceLimitService resourceLimitMgr;
+
+    @Mock
+    FirewallManager firewallMgr;
+
     @Spy
     @InjectMocks
     IpAddressManagerImpl ipAddressManager;
@@ -219,6 +259,140 @@ public class IpAddressManagerTest {
         Assert.assertTrue(result);
     }
 
+    private List<IPAddressVO> freePublicIps(long vlanDbId, int count) {
+        List<IPAddressVO> addrs = new ArrayList<IPAddressVO>();
+        for (int i = 0; i < count; i++) {
+            IPAddressVO addr = new IPAddressVO(new Ip("192.0.2." + (vlanDbId * 10 + i)), 1L, 1L, vlanDbId, false);
+            addrs.add(addr);
+        }
+        return addrs;
+    }
+
+    private void allocatePublicIpsOfDedicatedVlan() {
+        when(ipAddressDao.update(anyLong(), Mockito.any(IPAddressVO.class))).thenReturn(true);
+        when(vlanDao.findById(1L)).thenReturn(Mockito.mock(VlanVO.class));
+        // no usage events for IPs of ranges dedicated to the account
+        when(accountVlanMapDao.listAccountVlanMapsByVlan(1L)).thenReturn(Arrays.asList(new AccountVlanMapVO(1L, 1L)));
+        doReturn(true).when(ipAddressManager).updateIpResourceCount(Mockito.any(IPAddressVO.class));
+    }
+
+    @Test
+    public void testAssignPublicIpAddressesAllocatesAllInOneScan() throws InsufficientAddressCapacityException {
+        List<IPAddressVO> addrs = freePublicIps(1L, 3);
+        doReturn(addrs).when(ipAddressManager).listFreePublicIps(1L, null, null, account, VlanType.VirtualNetwork, 10L, null, false, 3, true);
+        allocatePublicIpsOfDedicatedVlan();
+
+        List<PublicIp> ips = ipAddressManager.assignPublicIpAddresses(1L, null, account, VlanType.VirtualNetwork, 10L, null, 3, false, null);
+
+        Assert.assertEquals(3, ips.size());
+        for (IPAddressVO addr : addrs) {
+            Assert.assertEquals(IpAddress.State.Allocated, addr.getState());
+            Assert.assertEquals(Long.valueOf(10L), addr.getAssociatedWithNetworkId());
+        }
+        Mockito.verify(ipAddressDao, Mockito.never()).lockRow(anyLong(), Mockito.anyBoolean());
+        Mockito.verify(resourceLimitMgr).incrementResourceCount(1L, ResourceType.public_ip, 3L);
+        Mockito.verify(firewallMgr, Mockito.times(3)).addSystemFirewallRules(Mockito.any(IPAddressVO.class), Mockito.eq(account));
+    }
+
+    @Test
+    public void testAssignPublicIpAddressesFailsAsAWhole() throws InsufficientAddressCapacityException {
+        List<IPAddressVO> addrs = freePublicIps(1L, 2);
+        addrs.get(1).setState(IpAddress.State.Allocated);
+        doReturn(addrs).when(ipAddressManager).listFreePublicIps(1L, null, null, account, VlanType.VirtualNetwork, 10L, null, false, 2, true);
+        allocatePublicIpsOfDedicatedVlan();
+        DataCenterVO zone = Mockito.mock(DataCenterVO.class);
+        when(zone.getUuid()).thenReturn("zone-uuid");
+        when(dcDao.findById(1L)).thenReturn(zone);
+
+        try {
+            ipAddressManager.assignPublicIpAddresses(1L, null, account, VlanType.VirtualNetwork, 10L, null, 2, false, null);
+            Assert.fail("Expected an insufficient address capacity");
+        } catch (InsufficientAddressCapacityException e) {
+            Assert.assertEquals(DataCenter.class, e.getScope());
+            Assert.assertEquals(1L, e.getId());
+        }
+        Mockito.verify(resourceLimitMgr, Mockito.never()).incrementResourceCount(Mockito.anyLong(), Mockito.any(ResourceType.class), Mockito.<Long>anyVararg());
+    }
+
+    private List<IPAddressVO> freePublicIpToClaim() throws InsufficientAddressCapacityException {
+        List<IPAddressVO> addrs = freePublicIps(1L, 1);
+        doReturn(addrs).when(ipAddressManager).listFreePublicIps(1L, null, null, account, VlanType.VirtualNetwork, 10L, null, false, 1, false);
+        when(ipAddressDao.lockRow(anyLong(), Mockito.eq(true))).thenReturn(addrs.get(0));
+        when(ipAddressDao.findById(anyLong())).thenReturn(addrs.get(0));
+        allocatePublicIpsOfDedicatedVlan();
+        return addrs;
+    }
+
+    @Test
+    public void testFetchNewPublicIpLocksOnlyTheClaimedRow() throws InsufficientAddressCapacityException {
+        List<IPAddressVO> addrs = freePublicIpToClaim();
+
+        PublicIp ip = ipAddressManager.fetchNewPublicIp(1L, null, null, account, VlanType.VirtualNetwork, 10L, true, true, null, false, null, null, false);
+
+        Assert.assertEquals(addrs.get(0).getId(), ip.getId());
+        Assert.assertEquals(IpAddress.State.Allocated, addrs.get(0).getState());
+        Assert.assertTrue(addrs.get(0).isSourceNat());
+        Mockito.verify(ipAddressDao, Mockito.never()).lockRows(Mockito.any(SearchCriteria.class), Mockito.any(Filter.class), Mockito.anyBoolean());
+        Mockito.verify(ipAddressDao).lockRow(anyLong(), Mockito.eq(true));
+        Mockito.verify(resourceLimitMgr).incrementResourceCount(1L, ResourceType.public_ip, 1L);
+    }
+
+    @Test
+    public void testAssignOnePublicIpAddressLocksOnlyTheClaimedRow() throws InsufficientAddressCapacityException {
+        freePublicIpToClaim();
+
+        List<PublicIp> ips = ipAddressManager.assignPublicIpAddresses(1L, null, account, VlanType.VirtualNetwork, 10L, null, 1, false, null);
+
+        Assert.assertEquals(1, ips.size());
+        Assert.assertFalse(ips.get(0).isSourceNat());
+        Mockito.verify(ipAddressDao, Mockito.never()).lockRows(Mockito.any(SearchCriteria.class), Mockito.any(Filter.class), Mockito.anyBoolean());
+        Mockito.verify(ipAddressDao).lockRow(anyLong(), Mockito.eq(true));
+    }
+
+    @Test
+    public void testListFreePublicIpsTopsUpDedicatedIpsFromTheSystemPool() throws InsufficientAddressCapacityException {
+        @SuppressWarnings("unchecked")
+        SearchBuilder<IPAddressVO> search = Mockito.mock(SearchBuilder.class);
+        @SuppressWarnings("unchecked")
+        SearchCriteria<IPAddressVO> sc = Mockito.mock(SearchCriteria.class);
+        when(search.create()).thenReturn(sc);
+        ipAddressManager.AssignIpAddressSearch = search;
+        when(entityMgr.findById(DataCenter.class, 1L)).thenReturn(Mockito.mock(DataCenterVO.class));
+        when(accountVlanMapDao.listAccountVlanMapsByAccount(1L)).thenReturn(Arrays.asList(new AccountVlanMapVO(1L, 1L)));
+        VlanVO systemVlan = Mockito.mock(VlanVO.class);
+        when(systemVlan.getId()).thenReturn(2L);
+        when(vlanDao.listZoneWideNonDedicatedVlans(1L)).thenReturn(Arrays.asList(systemVlan));
+        List<IPAddressVO> dedicatedAddrs = freePublicIps(1L, 1);
+        List<IPAddressVO> systemAddrs = freePublicIps(2L, 2);
+        when(ipAddressDao.lockRows(Mockito.eq(sc), Mockito.any(Filter.class), Mockito.eq(true))).thenReturn(dedicatedAddrs, systemAddrs);
+
+        List<IPAddressVO> addrs = ipAddressManager.listFreePublicIps(1L, null, null, account, VlanType.VirtualNetwork, null, null, false, 3, true);
+
+        Assert.assertEquals(3, addrs.size());
+        Assert.assertTrue(addrs.containsAll(dedicatedAddrs));
+        Assert.assertTrue(addrs.containsAll(systemAddrs));
+        Mockito.verify(sc).setParameters("vlanId", 2L);
+        Mockito.verify(resourceLimitMgr).checkResourceLimit(account, ResourceType.public_ip, 2L);
+    }
+
+    @Test
+    public void testGuestIpBitmapsNotLoadedWithinTheTtlAreEvicted() {
+        GuestIpBitmap stale = new GuestIpBitmap("10.1.1.0/24");
+        GuestIpBitmap loaded = new GuestIpBitmap("10.1.2.0/24");
+        loaded.reset();
+        ipAddressManager._guestIpBitmaps.put(1L, stale);
+        ipAddressManager._guestIpBitmaps.put(2L, loaded);
+
+        // evicted at most once per ttl
+        ipAddressManager.evictStaleGuestIpBitmaps();
+        Assert.assertEquals(2, ipAddressManager._guestIpBitmaps.size());
+
+        ipAddressManager._guestIpBitmapsEvictedAt.set(0);
+        ipAddressManager.evictStaleGuestIpBitmaps();
+        Assert.assertFalse(ipAddressManager._guestIpBitmaps.containsKey(1L));
+        Assert.assertSame(loaded, ipAddressManager._guestIpBitmaps.get(2L));
+    }
+
     private Network setTestIsIpEqualsGatewayOrNetworkOfferingsEmpty(long networkOfferingId, String gateway, String ip6Gateway, String cidr, List<Service> services) {
         Network network = mock(Network.class);
         Mockito.when(network.getNetworkOfferingId()).thenReturn(networkOfferingId);
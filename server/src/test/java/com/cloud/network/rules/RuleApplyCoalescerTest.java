@@ -0,0 +1,138 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.rules;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloud.exception.ResourceUnavailableException;
+
+public class RuleApplyCoalescerTest {
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(8);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private Future<Boolean> submit(final RuleApplyCoalescer coalescer, final Object key, final RuleApplyCoalescer.Apply apply) {
+        return executor.submit(() -> coalescer.apply(key, apply));
+    }
+
+    @Test
+    public void testRequestsMadeDuringAnApplyAreCoalesced() throws Exception {
+        final RuleApplyCoalescer coalescer = new RuleApplyCoalescer();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger applies = new AtomicInteger();
+        RuleApplyCoalescer.Apply apply = new RuleApplyCoalescer.Apply() {
+            @Override
+            public boolean apply() throws ResourceUnavailableException {
+                applies.incrementAndGet();
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return true;
+            }
+        };
+
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        results.add(submit(coalescer, 1L, apply));
+        Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < 5; i++) {
+            results.add(submit(coalescer, 1L, apply));
+        }
+        // give the requests time to queue up behind the running apply
+        Thread.sleep(200);
+        release.countDown();
+
+        for (Future<Boolean> result : results) {
+            Assert.assertTrue(result.get(10, TimeUnit.SECONDS));
+        }
+        // the running apply and one for all the requests made meanwhile
+        Assert.assertEquals(2, applies.get());
+        Assert.assertEquals(4, coalescer.getCoalesced());
+    }
+
+    @Test
+    public void testFailedApplyDoesNotCoverOtherRequests() throws Exception {
+        final RuleApplyCoalescer coalescer = new RuleApplyCoalescer();
+        final AtomicInteger applies = new AtomicInteger();
+        RuleApplyCoalescer.Apply failing = new RuleApplyCoalescer.Apply() {
+            @Override
+            public boolean apply() {
+                applies.incrementAndGet();
+                return false;
+            }
+        };
+        Assert.assertFalse(coalescer.apply(1L, failing));
+        Assert.assertFalse(coalescer.apply(1L, failing));
+        Assert.assertEquals(2, applies.get());
+        Assert.assertEquals(0, coalescer.getCoalesced());
+    }
+
+    @Test
+    public void testKeysAreAppliedApart() throws Exception {
+        final RuleApplyCoalescer coalescer = new RuleApplyCoalescer();
+        final CountDownLatch bothRunning = new CountDownLatch(2);
+        RuleApplyCoalescer.Apply apply = new RuleApplyCoalescer.Apply() {
+            @Override
+            public boolean apply() {
+                bothRunning.countDown();
+                try {
+                    return bothRunning.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }
+        };
+        Future<Boolean> first = submit(coalescer, 1L, apply);
+        Future<Boolean> second = submit(coalescer, 2L, apply);
+        Assert.assertTrue(first.get(20, TimeUnit.SECONDS));
+        Assert.assertTrue(second.get(20, TimeUnit.SECONDS));
+    }
+
+    @Test(expected = ResourceUnavailableException.class)
+    public void testExceptionIsPassedOn() throws Exception {
+        final RuleApplyCoalescer coalescer = new RuleApplyCoalescer();
+        coalescer.apply(1L, new RuleApplyCoalescer.Apply() {
+            @Override
+            public boolean apply() throws ResourceUnavailableException {
+                throw new ResourceUnavailableException("router is down", RuleApplyCoalescerTest.class, 1);
+            }
+        });
+    }
+}
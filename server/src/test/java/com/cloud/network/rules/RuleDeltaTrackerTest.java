@@ -0,0 +1,89 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.rules;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.cloud.network.rules.FirewallRule.Purpose;
+import com.cloud.network.rules.FirewallRule.State;
+import com.cloud.network.rules.FirewallRule.TrafficType;
+
+public class RuleDeltaTrackerTest {
+
+    private static FirewallRule rule(long id, State state, int port) {
+        FirewallRule rule = mock(FirewallRule.class);
+        when(rule.getId()).thenReturn(id);
+        when(rule.getState()).thenReturn(state);
+        when(rule.getSourceIpAddressId()).thenReturn(10L);
+        when(rule.getProtocol()).thenReturn("tcp");
+        when(rule.getSourcePortStart()).thenReturn(port);
+        when(rule.getSourcePortEnd()).thenReturn(port);
+        return rule;
+    }
+
+    @Test
+    public void testOnlyChangedRulesAreApplied() {
+        RuleDeltaTracker tracker = new RuleDeltaTracker();
+        List<FirewallRule> rules = Arrays.asList(rule(1, State.Active, 22), rule(2, State.Add, 80));
+
+        // nothing known yet, so all of them
+        Assert.assertEquals(2, tracker.getDelta("VirtualRouter", 5, Purpose.Firewall, TrafficType.Ingress, rules).size());
+        Assert.assertEquals(1, tracker.setApplied("VirtualRouter", 5, Purpose.Firewall, TrafficType.Ingress, rules));
+
+        FirewallRule added = rule(3, State.Add, 443);
+        FirewallRule revoked = rule(1, State.Revoke, 22);
+        List<FirewallRule> delta = tracker.getDelta("VirtualRouter", 5, Purpose.Firewall, TrafficType.Ingress,
+                Arrays.asList(revoked, rule(2, State.Active, 80), added));
+        Assert.assertEquals(Arrays.asList(revoked, added), delta);
+        Assert.assertEquals(2, tracker.setApplied("VirtualRouter", 5, Purpose.Firewall, TrafficType.Ingress, delta));
+
+        // a rule that changed is sent again, the revoked one is not known any more
+        Assert.assertEquals(1, tracker.getDelta("VirtualRouter", 5, Purpose.Firewall, TrafficType.Ingress, Arrays.asList(rule(2, State.Active, 8080))).size());
+        Assert.assertEquals(1, tracker.getDelta("VirtualRouter", 5, Purpose.Firewall, TrafficType.Ingress, Arrays.asList(rule(1, State.Active, 22))).size());
+        Assert.assertTrue(tracker.getDelta("VirtualRouter", 5, Purpose.Firewall, TrafficType.Ingress, Arrays.asList(rule(3, State.Active, 443))).isEmpty());
+    }
+
+    @Test
+    public void testElementsAreTrackedApart() {
+        RuleDeltaTracker tracker = new RuleDeltaTracker();
+        List<FirewallRule> rules = Arrays.asList(rule(1, State.Active, 22));
+        tracker.setApplied("VirtualRouter", 5, Purpose.Firewall, TrafficType.Ingress, rules);
+
+        Assert.assertTrue(tracker.getDelta("VirtualRouter", 5, Purpose.Firewall, TrafficType.Ingress, rules).isEmpty());
+        Assert.assertEquals(1, tracker.getDelta("VpcVirtualRouter", 5, Purpose.Firewall, TrafficType.Ingress, rules).size());
+        Assert.assertEquals(1, tracker.getDelta("VirtualRouter", 6, Purpose.Firewall, TrafficType.Ingress, rules).size());
+        Assert.assertEquals(1, tracker.getDelta("VirtualRouter", 5, Purpose.PortForwarding, TrafficType.Ingress, rules).size());
+    }
+
+    @Test
+    public void testInvalidatedElementGetsAllRules() {
+        RuleDeltaTracker tracker = new RuleDeltaTracker();
+        List<FirewallRule> rules = Arrays.asList(rule(1, State.Active, 22), rule(2, State.Active, 80));
+        tracker.setApplied("VirtualRouter", 5, Purpose.Firewall, TrafficType.Ingress, rules);
+        tracker.invalidate("VirtualRouter", 5, Purpose.Firewall, TrafficType.Ingress);
+
+        Assert.assertEquals(0, tracker.getRevision("VirtualRouter", 5, Purpose.Firewall, TrafficType.Ingress));
+        Assert.assertEquals(2, tracker.getDelta("VirtualRouter", 5, Purpose.Firewall, TrafficType.Ingress, rules).size());
+    }
+}
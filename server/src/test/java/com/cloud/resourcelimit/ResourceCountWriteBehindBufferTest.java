@@ -0,0 +1,250 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.resourcelimit;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ResourceCountWriteBehindBufferTest {
+    private static final Logger s_logger = Logger.getLogger(ResourceCountWriteBehindBufferTest.class);
+
+    // time the ROOT domain row stays locked by one count update
+    private static final long ROW_UPDATE_MILLIS = 1;
+
+    private static class CountingWriter implements ResourceCountWriteBehindBuffer.Writer {
+        final Map<Long, AtomicLong> rows = new ConcurrentHashMap<Long, AtomicLong>();
+        final AtomicBoolean failing = new AtomicBoolean();
+
+        @Override
+        public boolean addToCount(final long rowId, final long delta) {
+            if (failing.get()) {
+                return false;
+            }
+            rows.computeIfAbsent(rowId, id -> new AtomicLong()).addAndGet(delta);
+            return true;
+        }
+
+        long count(final long rowId) {
+            final AtomicLong count = rows.get(rowId);
+            return count == null ? 0 : count.get();
+        }
+    }
+
+    @Test
+    public void testChangesAreWrittenOncePerRow() {
+        final CountingWriter writer = new CountingWriter();
+        final ResourceCountWriteBehindBuffer buffer = new ResourceCountWriteBehindBuffer(writer, 4);
+        buffer.add(1L, 5);
+        buffer.add(1L, -2);
+        buffer.add(2L, 3);
+        buffer.add(3L, 1);
+        buffer.add(3L, -1);
+        Assert.assertEquals(3, buffer.getPending(1L));
+
+        Assert.assertEquals(2, buffer.flush());
+        Assert.assertEquals(3, writer.count(1L));
+        Assert.assertEquals(3, writer.count(2L));
+        Assert.assertFalse(writer.rows.containsKey(3L));
+        Assert.assertEquals(0, buffer.getPending(1L));
+        Assert.assertEquals(0, buffer.flush());
+        Assert.assertEquals(5, buffer.getChangeCount());
+        Assert.assertEquals(2, buffer.getWriteCount());
+    }
+
+    @Test
+    public void testFailedWriteIsKept() {
+        final CountingWriter writer = new CountingWriter();
+        final ResourceCountWriteBehindBuffer buffer = new ResourceCountWriteBehindBuffer(writer, 2);
+        buffer.add(1L, 7);
+        writer.failing.set(true);
+        Assert.assertEquals(0, buffer.flush());
+        Assert.assertEquals(7, buffer.getPending(1L));
+
+        buffer.add(1L, 1);
+        writer.failing.set(false);
+        Assert.assertEquals(1, buffer.flush());
+        Assert.assertEquals(8, writer.count(1L));
+    }
+
+    @Test
+    public void testIsFlushingWhileWriting() {
+        final AtomicBoolean flushingWhileWriting = new AtomicBoolean();
+        final ResourceCountWriteBehindBuffer[] buffer = new ResourceCountWriteBehindBuffer[1];
+        buffer[0] = new ResourceCountWriteBehindBuffer(new ResourceCountWriteBehindBuffer.Writer() {
+            @Override
+            public boolean addToCount(final long rowId, final long delta) {
+                flushingWhileWriting.set(buffer[0].isFlushing());
+                throw new RuntimeException("row is locked");
+            }
+        }, 2);
+        buffer[0].add(1L, 3);
+        Assert.assertFalse(buffer[0].isFlushing());
+
+        Assert.assertEquals(0, buffer[0].flush());
+        Assert.assertTrue(flushingWhileWriting.get());
+        Assert.assertFalse(buffer[0].isFlushing());
+        Assert.assertEquals(3, buffer[0].getPending(1L));
+    }
+
+    @Test
+    public void testConcurrentChangesAreNotLost() throws InterruptedException {
+        final CountingWriter writer = new CountingWriter();
+        final ResourceCountWriteBehindBuffer buffer = new ResourceCountWriteBehindBuffer(writer, 8);
+        final int threads = 8;
+        final int changesPerThread = 100000;
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicBoolean done = new AtomicBoolean();
+
+        final List<Thread> workers = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            final Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                for (int j = 0; j < changesPerThread; j++) {
+                    // a VM deploy followed by the destroy of every other VM
+                    buffer.add(1L, 2);
+                    if (j % 2 == 0) {
+                        buffer.add(1L, -1);
+                    }
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        final Thread flusher = new Thread(() -> {
+            while (!done.get()) {
+                buffer.flush();
+            }
+        });
+        flusher.start();
+
+        final long begin = System.nanoTime();
+        start.countDown();
+        for (final Thread worker : workers) {
+            worker.join();
+        }
+        final long elapsedMillis = Math.max(1, (System.nanoTime() - begin) / 1000000);
+        done.set(true);
+        flusher.join();
+        buffer.flush();
+
+        final long expected = (long)threads * (changesPerThread * 2 - changesPerThread / 2);
+        Assert.assertEquals(expected, writer.count(1L));
+        Assert.assertEquals(0, buffer.getPending(1L));
+        s_logger.info(buffer.getChangeCount() + " changes in " + elapsedMillis + "ms (" + buffer.getChangeCount() * 1000 / elapsedMillis + "/s) written with "
+                + buffer.getWriteCount() + " row updates");
+    }
+
+    /**
+     * Locks the ROOT domain row for every change, the way the count was updated before the write-behind buffer.
+     */
+    private static class LockingRow implements ResourceCountWriteBehindBuffer.Writer {
+        final ReentrantLock rowLock = new ReentrantLock(true);
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong updates = new AtomicLong();
+
+        @Override
+        public boolean addToCount(final long rowId, final long delta) {
+            rowLock.lock();
+            try {
+                Thread.sleep(ROW_UPDATE_MILLIS);
+                count.addAndGet(delta);
+                updates.incrementAndGet();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                rowLock.unlock();
+            }
+            return true;
+        }
+    }
+
+    private static long runDeploys(final int threads, final int deploysPerThread, final ResourceCountWriteBehindBuffer.Writer deploy) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Thread> workers = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            final Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                for (int j = 0; j < deploysPerThread; j++) {
+                    deploy.addToCount(1L, 1);
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        final long begin = System.nanoTime();
+        start.countDown();
+        for (final Thread worker : workers) {
+            worker.join();
+        }
+        return Math.max(1, (System.nanoTime() - begin) / 1000000);
+    }
+
+    @Test
+    public void testRootDomainRowContention() throws InterruptedException {
+        final int threads = 8;
+        final int deploysPerThread = 50;
+
+        final LockingRow lockedRow = new LockingRow();
+        final long lockedMillis = runDeploys(threads, deploysPerThread, lockedRow);
+
+        final LockingRow bufferedRow = new LockingRow();
+        final ResourceCountWriteBehindBuffer buffer = new ResourceCountWriteBehindBuffer(bufferedRow, 8);
+        final AtomicBoolean done = new AtomicBoolean();
+        final Thread flusher = new Thread(() -> {
+            while (!done.get()) {
+                buffer.flush();
+            }
+        });
+        flusher.start();
+        final long bufferedMillis = runDeploys(threads, deploysPerThread, (rowId, delta) -> {
+            buffer.add(rowId, delta);
+            return true;
+        });
+        done.set(true);
+        flusher.join();
+        buffer.flush();
+
+        final long deploys = (long)threads * deploysPerThread;
+        Assert.assertEquals(deploys, lockedRow.count.get());
+        Assert.assertEquals(deploys, lockedRow.updates.get());
+        Assert.assertEquals(deploys, bufferedRow.count.get());
+        Assert.assertTrue(bufferedRow.updates.get() < deploys);
+        s_logger.info(threads + " threads deploying " + deploys + " VMs: " + lockedMillis + "ms with " + lockedRow.updates.get() + " locked ROOT row updates, "
+                + bufferedMillis + "ms with " + bufferedRow.updates.get() + " written behind");
+    }
+}
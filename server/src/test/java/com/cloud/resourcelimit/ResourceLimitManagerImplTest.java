@@ -16,14 +16,40 @@
 // under the License.
 package com.cloud.resourcelimit;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
 import junit.framework.TestCase;
 
 import org.apache.log4j.Logger;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentMatcher;
+import org.mockito.InOrder;
+import org.mockito.InjectMocks;
+import org.mockito.Matchers;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
 
+import com.cloud.configuration.Resource.ResourceOwnerType;
+import com.cloud.configuration.Resource.ResourceType;
+import com.cloud.configuration.ResourceCountVO;
 import com.cloud.configuration.ResourceLimit;
+import com.cloud.configuration.dao.ResourceCountDao;
+import com.cloud.domain.Domain;
+import com.cloud.domain.DomainVO;
+import com.cloud.domain.dao.DomainDao;
+import com.cloud.user.AccountVO;
+import com.cloud.user.dao.AccountDao;
+import com.cloud.utils.db.Filter;
+import com.cloud.utils.db.SearchBuilder;
+import com.cloud.utils.db.SearchCriteria;
+import com.cloud.utils.db.TransactionLegacy;
+import com.cloud.vm.dao.UserVmDao;
 import com.cloud.vpc.MockResourceLimitManagerImpl;
 
 public class ResourceLimitManagerImplTest extends TestCase {
@@ -31,15 +57,195 @@ public class ResourceLimitManagerImplTest extends TestCase {
 
     MockResourceLimitManagerImpl _resourceLimitService = new MockResourceLimitManagerImpl();
 
+    @InjectMocks
+    ResourceLimitManagerImpl _resourceLimitManager = new ResourceLimitManagerImpl();
+    @Mock
+    DomainDao _domainDao;
+    @Mock
+    AccountDao _accountDao;
+    @Mock
+    ResourceCountDao _resourceCountDao;
+    @Mock
+    UserVmDao _userVmDao;
+    @Mock
+    SearchBuilder<ResourceCountVO> _resourceCountSearch;
+    @Mock
+    SearchCriteria<ResourceCountVO> _resourceCountCriteria;
+
+    TransactionLegacy _txn;
+    DomainVO _domain2;
+
+    // ROOT with account 10, its subdomain 2 with the accounts 20 and 21
+    ResourceCountVO _account10Row = resourceCount(110L, 1, 10L, ResourceOwnerType.Account);
+    ResourceCountVO _account20Row = resourceCount(120L, 5, 20L, ResourceOwnerType.Account);
+    ResourceCountVO _account21Row = resourceCount(121L, 0, 21L, ResourceOwnerType.Account);
+    ResourceCountVO _rootRow = resourceCount(201L, 3, Domain.ROOT_DOMAIN, ResourceOwnerType.Domain);
+    ResourceCountVO _domain2Row = resourceCount(202L, 4, 2L, ResourceOwnerType.Domain);
+
     @Override
     @Before
     public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        _txn = TransactionLegacy.open("ResourceLimitManagerImplTest");
+        _resourceLimitManager.ResourceCountSearch = _resourceCountSearch;
+        Mockito.when(_resourceCountSearch.create()).thenReturn(_resourceCountCriteria);
+
+        DomainVO root = new DomainVO("ROOT", 2L, null, null);
+        root.setId(Domain.ROOT_DOMAIN);
+        root.setPath("/");
+        _domain2 = new DomainVO("domain2", 2L, Domain.ROOT_DOMAIN, null);
+        _domain2.setId(2L);
+        _domain2.setPath("/domain2/");
+        Mockito.when(_domainDao.findById(Domain.ROOT_DOMAIN)).thenReturn(root);
+        Mockito.when(_domainDao.findAllChildren("/", Domain.ROOT_DOMAIN)).thenReturn(Arrays.asList(_domain2));
+        Mockito.when(_accountDao.findActiveAccountsForDomain(Domain.ROOT_DOMAIN)).thenReturn(Arrays.asList(new AccountVO(10L)));
+        Mockito.when(_accountDao.findActiveAccountsForDomain(2L)).thenReturn(Arrays.asList(new AccountVO(20L), new AccountVO(21L)));
 
+        Mockito.when(_resourceCountDao.listByTypeAndOwners(Mockito.eq(ResourceType.user_vm), Mockito.eq(ResourceOwnerType.Account), Matchers.anyCollectionOf(Long.class)))
+                .thenReturn(Arrays.asList(_account10Row, _account20Row, _account21Row));
+        Mockito.when(_resourceCountDao.listByTypeAndOwners(Mockito.eq(ResourceType.user_vm), Mockito.eq(ResourceOwnerType.Domain), Matchers.anyCollectionOf(Long.class)))
+                .thenReturn(Arrays.asList(_rootRow, _domain2Row));
+        Mockito.when(_resourceCountDao.listAllRowsToUpdate(Domain.ROOT_DOMAIN, ResourceOwnerType.Domain, ResourceType.user_vm)).thenReturn(Collections.singleton(201L));
     }
 
     @Override
     @After
     public void tearDown() throws Exception {
+        _txn.close();
+    }
+
+    private static ResourceCountVO resourceCount(final long id, final long count, final long ownerId, final ResourceOwnerType ownerType) {
+        ResourceCountVO row = new ResourceCountVO(ResourceType.user_vm, count, ownerId, ownerType);
+        row.setId(id);
+        return row;
+    }
+
+    private static ResourceCountVO copy(final ResourceCountVO row) {
+        long ownerId = row.getResourceOwnerType() == ResourceOwnerType.Account ? row.getAccountId() : row.getDomainId();
+        return resourceCount(row.getId(), row.getCount(), ownerId, row.getResourceOwnerType());
+    }
+
+    private void lockRows(final ResourceCountVO... rows) {
+        Mockito.when(_resourceCountDao.lockRows(Mockito.<SearchCriteria<ResourceCountVO>>any(), Mockito.isNull(Filter.class), Mockito.eq(true)))
+                .thenReturn(Arrays.asList(rows));
+    }
+
+    private void verifyCountWritten(final ResourceCountVO row, final long count) {
+        Mockito.verify(_resourceCountDao).update(Mockito.eq(row.getId()), Mockito.argThat(new ArgumentMatcher<ResourceCountVO>() {
+            @Override
+            public boolean matches(Object argument) {
+                return ((ResourceCountVO)argument).getCount() == count;
+            }
+        }));
+    }
+
+    @Test
+    public void testRecalculateDomainResourceCountWithGroupedQuery() {
+        Map<Long, Long> grouped = new HashMap<Long, Long>();
+        grouped.put(10L, 1L);
+        grouped.put(20L, 2L);
+        Mockito.when(_resourceCountDao.countResourcesPerAccount(ResourceType.user_vm, "/")).thenReturn(grouped);
+        lockRows(copy(_account20Row), copy(_domain2Row));
+
+        assertEquals(3, _resourceLimitManager.recalculateDomainResourceCount(Domain.ROOT_DOMAIN, ResourceType.user_vm));
+        Mockito.verify(_userVmDao, Mockito.never()).countAllocatedVMsForAccount(Mockito.anyLong());
+
+        // the rows are read before counting, so a change committed during the count shows up when they are locked
+        InOrder inOrder = Mockito.inOrder(_resourceCountDao);
+        inOrder.verify(_resourceCountDao).listByTypeAndOwners(Mockito.eq(ResourceType.user_vm), Mockito.eq(ResourceOwnerType.Account), Matchers.anyCollectionOf(Long.class));
+        inOrder.verify(_resourceCountDao).countResourcesPerAccount(ResourceType.user_vm, "/");
+    }
+
+    @Test
+    public void testRecalculateDomainResourceCountPerAccount() {
+        Mockito.when(_resourceCountDao.countResourcesPerAccount(ResourceType.user_vm, "/")).thenReturn(null);
+        Mockito.when(_userVmDao.countAllocatedVMsForAccount(10L)).thenReturn(1L);
+        Mockito.when(_userVmDao.countAllocatedVMsForAccount(20L)).thenReturn(2L);
+        Mockito.when(_userVmDao.countAllocatedVMsForAccount(21L)).thenReturn(0L);
+        lockRows(copy(_account20Row), copy(_domain2Row));
+
+        assertEquals(3, _resourceLimitManager.recalculateDomainResourceCount(Domain.ROOT_DOMAIN, ResourceType.user_vm));
+        Mockito.verify(_userVmDao).countAllocatedVMsForAccount(10L);
+        Mockito.verify(_userVmDao).countAllocatedVMsForAccount(20L);
+        Mockito.verify(_userVmDao).countAllocatedVMsForAccount(21L);
+    }
+
+    @Test
+    public void testRecalculateDomainResourceCountSumsUpTheSubdomains() {
+        Map<Long, Long> grouped = new HashMap<Long, Long>();
+        grouped.put(10L, 4L);
+        grouped.put(20L, 5L);
+        grouped.put(21L, 6L);
+        Mockito.when(_resourceCountDao.countResourcesPerAccount(ResourceType.user_vm, "/")).thenReturn(grouped);
+        lockRows(copy(_account10Row), copy(_account21Row), copy(_rootRow), copy(_domain2Row));
+
+        assertEquals(15, _resourceLimitManager.recalculateDomainResourceCount(Domain.ROOT_DOMAIN, ResourceType.user_vm));
+        verifyCountWritten(_domain2Row, 11);
+        verifyCountWritten(_rootRow, 15);
+    }
+
+    @Test
+    public void testRecalculateDomainResourceCountWritesOnlyChangedRows() {
+        Map<Long, Long> grouped = new HashMap<Long, Long>();
+        grouped.put(10L, 1L);
+        grouped.put(20L, 2L);
+        Mockito.when(_resourceCountDao.countResourcesPerAccount(ResourceType.user_vm, "/")).thenReturn(grouped);
+        lockRows(copy(_account20Row), copy(_domain2Row));
+
+        _resourceLimitManager.recalculateDomainResourceCount(Domain.ROOT_DOMAIN, ResourceType.user_vm);
+        verifyCountWritten(_account20Row, 2);
+        verifyCountWritten(_domain2Row, 2);
+        Mockito.verify(_resourceCountDao, Mockito.times(2)).update(Mockito.anyLong(), Mockito.any(ResourceCountVO.class));
+    }
+
+    @Test
+    public void testRecalculateDomainResourceCountSkipsRowsChangedMeanwhile() {
+        Map<Long, Long> grouped = new HashMap<Long, Long>();
+        grouped.put(10L, 1L);
+        grouped.put(20L, 2L);
+        Mockito.when(_resourceCountDao.countResourcesPerAccount(ResourceType.user_vm, "/")).thenReturn(grouped);
+        // a VM of account 20 was deployed after the rows were read
+        ResourceCountVO account20Row = copy(_account20Row);
+        account20Row.setCount(6);
+        lockRows(account20Row, copy(_domain2Row));
+
+        _resourceLimitManager.recalculateDomainResourceCount(Domain.ROOT_DOMAIN, ResourceType.user_vm);
+        Mockito.verify(_resourceCountDao, Mockito.never()).update(Mockito.eq(_account20Row.getId()), Mockito.any(ResourceCountVO.class));
+        verifyCountWritten(_domain2Row, 2);
+    }
+
+    private void writeBehindRootDomainCounts() {
+        _resourceLimitManager._writeBehindInterval = 1;
+        _resourceLimitManager._rootDomainCountBuffer = new ResourceCountWriteBehindBuffer(new ResourceCountWriteBehindBuffer.Writer() {
+            @Override
+            public boolean addToCount(final long rowId, final long delta) {
+                return true;
+            }
+        }, 1);
+        Mockito.when(_resourceCountDao.findByOwnerAndType(Domain.ROOT_DOMAIN, ResourceOwnerType.Domain, ResourceType.user_vm)).thenReturn(_rootRow);
+        Mockito.when(_resourceCountDao.getResourceCount(2L, ResourceOwnerType.Domain, ResourceType.user_vm)).thenReturn(4L);
+        Mockito.when(_resourceCountDao.getResourceCount(10L, ResourceOwnerType.Account, ResourceType.user_vm)).thenReturn(1L);
+    }
+
+    @Test
+    public void testReconcileRootDomainResourceCountAddsTheDrift() {
+        writeBehindRootDomainCounts();
+        Mockito.when(_resourceCountDao.getResourceCount(Domain.ROOT_DOMAIN, ResourceOwnerType.Domain, ResourceType.user_vm)).thenReturn(3L);
+
+        _resourceLimitManager.reconcileRootDomainResourceCount(Arrays.asList(_domain2), Arrays.asList(new AccountVO(10L)), ResourceType.user_vm);
+        Mockito.verify(_resourceCountDao).addToCount(_rootRow.getId(), 2L);
+        Mockito.verify(_resourceCountDao, Mockito.never()).setResourceCount(Mockito.anyLong(), Mockito.any(ResourceOwnerType.class), Mockito.any(ResourceType.class),
+                Mockito.anyLong());
+    }
+
+    @Test
+    public void testReconcileRootDomainResourceCountWaitsForOtherManagementServers() {
+        writeBehindRootDomainCounts();
+        // another management server writes a change behind between the two looks at the ROOT domain row
+        Mockito.when(_resourceCountDao.getResourceCount(Domain.ROOT_DOMAIN, ResourceOwnerType.Domain, ResourceType.user_vm)).thenReturn(3L, 5L);
+
+        _resourceLimitManager.reconcileRootDomainResourceCount(Arrays.asList(_domain2), Arrays.asList(new AccountVO(10L)), ResourceType.user_vm);
+        Mockito.verify(_resourceCountDao, Mockito.never()).addToCount(Mockito.anyLong(), Mockito.anyLong());
     }
 
     @Test
@@ -0,0 +1,115 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StorageCleanupSchedulerTest {
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(8);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private static List<Integer> items(int count) {
+        List<Integer> items = new ArrayList<Integer>();
+        for (int i = 0; i < count; i++) {
+            items.add(i);
+        }
+        return items;
+    }
+
+    private static class CountingHandler implements StorageCleanupScheduler.BatchHandler<Integer> {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final AtomicInteger batches = new AtomicInteger();
+        final AtomicInteger maxBatchSize = new AtomicInteger();
+
+        @Override
+        public int handle(List<Integer> batch) throws Exception {
+            int now = running.incrementAndGet();
+            maxRunning.accumulateAndGet(now, Math::max);
+            maxBatchSize.accumulateAndGet(batch.size(), Math::max);
+            batches.incrementAndGet();
+            Thread.sleep(5);
+            running.decrementAndGet();
+            return batch.size();
+        }
+    }
+
+    @Test
+    public void testBatchesOfAPartitionAreCapped() throws InterruptedException {
+        StorageCleanupScheduler scheduler = new StorageCleanupScheduler(executor, 2);
+        CountingHandler pool1 = new CountingHandler();
+        CountingHandler pool2 = new CountingHandler();
+        scheduler.submit("storage pool 1", "templates", items(250), 10, pool1);
+        scheduler.submit("storage pool 2", "templates", items(95), 10, pool2);
+        scheduler.await();
+
+        Assert.assertEquals(25, pool1.batches.get());
+        Assert.assertEquals(10, pool2.batches.get());
+        Assert.assertEquals(10, pool1.maxBatchSize.get());
+        Assert.assertTrue(pool1.maxRunning.get() <= 2);
+        Assert.assertTrue(pool2.maxRunning.get() <= 2);
+        Assert.assertEquals(345, scheduler.getDeleted());
+        Assert.assertEquals(0, scheduler.getFailed());
+        Assert.assertEquals(0, scheduler.getBacklog());
+    }
+
+    @Test
+    public void testFailedBatchesAreLeftForTheNextRun() throws InterruptedException {
+        StorageCleanupScheduler scheduler = new StorageCleanupScheduler(executor, 1);
+        scheduler.submit("image store 1", "snapshots", items(10), 4, new StorageCleanupScheduler.BatchHandler<Integer>() {
+            @Override
+            public int handle(List<Integer> batch) {
+                if (batch.contains(0)) {
+                    throw new RuntimeException("store is unavailable");
+                }
+                return batch.size() - 1;
+            }
+        });
+        scheduler.await();
+
+        // the first batch of 4 fails, the other two delete all but one
+        Assert.assertEquals(4, scheduler.getDeleted());
+        Assert.assertEquals(6, scheduler.getFailed());
+        Assert.assertEquals(0, scheduler.getBacklog());
+    }
+
+    @Test
+    public void testNothingToDo() throws InterruptedException {
+        StorageCleanupScheduler scheduler = new StorageCleanupScheduler(executor, 2);
+        scheduler.submit("storage pool 1", "volumes", new ArrayList<Integer>(), 10, new CountingHandler());
+        scheduler.await();
+        Assert.assertEquals(0, scheduler.getDeleted());
+    }
+}
@@ -308,4 +308,9 @@ public class MockUsageEventDao implements UsageEventDao{
     public void saveDetails(long eventId, Map<String, String> details) {
 
     }
+
+    @Override
+    public void persistBatch(List<UsageEventVO> events) {
+
+    }
 }
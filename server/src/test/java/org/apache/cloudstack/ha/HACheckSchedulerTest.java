@@ -0,0 +1,186 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+
+package org.apache.cloudstack.ha;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HACheckSchedulerTest {
+    private HACheckScheduler scheduler;
+
+    @After
+    public void tearDown() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+    }
+
+    /**
+     * A check whose probe returns the given result once the gate is opened.
+     */
+    private static class SimulatedCheck implements HACheckScheduler.Check {
+        private final boolean healthy;
+        private final CountDownLatch gate;
+        private final AtomicInteger running;
+        private final AtomicInteger peak;
+        private long probeMillis = -1;
+
+        SimulatedCheck(final boolean healthy, final CountDownLatch gate, final AtomicInteger running, final AtomicInteger peak) {
+            this.healthy = healthy;
+            this.gate = gate;
+            this.running = running;
+            this.peak = peak;
+        }
+
+        SimulatedCheck(final boolean healthy) {
+            this(healthy, new CountDownLatch(0), new AtomicInteger(), new AtomicInteger());
+        }
+
+        @Override
+        public Future<Boolean> start() {
+            final long started = System.currentTimeMillis();
+            peak.accumulateAndGet(running.incrementAndGet(), Math::max);
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    gate.await(10, TimeUnit.SECONDS);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                probeMillis = System.currentTimeMillis() - started;
+                return healthy;
+            });
+        }
+
+        @Override
+        public boolean complete(final Future<Boolean> future) {
+            try {
+                return future.get(10, TimeUnit.SECONDS);
+            } catch (InterruptedException | ExecutionException | TimeoutException e) {
+                return false;
+            } finally {
+                running.decrementAndGet();
+            }
+        }
+
+        @Override
+        public long getProbeMillis() {
+            return probeMillis;
+        }
+    }
+
+    private void check(final String key, final boolean healthy) throws InterruptedException {
+        final long completed = scheduler.getCompletedCount();
+        Assert.assertEquals(1, scheduler.submit(Collections.singletonMap(key, new SimulatedCheck(healthy)), 10, 100));
+        while (scheduler.getCompletedCount() == completed || scheduler.getInFlightCount() > 0) {
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void testHealthyResourceIsCheckedLessOften() throws InterruptedException {
+        scheduler = new HACheckScheduler(1, 8000L);
+        Assert.assertTrue(scheduler.isDue("1Host", false, System.currentTimeMillis()));
+
+        check("1Host", true);
+        long now = System.currentTimeMillis();
+        Assert.assertFalse(scheduler.isDue("1Host", false, now));
+        Assert.assertTrue(scheduler.isDue("1Host", false, now + 1100L));
+
+        check("1Host", true);
+        check("1Host", true);
+        now = System.currentTimeMillis();
+        Assert.assertFalse(scheduler.isDue("1Host", false, now + 3000L));
+        Assert.assertTrue(scheduler.isDue("1Host", false, now + 4100L));
+
+        // the interval does not grow beyond the maximum
+        for (int i = 0; i < 5; i++) {
+            check("1Host", true);
+        }
+        now = System.currentTimeMillis();
+        Assert.assertFalse(scheduler.isDue("1Host", false, now + 7000L));
+        Assert.assertTrue(scheduler.isDue("1Host", false, now + 8100L));
+
+        // a resource that is not known to be healthy is checked on every poll
+        Assert.assertTrue(scheduler.isDue("1Host", true, now));
+
+        // a failed check resets the interval
+        check("1Host", false);
+        Assert.assertTrue(scheduler.isDue("1Host", false, System.currentTimeMillis()));
+        Assert.assertEquals(1, scheduler.getUnhealthyCount());
+    }
+
+    @Test
+    public void testNoMaxIntervalChecksOnEveryPoll() throws InterruptedException {
+        scheduler = new HACheckScheduler(1, 0L);
+        for (int i = 0; i < 3; i++) {
+            check("1Host", true);
+            Assert.assertTrue(scheduler.isDue("1Host", false, System.currentTimeMillis()));
+        }
+    }
+
+    @Test
+    public void testChecksAreBatchedAndBounded() throws InterruptedException {
+        scheduler = new HACheckScheduler(2, 30000L);
+        final CountDownLatch gate = new CountDownLatch(1);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger peak = new AtomicInteger();
+        final Map<String, SimulatedCheck> checks = new LinkedHashMap<>();
+        for (int i = 0; i < 30; i++) {
+            checks.put(i + "Host", new SimulatedCheck(true, gate, running, peak));
+        }
+
+        // only 25 checks may be in flight, they are queued as 3 batches
+        Assert.assertEquals(25, scheduler.submit(checks, 10, 25));
+        Assert.assertEquals(5, scheduler.getDeferredCount());
+        Assert.assertEquals(3, scheduler.getBatchCount());
+        Assert.assertFalse(scheduler.isDue("0Host", true, System.currentTimeMillis()));
+        Assert.assertTrue(scheduler.isDue("29Host", false, System.currentTimeMillis()));
+
+        // the checks of a resource still in flight are not queued again
+        Assert.assertEquals(0, scheduler.submit(Collections.singletonMap("0Host", new SimulatedCheck(true)), 10, 100));
+
+        // the probes of a batch run concurrently, two batches run at a time
+        while (running.get() < 20) {
+            Thread.sleep(5);
+        }
+        Thread.sleep(50);
+        Assert.assertEquals(20, running.get());
+        gate.countDown();
+
+        while (scheduler.getInFlightCount() > 0) {
+            Thread.sleep(5);
+        }
+        Assert.assertEquals(20, peak.get());
+        Assert.assertEquals(25, scheduler.getCompletedCount());
+        Assert.assertTrue(scheduler.getMaxProbeMillis() >= 50);
+        Assert.assertTrue(scheduler.getMaxQueueWaitMillis() >= 50);
+        Assert.assertFalse(scheduler.isDue("0Host", false, System.currentTimeMillis()));
+    }
+}
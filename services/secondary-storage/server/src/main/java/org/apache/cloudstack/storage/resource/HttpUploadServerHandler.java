@@ -19,16 +19,22 @@ package org.apache.cloudstack.storage.resource;
 import static io.netty.buffer.Unpooled.copiedBuffer;
 import static io.netty.handler.codec.http.HttpHeaders.Names.CONNECTION;
 import static io.netty.handler.codec.http.HttpHeaders.Names.CONTENT_LENGTH;
+import static io.netty.handler.codec.http.HttpHeaders.Names.CONTENT_RANGE;
 import static io.netty.handler.codec.http.HttpHeaders.Names.CONTENT_TYPE;
+import static io.netty.handler.codec.http.HttpHeaders.Names.RANGE;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.apache.cloudstack.storage.template.UploadEntity;
-import org.apache.cloudstack.utils.imagestore.ImageStoreUtil;
+import org.apache.cloudstack.utils.security.ChecksumValue;
+import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 
@@ -51,34 +57,40 @@ import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpVersion;
 import io.netty.handler.codec.http.LastHttpContent;
 import io.netty.handler.codec.http.QueryStringDecoder;
-import io.netty.handler.codec.http.multipart.DefaultHttpDataFactory;
-import io.netty.handler.codec.http.multipart.DiskFileUpload;
-import io.netty.handler.codec.http.multipart.FileUpload;
-import io.netty.handler.codec.http.multipart.HttpDataFactory;
-import io.netty.handler.codec.http.multipart.HttpPostRequestDecoder;
-import io.netty.handler.codec.http.multipart.HttpPostRequestDecoder.ErrorDataDecoderException;
-import io.netty.handler.codec.http.multipart.HttpPostRequestDecoder.IncompatibleDataDecoderException;
-import io.netty.handler.codec.http.multipart.InterfaceHttpData;
-import io.netty.handler.codec.http.multipart.InterfaceHttpData.HttpDataType;
 import io.netty.util.CharsetUtil;
 
+/**
+ * Receives uploads of templates and volumes. The file is written to the install path as the chunks arrive,
+ * either from the file part of a multipart/form-data body or from a raw body. A raw upload can be sent in
+ * several requests with a Content-Range header, and continued after a connection was lost at the offset
+ * received so far.
+ */
 public class HttpUploadServerHandler extends SimpleChannelInboundHandler<HttpObject> {
     private static final Logger logger = Logger.getLogger(HttpUploadServerHandler.class.getName());
 
-    private static final HttpDataFactory factory = new DefaultHttpDataFactory(true);
+    private static final Pattern CONTENT_RANGE_PATTERN = Pattern.compile("bytes\\s+(\\d+)-(\\d+)/(\\d+)");
 
     private final StringBuilder responseContent = new StringBuilder();
 
     private HttpRequest request;
 
-    private HttpPostRequestDecoder decoder;
-
     private NfsSecondaryStorageResource storageResource;
 
     private String uuid;
 
     private boolean requestProcessed = false;
 
+    private UploadEntity uploadEntity;
+
+    private StreamingUpload upload;
+
+    // null for a raw upload
+    private MultipartStreamParser multipartParser;
+
+    private boolean fileReceived;
+
+    private String responseRange;
+
     private static final String HEADER_SIGNATURE = "X-signature";
 
     private static final String HEADER_METADATA = "X-metadata";
@@ -95,18 +107,21 @@ public class HttpUploadServerHandler extends SimpleChannelInboundHandler<HttpObj
 
     @Override
     public void channelUnregistered(ChannelHandlerContext ctx) throws Exception {
-        if (decoder != null) {
-            decoder.cleanFiles();
-        }
         requestProcessed = false;
     }
 
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
         if (!requestProcessed) {
+            if (upload != null && multipartParser == null) {
+                // a raw upload is kept, the client can resume it where it stopped
+                upload.suspend();
+                logger.warn("connection closed after " + upload.getReceived() + " of " + upload.getSize() + " bytes of upload " + uuid + ", waiting for it to be resumed.");
+                return;
+            }
             String message = "file receive failed or connection closed prematurely.";
             logger.error(message);
-            storageResource.updateStateMapWithError(uuid, message);
+            abortUpload(message);
         }
     }
 
@@ -115,6 +130,7 @@ public class HttpUploadServerHandler extends SimpleChannelInboundHandler<HttpObj
         if (msg instanceof HttpRequest) {
             HttpRequest request = this.request = (HttpRequest) msg;
             responseContent.setLength(0);
+            requestProcessed = false;
 
             if (request.getMethod().equals(HttpMethod.POST)) {
 
@@ -154,12 +170,37 @@ public class HttpUploadServerHandler extends SimpleChannelInboundHandler<HttpObj
                 Map<String, List<String>> uriAttributes = decoderQuery.parameters();
                 uuid = uriAttributes.get("uuid").get(0);
                 logger.info("URI: uuid=" + uuid);
-                UploadEntity uploadEntity = null;
+
+                String boundary = MultipartStreamParser.getBoundary(request.headers().get(CONTENT_TYPE));
+                String contentRange = request.headers().get(CONTENT_RANGE);
+                long rangeStart = 0;
+                long totalLength = contentLength;
+                if (contentRange != null) {
+                    logger.info("HEADER: Content-Range=" + contentRange);
+                    Matcher matcher = CONTENT_RANGE_PATTERN.matcher(contentRange.trim());
+                    if (boundary != null || !matcher.matches() || Long.parseLong(matcher.group(2)) - Long.parseLong(matcher.group(1)) + 1 != contentLength
+                            || Long.parseLong(matcher.group(2)) >= Long.parseLong(matcher.group(3))) {
+                        responseContent.append("invalid Content-Range " + contentRange + ", ranges are only accepted for raw uploads.");
+                        writeResponse(ctx.channel(), HttpResponseStatus.BAD_REQUEST);
+                        requestProcessed = true;
+                        return;
+                    }
+                    rangeStart = Long.parseLong(matcher.group(1));
+                    totalLength = Long.parseLong(matcher.group(3));
+                }
+
+                UploadEntity existingEntity = storageResource.getUploadEntity(uuid);
+                boolean resume = boundary == null && existingEntity != null && existingEntity.getStreamingUpload() != null
+                        && existingEntity.getUploadState() == UploadEntity.Status.IN_PROGRESS;
                 try {
                     // Validate the request here
-                    storageResource.validatePostUploadRequest(signature, metadata, expires, hostname, contentLength, uuid);
-                    //create an upload entity. This will fail if entity already exists.
-                    uploadEntity = storageResource.createUploadEntity(uuid, metadata, contentLength);
+                    storageResource.validatePostUploadRequest(signature, metadata, expires, hostname, totalLength, uuid);
+                    if (resume) {
+                        uploadEntity = existingEntity;
+                    } else if (rangeStart == 0) {
+                        //create an upload entity. This will fail if entity already exists.
+                        uploadEntity = storageResource.createUploadEntity(uuid, metadata, totalLength);
+                    }
                 } catch (InvalidParameterValueException ex) {
                     logger.error("post request validation failed", ex);
                     responseContent.append(ex.getMessage());
@@ -167,6 +208,13 @@ public class HttpUploadServerHandler extends SimpleChannelInboundHandler<HttpObj
                     requestProcessed = true;
                     return;
                 }
+                if (!resume && rangeStart > 0) {
+                    responseContent.append("upload " + uuid + " was not started, it has to be sent from offset 0.");
+                    responseRange = "bytes */" + totalLength;
+                    writeResponse(ctx.channel(), HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE);
+                    requestProcessed = true;
+                    return;
+                }
                 if (uploadEntity == null) {
                     logger.error("Unable to create upload entity. An exception occurred.");
                     responseContent.append("Internal Server Error");
@@ -174,20 +222,37 @@ public class HttpUploadServerHandler extends SimpleChannelInboundHandler<HttpObj
                     requestProcessed = true;
                     return;
                 }
-                //set the base directory to download the file
-                DiskFileUpload.baseDirectory = uploadEntity.getInstallPathPrefix();
                 this.processTimeout = uploadEntity.getProcessTimeout();
-                logger.info("base directory: " + DiskFileUpload.baseDirectory);
                 try {
-                    //initialize the decoder
-                    decoder = new HttpPostRequestDecoder(factory, request);
-                } catch (ErrorDataDecoderException | IncompatibleDataDecoderException e) {
-                    logger.error("exception while initialising the decoder", e);
+                    if (boundary != null) {
+                        multipartParser = new MultipartStreamParser(boundary, new FilePartListener());
+                    } else if (resume) {
+                        upload = uploadEntity.getStreamingUpload();
+                        try {
+                            upload.resume(rangeStart);
+                        } catch (IOException e) {
+                            logger.warn("unable to resume upload " + uuid + ": " + e.getMessage());
+                            responseContent.append(e.getMessage());
+                            responseRange = getReceivedRange(upload);
+                            upload = null;
+                            writeResponse(ctx.channel(), HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE);
+                            requestProcessed = true;
+                            return;
+                        }
+                    } else {
+                        String filename = uriAttributes.containsKey("filename") ? uriAttributes.get("filename").get(0) : "upload." + uploadEntity.getFormat().getFileExtension();
+                        upload = startUpload(filename, totalLength);
+                        uploadEntity.setStreamingUpload(upload);
+                    }
+                } catch (IOException e) {
+                    logger.error("unable to start receiving upload " + uuid, e);
                     responseContent.append(e.getMessage());
                     writeResponse(ctx.channel(), HttpResponseStatus.INTERNAL_SERVER_ERROR);
+                    abortUpload(e.getMessage());
                     requestProcessed = true;
                     return;
                 }
+                logger.info("receiving upload " + uuid + " in " + uploadEntity.getInstallPathPrefix() + (multipartParser == null ? " from offset " + rangeStart : ""));
             } else {
                 logger.warn("received a get request");
                 responseContent.append("only post requests are allowed");
@@ -197,75 +262,134 @@ public class HttpUploadServerHandler extends SimpleChannelInboundHandler<HttpObj
             }
 
         }
-        // check if the decoder was constructed before
-        if (decoder != null) {
-            if (msg instanceof HttpContent) {
-                // New chunk is received
-                HttpContent chunk = (HttpContent) msg;
-                try {
-                    decoder.offer(chunk);
-                } catch (ErrorDataDecoderException e) {
-                    logger.error("data decoding exception", e);
-                    responseContent.append(e.getMessage());
-                    writeResponse(ctx.channel(), HttpResponseStatus.INTERNAL_SERVER_ERROR);
-                    requestProcessed = true;
-                    return;
-                }
-                if (chunk instanceof LastHttpContent) {
-                    writeResponse(ctx.channel(), readFileUploadData());
-                    reset();
+        // check if the upload was started before
+        if ((upload != null || multipartParser != null) && msg instanceof HttpContent) {
+            // New chunk is received
+            HttpContent chunk = (HttpContent) msg;
+            try {
+                if (multipartParser != null) {
+                    multipartParser.offer(chunk.content());
+                } else {
+                    upload.write(chunk.content());
                 }
+            } catch (IOException e) {
+                logger.error("unable to write upload " + uuid, e);
+                responseContent.append(e.getMessage());
+                writeResponse(ctx.channel(), HttpResponseStatus.INTERNAL_SERVER_ERROR).addListener(ChannelFutureListener.CLOSE);
+                abortUpload(e.getMessage());
+                requestProcessed = true;
+                reset();
+                return;
+            }
+            if (upload != null && upload.getFormatError() != null) {
+                // no need to receive the rest of a file that is rejected anyway
+                String errorString = upload.getFormatError();
+                logger.error(errorString);
+                responseContent.append(errorString);
+                writeResponse(ctx.channel(), HttpResponseStatus.BAD_REQUEST).addListener(ChannelFutureListener.CLOSE);
+                abortUpload(errorString);
+                requestProcessed = true;
+                reset();
+                return;
+            }
+            if (chunk instanceof LastHttpContent) {
+                writeResponse(ctx.channel(), completeUpload());
+                reset();
             }
         }
 
     }
 
+    /**
+     * Receives the first file part of a multipart body, and ignores the other parts.
+     */
+    private class FilePartListener implements MultipartStreamParser.Listener {
+        @Override
+        public boolean startPart(String name, String filename) throws IOException {
+            logger.info("BODY part: name=" + name + ", filename=" + filename);
+            if (filename == null || upload != null) {
+                return false;
+            }
+            upload = startUpload(filename, -1);
+            return true;
+        }
+
+        @Override
+        public void content(ByteBuf content) throws IOException {
+            upload.write(content);
+        }
+
+        @Override
+        public void endPart() throws IOException {
+            fileReceived = true;
+        }
+    }
+
+    private StreamingUpload startUpload(String filename, long size) throws IOException {
+        // the name sent by the client is only used for its extension, which tells about compression
+        String extension = FilenameUtils.getExtension(filename);
+        String localName = "upload-" + uuid.replaceAll("[^A-Za-z0-9-]", "_") + (StringUtils.isAlphanumeric(extension) && !extension.isEmpty() ? "." + extension : "");
+        String checksumAlgorithm = StringUtils.isBlank(uploadEntity.getChksum()) ? null : new ChecksumValue(uploadEntity.getChksum()).getAlgorithm();
+        return new StreamingUpload(new File(uploadEntity.getInstallPathPrefix(), localName), filename, size, checksumAlgorithm);
+    }
+
+    private void abortUpload(String message) {
+        if (upload != null) {
+            upload.abort();
+        }
+        if (uploadEntity != null) {
+            uploadEntity.setStreamingUpload(null);
+        }
+        storageResource.updateStateMapWithError(uuid, message);
+    }
+
+    private static String getReceivedRange(StreamingUpload upload) {
+        return upload.getReceived() == 0 ? null : "bytes=0-" + (upload.getReceived() - 1);
+    }
+
     private void reset() {
         request = null;
-        // destroy the decoder to release all resources
-        decoder.destroy();
-        decoder = null;
+        upload = null;
+        uploadEntity = null;
+        multipartParser = null;
+        fileReceived = false;
     }
 
-    private HttpResponseStatus readFileUploadData() throws IOException {
-        while (decoder.hasNext()) {
-            InterfaceHttpData data = decoder.next();
-            if (data != null) {
-                try {
-                    logger.info("BODY FileUpload: " + data.getHttpDataType().name() + ": " + data);
-                    if (data.getHttpDataType() == HttpDataType.FileUpload) {
-                        FileUpload fileUpload = (FileUpload) data;
-                        if (fileUpload.isCompleted()) {
-                            requestProcessed = true;
-                            String format = ImageStoreUtil.checkTemplateFormat(fileUpload.getFile().getAbsolutePath(), fileUpload.getFilename());
-                            if(StringUtils.isNotBlank(format)) {
-                                String errorString = "File type mismatch between the sent file and the actual content. Received: " + format;
-                                logger.error(errorString);
-                                responseContent.append(errorString);
-                                storageResource.updateStateMapWithError(uuid, errorString);
-                                return HttpResponseStatus.BAD_REQUEST;
-                            }
-                            String status = storageResource.postUpload(uuid, fileUpload.getFile().getName(), processTimeout);
-                            if (status != null) {
-                                responseContent.append(status);
-                                storageResource.updateStateMapWithError(uuid, status);
-                                return HttpResponseStatus.INTERNAL_SERVER_ERROR;
-                            } else {
-                                responseContent.append("upload successful.");
-                                return HttpResponseStatus.OK;
-                            }
-                        }
-                    }
-                } finally {
-                    data.release();
-                }
-            }
+    private HttpResponseStatus completeUpload() {
+        requestProcessed = true;
+        if (upload == null || multipartParser != null && !fileReceived) {
+            String errorString = "received entity is not a file";
+            responseContent.append(errorString);
+            abortUpload(errorString);
+            return HttpResponseStatus.UNPROCESSABLE_ENTITY;
+        }
+        if (multipartParser == null && upload.getReceived() < upload.getSize()) {
+            // a part of a raw upload, wait for the next one
+            upload.suspend();
+            responseContent.append("received " + upload.getReceived() + " of " + upload.getSize() + " bytes.");
+            responseRange = getReceivedRange(upload);
+            return HttpResponseStatus.ACCEPTED;
+        }
+        String errorString = upload.finish(uploadEntity.getChksum());
+        if (errorString != null) {
+            logger.error(errorString);
+            responseContent.append(errorString);
+            abortUpload(errorString);
+            return HttpResponseStatus.BAD_REQUEST;
+        }
+        uploadEntity.setStreamingUpload(null);
+        String status = storageResource.postUpload(uuid, upload.getFile().getName(), processTimeout, upload.isChecksumVerified());
+        if (status != null) {
+            responseContent.append(status);
+            storageResource.updateStateMapWithError(uuid, status);
+            return HttpResponseStatus.INTERNAL_SERVER_ERROR;
+        } else {
+            responseContent.append("upload successful.");
+            return HttpResponseStatus.OK;
         }
-        responseContent.append("received entity is not a file");
-        return HttpResponseStatus.UNPROCESSABLE_ENTITY;
     }
 
-    private void writeResponse(Channel channel, HttpResponseStatus statusCode) {
+    private ChannelFuture writeResponse(Channel channel, HttpResponseStatus statusCode) {
         // Convert the response content to a ChannelBuffer.
         ByteBuf buf = copiedBuffer(responseContent.toString(), CharsetUtil.UTF_8);
         responseContent.setLength(0);
@@ -275,6 +399,10 @@ public class HttpUploadServerHandler extends SimpleChannelInboundHandler<HttpObj
         // Build the response object.
         FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, statusCode, buf);
         response.headers().set(CONTENT_TYPE, "text/plain; charset=UTF-8");
+        if (responseRange != null) {
+            response.headers().set(statusCode.equals(HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE) && responseRange.startsWith("bytes */") ? CONTENT_RANGE : RANGE, responseRange);
+            responseRange = null;
+        }
         if (!close) {
             // There's no need to add 'Content-Length' header if this is the last response.
             response.headers().set(CONTENT_LENGTH, buf.readableBytes());
@@ -285,6 +413,7 @@ public class HttpUploadServerHandler extends SimpleChannelInboundHandler<HttpObj
         if (close) {
             future.addListener(ChannelFutureListener.CLOSE);
         }
+        return future;
     }
 
     @Override
@@ -0,0 +1,305 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.storage.resource;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * Parses a multipart/form-data body as it arrives, handing out the content of the parts as slices of the
+ * received chunks. Only the headers of the parts and the few bytes that may be the start of a delimiter
+ * split over two chunks are copied, so a file part can be written to disk without buffering it.
+ */
+public class MultipartStreamParser {
+    private static final int MAX_HEADERS_SIZE = 16 * 1024;
+
+    public interface Listener {
+        /**
+         * Called for every part of the body.
+         *
+         * @param filename the file name of the part, null if the part is not a file
+         * @return true to receive the content of the part
+         */
+        boolean startPart(String name, String filename) throws IOException;
+
+        void content(ByteBuf content) throws IOException;
+
+        void endPart() throws IOException;
+    }
+
+    private enum State {
+        PREAMBLE, DELIMITER_END, HEADERS, BODY, EPILOGUE
+    }
+
+    private final Listener listener;
+    // the delimiter in front of every part but the first, which may have no CRLF in front of it
+    private final byte[] delimiter;
+    private final byte[] dashBoundary;
+
+    private State state = State.PREAMBLE;
+    private boolean contentWanted;
+    // data of an unfinished preamble, delimiter or headers
+    private byte[] pending = new byte[0];
+    // end of the previous chunk that may be the start of a delimiter
+    private byte[] tail = new byte[0];
+
+    public MultipartStreamParser(String boundary, Listener listener) {
+        this.listener = listener;
+        delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.US_ASCII);
+        dashBoundary = ("--" + boundary).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @return the boundary of a multipart content type, null if the content type is not multipart
+     */
+    public static String getBoundary(String contentType) {
+        if (contentType == null || !contentType.trim().toLowerCase().startsWith("multipart/")) {
+            return null;
+        }
+        String boundary = getParameter(contentType, "boundary");
+        return boundary == null || boundary.isEmpty() ? null : boundary;
+    }
+
+    /**
+     * @return true once the closing delimiter was received
+     */
+    public boolean isComplete() {
+        return state == State.EPILOGUE;
+    }
+
+    public void offer(ByteBuf chunk) throws IOException {
+        if (pending.length == 0) {
+            process(chunk);
+            return;
+        }
+        byte[] data = new byte[pending.length + chunk.readableBytes()];
+        System.arraycopy(pending, 0, data, 0, pending.length);
+        chunk.getBytes(chunk.readerIndex(), data, pending.length, chunk.readableBytes());
+        pending = new byte[0];
+        process(Unpooled.wrappedBuffer(data));
+    }
+
+    private void process(ByteBuf buf) throws IOException {
+        int index = buf.readerIndex();
+        while (index < buf.writerIndex() && state != State.EPILOGUE) {
+            int next;
+            switch (state) {
+            case PREAMBLE:
+                next = readPreamble(buf, index);
+                break;
+            case DELIMITER_END:
+                next = readDelimiterEnd(buf, index);
+                break;
+            case HEADERS:
+                next = readHeaders(buf, index);
+                break;
+            default:
+                next = readBody(buf, index);
+                if (next < 0) {
+                    return;
+                }
+                break;
+            }
+            if (next < 0) {
+                if (state == State.PREAMBLE) {
+                    // only keep what may be the start of the first delimiter
+                    index = Math.max(index, buf.writerIndex() - dashBoundary.length + 1);
+                }
+                pending = copy(buf, index, buf.writerIndex());
+                return;
+            }
+            index = next;
+        }
+    }
+
+    private int readPreamble(ByteBuf buf, int index) {
+        int found = indexOf(buf, index, dashBoundary);
+        if (found < 0) {
+            return -1;
+        }
+        state = State.DELIMITER_END;
+        return found + dashBoundary.length;
+    }
+
+    private int readDelimiterEnd(ByteBuf buf, int index) {
+        // skip the transport padding
+        while (index < buf.writerIndex() && (buf.getByte(index) == ' ' || buf.getByte(index) == '\t')) {
+            index++;
+        }
+        if (buf.writerIndex() - index < 2) {
+            return -1;
+        }
+        if (buf.getByte(index) == '-' && buf.getByte(index + 1) == '-') {
+            state = State.EPILOGUE;
+            return buf.writerIndex();
+        }
+        // the CRLF is left to HEADERS, so that a part without headers ends with the next CRLF
+        state = State.HEADERS;
+        return index;
+    }
+
+    private int readHeaders(ByteBuf buf, int index) throws IOException {
+        int end = indexOf(buf, index, new byte[] {'\r', '\n', '\r', '\n'});
+        if (end < 0) {
+            if (buf.writerIndex() - index > MAX_HEADERS_SIZE) {
+                throw new IOException("multipart headers exceed " + MAX_HEADERS_SIZE + " bytes");
+            }
+            return -1;
+        }
+        String name = null;
+        String filename = null;
+        String headers = buf.toString(index, end - index, StandardCharsets.UTF_8);
+        for (String header : headers.split("\r\n")) {
+            int colon = header.indexOf(':');
+            if (colon > 0 && header.substring(0, colon).trim().equalsIgnoreCase("Content-Disposition")) {
+                String disposition = header.substring(colon + 1);
+                name = getParameter(disposition, "name");
+                filename = getParameter(disposition, "filename");
+            }
+        }
+        contentWanted = listener.startPart(name, filename);
+        state = State.BODY;
+        return end + 4;
+    }
+
+    /**
+     * @return the index after the delimiter ending the part, -1 if the whole buffer belongs to the part
+     */
+    private int readBody(ByteBuf buf, int index) throws IOException {
+        if (tail.length > 0) {
+            // look for a delimiter starting in the tail of the previous chunk
+            int available = Math.min(buf.writerIndex() - index, delimiter.length - 1);
+            byte[] combined = new byte[tail.length + available];
+            System.arraycopy(tail, 0, combined, 0, tail.length);
+            buf.getBytes(index, combined, tail.length, available);
+            ByteBuf window = Unpooled.wrappedBuffer(combined);
+            int found = indexOf(window, 0, delimiter);
+            if (found >= 0) {
+                tail = new byte[0];
+                emit(window, 0, found);
+                endPart();
+                return index + found + delimiter.length - (combined.length - available);
+            }
+            if (available < delimiter.length - 1) {
+                // the chunk is too small to tell, keep waiting
+                int safe = Math.max(0, combined.length - delimiter.length + 1);
+                emit(window, 0, safe);
+                tail = copy(window, safe, combined.length);
+                return -1;
+            }
+            // a delimiter starting in the tail would have ended in the combined bytes
+            emit(window, 0, tail.length);
+            tail = new byte[0];
+        }
+
+        int found = indexOf(buf, index, delimiter);
+        if (found >= 0) {
+            emit(buf, index, found);
+            endPart();
+            return found + delimiter.length;
+        }
+        int safe = Math.max(index, buf.writerIndex() - delimiter.length + 1);
+        emit(buf, index, safe);
+        tail = copy(buf, safe, buf.writerIndex());
+        return -1;
+    }
+
+    private void emit(ByteBuf buf, int from, int to) throws IOException {
+        if (contentWanted && to > from) {
+            listener.content(buf.slice(from, to - from));
+        }
+    }
+
+    private void endPart() throws IOException {
+        if (contentWanted) {
+            listener.endPart();
+        }
+        contentWanted = false;
+        state = State.DELIMITER_END;
+    }
+
+    private static byte[] copy(ByteBuf buf, int from, int to) {
+        byte[] data = new byte[to - from];
+        buf.getBytes(from, data, 0, data.length);
+        return data;
+    }
+
+    private static int indexOf(ByteBuf buf, int from, byte[] pattern) {
+        int last = buf.writerIndex() - pattern.length;
+        while (from <= last) {
+            int found = buf.indexOf(from, last + 1, pattern[0]);
+            if (found < 0) {
+                return -1;
+            }
+            int i = 1;
+            while (i < pattern.length && buf.getByte(found + i) == pattern[i]) {
+                i++;
+            }
+            if (i == pattern.length) {
+                return found;
+            }
+            from = found + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the value of a parameter of a header like Content-Type or Content-Disposition, without quotes
+     */
+    private static String getParameter(String header, String parameter) {
+        int index = 0;
+        int length = header.length();
+        while (index < length) {
+            int separator = header.indexOf(';', index);
+            if (separator < 0) {
+                return null;
+            }
+            index = separator + 1;
+            while (index < length && header.charAt(index) == ' ') {
+                index++;
+            }
+            int equals = header.indexOf('=', index);
+            if (equals < 0) {
+                return null;
+            }
+            String key = header.substring(index, equals).trim();
+            StringBuilder value = new StringBuilder();
+            index = equals + 1;
+            if (index < length && header.charAt(index) == '"') {
+                index++;
+                while (index < length && header.charAt(index) != '"') {
+                    if (header.charAt(index) == '\\' && index + 1 < length) {
+                        index++;
+                    }
+                    value.append(header.charAt(index++));
+                }
+                index++;
+            } else {
+                while (index < length && header.charAt(index) != ';') {
+                    value.append(header.charAt(index++));
+                }
+            }
+            if (key.equalsIgnoreCase(parameter)) {
+                return value.toString().trim();
+            }
+        }
+        return null;
+    }
+}
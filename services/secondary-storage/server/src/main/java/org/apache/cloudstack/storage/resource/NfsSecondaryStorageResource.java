@@ -68,6 +68,7 @@ import org.apache.cloudstack.storage.configdrive.ConfigDriveBuilder;
 import org.apache.cloudstack.storage.template.DownloadManager;
 import org.apache.cloudstack.storage.template.DownloadManagerImpl;
 import org.apache.cloudstack.storage.template.DownloadManagerImpl.ZfsPathParser;
+import org.apache.cloudstack.storage.template.TemplateManifest;
 import org.apache.cloudstack.storage.template.UploadEntity;
 import org.apache.cloudstack.storage.template.UploadManager;
 import org.apache.cloudstack.storage.template.UploadManagerImpl;
@@ -2049,8 +2050,20 @@ public class NfsSecondaryStorageResource extends ServerResourceBase implements S
             NfsTO nfs = (NfsTO)store;
             String secUrl = nfs.getUrl();
             String root = getRootDir(secUrl, cmd.getNfsVersion());
-            Map<String, TemplateProp> templateInfos = _dlMgr.gatherTemplateInfo(root);
-            return new ListTemplateAnswer(secUrl, templateInfos);
+            TemplateManifest manifest = _dlMgr.gatherTemplateManifest(root);
+            if (manifest == null) {
+                Map<String, TemplateProp> templateInfos = _dlMgr.gatherTemplateInfo(root);
+                return new ListTemplateAnswer(secUrl, templateInfos);
+            }
+            ListTemplateAnswer answer;
+            if (manifest.hasChangesSince(cmd.getSyncEpoch(), cmd.getSyncSequence())) {
+                answer = new ListTemplateAnswer(secUrl, manifest.getTemplatesChangedSince(cmd.getSyncSequence()));
+                answer.setDelta(manifest.getTemplatesRemovedSince(cmd.getSyncSequence()));
+            } else {
+                answer = new ListTemplateAnswer(secUrl, manifest.getTemplates());
+            }
+            answer.setSyncPoint(manifest.getEpoch(), manifest.getSequence());
+            return answer;
         } else if (store instanceof SwiftTO) {
             SwiftTO swift = (SwiftTO)store;
             Map<String, TemplateProp> templateInfos = swiftListTemplate(swift);
@@ -3192,7 +3205,18 @@ public class NfsSecondaryStorageResource extends ServerResourceBase implements S
         return (int)Math.ceil(sizeInBytes * 1.0d / (1024 * 1024 * 1024));
     }
 
+    public UploadEntity getUploadEntity(String uuid) {
+        return uploadEntityStateMap.get(uuid);
+    }
+
     public String postUpload(String uuid, String filename, long processTimeout) {
+        return postUpload(uuid, filename, processTimeout, false);
+    }
+
+    /**
+     * @param checksumVerified true if the checksum of the file was verified while it was received
+     */
+    public String postUpload(String uuid, String filename, long processTimeout, boolean checksumVerified) {
         UploadEntity uploadEntity = uploadEntityStateMap.get(uuid);
         int installTimeoutPerGig = 180 * 60 * 1000;
 
@@ -3233,7 +3257,7 @@ public class NfsSecondaryStorageResource extends ServerResourceBase implements S
             scr.add("-h");
         }
         String checkSum = uploadEntity.getChksum();
-        if (StringUtils.isNotBlank(checkSum)) {
+        if (StringUtils.isNotBlank(checkSum) && !checksumVerified) {
             scr.add("-c", checkSum);
         }
 
@@ -3259,9 +3283,6 @@ public class NfsSecondaryStorageResource extends ServerResourceBase implements S
         scr.add("-t", resourcePath);
         scr.add("-f", fileSavedTempLocation); // this is the temporary
         // template file downloaded
-        if (uploadEntity.getChksum() != null && uploadEntity.getChksum().length() > 1) {
-            scr.add("-c", uploadEntity.getChksum());
-        }
         scr.add("-u"); // cleanup
         String result;
         result = scr.execute();
@@ -0,0 +1,243 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.storage.resource;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.cloudstack.utils.imagestore.ImageStoreUtil;
+import org.apache.cloudstack.utils.security.ChecksumValue;
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+
+import com.cloud.storage.template.TemplateStreamInfo;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Writes an uploaded file to its location on the secondary storage as the chunks arrive, computing its
+ * checksum and checking its format on the way. The upload can be suspended when a request ends before the
+ * whole file was received, and resumed by a later request at the offset received so far.
+ */
+public class StreamingUpload {
+    private static final Logger s_logger = Logger.getLogger(StreamingUpload.class);
+
+    // the format of the file is checked as soon as this much of it was received
+    private static final long FORMAT_PROBE_SIZE = 1024L * 1024L;
+
+    private static final AtomicInteger s_activeUploads = new AtomicInteger();
+    private static final AtomicLong s_completedUploads = new AtomicLong();
+    private static final AtomicLong s_receivedBytes = new AtomicLong();
+    private static final AtomicLong s_receiveMillis = new AtomicLong();
+
+    private final File file;
+    private final String filename;
+    private final long size;
+    private final TemplateStreamInfo streamInfo;
+
+    private FileChannel channel;
+    private long received;
+    private long openedAt;
+    private long receiveMillis;
+    private boolean formatChecked;
+    private String formatError;
+    private boolean checksumVerified;
+
+    /**
+     * @param file the file the upload is written to
+     * @param filename the name of the file sent by the client, its extension is used to check the format
+     * @param size the size of the file, -1 if not known
+     * @param checksumAlgorithm the algorithm of the checksum computed while receiving, null for none
+     */
+    public StreamingUpload(File file, String filename, long size, String checksumAlgorithm) throws IOException {
+        this.file = file;
+        this.filename = filename;
+        this.size = size;
+        streamInfo = new TemplateStreamInfo(checksumAlgorithm);
+        open();
+    }
+
+    private void open() throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        // drop whatever was written after the last complete chunk
+        channel.truncate(received);
+        channel.position(received);
+        openedAt = System.currentTimeMillis();
+        s_activeUploads.incrementAndGet();
+    }
+
+    /**
+     * Continues a suspended upload.
+     *
+     * @param offset the offset the client continues at, which has to be the number of bytes received so far
+     */
+    public synchronized void resume(long offset) throws IOException {
+        if (channel != null) {
+            throw new IOException("upload to " + file.getName() + " is in progress");
+        }
+        if (offset != received) {
+            throw new IOException("upload to " + file.getName() + " can only be resumed at offset " + received + ", not at " + offset);
+        }
+        open();
+    }
+
+    public synchronized void write(ByteBuf content) throws IOException {
+        int length = content.readableBytes();
+        if (length == 0) {
+            return;
+        }
+        if (size >= 0 && received + length > size) {
+            throw new IOException("received more than the " + size + " bytes of " + filename);
+        }
+        for (ByteBuffer buffer : content.nioBuffers()) {
+            streamInfo.update(buffer);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        received += length;
+        s_receivedBytes.addAndGet(length);
+        if (!formatChecked && received >= FORMAT_PROBE_SIZE) {
+            checkFormat();
+        }
+    }
+
+    private void checkFormat() {
+        formatChecked = true;
+        String format = ImageStoreUtil.checkTemplateFormat(file.getAbsolutePath(), filename);
+        if (StringUtils.isNotBlank(format)) {
+            formatError = "File type mismatch between the sent file and the actual content. Received: " + format;
+        }
+    }
+
+    /**
+     * @return the reason the content is rejected, null while it looks like the format of the file name
+     */
+    public synchronized String getFormatError() {
+        return formatError;
+    }
+
+    /**
+     * Closes the file until the upload is resumed, keeping what was received.
+     */
+    public synchronized void suspend() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            s_logger.warn("Unable to close " + file.getAbsolutePath(), e);
+        }
+        channel = null;
+        long millis = System.currentTimeMillis() - openedAt;
+        receiveMillis += millis;
+        s_receiveMillis.addAndGet(millis);
+        s_activeUploads.decrementAndGet();
+    }
+
+    /**
+     * Closes the file once it was received completely.
+     *
+     * @param checksum the checksum the file is expected to have, may be blank
+     * @return the reason the file is rejected, null if it is fine
+     */
+    public synchronized String finish(String checksum) {
+        suspend();
+        if (size >= 0 && received != size) {
+            return "received " + received + " of the " + size + " bytes of " + filename;
+        }
+        if (!formatChecked) {
+            checkFormat();
+        }
+        if (formatError != null) {
+            return formatError;
+        }
+        ChecksumValue computed = streamInfo.getChecksum();
+        if (StringUtils.isNotBlank(checksum) && computed != null) {
+            ChecksumValue expected = new ChecksumValue(checksum);
+            // a checksum without algorithm is taken for the default one, leave others to the install script
+            if (expected.getAlgorithm().equalsIgnoreCase(computed.getAlgorithm()) && expected.getChecksum().length() == computed.getChecksum().length()) {
+                if (!expected.getChecksum().equalsIgnoreCase(computed.getChecksum())) {
+                    return "checksum \"" + computed + "\" didn't match the given value, \"" + expected + "\"";
+                }
+                checksumVerified = true;
+            }
+        }
+        s_completedUploads.incrementAndGet();
+        if (s_logger.isInfoEnabled()) {
+            s_logger.info("Received " + received + " bytes of " + filename + " in " + receiveMillis + "ms (" + getThroughput(received, receiveMillis) + " MB/s), "
+                    + s_completedUploads.get() + " uploads completed, " + s_activeUploads.get() + " in progress, " + getThroughput(s_receivedBytes.get(), s_receiveMillis.get())
+                    + " MB/s on average");
+        }
+        return null;
+    }
+
+    /**
+     * Closes and deletes the file.
+     */
+    public synchronized void abort() {
+        suspend();
+        if (file.exists() && !file.delete()) {
+            s_logger.warn("Unable to delete " + file.getAbsolutePath());
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public synchronized long getReceived() {
+        return received;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public synchronized boolean isSuspended() {
+        return channel == null;
+    }
+
+    /**
+     * @return true if the file had the checksum given to {@link #finish(String)}, false if it was not verified
+     */
+    public synchronized boolean isChecksumVerified() {
+        return checksumVerified;
+    }
+
+    private static long getThroughput(long bytes, long millis) {
+        return millis == 0 ? 0 : bytes * 1000 / millis / (1024 * 1024);
+    }
+
+    public static int getActiveUploads() {
+        return s_activeUploads.get();
+    }
+
+    public static long getCompletedUploads() {
+        return s_completedUploads.get();
+    }
+
+    public static long getReceivedBytes() {
+        return s_receivedBytes.get();
+    }
+}
@@ -102,6 +102,14 @@ public interface DownloadManager extends Manager {
      */
     public Map<String, TemplateProp> gatherTemplateInfo(String templateDir);
 
+    /**
+     * Brings the manifest of the templates in the store up to date, loading only the templates that changed
+     * since it was written.
+     *
+     * @return the manifest, null if it could not be updated
+     */
+    public TemplateManifest gatherTemplateManifest(String rootDir);
+
     /**
     /**
      * @return list of volume info for installed volumes
@@ -23,6 +23,12 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -55,6 +61,7 @@ import com.cloud.storage.template.RawImageProcessor;
 import com.cloud.storage.template.TARProcessor;
 import com.cloud.storage.template.VhdProcessor;
 import com.cloud.storage.template.TemplateConstants;
+import com.cloud.storage.template.TemplateStreamInfo;
 import org.apache.cloudstack.storage.command.DownloadCommand;
 import org.apache.cloudstack.storage.command.DownloadCommand.ResourceType;
 import org.apache.cloudstack.storage.command.DownloadProgressCommand;
@@ -229,9 +236,12 @@ public class DownloadManagerImpl extends ManagerBase implements DownloadManager
     private ExecutorService threadPool;
 
     private final Map<String, DownloadJob> jobs = new ConcurrentHashMap<String, DownloadJob>();
+    // epoch and sequence of the template manifest this SSVM saved last, by manifest file
+    private final Map<String, String> savedManifests = new HashMap<String, String>();
     private String listTmpltScr;
     private String listVolScr;
     private int installTimeoutPerGig = 180 * 60 * 1000;
+    private int downloadParallelRanges = 4;
 
     public void setThreadPool(ExecutorService threadPool) {
         this.threadPool = threadPool;
@@ -375,10 +385,18 @@ public class DownloadManagerImpl extends ManagerBase implements DownloadManager
         File originalTemplate = new File(td.getDownloadLocalPath());
         ChecksumValue oldValue = new ChecksumValue(dnld.getChecksum());
         ChecksumValue newValue = null;
-        try {
-            newValue = computeCheckSum(oldValue.getAlgorithm(), originalTemplate);
-        } catch (NoSuchAlgorithmException e) {
-            return "checksum algorithm not recognised: " + oldValue.getAlgorithm();
+        TemplateStreamInfo streamInfo = null;
+        if (td instanceof HttpTemplateDownloader) {
+            // computed while the file was downloaded, saves reading it again
+            newValue = ((HttpTemplateDownloader)td).getStreamedChecksum(oldValue.getAlgorithm());
+            streamInfo = ((HttpTemplateDownloader)td).getStreamInfo();
+        }
+        if (newValue == null) {
+            try {
+                newValue = computeCheckSum(oldValue.getAlgorithm(), originalTemplate);
+            } catch (NoSuchAlgorithmException e) {
+                return "checksum algorithm not recognised: " + oldValue.getAlgorithm();
+            }
         }
         if(StringUtils.isNotBlank(dnld.getChecksum()) && ! oldValue.equals(newValue)) {
             return "checksum \"" + newValue +"\" didn't match the given value, \"" + oldValue + "\"";
@@ -453,8 +471,18 @@ public class DownloadManagerImpl extends ManagerBase implements DownloadManager
             return "Unable to download due to " + e.getMessage();
         }
 
+        FormatInfo streamedInfo = getStreamedFormatInfo(streamInfo, dnld.getFormat(), resourcePath, templateName);
+        if (streamedInfo != null) {
+            if (!loc.addFormat(streamedInfo)) {
+                loc.purge();
+                return "Unable to install due to invalid file format";
+            }
+            dnld.setTemplatesize(streamedInfo.virtualSize);
+            dnld.setTemplatePhysicalSize(streamedInfo.size);
+        }
+
         Iterator<Processor> en = _processors.values().iterator();
-        while (en.hasNext()) {
+        while (streamedInfo == null && en.hasNext()) {
             Processor processor = en.next();
 
             FormatInfo info = null;
@@ -483,6 +511,31 @@ public class DownloadManagerImpl extends ManagerBase implements DownloadManager
         return null;
     }
 
+    /**
+     * Builds the format info of a qcow2 or vhd image from its header or footer seen while it was downloaded, as long
+     * as the installed file is the downloaded one (e.g. not uncompressed by the install script).
+     */
+    private FormatInfo getStreamedFormatInfo(TemplateStreamInfo streamInfo, ImageFormat format, String resourcePath, String templateName) {
+        if (streamInfo == null || format == null) {
+            return null;
+        }
+        long virtualSize = streamInfo.getVirtualSize(format);
+        if (virtualSize <= 0) {
+            return null;
+        }
+        String filename = templateName + "." + format.getFileExtension();
+        String path = resourcePath + File.separator + filename;
+        if (!_storage.exists(path) || _storage.getSize(path) != streamInfo.getBytes()) {
+            return null;
+        }
+        FormatInfo info = new FormatInfo();
+        info.format = format;
+        info.filename = filename;
+        info.size = streamInfo.getBytes();
+        info.virtualSize = virtualSize;
+        return info;
+    }
+
     @Override
     public Status getDownloadStatus(String jobId) {
         DownloadJob job = jobs.get(jobId);
@@ -564,7 +617,10 @@ public class DownloadManagerImpl extends ManagerBase implements DownloadManager
                         if (uri.getPath().endsWith(".metalink")) {
                             td = new MetalinkTemplateDownloader(_storage, url, tmpDir, new Completion(jobId), maxTemplateSizeInBytes);
                         } else if (uri.getScheme().equalsIgnoreCase("http") || uri.getScheme().equalsIgnoreCase("https")) {
-                            td = new HttpTemplateDownloader(_storage, url, tmpDir, new Completion(jobId), maxTemplateSizeInBytes, user, password, proxy, resourceType);
+                            HttpTemplateDownloader httpDownloader = new HttpTemplateDownloader(_storage, url, tmpDir, new Completion(jobId), maxTemplateSizeInBytes, user, password, proxy, resourceType);
+                            httpDownloader.setChecksumAlgorithm(new ChecksumValue(cksum).getAlgorithm());
+                            httpDownloader.setParallelRanges(downloadParallelRanges);
+                            td = httpDownloader;
                         } else if (uri.getScheme().equalsIgnoreCase("file")) {
                             td = new LocalTemplateDownloader(_storage, url, tmpDir, maxTemplateSizeInBytes, new Completion(jobId));
                         } else if (uri.getScheme().equalsIgnoreCase("scp")) {
@@ -824,38 +880,113 @@ public class DownloadManagerImpl extends ManagerBase implements DownloadManager
         List<String> publicTmplts = listTemplates(templateDir);
         for (String tmplt : publicTmplts) {
             String path = tmplt.substring(0, tmplt.lastIndexOf(File.separator));
-            TemplateLocation loc = new TemplateLocation(_storage, path);
-            try {
-                if (!loc.load()) {
-                    s_logger.warn("Post download installation was not completed for " + path);
-                    // loc.purge();
-                    _storage.cleanup(path, templateDir);
-                    continue;
-                }
-            } catch (IOException e) {
-                s_logger.warn("Unable to load template location " + path, e);
+            TemplateProp tInfo = loadTemplateInfo(path, templateDir);
+            if (tInfo == null) {
                 continue;
             }
+            result.put(tInfo.getTemplateName(), tInfo);
+            s_logger.debug("Added template name: " + tInfo.getTemplateName() + ", path: " + tmplt);
+        }
+        return result;
+    }
+
+    private TemplateProp loadTemplateInfo(String path, String templateDir) {
+        TemplateLocation loc = new TemplateLocation(_storage, path);
+        try {
+            if (!loc.load()) {
+                s_logger.warn("Post download installation was not completed for " + path);
+                // loc.purge();
+                _storage.cleanup(path, templateDir);
+                return null;
+            }
+        } catch (IOException e) {
+            s_logger.warn("Unable to load template location " + path, e);
+            return null;
+        }
+
+        TemplateProp tInfo = loc.getTemplateInfo();
+
+        if ((tInfo.getSize() == tInfo.getPhysicalSize()) && (tInfo.getInstallPath().endsWith(ImageFormat.OVA.getFileExtension()))) {
+            try {
+                Processor processor = _processors.get("OVA Processor");
+                OVAProcessor vmdkProcessor = (OVAProcessor)processor;
+                long vSize = vmdkProcessor.getTemplateVirtualSize(path, tInfo.getInstallPath().substring(tInfo.getInstallPath().lastIndexOf(File.separator) + 1));
+                tInfo.setSize(vSize);
+                loc.updateVirtualSize(vSize);
+                loc.save();
+            } catch (Exception e) {
+                s_logger.error("Unable to get the virtual size of the template: " + tInfo.getInstallPath() + " due to " + e.getMessage());
+            }
+        }
+        return tInfo;
+    }
 
-            TemplateProp tInfo = loc.getTemplateInfo();
+    @Override
+    public synchronized TemplateManifest gatherTemplateManifest(String rootDir) {
+        final String templateDir = rootDir + File.separator + _templateDir;
+        if (!_storage.exists(templateDir)) {
+            _storage.mkdirs(templateDir);
+        }
 
-            if ((tInfo.getSize() == tInfo.getPhysicalSize()) && (tInfo.getInstallPath().endsWith(ImageFormat.OVA.getFileExtension()))) {
-                try {
-                    Processor processor = _processors.get("OVA Processor");
-                    OVAProcessor vmdkProcessor = (OVAProcessor)processor;
-                    long vSize = vmdkProcessor.getTemplateVirtualSize(path, tInfo.getInstallPath().substring(tInfo.getInstallPath().lastIndexOf(File.separator) + 1));
-                    tInfo.setSize(vSize);
-                    loc.updateVirtualSize(vSize);
-                    loc.save();
-                } catch (Exception e) {
-                    s_logger.error("Unable to get the virtual size of the template: " + tInfo.getInstallPath() + " due to " + e.getMessage());
+        File file = new File(templateDir, TemplateManifest.Filename);
+        TemplateManifest manifest = TemplateManifest.load(file);
+        boolean renewed = false;
+        if (manifest == null) {
+            manifest = new TemplateManifest();
+            renewed = true;
+        } else if (!(manifest.getEpoch() + ":" + manifest.getSequence()).equals(savedManifests.get(file.getPath()))) {
+            // another SSVM saved the manifest since this one did, or this one did not save it yet
+            s_logger.info("Template manifest " + file + " was not saved last by this SSVM, starting a new epoch");
+            manifest.renewEpoch();
+            renewed = true;
+        }
+        try {
+            // only the metadata of the files is read, the templates are loaded if they changed
+            final Map<String, TemplateManifest.Stamp> found = new HashMap<String, TemplateManifest.Stamp>();
+            Files.walkFileTree(Paths.get(templateDir), new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (TemplateLocation.Filename.equals(file.getFileName().toString())) {
+                        found.put(file.getParent().toString(), new TemplateManifest.Stamp(attrs.lastModifiedTime().toMillis(), attrs.size()));
+                    }
+                    return FileVisitResult.CONTINUE;
                 }
-            }
 
-            result.put(tInfo.getTemplateName(), tInfo);
-            s_logger.debug("Added template name: " + tInfo.getTemplateName() + ", path: " + tmplt);
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    s_logger.warn("Unable to read " + file + " while listing templates: " + e.getMessage());
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+
+            long sequence = manifest.getSequence();
+            int changes = manifest.update(found, new TemplateManifest.Loader() {
+                @Override
+                public TemplateProp load(String path) {
+                    return loadTemplateInfo(path, templateDir);
+                }
+
+                @Override
+                public TemplateManifest.Stamp stamp(String path) {
+                    Path properties = Paths.get(path, TemplateLocation.Filename);
+                    try {
+                        return new TemplateManifest.Stamp(Files.getLastModifiedTime(properties).toMillis(), Files.size(properties));
+                    } catch (IOException e) {
+                        return null;
+                    }
+                }
+            });
+            if (changes > 0 || renewed) {
+                manifest.save(file);
+                savedManifests.put(file.getPath(), manifest.getEpoch() + ":" + manifest.getSequence());
+            }
+            s_logger.info("found " + found.size() + " templates in " + templateDir + ", " + changes + " changes since sequence " + sequence + " of template manifest "
+                    + manifest.getEpoch());
+            return manifest;
+        } catch (IOException e) {
+            s_logger.warn("Unable to update the template manifest of " + templateDir, e);
+            return null;
         }
-        return result;
     }
 
     @Override
@@ -972,6 +1103,9 @@ public class DownloadManagerImpl extends ManagerBase implements DownloadManager
         value = (String)params.get("install.timeout.pergig");
         installTimeoutPerGig = NumbersUtil.parseInt(value, 15 * 60) * 1000;
 
+        value = (String)params.get("download.parallel.ranges");
+        downloadParallelRanges = NumbersUtil.parseInt(value, 4);
+
         value = (String)params.get("install.numthreads");
         final int numInstallThreads = NumbersUtil.parseInt(value, 10);
 
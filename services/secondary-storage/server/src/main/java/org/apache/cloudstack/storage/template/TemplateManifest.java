@@ -0,0 +1,255 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.storage.template;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.storage.template.TemplateProp;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+
+/**
+ * The templates of an image store as of the last sync, kept in a file on the store. Every change of a
+ * template gets the next sequence number, so a sync can ask for the changes since the sequence it saw last
+ * instead of all templates. The epoch identifies the manifest, a sequence of another epoch is unknown.
+ * Several SSVMs may list the same store, so a writer only goes on counting in the epoch of the manifest when the
+ * manifest is still the one it wrote last, see {@link #renewEpoch()}.
+ */
+public class TemplateManifest {
+    private static final Logger s_logger = Logger.getLogger(TemplateManifest.class);
+
+    public static final String Filename = "template-manifest.json";
+
+    // removed templates are forgotten when there are more of them than this, or than templates
+    private static final int MIN_REMOVED_KEPT = 1000;
+
+    public interface Loader {
+        /**
+         * @param path the directory of the template
+         * @return the template in the directory, null if it is not installed completely
+         */
+        TemplateProp load(String path);
+
+        /**
+         * @return the stamp of the template after it was loaded, as loading may update it
+         */
+        Stamp stamp(String path);
+    }
+
+    /**
+     * The time and length of the template.properties of a template, which change when the template does.
+     */
+    public static class Stamp {
+        long modified;
+        long length;
+
+        public Stamp(long modified, long length) {
+            this.modified = modified;
+            this.length = length;
+        }
+
+        boolean matches(Stamp other) {
+            return other != null && modified == other.modified && length == other.length;
+        }
+    }
+
+    static class Entry {
+        Stamp stamp;
+        long sequence;
+        TemplateProp template;
+    }
+
+    private String epoch;
+    private long sequence;
+    // changes before this sequence are not known anymore
+    private long firstSequence;
+    // by directory of the template
+    private Map<String, Entry> entries = new HashMap<String, Entry>();
+    // sequence of the removal by template name
+    private Map<String, Long> removed = new HashMap<String, Long>();
+
+    public TemplateManifest() {
+        epoch = UUID.randomUUID().toString();
+    }
+
+    private static Gson gson() {
+        return new GsonBuilder().create();
+    }
+
+    /**
+     * @return the manifest in the file, null if there is none or it cannot be read
+     */
+    public static TemplateManifest load(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            TemplateManifest manifest = gson().fromJson(reader, TemplateManifest.class);
+            if (manifest == null || manifest.epoch == null || manifest.entries == null || manifest.removed == null) {
+                s_logger.warn("Ignoring incomplete template manifest " + file);
+                return null;
+            }
+            return manifest;
+        } catch (IOException | JsonParseException e) {
+            s_logger.warn("Unable to read template manifest " + file + ", the templates are listed again", e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the manifest to a temporary file of its own first, so that a reader never sees half of it, also
+     * when other writers save the manifest at the same time.
+     */
+    public void save(File file) throws IOException {
+        File tmp = new File(file.getParentFile(), file.getName() + "." + UUID.randomUUID().toString() + ".tmp");
+        try {
+            try (Writer writer = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+                gson().toJson(this, writer);
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    /**
+     * Starts a new epoch, for a manifest another writer may have saved since this writer saved it last. Both
+     * writers may have counted the same sequences for different changes, so no sync point of the old epoch is
+     * trusted and the next sync of every management server lists all templates.
+     */
+    public void renewEpoch() {
+        epoch = UUID.randomUUID().toString();
+        firstSequence = sequence;
+    }
+
+    /**
+     * Brings the manifest up to date with the templates found on the store. Only the templates whose
+     * template.properties changed are loaded.
+     *
+     * @param found the stamps of the template.properties found, by directory of the template
+     * @return the number of changes
+     */
+    public int update(Map<String, Stamp> found, Loader loader) {
+        int changes = 0;
+        Set<String> gone = new HashSet<String>();
+        for (Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, Entry> entry = it.next();
+            if (!found.containsKey(entry.getKey())) {
+                gone.add(entry.getValue().template.getTemplateName());
+                it.remove();
+            }
+        }
+
+        for (Map.Entry<String, Stamp> stamp : found.entrySet()) {
+            String path = stamp.getKey();
+            Entry entry = entries.get(path);
+            if (entry != null && entry.stamp.matches(stamp.getValue())) {
+                continue;
+            }
+            TemplateProp template = loader.load(path);
+            if (template == null) {
+                if (entry != null) {
+                    entries.remove(path);
+                    gone.add(entry.template.getTemplateName());
+                }
+                continue;
+            }
+            if (entry == null) {
+                entry = new Entry();
+                entries.put(path, entry);
+            } else if (!entry.template.getTemplateName().equals(template.getTemplateName())) {
+                gone.add(entry.template.getTemplateName());
+            }
+            Stamp loaded = loader.stamp(path);
+            entry.stamp = loaded != null ? loaded : stamp.getValue();
+            entry.sequence = ++sequence;
+            entry.template = template;
+            removed.remove(template.getTemplateName());
+            changes++;
+        }
+
+        // a template that moved to another directory is not removed
+        for (Entry entry : entries.values()) {
+            gone.remove(entry.template.getTemplateName());
+        }
+        for (String name : gone) {
+            removed.put(name, ++sequence);
+            changes++;
+        }
+        if (removed.size() > Math.max(MIN_REMOVED_KEPT, entries.size())) {
+            removed.clear();
+            firstSequence = sequence;
+        }
+        return changes;
+    }
+
+    public String getEpoch() {
+        return epoch;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return true if the changes since the sequence of the epoch are known
+     */
+    public boolean hasChangesSince(String epoch, long sequence) {
+        return this.epoch.equals(epoch) && sequence >= firstSequence && sequence <= this.sequence;
+    }
+
+    public Map<String, TemplateProp> getTemplates() {
+        return getTemplatesChangedSince(-1);
+    }
+
+    public Map<String, TemplateProp> getTemplatesChangedSince(long sequence) {
+        Map<String, TemplateProp> templates = new HashMap<String, TemplateProp>();
+        for (Entry entry : entries.values()) {
+            if (entry.sequence > sequence) {
+                templates.put(entry.template.getTemplateName(), entry.template);
+            }
+        }
+        return templates;
+    }
+
+    public List<String> getTemplatesRemovedSince(long sequence) {
+        List<String> names = new ArrayList<String>();
+        for (Map.Entry<String, Long> entry : removed.entrySet()) {
+            if (entry.getValue() > sequence) {
+                names.add(entry.getKey());
+            }
+        }
+        return names;
+    }
+}
@@ -18,6 +18,8 @@
 package org.apache.cloudstack.storage.template;
 
 
+import org.apache.cloudstack.storage.resource.StreamingUpload;
+
 import com.cloud.storage.Storage;
 
 public class UploadEntity {
@@ -49,6 +51,7 @@ public class UploadEntity {
     private ResourceType resourceType;
     private long virtualSize;
     private boolean isMetaDataPopulated;
+    private StreamingUpload streamingUpload;
 
     public static long s_maxTemplateSize = 50L * 1024L * 1024L * 1024L;
 
@@ -207,4 +210,12 @@ public class UploadEntity {
     public void setContentLength(long contentLength) {
         this.contentLength = contentLength;
     }
+
+    public StreamingUpload getStreamingUpload() {
+        return streamingUpload;
+    }
+
+    public void setStreamingUpload(StreamingUpload streamingUpload) {
+        this.streamingUpload = streamingUpload;
+    }
 }
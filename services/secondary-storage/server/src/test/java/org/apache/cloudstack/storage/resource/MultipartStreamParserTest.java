@@ -0,0 +1,121 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.storage.resource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+public class MultipartStreamParserTest {
+    private static final String BOUNDARY = "----WebKitFormBoundary7MA4YWxkTrZu0gW";
+
+    private static class Collector implements MultipartStreamParser.Listener {
+        final List<String> parts = new ArrayList<String>();
+        final ByteArrayOutputStream file = new ByteArrayOutputStream();
+        int fileParts;
+
+        @Override
+        public boolean startPart(String name, String filename) {
+            parts.add(name + ":" + filename);
+            return filename != null;
+        }
+
+        @Override
+        public void content(ByteBuf content) {
+            byte[] bytes = new byte[content.readableBytes()];
+            content.getBytes(content.readerIndex(), bytes);
+            file.write(bytes, 0, bytes.length);
+        }
+
+        @Override
+        public void endPart() {
+            fileParts++;
+        }
+    }
+
+    private static byte[] fileContent() {
+        byte[] content = new byte[3000];
+        new Random(42).nextBytes(content);
+        // parts of the delimiter in the content must not end the part
+        byte[] almost = ("\r\n--" + BOUNDARY.substring(0, BOUNDARY.length() - 1) + "x").getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(almost, 0, content, 100, almost.length);
+        System.arraycopy(almost, 0, content, content.length - almost.length - 1, almost.length);
+        content[content.length - 1] = '\r';
+        return content;
+    }
+
+    private static byte[] body(byte[] content) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"description\"\r\n\r\na template\r\n"
+                + "--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"my \\\"template\\\"; v2.qcow2\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+        body.write(content);
+        body.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        return body.toByteArray();
+    }
+
+    private static Collector parse(byte[] body, int chunkSize) throws IOException {
+        Collector collector = new Collector();
+        MultipartStreamParser parser = new MultipartStreamParser(BOUNDARY, collector);
+        for (int offset = 0; offset < body.length; offset += chunkSize) {
+            parser.offer(Unpooled.wrappedBuffer(body, offset, Math.min(chunkSize, body.length - offset)));
+        }
+        Assert.assertTrue(parser.isComplete());
+        return collector;
+    }
+
+    @Test
+    public void testFilePartIsStreamedWhateverTheChunkSize() throws IOException {
+        byte[] content = fileContent();
+        byte[] body = body(content);
+        for (int chunkSize : new int[] {1, 2, 3, 7, 37, 38, 39, 41, 64, 100, 1000, body.length}) {
+            Collector collector = parse(body, chunkSize);
+            Assert.assertEquals("chunk size " + chunkSize, 2, collector.parts.size());
+            Assert.assertEquals("description:null", collector.parts.get(0));
+            Assert.assertEquals("file:my \"template\"; v2.qcow2", collector.parts.get(1));
+            Assert.assertEquals(1, collector.fileParts);
+            Assert.assertArrayEquals("chunk size " + chunkSize, content, collector.file.toByteArray());
+        }
+    }
+
+    @Test
+    public void testIncompleteBody() throws IOException {
+        byte[] body = body(fileContent());
+        Collector collector = new Collector();
+        MultipartStreamParser parser = new MultipartStreamParser(BOUNDARY, collector);
+        parser.offer(Unpooled.wrappedBuffer(body, 0, body.length - 10));
+        Assert.assertFalse(parser.isComplete());
+        Assert.assertEquals(0, collector.fileParts);
+    }
+
+    @Test
+    public void testGetBoundary() {
+        Assert.assertEquals(BOUNDARY, MultipartStreamParser.getBoundary("multipart/form-data; boundary=" + BOUNDARY));
+        Assert.assertEquals("a b", MultipartStreamParser.getBoundary("Multipart/Form-Data; charset=utf-8; boundary=\"a b\""));
+        Assert.assertNull(MultipartStreamParser.getBoundary("application/octet-stream"));
+        Assert.assertNull(MultipartStreamParser.getBoundary(null));
+    }
+}
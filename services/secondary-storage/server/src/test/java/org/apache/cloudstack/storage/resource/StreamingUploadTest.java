@@ -0,0 +1,126 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.storage.resource;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.codec.binary.Hex;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.netty.buffer.Unpooled;
+
+public class StreamingUploadTest {
+    private File dir;
+    private File file;
+    private byte[] content;
+
+    @Before
+    public void setUp() throws IOException {
+        // the format of the upload is checked with the file command
+        Assume.assumeTrue(new File("/usr/bin/file").canExecute());
+        dir = Files.createTempDirectory("upload").toFile();
+        file = new File(dir, "upload-test.qcow2");
+        content = new byte[3 * 1024 * 1024];
+        new Random(7).nextBytes(content);
+        // a qcow2 version 2 header
+        byte[] header = {'Q', 'F', 'I', (byte)0xfb, 0, 0, 0, 2};
+        Arrays.fill(content, 0, 512, (byte)0);
+        System.arraycopy(header, 0, content, 0, header.length);
+        content[23] = 0x10;
+        content[30] = 0x10;
+    }
+
+    @After
+    public void tearDown() {
+        if (dir != null) {
+            file.delete();
+            dir.delete();
+        }
+    }
+
+    private String md5(byte[] data) throws NoSuchAlgorithmException {
+        return Hex.encodeHexString(MessageDigest.getInstance("MD5").digest(data));
+    }
+
+    @Test
+    public void testUploadInTwoRequests() throws Exception {
+        StreamingUpload upload = new StreamingUpload(file, "template.qcow2", content.length, "MD5");
+        upload.write(Unpooled.wrappedBuffer(content, 0, 2 * 1024 * 1024));
+        Assert.assertNull(upload.getFormatError());
+        upload.suspend();
+
+        try {
+            upload.resume(1024);
+            Assert.fail("resumed at the wrong offset");
+        } catch (IOException e) {
+            Assert.assertTrue(upload.isSuspended());
+        }
+        upload.resume(2 * 1024 * 1024);
+        upload.write(Unpooled.wrappedBuffer(content, 2 * 1024 * 1024, content.length - 2 * 1024 * 1024));
+
+        Assert.assertNull(upload.finish("{MD5}" + md5(content).toUpperCase()));
+        Assert.assertTrue(upload.isChecksumVerified());
+        Assert.assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    public void testChecksumMismatch() throws Exception {
+        StreamingUpload upload = new StreamingUpload(file, "template.qcow2", content.length, "MD5");
+        upload.write(Unpooled.wrappedBuffer(content));
+        Assert.assertNotNull(upload.finish(md5(new byte[] {1})));
+        Assert.assertFalse(upload.isChecksumVerified());
+        upload.abort();
+        Assert.assertFalse(file.exists());
+    }
+
+    @Test
+    public void testChecksumOfAnotherAlgorithmIsLeftToTheInstallScript() throws Exception {
+        StreamingUpload upload = new StreamingUpload(file, "template.qcow2", content.length, "MD5");
+        upload.write(Unpooled.wrappedBuffer(content));
+        // a bare sha256 checksum is taken for MD5, but has another length
+        Assert.assertNull(upload.finish(Hex.encodeHexString(MessageDigest.getInstance("SHA-256").digest(content))));
+        Assert.assertFalse(upload.isChecksumVerified());
+    }
+
+    @Test
+    public void testWrongFormatIsRejectedEarly() throws Exception {
+        StreamingUpload upload = new StreamingUpload(file, "template.vhd", -1, null);
+        upload.write(Unpooled.wrappedBuffer(content, 0, 1024 * 1024));
+        Assert.assertNotNull(upload.getFormatError());
+        upload.abort();
+    }
+
+    @Test(expected = IOException.class)
+    public void testMoreThanTheSize() throws Exception {
+        StreamingUpload upload = new StreamingUpload(file, "template.qcow2", 10, null);
+        try {
+            upload.write(Unpooled.wrappedBuffer(content, 0, 11));
+        } finally {
+            upload.abort();
+        }
+    }
+}
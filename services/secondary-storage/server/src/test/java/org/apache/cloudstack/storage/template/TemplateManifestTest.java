@@ -0,0 +1,154 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.storage.template;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.cloud.storage.template.TemplateProp;
+
+public class TemplateManifestTest {
+
+    private static class MapLoader implements TemplateManifest.Loader {
+        final Map<String, String> names = new HashMap<String, String>();
+        int loads;
+
+        @Override
+        public TemplateProp load(String path) {
+            loads++;
+            String name = names.get(path);
+            return name == null ? null : new TemplateProp(name, path + "/" + name + ".qcow2", 100, 50, true, false);
+        }
+
+        @Override
+        public TemplateManifest.Stamp stamp(String path) {
+            return null;
+        }
+    }
+
+    @Test
+    public void testOnlyChangedTemplatesAreLoadedAndListed() {
+        TemplateManifest manifest = new TemplateManifest();
+        MapLoader loader = new MapLoader();
+        loader.names.put("template/tmpl/2/201", "201-2-abc");
+        loader.names.put("template/tmpl/2/202", "202-2-def");
+        Map<String, TemplateManifest.Stamp> found = new HashMap<String, TemplateManifest.Stamp>();
+        found.put("template/tmpl/2/201", new TemplateManifest.Stamp(1000, 300));
+        found.put("template/tmpl/2/202", new TemplateManifest.Stamp(1000, 310));
+
+        Assert.assertEquals(2, manifest.update(found, loader));
+        Assert.assertEquals(2, manifest.getTemplates().size());
+        long synced = manifest.getSequence();
+
+        Assert.assertEquals(0, manifest.update(found, loader));
+        Assert.assertEquals(2, loader.loads);
+
+        found.put("template/tmpl/2/202", new TemplateManifest.Stamp(2000, 310));
+        found.remove("template/tmpl/2/201");
+        Assert.assertEquals(2, manifest.update(found, loader));
+        Assert.assertEquals(3, loader.loads);
+
+        Assert.assertTrue(manifest.hasChangesSince(manifest.getEpoch(), synced));
+        Assert.assertEquals(1, manifest.getTemplatesChangedSince(synced).size());
+        Assert.assertTrue(manifest.getTemplatesChangedSince(synced).containsKey("202-2-def"));
+        Assert.assertEquals(1, manifest.getTemplatesRemovedSince(synced).size());
+        Assert.assertEquals("201-2-abc", manifest.getTemplatesRemovedSince(synced).get(0));
+    }
+
+    @Test
+    public void testUnknownSyncPoint() {
+        TemplateManifest manifest = new TemplateManifest();
+        Assert.assertFalse(manifest.hasChangesSince(null, -1));
+        Assert.assertFalse(manifest.hasChangesSince("another epoch", 0));
+        Assert.assertTrue(manifest.hasChangesSince(manifest.getEpoch(), 0));
+        Assert.assertFalse(manifest.hasChangesSince(manifest.getEpoch(), 1));
+    }
+
+    @Test
+    public void testRenewedEpochForgetsTheSyncPoints() {
+        TemplateManifest manifest = new TemplateManifest();
+        MapLoader loader = new MapLoader();
+        loader.names.put("template/tmpl/2/201", "201-2-abc");
+        Map<String, TemplateManifest.Stamp> found = new HashMap<String, TemplateManifest.Stamp>();
+        found.put("template/tmpl/2/201", new TemplateManifest.Stamp(1000, 300));
+        manifest.update(found, loader);
+        String epoch = manifest.getEpoch();
+        long synced = manifest.getSequence();
+
+        manifest.renewEpoch();
+        Assert.assertNotEquals(epoch, manifest.getEpoch());
+        Assert.assertFalse(manifest.hasChangesSince(epoch, synced));
+        Assert.assertFalse(manifest.hasChangesSince(manifest.getEpoch(), 0));
+        Assert.assertTrue(manifest.hasChangesSince(manifest.getEpoch(), manifest.getSequence()));
+        Assert.assertEquals(1, manifest.getTemplates().size());
+    }
+
+    @Test
+    public void testMovedTemplateIsNotRemoved() {
+        TemplateManifest manifest = new TemplateManifest();
+        MapLoader loader = new MapLoader();
+        loader.names.put("template/tmpl/2/201", "201-2-abc");
+        Map<String, TemplateManifest.Stamp> found = new HashMap<String, TemplateManifest.Stamp>();
+        found.put("template/tmpl/2/201", new TemplateManifest.Stamp(1000, 300));
+        manifest.update(found, loader);
+        long synced = manifest.getSequence();
+
+        loader.names.put("template/tmpl/3/201", "201-2-abc");
+        found.clear();
+        found.put("template/tmpl/3/201", new TemplateManifest.Stamp(1000, 300));
+        manifest.update(found, loader);
+        Assert.assertTrue(manifest.getTemplatesRemovedSince(synced).isEmpty());
+        Assert.assertEquals("template/tmpl/3/201/201-2-abc.qcow2", manifest.getTemplatesChangedSince(synced).get("201-2-abc").getInstallPath());
+    }
+
+    @Test
+    public void testSaveAndLoad() throws IOException {
+        File dir = Files.createTempDirectory("manifest").toFile();
+        File file = new File(dir, TemplateManifest.Filename);
+        try {
+            Assert.assertNull(TemplateManifest.load(file));
+            TemplateManifest manifest = new TemplateManifest();
+            MapLoader loader = new MapLoader();
+            loader.names.put("template/tmpl/2/201", "201-2-abc");
+            Map<String, TemplateManifest.Stamp> found = new HashMap<String, TemplateManifest.Stamp>();
+            found.put("template/tmpl/2/201", new TemplateManifest.Stamp(1000, 300));
+            manifest.update(found, loader);
+            manifest.save(file);
+
+            TemplateManifest loaded = TemplateManifest.load(file);
+            Assert.assertNotNull(loaded);
+            Assert.assertEquals(manifest.getEpoch(), loaded.getEpoch());
+            Assert.assertEquals(manifest.getSequence(), loaded.getSequence());
+            Assert.assertEquals(0, loaded.update(found, loader));
+            Assert.assertEquals(1, loaded.getTemplates().size());
+
+            Assert.assertArrayEquals(new String[] {TemplateManifest.Filename}, dir.list());
+
+            Files.write(file.toPath(), "{not json".getBytes());
+            Assert.assertNull(TemplateManifest.load(file));
+        } finally {
+            file.delete();
+            dir.delete();
+        }
+    }
+}
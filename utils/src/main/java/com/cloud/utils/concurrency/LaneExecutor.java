@@ -0,0 +1,175 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils.concurrency;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs tasks on lanes, each with threads and a bounded queue of its own, so that slow tasks of one kind
+ * cannot hold up the tasks of another. The depth of the queue and the time tasks wait and run are kept per lane.
+ */
+public class LaneExecutor {
+    private final String _name;
+    private final Map<String, Lane> _lanes = new LinkedHashMap<String, Lane>();
+
+    public LaneExecutor(final String name) {
+        _name = name;
+    }
+
+    /**
+     * Adds a lane, to be done before tasks are run on it.
+     *
+     * @param threads the number of tasks of the lane run at a time
+     * @param queueSize the number of tasks of the lane waiting at most
+     */
+    public synchronized LaneExecutor addLane(final String lane, final int threads, final int queueSize) {
+        if (_lanes.containsKey(lane)) {
+            throw new IllegalArgumentException("Lane " + lane + " of " + _name + " exists already");
+        }
+        _lanes.put(lane, new Lane(lane, Math.max(1, threads), Math.max(1, queueSize)));
+        return this;
+    }
+
+    private synchronized Lane getLane(final String lane) {
+        final Lane found = _lanes.get(lane);
+        if (found == null) {
+            throw new IllegalArgumentException("Lane " + lane + " of " + _name + " does not exist");
+        }
+        return found;
+    }
+
+    /**
+     * @return false if the queue of the lane is full or the executor is shut down, the task is not run then
+     */
+    public boolean execute(final String lane, final Runnable task) {
+        return getLane(lane).execute(task);
+    }
+
+    public int getQueueDepth(final String lane) {
+        return getLane(lane).executor.getQueue().size();
+    }
+
+    public int getActiveCount(final String lane) {
+        return getLane(lane).executor.getActiveCount();
+    }
+
+    public long getCompletedCount(final String lane) {
+        return getLane(lane).completed.get();
+    }
+
+    public long getRejectedCount(final String lane) {
+        return getLane(lane).rejected.get();
+    }
+
+    /**
+     * @return the time the tasks of the lane waited in the queue on average, in milliseconds
+     */
+    public long getAverageWaitMillis(final String lane) {
+        final Lane found = getLane(lane);
+        final long completed = found.completed.get();
+        return completed == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(found.waitNanos.get() / completed);
+    }
+
+    /**
+     * @return the longest time a task of the lane waited in the queue since the last report, in milliseconds
+     */
+    public long getMaxWaitMillis(final String lane) {
+        return TimeUnit.NANOSECONDS.toMillis(getLane(lane).maxWaitNanos.get());
+    }
+
+    /**
+     * Describes the state of the lanes for the log, and starts over the longest waits.
+     */
+    public synchronized String report() {
+        final StringBuilder report = new StringBuilder(_name);
+        for (final Lane lane : _lanes.values()) {
+            final long completed = lane.completed.get();
+            report.append(" [").append(lane.name).append(": ").append(lane.executor.getQueue().size()).append(" queued, ")
+                    .append(lane.executor.getActiveCount()).append(" active, ").append(completed).append(" done, ")
+                    .append(lane.rejected.get()).append(" rejected, wait ")
+                    .append(completed == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(lane.waitNanos.get() / completed)).append("ms avg ")
+                    .append(TimeUnit.NANOSECONDS.toMillis(lane.maxWaitNanos.getAndSet(0))).append("ms max, run ")
+                    .append(completed == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(lane.runNanos.get() / completed)).append("ms avg]");
+        }
+        return report.toString();
+    }
+
+    public synchronized void shutdown() {
+        for (final Lane lane : _lanes.values()) {
+            lane.executor.shutdown();
+        }
+    }
+
+    public synchronized void shutdownNow() {
+        for (final Lane lane : _lanes.values()) {
+            lane.executor.shutdownNow();
+        }
+    }
+
+    private class Lane {
+        final String name;
+        final ThreadPoolExecutor executor;
+        final AtomicLong completed = new AtomicLong();
+        final AtomicLong rejected = new AtomicLong();
+        final AtomicLong waitNanos = new AtomicLong();
+        final AtomicLong maxWaitNanos = new AtomicLong();
+        final AtomicLong runNanos = new AtomicLong();
+
+        Lane(final String name, final int threads, final int queueSize) {
+            this.name = name;
+            executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize), new NamedThreadFactory(_name + "-" + name));
+            executor.allowCoreThreadTimeOut(true);
+        }
+
+        boolean execute(final Runnable task) {
+            final long queuedAt = System.nanoTime();
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        final long startedAt = System.nanoTime();
+                        final long waited = startedAt - queuedAt;
+                        waitNanos.addAndGet(waited);
+                        long max = maxWaitNanos.get();
+                        while (waited > max && !maxWaitNanos.compareAndSet(max, waited)) {
+                            max = maxWaitNanos.get();
+                        }
+                        try {
+                            task.run();
+                        } finally {
+                            runNanos.addAndGet(System.nanoTime() - startedAt);
+                            completed.incrementAndGet();
+                        }
+                    }
+                });
+                return true;
+            } catch (final RejectedExecutionException e) {
+                rejected.incrementAndGet();
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,252 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils.net;
+
+import com.googlecode.ipv6.IPv6Address;
+import com.googlecode.ipv6.IPv6Network;
+
+/**
+ * An IPv4 or IPv6 network prefix held as numbers, with its host bits cleared. The CIDR is parsed once, after which
+ * the containment and overlap checks are a few bit operations instead of parsing strings on every comparison as
+ * the string based methods of {@link NetUtils} do.
+ */
+public final class IpPrefix {
+    public static final int IPV4_LENGTH = 32;
+    public static final int IPV6_LENGTH = 128;
+
+    private final boolean ipv6;
+    // the first 64 bits of an IPv6 prefix, 0 for IPv4
+    private final long high;
+    // an IPv4 prefix, or the last 64 bits of an IPv6 prefix
+    private final long low;
+    private final int length;
+
+    private IpPrefix(final boolean ipv6, final long high, final long low, final int length) {
+        this.ipv6 = ipv6;
+        this.length = length;
+        if (ipv6) {
+            this.high = length >= 64 ? high : high & mask64(length);
+            this.low = length <= 64 ? 0 : low & mask64(length - 64);
+        } else {
+            this.high = 0;
+            this.low = low & ipv4Mask(length);
+        }
+    }
+
+    public static IpPrefix ipv4(final long address, final int length) {
+        if (length < 0 || length > IPV4_LENGTH || address < 0 || address > 0xffffffffL) {
+            throw new IllegalArgumentException("Invalid IPv4 prefix " + address + "/" + length);
+        }
+        return new IpPrefix(false, 0, address, length);
+    }
+
+    public static IpPrefix ipv6(final long high, final long low, final int length) {
+        if (length < 0 || length > IPV6_LENGTH) {
+            throw new IllegalArgumentException("Invalid IPv6 prefix length " + length);
+        }
+        return new IpPrefix(true, high, low, length);
+    }
+
+    /**
+     * Parses a CIDR such as 10.1.0.0/16 or 2001:db8::/32.
+     *
+     * @throws IllegalArgumentException if the CIDR is not valid
+     */
+    public static IpPrefix parse(final String cidr) {
+        if (cidr == null || cidr.isEmpty()) {
+            throw new IllegalArgumentException("Empty CIDR");
+        }
+        if (cidr.indexOf('/') < 0) {
+            throw new IllegalArgumentException("CIDR " + cidr + " has no prefix length");
+        }
+        if (cidr.indexOf(':') >= 0) {
+            try {
+                final IPv6Network network = IPv6Network.fromString(cidr);
+                return ipv6(network.getFirst().getHighBits(), network.getFirst().getLowBits(), network.getNetmask().asPrefixLength());
+            } catch (final IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid IPv6 CIDR " + cidr, e);
+            }
+        }
+
+        long address = 0;
+        int octets = 0;
+        int index = 0;
+        final int end = cidr.length();
+        while (true) {
+            final int start = index;
+            int octet = 0;
+            while (index < end && isDigit(cidr.charAt(index)) && index - start < 3) {
+                octet = octet * 10 + cidr.charAt(index) - '0';
+                index++;
+            }
+            // no leading zeros, as the validator of NetUtils.isValidIp4
+            if (index == start || octet > 255 || (cidr.charAt(start) == '0' && index - start > 1)) {
+                throw new IllegalArgumentException("Invalid IPv4 CIDR " + cidr);
+            }
+            address = address << 8 | octet;
+            octets++;
+            if (octets == 4 || index == end || cidr.charAt(index) != '.') {
+                break;
+            }
+            index++;
+        }
+        if (octets != 4) {
+            throw new IllegalArgumentException("Invalid IPv4 CIDR " + cidr);
+        }
+
+        if (index == end || cidr.charAt(index) != '/' || index + 1 == end || end - index > 3) {
+            throw new IllegalArgumentException("Invalid IPv4 CIDR " + cidr);
+        }
+        int length = 0;
+        for (index++; index < end; index++) {
+            final char c = cidr.charAt(index);
+            if (!isDigit(c)) {
+                throw new IllegalArgumentException("Invalid IPv4 CIDR " + cidr);
+            }
+            length = length * 10 + c - '0';
+        }
+        if (length > IPV4_LENGTH) {
+            throw new IllegalArgumentException("Invalid IPv4 CIDR " + cidr);
+        }
+        return new IpPrefix(false, 0, address, length);
+    }
+
+    private static boolean isDigit(final char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * @return the prefix, null if the CIDR is not valid
+     */
+    public static IpPrefix tryParse(final String cidr) {
+        try {
+            return parse(cidr);
+        } catch (final IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the netmask of an IPv4 prefix of the length, as a number
+     */
+    public static long ipv4Mask(final int length) {
+        return length == 0 ? 0 : 0xffffffffL << (IPV4_LENGTH - length) & 0xffffffffL;
+    }
+
+    private static long mask64(final int length) {
+        return length == 0 ? 0 : -1L << (64 - length);
+    }
+
+    /**
+     * Checks whether two IPv4 prefixes given as numbers overlap, that is one contains the other.
+     */
+    public static boolean overlaps(final long addressA, final int lengthA, final long addressB, final int lengthB) {
+        final long mask = ipv4Mask(Math.min(lengthA, lengthB));
+        return (addressA & mask) == (addressB & mask);
+    }
+
+    public boolean isIpv6() {
+        return ipv6;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return the first address of an IPv4 prefix, or the last 64 bits of an IPv6 prefix
+     */
+    public long getAddress() {
+        return low;
+    }
+
+    public long getHighBits() {
+        return high;
+    }
+
+    /**
+     * @return the bit of the prefix at the index, counting from the most significant one
+     */
+    boolean bit(final int index) {
+        if (!ipv6) {
+            return (low >>> (IPV4_LENGTH - 1 - index) & 1) != 0;
+        }
+        return index < 64 ? (high >>> (63 - index) & 1) != 0 : (low >>> (127 - index) & 1) != 0;
+    }
+
+    /**
+     * @return true if the other prefix is within this one, or the same
+     */
+    public boolean contains(final IpPrefix other) {
+        return ipv6 == other.ipv6 && length <= other.length && matches(other, length);
+    }
+
+    /**
+     * @return true if the prefixes have addresses in common, that is one of them contains the other
+     */
+    public boolean overlaps(final IpPrefix other) {
+        return ipv6 == other.ipv6 && matches(other, Math.min(length, other.length));
+    }
+
+    public boolean containsAddress(final long ipv4Address) {
+        return !ipv6 && (ipv4Address & ipv4Mask(length)) == low;
+    }
+
+    private boolean matches(final IpPrefix other, final int bits) {
+        if (!ipv6) {
+            final long mask = ipv4Mask(bits);
+            return (low & mask) == (other.low & mask);
+        }
+        if (bits <= 64) {
+            final long mask = mask64(bits);
+            return (high & mask) == (other.high & mask);
+        }
+        final long mask = mask64(bits - 64);
+        return high == other.high && (low & mask) == (other.low & mask);
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof IpPrefix)) {
+            return false;
+        }
+        final IpPrefix other = (IpPrefix)obj;
+        return ipv6 == other.ipv6 && high == other.high && low == other.low && length == other.length;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = Long.hashCode(high);
+        result = 31 * result + Long.hashCode(low);
+        result = 31 * result + length;
+        return ipv6 ? -result : result;
+    }
+
+    @Override
+    public String toString() {
+        if (ipv6) {
+            return IPv6Address.fromLongs(high, low) + "/" + length;
+        }
+        return NetUtils.long2Ip(low) + "/" + length;
+    }
+}
@@ -0,0 +1,229 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils.net;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Network prefixes with a value each, in a binary radix tree per address family, one level per bit of the
+ * prefixes. Finding the prefixes overlapping a prefix, or the longest one containing it, takes time in the
+ * length of the prefix rather than in the number of prefixes. Not thread safe.
+ */
+public class IpPrefixIndex<V> {
+    private final Node<V> _ipv4 = new Node<V>();
+    private final Node<V> _ipv6 = new Node<V>();
+
+    private static class Node<V> {
+        Node<V> zero;
+        Node<V> one;
+        IpPrefix prefix;
+        V value;
+        // the number of prefixes in the subtree of the node, itself included
+        int count;
+
+        Node<V> child(final boolean bit) {
+            return bit ? one : zero;
+        }
+    }
+
+    public static class Entry<V> {
+        private final IpPrefix prefix;
+        private final V value;
+
+        Entry(final IpPrefix prefix, final V value) {
+            this.prefix = prefix;
+            this.value = value;
+        }
+
+        public IpPrefix getPrefix() {
+            return prefix;
+        }
+
+        public V getValue() {
+            return value;
+        }
+    }
+
+    private Node<V> root(final IpPrefix prefix) {
+        return prefix.isIpv6() ? _ipv6 : _ipv4;
+    }
+
+    public int size() {
+        return _ipv4.count + _ipv6.count;
+    }
+
+    /**
+     * @return the value the prefix had before, null if it had none
+     */
+    public V put(final IpPrefix prefix, final V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("The value of prefix " + prefix + " is null");
+        }
+        if (get(prefix) != null) {
+            final Node<V> node = find(prefix);
+            final V old = node.value;
+            node.value = value;
+            return old;
+        }
+        Node<V> node = root(prefix);
+        node.count++;
+        for (int i = 0; i < prefix.getLength(); i++) {
+            final boolean bit = prefix.bit(i);
+            Node<V> child = node.child(bit);
+            if (child == null) {
+                child = new Node<V>();
+                if (bit) {
+                    node.one = child;
+                } else {
+                    node.zero = child;
+                }
+            }
+            child.count++;
+            node = child;
+        }
+        node.prefix = prefix;
+        node.value = value;
+        return null;
+    }
+
+    /**
+     * @return the value of the prefix, null if it is not in the index
+     */
+    public V get(final IpPrefix prefix) {
+        final Node<V> node = find(prefix);
+        return node == null ? null : node.value;
+    }
+
+    /**
+     * @return the value the prefix had, null if it was not in the index
+     */
+    public V remove(final IpPrefix prefix) {
+        final Node<V> found = find(prefix);
+        if (found == null || found.value == null) {
+            return null;
+        }
+        final V old = found.value;
+        Node<V> node = root(prefix);
+        node.count--;
+        for (int i = 0; i < prefix.getLength(); i++) {
+            final boolean bit = prefix.bit(i);
+            final Node<V> child = node.child(bit);
+            if (--child.count == 0) {
+                // the rest of the path holds no prefix anymore
+                if (bit) {
+                    node.one = null;
+                } else {
+                    node.zero = null;
+                }
+                return old;
+            }
+            node = child;
+        }
+        node.prefix = null;
+        node.value = null;
+        return old;
+    }
+
+    private Node<V> find(final IpPrefix prefix) {
+        Node<V> node = root(prefix);
+        for (int i = 0; i < prefix.getLength() && node != null; i++) {
+            node = node.child(prefix.bit(i));
+        }
+        return node;
+    }
+
+    /**
+     * @return the value of the longest prefix containing the given one or the same, null if there is none
+     */
+    public V longestMatch(final IpPrefix prefix) {
+        Node<V> node = root(prefix);
+        V match = node.value;
+        for (int i = 0; i < prefix.getLength(); i++) {
+            node = node.child(prefix.bit(i));
+            if (node == null) {
+                break;
+            }
+            if (node.value != null) {
+                match = node.value;
+            }
+        }
+        return match;
+    }
+
+    /**
+     * @return true if a prefix of the index contains the given one, is within it or is the same
+     */
+    public boolean overlaps(final IpPrefix prefix) {
+        Node<V> node = root(prefix);
+        for (int i = 0; i < prefix.getLength(); i++) {
+            if (node.value != null) {
+                return true;
+            }
+            node = node.child(prefix.bit(i));
+            if (node == null) {
+                return false;
+            }
+        }
+        return node.count > 0;
+    }
+
+    /**
+     * @return the prefixes that contain the given one, are within it or are the same, the shorter ones first
+     */
+    public List<Entry<V>> findOverlapping(final IpPrefix prefix) {
+        final List<Entry<V>> overlapping = new ArrayList<Entry<V>>();
+        Node<V> node = root(prefix);
+        for (int i = 0; i < prefix.getLength(); i++) {
+            if (node.value != null) {
+                overlapping.add(new Entry<V>(node.prefix, node.value));
+            }
+            node = node.child(prefix.bit(i));
+            if (node == null) {
+                return overlapping;
+            }
+        }
+        final Deque<Node<V>> subtree = new ArrayDeque<Node<V>>();
+        subtree.push(node);
+        while (!subtree.isEmpty()) {
+            final Node<V> next = subtree.pop();
+            if (next.value != null) {
+                overlapping.add(new Entry<V>(next.prefix, next.value));
+            }
+            if (next.one != null) {
+                subtree.push(next.one);
+            }
+            if (next.zero != null) {
+                subtree.push(next.zero);
+            }
+        }
+        return overlapping;
+    }
+
+    /**
+     * @return the value of a prefix overlapping the given one, null if there is none
+     */
+    public V findAnyOverlapping(final IpPrefix prefix) {
+        final List<Entry<V>> overlapping = overlaps(prefix) ? findOverlapping(prefix) : null;
+        return overlapping == null || overlapping.isEmpty() ? null : overlapping.get(0).getValue();
+    }
+}
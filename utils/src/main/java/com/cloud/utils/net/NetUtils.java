@@ -794,6 +794,18 @@ public class NetUtils {
         if (!areCidrsNotEmpty(cidrA, cidrB)) {
             return SupersetOrSubset.errorInCidrFormat;
         }
+        final IpPrefix prefixA = parseIp4Prefix(cidrA);
+        final IpPrefix prefixB = prefixA == null ? null : parseIp4Prefix(cidrB);
+        if (prefixB != null) {
+            if (!prefixA.overlaps(prefixB)) {
+                return SupersetOrSubset.neitherSubetNorSuperset;
+            } else if (prefixA.getLength() < prefixB.getLength()) {
+                return SupersetOrSubset.isSuperset;
+            } else if (prefixA.getLength() == prefixB.getLength()) {
+                return SupersetOrSubset.sameSubnet;
+            }
+            return SupersetOrSubset.isSubset;
+        }
         final Long[] cidrALong = cidrToLong(cidrA);
         final Long[] cidrBLong = cidrToLong(cidrB);
         long shift = 0;
@@ -823,6 +835,11 @@ public class NetUtils {
         if (!areCidrsNotEmpty(cidrA, cidrB)) {
             return false;
         }
+        final IpPrefix prefixA = parseIp4Prefix(cidrA);
+        final IpPrefix prefixB = prefixA == null ? null : parseIp4Prefix(cidrB);
+        if (prefixB != null) {
+            return prefixB.contains(prefixA);
+        }
         Long[] cidrALong = cidrToLong(cidrA);
         Long[] cidrBLong = cidrToLong(cidrB);
 
@@ -830,6 +847,14 @@ public class NetUtils {
         return (cidrALong[0] >> shift == cidrBLong[0] >> shift) && (cidrALong[1] >= cidrBLong[1]);
     }
 
+    /**
+     * @return the IPv4 prefix of the CIDR, null if it is not one, so that the checks of the CIDR are left to cidrToLong
+     */
+    private static IpPrefix parseIp4Prefix(final String cidr) {
+        final IpPrefix prefix = IpPrefix.tryParse(cidr);
+        return prefix == null || prefix.isIpv6() ? null : prefix;
+    }
+
     static boolean areCidrsNotEmpty(String cidrA, String cidrB) {
         return StringUtils.isNotEmpty(cidrA) && StringUtils.isNotEmpty(cidrB);
     }
@@ -1132,6 +1157,11 @@ public class NetUtils {
     }
 
     public static boolean isNetworksOverlap(final String cidrA, final String cidrB) {
+        final IpPrefix prefixA = parseIp4Prefix(cidrA);
+        final IpPrefix prefixB = prefixA == null ? null : parseIp4Prefix(cidrB);
+        if (prefixB != null) {
+            return prefixA.overlaps(prefixB);
+        }
         try {
             Long[] cidrALong = cidrToLong(cidrA);
             Long[] cidrBLong = cidrToLong(cidrB);
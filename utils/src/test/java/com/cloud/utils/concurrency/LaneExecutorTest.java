@@ -0,0 +1,117 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils.concurrency;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LaneExecutorTest {
+    private LaneExecutor executor;
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @Before
+    public void setUp() {
+        executor = new LaneExecutor("Test").addLane("control", 1, 10).addLane("default", 1, 1);
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        executor.shutdownNow();
+    }
+
+    private Runnable blocked(final CountDownLatch started) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+
+    @Test
+    public void testBusyLaneDoesNotHoldUpOthers() throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        Assert.assertTrue(executor.execute("default", blocked(started)));
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        final CountDownLatch ran = new CountDownLatch(1);
+        Assert.assertTrue(executor.execute("control", new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        }));
+        Assert.assertTrue(ran.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(1, executor.getActiveCount("default"));
+    }
+
+    @Test
+    public void testFullLaneRejects() throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        Assert.assertTrue(executor.execute("default", blocked(started)));
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(executor.execute("default", blocked(new CountDownLatch(1))));
+        Assert.assertEquals(1, executor.getQueueDepth("default"));
+
+        Assert.assertFalse(executor.execute("default", blocked(new CountDownLatch(1))));
+        Assert.assertEquals(1, executor.getRejectedCount("default"));
+        Assert.assertEquals(0, executor.getRejectedCount("control"));
+    }
+
+    @Test
+    public void testCompletedTasksAreCounted() throws InterruptedException {
+        final CountDownLatch ran = new CountDownLatch(3);
+        for (int i = 0; i < 3; i++) {
+            executor.execute("control", new Runnable() {
+                @Override
+                public void run() {
+                    ran.countDown();
+                }
+            });
+        }
+        Assert.assertTrue(ran.await(5, TimeUnit.SECONDS));
+        // the count is updated once the task returned
+        for (int i = 0; i < 50 && executor.getCompletedCount("control") < 3; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(3, executor.getCompletedCount("control"));
+        Assert.assertTrue(executor.report().contains("control: 0 queued"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownLane() {
+        executor.execute("storage", new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+    }
+}
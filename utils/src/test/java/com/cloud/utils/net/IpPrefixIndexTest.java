@@ -0,0 +1,137 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+public class IpPrefixIndexTest {
+    private static final Logger s_logger = Logger.getLogger(IpPrefixIndexTest.class);
+
+    private static IpPrefixIndex<String> index(String... cidrs) {
+        IpPrefixIndex<String> index = new IpPrefixIndex<String>();
+        for (String cidr : cidrs) {
+            index.put(IpPrefix.parse(cidr), cidr);
+        }
+        return index;
+    }
+
+    @Test
+    public void testLongestMatch() {
+        IpPrefixIndex<String> index = index("10.0.0.0/8", "10.1.0.0/16", "10.1.1.0/24", "0.0.0.0/0");
+        assertEquals("10.1.1.0/24", index.longestMatch(IpPrefix.parse("10.1.1.5/32")));
+        assertEquals("10.1.0.0/16", index.longestMatch(IpPrefix.parse("10.1.2.0/24")));
+        assertEquals("10.0.0.0/8", index.longestMatch(IpPrefix.parse("10.2.0.0/16")));
+        assertEquals("0.0.0.0/0", index.longestMatch(IpPrefix.parse("11.0.0.0/8")));
+        assertEquals(4, index.size());
+    }
+
+    @Test
+    public void testOverlapping() {
+        IpPrefixIndex<String> index = index("10.0.0.0/8", "10.1.1.0/24", "10.1.2.0/24", "192.168.0.0/16");
+        assertTrue(index.overlaps(IpPrefix.parse("10.1.0.0/16")));
+        assertTrue(index.overlaps(IpPrefix.parse("192.168.10.0/24")));
+        assertFalse(index.overlaps(IpPrefix.parse("172.16.0.0/12")));
+
+        Set<String> overlapping = new HashSet<String>();
+        for (IpPrefixIndex.Entry<String> entry : index.findOverlapping(IpPrefix.parse("10.1.0.0/16"))) {
+            overlapping.add(entry.getValue());
+        }
+        assertEquals(3, overlapping.size());
+        assertFalse(overlapping.contains("192.168.0.0/16"));
+        assertEquals("10.0.0.0/8", index.findAnyOverlapping(IpPrefix.parse("10.1.0.0/16")));
+        assertNull(index.findAnyOverlapping(IpPrefix.parse("11.0.0.0/8")));
+    }
+
+    @Test
+    public void testPutAndRemove() {
+        IpPrefixIndex<String> index = index("10.1.1.0/24", "10.1.0.0/16");
+        assertEquals("10.1.1.0/24", index.put(IpPrefix.parse("10.1.1.0/24"), "again"));
+        assertEquals(2, index.size());
+        assertEquals("again", index.remove(IpPrefix.parse("10.1.1.0/24")));
+        assertNull(index.remove(IpPrefix.parse("10.1.1.0/24")));
+        assertNull(index.get(IpPrefix.parse("10.1.1.0/24")));
+        assertEquals(1, index.size());
+        assertTrue(index.overlaps(IpPrefix.parse("10.1.1.0/24")));
+        assertEquals("10.1.0.0/16", index.remove(IpPrefix.parse("10.1.0.0/16")));
+        assertFalse(index.overlaps(IpPrefix.parse("10.1.1.0/24")));
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void testFamiliesAreApart() {
+        IpPrefixIndex<String> index = index("0.0.0.0/0");
+        IpPrefix ipv6 = IpPrefix.ipv6(0x20010db800000000L, 0, 32);
+        assertFalse(index.overlaps(ipv6));
+        index.put(ipv6, "2001:db8::/32");
+        assertEquals("2001:db8::/32", index.longestMatch(IpPrefix.ipv6(0x20010db800010000L, 1, 128)));
+        assertEquals(2, index.size());
+    }
+
+    /**
+     * Checks the index against comparing all pairs of prefixes, and shows the time each takes.
+     */
+    @Test
+    public void testIndexAgainstPairwiseComparison() {
+        Random random = new Random(11);
+        List<IpPrefix> prefixes = new ArrayList<IpPrefix>();
+        for (int i = 0; i < 2000; i++) {
+            prefixes.add(IpPrefix.ipv4(random.nextInt() & 0xffffffffL, 16 + random.nextInt(13)));
+        }
+
+        long started = System.nanoTime();
+        int pairwise = 0;
+        for (int i = 0; i < prefixes.size(); i++) {
+            for (int j = 0; j < i; j++) {
+                if (prefixes.get(i).overlaps(prefixes.get(j))) {
+                    pairwise++;
+                    break;
+                }
+            }
+        }
+        long pairwiseNanos = System.nanoTime() - started;
+
+        started = System.nanoTime();
+        int indexed = 0;
+        IpPrefixIndex<IpPrefix> index = new IpPrefixIndex<IpPrefix>();
+        for (IpPrefix prefix : prefixes) {
+            if (index.overlaps(prefix)) {
+                indexed++;
+            }
+            index.put(prefix, prefix);
+        }
+        long indexedNanos = System.nanoTime() - started;
+
+        assertEquals(pairwise, indexed);
+        s_logger.info("Found the " + indexed + " of " + prefixes.size() + " prefixes overlapping earlier ones in " + pairwiseNanos / 1000 + "us comparing pairs, "
+                + indexedNanos / 1000 + "us with the index");
+    }
+}
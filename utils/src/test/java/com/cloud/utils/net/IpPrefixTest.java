@@ -0,0 +1,83 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class IpPrefixTest {
+
+    @Test
+    public void testParseIpv4() {
+        IpPrefix prefix = IpPrefix.parse("10.1.2.3/16");
+        assertFalse(prefix.isIpv6());
+        assertEquals(16, prefix.getLength());
+        assertEquals(NetUtils.ip2Long("10.1.0.0"), prefix.getAddress());
+        assertEquals("10.1.0.0/16", prefix.toString());
+        assertEquals(0, IpPrefix.parse("0.0.0.0/0").getAddress());
+        assertEquals(IpPrefix.parse("10.1.0.0/16"), prefix);
+    }
+
+    @Test
+    public void testParseInvalidIpv4() {
+        String[] invalid = {null, "", "10.1.1.1", "10.1.1/24", "10.1.1.1.1/24", "10.1.1.256/24", "10.01.1.1/24", "1234.1.1.1/8", "10.1.1.1/33",
+                "10.1.1.1/", "10.1.1.1/a", "10.1.1.1/032", "a.b.c.d/8", "10.1.1.1 /8"};
+        for (String cidr : invalid) {
+            assertNull(cidr, IpPrefix.tryParse(cidr));
+        }
+    }
+
+    @Test
+    public void testContainsAndOverlaps() {
+        IpPrefix wide = IpPrefix.parse("192.168.28.0/22");
+        IpPrefix narrow = IpPrefix.parse("192.168.30.0/24");
+        IpPrefix other = IpPrefix.parse("192.168.32.0/24");
+        assertTrue(wide.contains(narrow));
+        assertFalse(narrow.contains(wide));
+        assertTrue(wide.contains(wide));
+        assertTrue(wide.overlaps(narrow));
+        assertTrue(narrow.overlaps(wide));
+        assertFalse(wide.overlaps(other));
+        assertTrue(IpPrefix.parse("0.0.0.0/0").overlaps(other));
+        assertTrue(narrow.containsAddress(NetUtils.ip2Long("192.168.30.200")));
+        assertFalse(narrow.containsAddress(NetUtils.ip2Long("192.168.31.1")));
+        assertTrue(IpPrefix.overlaps(NetUtils.ip2Long("10.0.0.0"), 8, NetUtils.ip2Long("10.20.0.0"), 16));
+        assertFalse(IpPrefix.overlaps(NetUtils.ip2Long("10.0.0.0"), 8, NetUtils.ip2Long("11.0.0.0"), 16));
+    }
+
+    @Test
+    public void testIpv6() {
+        IpPrefix wide = IpPrefix.ipv6(0x20010db800000000L, 0, 32);
+        IpPrefix narrow = IpPrefix.ipv6(0x20010db800010000L, 0x1234L, 64);
+        IpPrefix host = IpPrefix.ipv6(0x20010db800010000L, 0x1234L, 128);
+        assertTrue(narrow.isIpv6());
+        assertEquals(0, narrow.getAddress());
+        assertTrue(wide.contains(narrow));
+        assertTrue(narrow.contains(host));
+        assertFalse(host.contains(narrow));
+        assertFalse(IpPrefix.ipv6(0x20010db900000000L, 0, 32).overlaps(narrow));
+        // the families never overlap
+        assertFalse(IpPrefix.parse("0.0.0.0/0").overlaps(IpPrefix.ipv6(0, 0, 0)));
+    }
+}